@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.copybara.util.FileUtil.CopySymlinkStrategy.FAIL_OUTSIDE_SYMLINKS;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.copybara.exception.ValidationException;
+import com.google.copybara.transform.PipelinedSequence;
+import com.google.copybara.transform.PipelinedSequence.FileTransformer;
+import com.google.copybara.util.FileUtil;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
+
+/**
+ * Prepares the checkout directory after the origin checkout in a single pass over its files,
+ * instead of one pass per step.
+ *
+ * <p>The calling thread deletes the files that don't match origin_files and copies the rest for
+ * the reversible check. Then it hands each copied regular file over a bounded queue to worker
+ * threads that apply the leading content transformations of the workflow. Later files are still
+ * being prepared while the workers transform the earlier ones.
+ */
+final class CheckoutPipeline {
+
+  private static final PendingFile END = new PendingFile(null, 0);
+
+  private final Path checkoutDir;
+  private final PathMatcher originFiles;
+  @Nullable private final Path originCopy;
+  private final PipelinedSequence transformations;
+  private final int threads;
+
+  /**
+   * @param checkoutDir directory with the origin checkout
+   * @param originFiles matcher for the files to keep in {@code checkoutDir}
+   * @param originCopy if not null, directory where the files are copied before being transformed
+   * @param transformations content transformations to apply to the files
+   * @param threads number of threads that apply the transformations
+   */
+  CheckoutPipeline(Path checkoutDir, PathMatcher originFiles, @Nullable Path originCopy,
+      PipelinedSequence transformations, int threads) {
+    checkArgument(threads > 0, "threads should be positive: %s", threads);
+    this.checkoutDir = checkNotNull(checkoutDir);
+    this.originFiles = checkNotNull(originFiles);
+    this.originCopy = originCopy;
+    this.transformations = checkNotNull(transformations);
+    this.threads = threads;
+  }
+
+  /** Runs the pipeline and returns the number of files deleted because of origin_files. */
+  int run() throws IOException, ValidationException {
+    // Listed up front so that temporary files created by the transformations are not visited.
+    List<PendingFile> files = listFiles();
+    BlockingQueue<PendingFile> queue = new ArrayBlockingQueue<>(threads * 16);
+    AtomicReference<Exception> failure = new AtomicReference<>();
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("checkout-pipeline-%d").setDaemon(true).build());
+    try {
+      List<Future<?>> workers = new ArrayList<>(threads);
+      for (int i = 0; i < threads; i++) {
+        FileTransformer fileTransformer = transformations.newFileTransformer(checkoutDir);
+        workers.add(executor.submit(() -> {
+          consume(queue, fileTransformer, failure);
+          return null;
+        }));
+      }
+      int deleted = 0;
+      try {
+        for (PendingFile file : files) {
+          if (failure.get() != null) {
+            break;
+          }
+          if (!originFiles.matches(file.path)) {
+            Files.delete(file.path);
+            deleted++;
+            continue;
+          }
+          if (originCopy != null) {
+            copyForReverseCheck(file.path);
+          }
+          if (file.regularFile) {
+            queue.put(file);
+          }
+        }
+      } finally {
+        for (int i = 0; i < threads; i++) {
+          queue.put(END);
+        }
+        for (Future<?> worker : workers) {
+          worker.get();
+        }
+      }
+      Exception e = failure.get();
+      if (e != null) {
+        Throwables.propagateIfPossible(e, IOException.class, ValidationException.class);
+        throw new IllegalStateException("Unexpected error transforming files", e);
+      }
+      return deleted;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while preparing the checkout directory", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Unexpected error transforming files", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void consume(BlockingQueue<PendingFile> queue, FileTransformer fileTransformer,
+      AtomicReference<Exception> failure) throws InterruptedException {
+    PendingFile file;
+    while ((file = queue.take()) != END) {
+      // Keep draining the queue after a failure so that the producer never blocks.
+      if (failure.get() != null) {
+        continue;
+      }
+      try {
+        fileTransformer.transform(file.path, file.size);
+      } catch (IOException | ValidationException | RuntimeException e) {
+        failure.compareAndSet(null, e);
+      }
+    }
+  }
+
+  private List<PendingFile> listFiles() throws IOException {
+    List<PendingFile> files = new ArrayList<>();
+    // Normalize so that the origin_files matcher works
+    Files.walkFileTree(checkoutDir.normalize(), new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        files.add(new PendingFile(file, attrs.isRegularFile() ? attrs.size() : -1));
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return files;
+  }
+
+  private void copyForReverseCheck(Path file) throws IOException, ValidationException {
+    try {
+      FileUtil.copyFile(checkoutDir.normalize(), file, originCopy, FAIL_OUTSIDE_SYMLINKS);
+    } catch (NoSuchFileException e) {
+      throw new ValidationException(String.format(""
+          + "Failed to perform reversible check of transformations due to symlink '%s' "
+          + "that points outside the checkout dir. Consider removing this symlink from "
+          + "your origin_files or, alternatively, set reversible_check = False in your "
+          + "workflow.", e.getFile()), e);
+    }
+  }
+
+  /** A file found in the checkout directory. */
+  private static final class PendingFile {
+
+    private final Path path;
+    private final long size;
+    private final boolean regularFile;
+
+    /**
+     * @param size size of the file or a negative number if it is not a regular file
+     */
+    private PendingFile(Path path, long size) {
+      this.path = path;
+      this.size = size;
+      this.regularFile = size >= 0;
+    }
+  }
+}
@@ -1021,7 +1021,8 @@ public class Core implements LabelsAwareModule, StarlarkValue {
         multiline,
         repeatedGroups,
         SkylarkUtil.convertStringList(ignore, "patterns_to_ignore"),
-        workflowOptions);
+        parallelizer(),
+        generalOptions.getDirFactory().getTmpRoot());
   }
 
   @SuppressWarnings("unused")
@@ -1149,7 +1150,7 @@ public class Core implements LabelsAwareModule, StarlarkValue {
         mode,
         mapping,
         defaultString,
-        workflowOptions.parallelizer(),
+        parallelizer(),
         regexIgnorelist);
   }
 
@@ -1269,7 +1270,7 @@ public class Core implements LabelsAwareModule, StarlarkValue {
         after.pattern(),
         after.groupCount());
     return new FilterReplace(
-        workflowOptions,
+        parallelizer(),
         before,
         after,
         numGroup,
@@ -1393,7 +1394,7 @@ public class Core implements LabelsAwareModule, StarlarkValue {
         convertFromNoneable(paths, Glob.ALL_FILES),
         verifyNoMatch,
         alsoOnReversal,
-        workflowOptions.parallelizer());
+        parallelizer());
   }
 
   @SuppressWarnings("unused")
@@ -1628,6 +1629,10 @@ public class Core implements LabelsAwareModule, StarlarkValue {
     return name;
   }
 
+  private LocalParallelizer parallelizer() {
+    return workflowOptions.parallelizer().withProfiler(generalOptions.profiler());
+  }
+
   @SuppressWarnings("unused")
   @StarlarkMethod(
       name = "fail_with_noop",
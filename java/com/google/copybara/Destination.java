@@ -93,6 +93,24 @@ public interface Destination<R extends Revision> extends ConfigItemDescription,
       return Endpoint.NOOP_ENDPOINT;
     }
 
+    /**
+     * Asks the writer to keep the following writes local (For example, committing but not
+     * pushing) until {@link #publishDeferred(Console)} is called. Returns false if the writer
+     * doesn't support it, in which case each write is published as usual.
+     */
+    default boolean deferPublishing() {
+      return false;
+    }
+
+    /**
+     * Publishes the writes done since {@link #deferPublishing()} was called, returning no effects
+     * if there was nothing to publish.
+     */
+    default ImmutableList<DestinationEffect> publishDeferred(Console console)
+        throws ValidationException, RepoException, IOException {
+      return ImmutableList.of();
+    }
+
     default DestinationReader getDestinationReader(
         Console console, @Nullable Origin.Baseline<?> baseline, Path workdir)
         throws ValidationException, RepoException {
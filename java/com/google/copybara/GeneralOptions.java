@@ -129,6 +129,14 @@ public final class GeneralOptions implements Option {
     return console;
   }
 
+  /**
+   * Replaces the console used by everything created from these options, for commands that run
+   * several migrations with their own console.
+   */
+  void setConsole(Console console) {
+    this.console = Preconditions.checkNotNull(console);
+  }
+
   public FileSystem getFileSystem() {
     return fileSystem;
   }
@@ -429,6 +437,19 @@ public final class GeneralOptions implements Option {
     return diffBin;
   }
 
+  @Parameter(
+      names = "--nomerge-import-in-process",
+      description =
+          "Use the --diff-bin tool for every file in merge import. By default, if the tool is"
+              + " diff3, files that only changed in one side or that merge without conflicts are"
+              + " merged in-process.")
+  private boolean noInProcessMergeImport = false;
+
+  /** Whether merge import can merge the files without conflicts without forking --diff-bin. */
+  public boolean isInProcessMergeImport() {
+    return !noInProcessMergeImport && diffBin.endsWith("diff3");
+  }
+
   /**
    * Temporary features is mean to be used by Copybara team for guarding new codepaths. Should
    * never be used for user facing flags or longer term experiments. Any caller of this function
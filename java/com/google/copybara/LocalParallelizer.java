@@ -21,34 +21,69 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
 import com.google.copybara.exception.ValidationException;
+import com.google.copybara.profiler.Profiler;
+import com.google.copybara.treestate.TreeState.FileState;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
 
 /**
  * A class that allows to run a list of things in parallel batches.
+ *
+ * <p>Batches are balanced by the {@link TransformFunc#weight(Object)} of their elements, so that a
+ * few big files don't end in the same batch, and are run in a {@link ForkJoinPool} so that idle
+ * threads steal pending batches from busy ones. The pool threads are daemon threads that finish
+ * after being idle for a while, so the pool doesn't need to be shut down.
  */
 public class LocalParallelizer {
 
+  /**
+   * Number of batches per thread that we try to create. More batches balance the load better but
+   * increase the per batch overhead of {@link TransformFunc}.
+   */
+  private static final int BATCHES_PER_THREAD = 4;
+
+  /** Opening and writing a file has a cost similar to reading this number of bytes. */
+  private static final long FILE_OVERHEAD_BYTES = 8 * 1024;
+
   private final int threads;
   private final int minSize;
-  private final ListeningExecutorService executor;
+  @Nullable private final ForkJoinPool pool;
+  @Nullable private final Profiler profiler;
 
   public LocalParallelizer(int threads, int minSize) {
+    this(threads, minSize, createPool(threads), /*profiler=*/ null);
+  }
+
+  private LocalParallelizer(int threads, int minSize, @Nullable ForkJoinPool pool,
+      @Nullable Profiler profiler) {
     this.threads = threads;
     this.minSize = minSize;
+    this.pool = pool;
+    this.profiler = profiler;
+  }
+
+  @Nullable
+  private static ForkJoinPool createPool(int threads) {
     Preconditions.checkState(threads >= 1, "Threads need to be positive");
     Preconditions.checkState(threads < 1000, "Too many threads (max: 1000)");
-    executor = threads == 1
-        ? null
-        : MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threads));
+    return threads == 1 ? null : new ForkJoinPool(threads);
+  }
+
+  /**
+   * Returns a parallelizer that shares the threads of this one and records the duration of every
+   * batch in {@code profiler}.
+   */
+  public LocalParallelizer withProfiler(Profiler profiler) {
+    return new LocalParallelizer(threads, minSize, pool, Preconditions.checkNotNull(profiler));
   }
 
   /**
@@ -59,21 +94,142 @@ public class LocalParallelizer {
     if (threads == 1 || Iterables.size(list) < minSize) {
       return ImmutableList.of(func.run(list));
     }
-    List<ListenableFuture<V>> results = new ArrayList<>(threads);
-    List<K> newList = Lists.newArrayList(list);
-    for (List<K> batch : Lists.partition(newList, Math.max(1, newList.size() / threads))) {
-      results.add(executor.submit(() -> func.run(batch)));
+    List<K> elements = Lists.newArrayList(list);
+    long[] accumulatedWeight = new long[elements.size() + 1];
+    for (int i = 0; i < elements.size(); i++) {
+      accumulatedWeight[i + 1] = accumulatedWeight[i] + Math.max(1, func.weight(elements.get(i)));
     }
+    long batches = (long) threads * BATCHES_PER_THREAD;
+    long batchWeight = Math.max(1, (accumulatedWeight[elements.size()] + batches - 1) / batches);
+    Batches<K, V> state = new Batches<>(func, elements, accumulatedWeight, batchWeight);
+    List<V> result;
     try {
-      return Futures.allAsList(results).get();
+      result = Preconditions.checkNotNull(pool).submit(state.new Split(0, elements.size())).get();
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
       //TODO We cannot do much here. We might expose InterruptedException all the way up to Main...
       throw new RuntimeException("Interrupted", e);
     } catch (ExecutionException e) {
-      Throwables.propagateIfPossible(e.getCause(), IOException.class, ValidationException.class);
       throw new RuntimeException("Unhandled error", e.getCause());
+    }
+    Exception failure = state.failure.get();
+    if (failure != null) {
+      Throwables.propagateIfPossible(failure, IOException.class, ValidationException.class);
+      throw new RuntimeException("Unhandled error", failure);
+    }
+    if (profiler != null) {
+      for (BatchTime time : state.times) {
+        profiler.simpleTask(String.format("batch_%d_elements_%d_weight", time.elements,
+            time.weight), time.startNanos, time.endNanos);
+      }
+    }
+    return result;
+  }
 
+  /**
+   * Weight of a file for {@link TransformFunc#weight(Object)} when the cost is proportional to its
+   * size.
+   */
+  public static long fileWeight(FileState file) {
+    try {
+      return FILE_OVERHEAD_BYTES + file.getSize();
+    } catch (IOException e) {
+      // The transformation will fail or skip the file anyway.
+      return FILE_OVERHEAD_BYTES;
+    }
+  }
+
+  /** State shared by all the fork/join tasks of a {@link #run} call. */
+  private static class Batches<K, V> {
+
+    private final TransformFunc<K, V> func;
+    private final List<K> elements;
+    private final long[] accumulatedWeight;
+    private final long batchWeight;
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private final Queue<BatchTime> times = new ConcurrentLinkedQueue<>();
+
+    private Batches(TransformFunc<K, V> func, List<K> elements, long[] accumulatedWeight,
+        long batchWeight) {
+      this.func = func;
+      this.elements = elements;
+      this.accumulatedWeight = accumulatedWeight;
+      this.batchWeight = batchWeight;
+    }
+
+    /**
+     * Runs the elements between {@code from} (inclusive) and {@code to} (exclusive) as one batch
+     * or splits them in two halves of similar weight.
+     */
+    private class Split extends RecursiveTask<List<V>> {
+
+      private final int from;
+      private final int to;
+
+      private Split(int from, int to) {
+        this.from = from;
+        this.to = to;
+      }
+
+      @Override
+      protected List<V> compute() {
+        if (failure.get() != null) {
+          return ImmutableList.of();
+        }
+        long weight = accumulatedWeight[to] - accumulatedWeight[from];
+        if (to - from == 1 || weight <= batchWeight) {
+          return runBatch(weight);
+        }
+        int middle = middle(accumulatedWeight[from] + weight / 2);
+        Split left = new Split(from, middle);
+        Split right = new Split(middle, to);
+        right.fork();
+        List<V> result = new ArrayList<>(left.compute());
+        result.addAll(right.join());
+        return result;
+      }
+
+      /** Returns the first index in (from, to) which accumulated weight is at least {@code half}. */
+      private int middle(long half) {
+        int low = from + 1;
+        int high = to - 1;
+        while (low < high) {
+          int mid = (low + high) >>> 1;
+          if (accumulatedWeight[mid] < half) {
+            low = mid + 1;
+          } else {
+            high = mid;
+          }
+        }
+        return low;
+      }
+
+      private List<V> runBatch(long weight) {
+        long start = System.nanoTime();
+        try {
+          return ImmutableList.of(func.run(elements.subList(from, to)));
+        } catch (IOException | ValidationException | RuntimeException e) {
+          failure.compareAndSet(null, e);
+          return ImmutableList.of();
+        } finally {
+          times.add(new BatchTime(to - from, weight, start, System.nanoTime()));
+        }
+      }
+    }
+  }
+
+  private static class BatchTime {
+
+    private final int elements;
+    private final long weight;
+    private final long startNanos;
+    private final long endNanos;
+
+    private BatchTime(int elements, long weight, long startNanos, long endNanos) {
+      this.elements = elements;
+      this.weight = weight;
+      this.startNanos = startNanos;
+      this.endNanos = endNanos;
     }
   }
 
@@ -84,5 +240,13 @@ public class LocalParallelizer {
      * Execute oen batch. The number of elements is undefined.
      */
     T run(Iterable<K> elements) throws IOException, ValidationException;
+
+    /**
+     * Relative cost of processing {@code element}, used for creating batches of similar cost. By
+     * default all the elements cost the same.
+     */
+    default long weight(K element) {
+      return 1;
+    }
   }
 }
@@ -45,6 +45,7 @@ import com.google.copybara.profiler.ConsoleProfilerListener;
 import com.google.copybara.profiler.Listener;
 import com.google.copybara.profiler.LogProfilerListener;
 import com.google.copybara.profiler.Profiler;
+import com.google.copybara.templatetoken.PatternCache;
 import com.google.copybara.util.ExitCode;
 import com.google.copybara.util.console.AnsiConsole;
 import com.google.copybara.util.console.Console;
@@ -282,6 +283,7 @@ public class Main {
     Consumer<Migration> consumer = getMigrationRanConsumer();
     return ImmutableSet.of(
         new MigrateCmd(validator, consumer, configLoaderProvider, moduleSet),
+        new MigrateAllCmd(validator, consumer, configLoaderProvider),
         new InfoCmd(configLoaderProvider, newInfoContextProvider()),
         new ValidateCmd(validator, consumer, configLoaderProvider),
         new HelpCmd(jcommander),
@@ -477,6 +479,7 @@ public class Main {
     if (profiler != null) {
       profiler.stop();
     }
+    logger.atInfo().log("Compiled pattern cache: %s", PatternCache.stats());
   }
 
   /**
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.copybara.exception.ValidationException.checkCondition;
+import static java.util.stream.Collectors.joining;
+
+import com.beust.jcommander.Parameters;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ascii;
+import com.google.common.base.CharMatcher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.copybara.config.Config;
+import com.google.copybara.config.ConfigValidator;
+import com.google.copybara.config.Migration;
+import com.google.copybara.config.ValidationResult;
+import com.google.copybara.exception.CommandLineException;
+import com.google.copybara.exception.EmptyChangeException;
+import com.google.copybara.exception.RepoException;
+import com.google.copybara.exception.ValidationException;
+import com.google.copybara.git.GitDestinationOptions;
+import com.google.copybara.util.ExitCode;
+import com.google.copybara.util.console.Console;
+import com.google.copybara.util.console.PrefixConsole;
+import com.google.copybara.util.console.ThreadConsole;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Executes several migrations of the given config concurrently, evaluating the config only once.
+ *
+ * <p>Each migration runs with its own workdir. The console messages written from the thread that
+ * runs a migration are prefixed with its name. The messages of other threads, like the workers that
+ * the migrations share to run transformations in parallel, are not.
+ * The repository caches are shared. Migrations that write to the same destination repository run
+ * one after the other, in the order they were given. With {@code --git-destination-path} all of
+ * them write to the same local repository, so all of them run one after the other.
+ */
+@Parameters(separators = "=",
+    commandDescription = "Executes several migrations of the given config concurrently. If no"
+        + " migrations are given, all the migrations of the config are executed.")
+public class MigrateAllCmd implements CopybaraCmd {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final ConfigValidator configValidator;
+  private final Consumer<Migration> migrationRanConsumer;
+  private final ConfigLoaderProvider configLoaderProvider;
+
+  MigrateAllCmd(ConfigValidator configValidator, Consumer<Migration> migrationRanConsumer,
+      ConfigLoaderProvider configLoaderProvider) {
+    this.configValidator = checkNotNull(configValidator);
+    this.migrationRanConsumer = checkNotNull(migrationRanConsumer);
+    this.configLoaderProvider = checkNotNull(configLoaderProvider);
+  }
+
+  @Override
+  public ExitCode run(CommandEnv commandEnv)
+      throws RepoException, ValidationException, IOException {
+    ImmutableList<String> args = commandEnv.getArgs();
+    if (args.isEmpty()) {
+      throw new CommandLineException(
+          String.format("Configuration file missing for '%s' subcommand.", name()));
+    }
+    Options options = commandEnv.getOptions();
+    checkCondition(!options.get(WorkflowOptions.class).isReadConfigFromChange(),
+        "%s flag is not supported by the %s subcommand", WorkflowOptions.READ_CONFIG_FROM_CHANGE,
+        name());
+    GeneralOptions generalOptions = options.get(GeneralOptions.class);
+    Console console = generalOptions.console();
+    // Everything created from the config writes to the console of the migration that the current
+    // thread runs
+    ThreadConsole threadConsole = new ThreadConsole(console);
+    generalOptions.setConsole(threadConsole);
+    try {
+      Config config = configLoaderProvider.newLoader(args.get(0), /*sourceRef=*/ null)
+          .load(console);
+      ImmutableMap<String, Migration> migrations =
+          selectMigrations(config, args.subList(1, args.size()), console);
+      // All the migrations write to the same local repository
+      boolean sequential = options.get(GitDestinationOptions.class).localRepoPath != null;
+      ImmutableMap<String, ExitCode> result = runAll(migrations, commandEnv.getWorkdir(),
+          sequential ? 1 : options.get(WorkflowOptions.class).migrateAllJobs, sequential,
+          console, threadConsole);
+
+      console.info("Migration results:");
+      for (Map.Entry<String, ExitCode> e : result.entrySet()) {
+        console.infoFmt("  %s: %s", e.getKey(), e.getValue());
+      }
+      return combinedExitCode(result.values());
+    } finally {
+      generalOptions.setConsole(console);
+    }
+  }
+
+  private ImmutableMap<String, Migration> selectMigrations(Config config,
+      ImmutableList<String> names, Console console) throws ValidationException {
+    ImmutableSet<String> selected =
+        names.isEmpty() ? config.getMigrations().keySet() : ImmutableSet.copyOf(names);
+    checkCondition(!selected.isEmpty(), "No migrations found in %s", config.getLocation());
+    ImmutableMap.Builder<String, Migration> result = ImmutableMap.builder();
+    boolean errors = false;
+    console.progressFmt("Validating configuration for %d migrations", selected.size());
+    for (String name : selected) {
+      ValidationResult validation = configValidator.validate(config, name);
+      if (validation.hasErrors()) {
+        validation.getErrors().forEach(e -> console.errorFmt("%s: %s", name, e));
+        errors = true;
+        continue;
+      }
+      result.put(name, config.getMigration(name));
+    }
+    if (errors) {
+      console.error("Configuration is invalid.");
+      throw new ValidationException("Error validating configuration: Configuration is invalid.");
+    }
+    return result.buildOrThrow();
+  }
+
+  /**
+   * Runs the migrations in a pool of {@code jobs} threads and returns the exit code of each one,
+   * in the same order. If {@code sequential} is true, they run one after the other.
+   */
+  private ImmutableMap<String, ExitCode> runAll(ImmutableMap<String, Migration> migrations,
+      Path workdir, int jobs, boolean sequential, Console console, ThreadConsole threadConsole)
+      throws RepoException {
+    // Migrations that write to the same destination run sequentially in the same task
+    Map<String, List<String>> byDestination = new LinkedHashMap<>();
+    for (Map.Entry<String, Migration> e : migrations.entrySet()) {
+      byDestination.computeIfAbsent(sequential ? "" : destinationKey(e.getValue()),
+          k -> new ArrayList<>()).add(e.getKey());
+    }
+    Map<String, ExitCode> exitCodes = new ConcurrentHashMap<>();
+    Map<String, Integer> index = new LinkedHashMap<>();
+    migrations.keySet().forEach(name -> index.put(name, index.size()));
+
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(jobs, byDestination.size()),
+        new ThreadFactoryBuilder().setNameFormat("migrate-all-%d").setDaemon(true).build());
+    try {
+      List<Future<?>> tasks = new ArrayList<>();
+      for (List<String> names : byDestination.values()) {
+        tasks.add(executor.submit(() -> {
+          for (String name : names) {
+            Console migrationConsole = new PrefixConsole("[" + name + "] ", console);
+            threadConsole.setForCurrentThread(migrationConsole);
+            try {
+              exitCodes.put(name, runMigration(migrations.get(name),
+                  workdir.resolve("migration_" + index.get(name)), migrationConsole));
+            } finally {
+              threadConsole.resetForCurrentThread();
+            }
+          }
+        }));
+      }
+      for (Future<?> task : tasks) {
+        task.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepoException("Interrupted while running the migrations", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Unexpected error running the migrations", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    ImmutableMap.Builder<String, ExitCode> result = ImmutableMap.builder();
+    for (String name : migrations.keySet()) {
+      result.put(name, exitCodes.get(name));
+    }
+    return result.buildOrThrow();
+  }
+
+  /** Runs a migration and returns the exit code that 'migrate' would return for it. */
+  private ExitCode runMigration(Migration migration, Path workdir, Console console) {
+    console.progressFmt("Running migration in %s", workdir);
+    try {
+      Files.createDirectories(workdir);
+      migrationRanConsumer.accept(migration);
+      migration.run(workdir, ImmutableList.of());
+      return ExitCode.SUCCESS;
+    } catch (EmptyChangeException e) {
+      console.warn(e.getMessage());
+      return ExitCode.NO_OP;
+    } catch (ValidationException e) {
+      console.error(e.getMessage());
+      return ExitCode.CONFIGURATION_ERROR;
+    } catch (RepoException e) {
+      console.error(e.getMessage());
+      return e.getCause() instanceof InterruptedException
+          ? ExitCode.INTERRUPTED
+          : ExitCode.REPOSITORY_ERROR;
+    } catch (IOException e) {
+      console.error(e.getMessage());
+      return ExitCode.ENVIRONMENT_ERROR;
+    } catch (RuntimeException e) {
+      logger.atSevere().withCause(e).log("Unexpected error running %s", migration.getName());
+      console.error("Unexpected error (please file a bug against copybara): " + e.getMessage());
+      return ExitCode.INTERNAL_ERROR;
+    }
+  }
+
+  /**
+   * Returns a key that is the same for migrations that write to the same destination repository:
+   * the normalized URL. Not only the pushed reference, since the writes to a repository share its
+   * local copy in the cache, including its HEAD and index. Destinations of different types, like a
+   * git.destination and a git.gerrit_destination, have the same key if they have the same URL.
+   * Destinations without a URL are identified by their whole description.
+   */
+  @VisibleForTesting
+  static String destinationKey(Migration migration) {
+    ImmutableSetMultimap<String, String> description = migration.getDestinationDescription();
+    if (!description.containsKey("url")) {
+      return description.toString();
+    }
+    return description.get("url").stream()
+        .map(MigrateAllCmd::normalizeUrl)
+        .collect(joining(","));
+  }
+
+  /**
+   * Removes the differences between URLs of the same repository: trailing slashes, the {@code
+   * .git} suffix and the case of the scheme and host.
+   */
+  private static String normalizeUrl(String url) {
+    String result = CharMatcher.is('/').trimTrailingFrom(url.trim());
+    if (result.endsWith(".git")) {
+      result = CharMatcher.is('/').trimTrailingFrom(
+          result.substring(0, result.length() - ".git".length()));
+    }
+    int scheme = result.indexOf("://");
+    if (scheme < 0) {
+      return result;
+    }
+    int path = result.indexOf('/', scheme + "://".length());
+    if (path < 0) {
+      path = result.length();
+    }
+    return Ascii.toLowerCase(result.substring(0, path)) + result.substring(path);
+  }
+
+  /**
+   * Returns the exit code of the first migration that failed, NO_OP if all of them were no-ops,
+   * or SUCCESS otherwise.
+   */
+  @VisibleForTesting
+  static ExitCode combinedExitCode(Iterable<ExitCode> exitCodes) {
+    boolean allNoOp = true;
+    for (ExitCode exitCode : exitCodes) {
+      if (exitCode != ExitCode.SUCCESS && exitCode != ExitCode.NO_OP) {
+        return exitCode;
+      }
+      allNoOp &= exitCode == ExitCode.NO_OP;
+    }
+    return allNoOp ? ExitCode.NO_OP : ExitCode.SUCCESS;
+  }
+
+  @Override
+  public String name() {
+    return "migrate-all";
+  }
+}
@@ -112,6 +112,22 @@ public interface Origin<R extends Revision> extends ConfigItemDescription, Starl
      */
     void checkout(R ref, Path checkoutDir) throws RepoException, ValidationException;
 
+    /**
+     * Like {@link #checkout}, but {@code checkoutDir} can contain the checkout done by a previous
+     * call to this method, which is updated in place so that only the files that changed are
+     * written. Files in {@code checkoutDir} that were modified since the previous call are
+     * restored.
+     *
+     * @param stateDir directory outside of {@code checkoutDir} that the reader can use to keep
+     *     state between calls for the same {@code checkoutDir}
+     * @return false, without modifying {@code checkoutDir}, if the reader doesn't support
+     *     incremental checkouts. {@link #checkout} should be used instead.
+     */
+    default boolean checkoutIncrementally(R ref, Path checkoutDir, Path stateDir)
+        throws RepoException, ValidationException {
+      return false;
+    }
+
     /**
      * Returns the changes that happen in the interval (fromRef, toRef].
      *
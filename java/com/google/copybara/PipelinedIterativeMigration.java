@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.copybara.WorkflowRunHelper.ChangeMigrator;
+import com.google.copybara.WorkflowRunHelper.PendingWrite;
+import com.google.copybara.effect.DestinationEffect;
+import com.google.copybara.effect.DestinationEffect.Type;
+import com.google.copybara.exception.ChangeRejectedException;
+import com.google.copybara.exception.EmptyChangeException;
+import com.google.copybara.exception.RepoException;
+import com.google.copybara.exception.ValidationException;
+import com.google.copybara.profiler.Profiler.ProfilerTask;
+import com.google.copybara.revision.Change;
+import com.google.copybara.revision.Changes;
+import com.google.copybara.revision.Revision;
+import com.google.copybara.util.console.Console;
+import com.google.copybara.util.console.PrefixConsole;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
+
+/**
+ * Runs an ITERATIVE migration that checks out and transforms the next change in the background
+ * while the current one is written to the destination.
+ *
+ * <p>Changes are written in order, and each change in flight uses its own workdir. Preparing a
+ * change doesn't depend on the write of the previous one: like in the sequential mode, all the
+ * changes are transformed using the same last migrated revision. Transformations that read the
+ * destination, through the destination reader, the destination API or the destination changes,
+ * wait until the previous change is written.
+ */
+final class PipelinedIterativeMigration<O extends Revision, D extends Revision> {
+
+  private final WorkflowRunHelper<O, D> runHelper;
+  @Nullable private final O lastRev;
+  private final Iterator<Change<O>> changesIterator;
+  private final int totalChanges;
+  private final int limit;
+
+  private final Deque<Change<O>> migrated = new ArrayDeque<>();
+  private int changeNumber = 1;
+  // Released when the last change that started preparing is written
+  private CountDownLatch lastWritten = new CountDownLatch(0);
+
+  PipelinedIterativeMigration(WorkflowRunHelper<O, D> runHelper, @Nullable O lastRev,
+      ImmutableList<Change<O>> changes, int limit) {
+    this.runHelper = checkNotNull(runHelper);
+    this.lastRev = lastRev;
+    this.changesIterator = changes.iterator();
+    this.totalChanges = Math.min(changes.size(), limit);
+    this.limit = limit;
+  }
+
+  /** Migrates the changes and returns the number of changes migrated. */
+  int run() throws RepoException, IOException, ValidationException {
+    ExecutorService executor = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("iterative-prepare-%d").setDaemon(true).build());
+    try {
+      int migratedChanges = 0;
+      PreparedChange current = prepareNext(executor);
+      while (current != null && migratedChanges < limit) {
+        // Don't prepare a change that won't be migrated because of the limit
+        PreparedChange next = migratedChanges + 1 < limit ? prepareNext(executor) : null;
+
+        boolean errors = false;
+        try (ProfilerTask ignored = runHelper.profiler().start(current.change.getRef())) {
+          ImmutableList<DestinationEffect> result =
+              current.migrator.migratePrepared(current.changes, current.console, current::get);
+          migratedChanges++;
+          for (DestinationEffect effect : result) {
+            if (effect.getType() != Type.NOOP) {
+              errors |= !effect.getErrors().isEmpty();
+            }
+          }
+        } catch (EmptyChangeException e) {
+          runHelper.getConsole().warnFmt("Migration of origin revision '%s' resulted in an empty"
+              + " change in the destination: %s", current.change.getRevision().asString(),
+              e.getMessage());
+        } catch (ValidationException | RepoException e) {
+          runHelper.getConsole().errorFmt("Migration of origin revision '%s' failed with error: %s",
+              current.change.getRevision().asString(), e.getMessage());
+          throw e;
+        } finally {
+          current.written.countDown();
+        }
+
+        if (errors && (next != null || changesIterator.hasNext())) {
+          // Use the regular console to log prompt and final message, it will be easier to spot
+          if (!runHelper.getConsole()
+              .promptConfirmation("Continue importing next change?")) {
+            String message =
+                String.format("Iterative workflow aborted by user after: %s", current.prefix);
+            runHelper.getConsole().warn(message);
+            throw new ChangeRejectedException(message);
+          }
+        }
+        if (next == null && migratedChanges < limit) {
+          next = prepareNext(executor);
+        }
+        current = next;
+      }
+      return migratedChanges;
+    } finally {
+      // Stops the preparation of changes that are not going to be written
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Starts preparing the next change that is not skipped, or returns null if there are no more
+   * changes.
+   */
+  @Nullable
+  private PreparedChange prepareNext(ExecutorService executor)
+      throws RepoException, ValidationException {
+    while (changesIterator.hasNext()) {
+      Change<O> change = changesIterator.next();
+      ChangeMigrator<O, D> migrator = runHelper.getMigratorForChange(change);
+      if (migrator.skipChange(change)) {
+        continue;
+      }
+      String prefix = String.format(
+          "Change %d of %d (%s): ", changeNumber, totalChanges, change.getRevision().asString());
+      Console console = new PrefixConsole(prefix, runHelper.getConsole());
+      Changes changes = new Changes(ImmutableList.of(change), migrated);
+      Metadata metadata = new Metadata(
+          runHelper.getChangeMessage(change.getMessage()),
+          runHelper.getFinalAuthor(change.getAuthor()),
+          ImmutableSetMultimap.of());
+      // The change is added to the migrated ones even if it fails with an empty change, so it
+      // can be added before writing it.
+      migrated.addFirst(change);
+      // Two changes are in flight at most: the one being written and the one being prepared
+      Path workdir = runHelper.getWorkdir().resolve("pipelined_" + changeNumber % 2);
+      changeNumber++;
+      CountDownLatch previousWritten = lastWritten;
+      CountDownLatch written = new CountDownLatch(1);
+      lastWritten = written;
+      PendingWrite pendingWrite = () -> {
+        try {
+          previousWritten.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RepoException("Interrupted while waiting for the previous change to be written",
+              e);
+        }
+      };
+      Future<TransformResult> result = executor.submit(() -> {
+        try (ProfilerTask ignored = runHelper.profiler().start("prepare_" + change.getRef())) {
+          return migrator.prepare(
+              workdir,
+              change.getRevision(),
+              lastRev,
+              console,
+              metadata,
+              changes,
+              /*destinationBaseline=*/ null,
+              // Use the current change since we might want to create different
+              // reviews in the destination.
+              change.getRevision(),
+              /*originBaselineForPrune=*/ null,
+              pendingWrite);
+        }
+      });
+      return new PreparedChange(change, migrator, changes, prefix, console, result, written);
+    }
+    return null;
+  }
+
+  /** A change being prepared in the background. */
+  private final class PreparedChange {
+
+    private final Change<O> change;
+    private final ChangeMigrator<O, D> migrator;
+    private final Changes changes;
+    private final String prefix;
+    private final Console console;
+    private final Future<TransformResult> result;
+    // Released when the change is written, successfully or not
+    private final CountDownLatch written;
+
+    private PreparedChange(Change<O> change, ChangeMigrator<O, D> migrator, Changes changes,
+        String prefix, Console console, Future<TransformResult> result, CountDownLatch written) {
+      this.change = change;
+      this.migrator = migrator;
+      this.changes = changes;
+      this.prefix = prefix;
+      this.console = console;
+      this.result = result;
+      this.written = written;
+    }
+
+    /** Waits for the preparation, throwing the same exception if it failed. */
+    private TransformResult get() throws IOException, RepoException, ValidationException {
+      try {
+        return result.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RepoException("Interrupted while preparing " + change.getRef(), e);
+      } catch (ExecutionException e) {
+        Throwables.propagateIfPossible(e.getCause(), IOException.class, RepoException.class);
+        Throwables.throwIfInstanceOf(e.getCause(), ValidationException.class);
+        throw new IllegalStateException("Unexpected error preparing " + change.getRef(),
+            e.getCause());
+      }
+    }
+  }
+}
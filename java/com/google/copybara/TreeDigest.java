@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import com.google.copybara.LocalParallelizer.TransformFunc;
+import com.google.copybara.exception.ValidationException;
+import com.google.copybara.util.AbsoluteSymlinksNotAllowed;
+import com.google.copybara.util.FileUtil;
+import com.google.copybara.util.FileUtil.ResolvedSymlink;
+import com.google.copybara.util.Glob;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Digest of the files of a directory, for comparing two trees without copying or diffing them.
+ *
+ * <p>Regular files are identified by the SHA-256 of their content and their executable bit, and
+ * symlinks by their target, which is what {@code git diff} compares. Symlinks that escape the
+ * directory are rejected, like {@link FileUtil.CopySymlinkStrategy#FAIL_OUTSIDE_SYMLINKS} does.
+ */
+final class TreeDigest {
+
+  private final ImmutableMap<String, String> digests;
+
+  private TreeDigest(ImmutableMap<String, String> digests) {
+    this.digests = checkNotNull(digests);
+  }
+
+  /** Computes the digest of {@code root}, hashing the files in parallel. */
+  static TreeDigest compute(Path root, LocalParallelizer parallelizer)
+      throws IOException, ValidationException {
+    Path normalized = root.normalize();
+    PathMatcher underRoot = Glob.ALL_FILES.relativeTo(normalized);
+    Map<String, String> digests = new HashMap<>();
+    List<Path> files = new ArrayList<>();
+    Files.walkFileTree(normalized, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if (attrs.isSymbolicLink()) {
+          ResolvedSymlink resolved = FileUtil.resolveSymlink(underRoot, file);
+          if (!resolved.isAllUnderRoot()) {
+            throw new AbsoluteSymlinksNotAllowed(
+                String.format("Symlink '%s' is absolute or escaped the root: '%s'.", file,
+                    resolved.getRegularFile()), file, resolved.getRegularFile());
+          }
+          digests.put(relative(normalized, file), "symlink " + Files.readSymbolicLink(file));
+        } else if (attrs.isRegularFile()) {
+          files.add(file);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    for (Map<String, String> batch : parallelizer.run(files, new HashFiles(normalized))) {
+      digests.putAll(batch);
+    }
+    return new TreeDigest(ImmutableMap.copyOf(digests));
+  }
+
+  /**
+   * Returns the relative paths of the files that are different, or only exist in one of the
+   * trees.
+   *
+   * @param ignore if not null, files to ignore
+   */
+  ImmutableSortedSet<String> differences(TreeDigest other, @Nullable Glob ignore) {
+    PathMatcher ignoreMatcher = ignore == null ? null : ignore.relativeTo(Paths.get("/"));
+    ImmutableSortedSet.Builder<String> result = ImmutableSortedSet.naturalOrder();
+    for (String path : Sets.union(digests.keySet(), other.digests.keySet())) {
+      if (!digests.getOrDefault(path, "").equals(other.digests.getOrDefault(path, ""))
+          && (ignoreMatcher == null || !ignoreMatcher.matches(Paths.get("/" + path)))) {
+        result.add(path);
+      }
+    }
+    return result.build();
+  }
+
+  private static String relative(Path root, Path file) {
+    return root.relativize(file).toString();
+  }
+
+  /** Hashes a batch of regular files. */
+  private static final class HashFiles implements TransformFunc<Path, Map<String, String>> {
+
+    private final Path root;
+
+    private HashFiles(Path root) {
+      this.root = root;
+    }
+
+    @Override
+    public Map<String, String> run(Iterable<Path> files) throws IOException {
+      Map<String, String> result = new HashMap<>();
+      for (Path file : files) {
+        result.put(relative(root, file), (isExecutable(file) ? "executable " : "file ")
+            + MoreFiles.asByteSource(file).hash(Hashing.sha256()));
+      }
+      return result;
+    }
+
+    @Override
+    public long weight(Path file) {
+      try {
+        return Files.size(file);
+      } catch (IOException e) {
+        // Will fail when hashing it
+        return 1;
+      }
+    }
+
+    private static boolean isExecutable(Path file) throws IOException {
+      try {
+        Set<PosixFilePermission> permissions =
+            Files.getPosixFilePermissions(file, LinkOption.NOFOLLOW_LINKS);
+        // git only records the owner executable bit
+        return permissions.contains(PosixFilePermission.OWNER_EXECUTE);
+      } catch (UnsupportedOperationException e) {
+        return false;
+      }
+    }
+  }
+}
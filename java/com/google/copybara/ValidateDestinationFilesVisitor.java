@@ -21,6 +21,7 @@ import static com.google.common.base.Preconditions.checkState;
 
 import com.google.copybara.exception.NotADestinationFileException;
 import com.google.copybara.util.Glob;
+import com.google.copybara.util.GlobPathMatcher;
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -36,7 +37,7 @@ import java.util.Collections;
  */
 class ValidateDestinationFilesVisitor extends SimpleFileVisitor<Path> {
 
-  private final PathMatcher destinationFiles;
+  private final GlobPathMatcher destinationFiles;
   private final Path checkoutDir;
   private ArrayList<Path> invalidPaths;
 
@@ -45,6 +46,14 @@ class ValidateDestinationFilesVisitor extends SimpleFileVisitor<Path> {
     this.checkoutDir = checkNotNull(checkoutDir, "checkoutDir");
   }
 
+  @Override
+  public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+    // No need to look at the files if all of them match
+    return destinationFiles.matchesAllUnder(dir)
+        ? FileVisitResult.SKIP_SUBTREE
+        : FileVisitResult.CONTINUE;
+  }
+
   @Override
   public FileVisitResult visitFile(Path file, BasicFileAttributes attr) {
     if (!destinationFiles.matches(file)) {
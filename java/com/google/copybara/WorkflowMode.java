@@ -154,10 +154,7 @@ public enum WorkflowMode {
         throw new EmptyChangeException(
             "No new changes to import for resolved ref: " + runHelper.getResolvedRef().asString());
       }
-      int changeNumber = 1;
-
       ImmutableList<Change<O>> changes = ImmutableList.copyOf(changesResponse.getChanges());
-      Iterator<Change<O>> changesIterator = changes.iterator();
       int limit = changes.size();
       if (runHelper.workflowOptions().iterativeLimitChanges < changes.size()) {
         runHelper.getConsole().info(String.format("Importing first %d change(s) out of %d",
@@ -167,64 +164,27 @@ public enum WorkflowMode {
 
       runHelper.maybeValidateRepoInLastRevState(/*metadata=*/null);
 
-      Deque<Change<O>> migrated = new ArrayDeque<>();
-      int migratedChanges = 0;
-      while (changesIterator.hasNext() && migratedChanges < limit) {
-        Change<O> change = changesIterator.next();
-        String prefix = String.format(
-            "Change %d of %d (%s): ",
-            changeNumber, Math.min(changes.size(), limit), change.getRevision().asString());
-        ImmutableList<DestinationEffect> result;
-
-        boolean errors = false;
-        try (ProfilerTask ignored = runHelper.profiler().start(change.getRef())) {
-          ImmutableList<Change<O>> current = ImmutableList.of(change);
-          ChangeMigrator<O, D> migrator = runHelper.getMigratorForChange(change);
-          if (migrator.skipChange(change)) {
-            continue;
-          }
-          result =
-              migrator.migrate(
-                  change.getRevision(),
-                  lastRev,
-                  new PrefixConsole(prefix, runHelper.getConsole()),
-                  new Metadata(
-                      runHelper.getChangeMessage(change.getMessage()),
-                      runHelper.getFinalAuthor(change.getAuthor()),
-                      ImmutableSetMultimap.of()),
-                  new Changes(current, migrated),
-                  /*destinationBaseline=*/ null,
-                  // Use the current change since we might want to create different
-                  // reviews in the destination. Will not work if we want to group
-                  // all the changes in the same Github PR
-                  change.getRevision(),
-                  null);
-          migratedChanges++;
-          for (DestinationEffect effect : result) {
-            if (effect.getType() != Type.NOOP) {
-              errors |= !effect.getErrors().isEmpty();
-            }
-          }
-        } catch (EmptyChangeException e) {
-          runHelper.getConsole().warnFmt("Migration of origin revision '%s' resulted in an empty"
-              + " change in the destination: %s", change.getRevision().asString(), e.getMessage());
-        } catch (ValidationException | RepoException e) {
-          runHelper.getConsole().errorFmt("Migration of origin revision '%s' failed with error: %s",
-              change.getRevision().asString(), e.getMessage());
-          throw e;
-        }
-        migrated.addFirst(change);
-
-        if (errors && changesIterator.hasNext()) {
-          // Use the regular console to log prompt and final message, it will be easier to spot
-          if (!runHelper.getConsole()
-              .promptConfirmation("Continue importing next change?")) {
-            String message = String.format("Iterative workflow aborted by user after: %s", prefix);
-            runHelper.getConsole().warn(message);
-            throw new ChangeRejectedException(message);
+      // Only push once at the end, if the destination supports it
+      boolean pushOnce =
+          runHelper.workflowOptions().iterativePushOnce && runHelper.deferPublishing();
+      int migratedChanges;
+      try {
+        migratedChanges = runHelper.workflowOptions().pipelinedIterative
+            ? new PipelinedIterativeMigration<>(runHelper, lastRev, changes, limit).run()
+            : migrateIteratively(runHelper, lastRev, changes, limit);
+      } catch (ValidationException | RepoException | IOException | RuntimeException e) {
+        if (pushOnce) {
+          // Push the changes migrated before the failure, like a regular ITERATIVE migration
+          try {
+            runHelper.publishDeferred();
+          } catch (ValidationException | RepoException | IOException | RuntimeException pushError) {
+            e.addSuppressed(pushError);
           }
         }
-        changeNumber++;
+        throw e;
+      }
+      if (pushOnce) {
+        runHelper.publishDeferred();
       }
       if (migratedChanges == 0) {
         throw new EmptyChangeException(
@@ -483,6 +443,77 @@ public enum WorkflowMode {
     }
   }
 
+  /**
+   * Migrates {@code changes} one by one and returns the number of changes migrated. See {@link
+   * #ITERATIVE}.
+   */
+  private static <O extends Revision, D extends Revision> int migrateIteratively(
+      WorkflowRunHelper<O, D> runHelper, @Nullable O lastRev, ImmutableList<Change<O>> changes,
+      int limit) throws RepoException, IOException, ValidationException {
+    int changeNumber = 1;
+    Iterator<Change<O>> changesIterator = changes.iterator();
+    Deque<Change<O>> migrated = new ArrayDeque<>();
+    int migratedChanges = 0;
+    while (changesIterator.hasNext() && migratedChanges < limit) {
+      Change<O> change = changesIterator.next();
+      String prefix = String.format(
+          "Change %d of %d (%s): ",
+          changeNumber, Math.min(changes.size(), limit), change.getRevision().asString());
+      ImmutableList<DestinationEffect> result;
+
+      boolean errors = false;
+      try (ProfilerTask ignored = runHelper.profiler().start(change.getRef())) {
+        ImmutableList<Change<O>> current = ImmutableList.of(change);
+        ChangeMigrator<O, D> migrator = runHelper.getMigratorForChange(change);
+        if (migrator.skipChange(change)) {
+          continue;
+        }
+        result =
+            migrator.migrate(
+                change.getRevision(),
+                lastRev,
+                new PrefixConsole(prefix, runHelper.getConsole()),
+                new Metadata(
+                    runHelper.getChangeMessage(change.getMessage()),
+                    runHelper.getFinalAuthor(change.getAuthor()),
+                    ImmutableSetMultimap.of()),
+                new Changes(current, migrated),
+                /*destinationBaseline=*/ null,
+                // Use the current change since we might want to create different
+                // reviews in the destination. Will not work if we want to group
+                // all the changes in the same Github PR
+                change.getRevision(),
+                null);
+        migratedChanges++;
+        for (DestinationEffect effect : result) {
+          if (effect.getType() != Type.NOOP) {
+            errors |= !effect.getErrors().isEmpty();
+          }
+        }
+      } catch (EmptyChangeException e) {
+        runHelper.getConsole().warnFmt("Migration of origin revision '%s' resulted in an empty"
+            + " change in the destination: %s", change.getRevision().asString(), e.getMessage());
+      } catch (ValidationException | RepoException e) {
+        runHelper.getConsole().errorFmt("Migration of origin revision '%s' failed with error: %s",
+            change.getRevision().asString(), e.getMessage());
+        throw e;
+      }
+      migrated.addFirst(change);
+
+      if (errors && changesIterator.hasNext()) {
+        // Use the regular console to log prompt and final message, it will be easier to spot
+        if (!runHelper.getConsole()
+            .promptConfirmation("Continue importing next change?")) {
+          String message = String.format("Iterative workflow aborted by user after: %s", prefix);
+          runHelper.getConsole().warn(message);
+          throw new ChangeRejectedException(message);
+        }
+      }
+      changeNumber++;
+    }
+    return migratedChanges;
+  }
+
   private static boolean isHistorySupported(WorkflowRunHelper<?, ?> helper) {
     return helper.destinationSupportsPreviousRef() && helper.getOriginReader().supportsHistory();
   }
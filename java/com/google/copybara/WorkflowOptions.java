@@ -26,6 +26,7 @@ import com.google.copybara.authoring.Author;
 import com.google.copybara.jcommander.AuthorConverter;
 import com.google.copybara.jcommander.GlobConverter;
 import com.google.copybara.jcommander.GreaterThanZeroListValidator;
+import com.google.copybara.jcommander.GreaterThanZeroValidator;
 import com.google.copybara.util.Glob;
 import java.util.List;
 import java.util.Objects;
@@ -133,11 +134,41 @@ public class WorkflowOptions implements Option {
       description = "Minimum size of the lists to process to run them in parallel")
   public int threadsMinSize = 100;
 
+  @Parameter(names = "--migrate-all-jobs",
+      description = "Number of migrations that the migrate-all command runs concurrently.",
+      validateWith = GreaterThanZeroValidator.class)
+  public int migrateAllJobs = 4;
+
   @Parameter(names = "--notransformation-join",
       description = "By default Copybara tries to join certain transformations in one so that it"
           + " is more efficient. This disables the feature.")
   public boolean noTransformationJoin = false;
 
+  @Parameter(names = "--experimental-incremental-checkout",
+      description = "In ITERATIVE mode, keep the origin checkout of the previous change and only"
+          + " update the files that changed for the next one. The transformations still run on"
+          + " a fresh copy of the checkout, cloned from the kept files. Origins that don't"
+          + " support it use a regular checkout.")
+  public boolean incrementalCheckout = false;
+
+  @Parameter(names = "--experimental-pipelined-squash",
+      description = "In SQUASH mode, prepare the checkout directory and apply the leading"
+          + " core.replace transformations in a single pipelined pass over the files, instead of"
+          + " one pass per step.")
+  public boolean pipelinedSquash = false;
+
+  @Parameter(names = "--experimental-pipelined-iterative",
+      description = "In ITERATIVE mode, check out and transform the next change while the current"
+          + " one is written to the destination. Each change in flight uses its own work"
+          + " directory, and the changes are still written in order.")
+  public boolean pipelinedIterative = false;
+
+  @Parameter(names = "--iterative-push-once",
+      description = "In ITERATIVE mode, create the destination commits locally and push all of"
+          + " them at the end of the migration, instead of pushing each change. Ignored if the"
+          + " destination doesn't support it, for example when creating tags or pull requests.")
+  public boolean iterativePushOnce = false;
+
   @Parameter(
       names = READ_CONFIG_FROM_CHANGE,
       description = "For each imported origin change, load the workflow's origin_files, "
@@ -178,7 +209,12 @@ public class WorkflowOptions implements Option {
     this.threads = other.threads;
     this.changeRequestFromSotLimit = other.changeRequestFromSotLimit;
     this.threadsMinSize = other.threadsMinSize;
+    this.migrateAllJobs = other.migrateAllJobs;
     this.noTransformationJoin = other.noTransformationJoin;
+    this.pipelinedSquash = other.pipelinedSquash;
+    this.incrementalCheckout = other.incrementalCheckout;
+    this.pipelinedIterative = other.pipelinedIterative;
+    this.iterativePushOnce = other.iterativePushOnce;
     this.readConfigFromChange = other.readConfigFromChange;
     this.readConfigFromChangePaths = other.readConfigFromChangePaths;
     this.noSmartPrune = other.noSmartPrune;
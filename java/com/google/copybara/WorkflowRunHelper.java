@@ -23,8 +23,10 @@ import static com.google.copybara.util.FileUtil.CopySymlinkStrategy.FAIL_OUTSIDE
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.base.Verify;
+import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.copybara.Destination.DestinationStatus;
 import com.google.copybara.Destination.Writer;
 import com.google.copybara.Origin.Baseline;
@@ -51,10 +53,15 @@ import com.google.copybara.profiler.Profiler.ProfilerTask;
 import com.google.copybara.revision.Change;
 import com.google.copybara.revision.Changes;
 import com.google.copybara.revision.Revision;
+import com.google.copybara.transform.PipelinedSequence;
+import com.google.copybara.transform.Sequence;
+import com.google.copybara.util.AbsoluteSymlinksNotAllowed;
 import com.google.copybara.util.CommandLineDiffUtil;
 import com.google.copybara.util.DiffUtil;
 import com.google.copybara.util.DiffUtil.DiffFile;
 import com.google.copybara.util.FileUtil;
+import com.google.copybara.util.FileUtil.CopyMode;
+import com.google.copybara.util.FileUtil.CopyStats;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.InsideGitDirException;
 import com.google.copybara.util.MergeImportTool;
@@ -64,7 +71,9 @@ import com.google.copybara.util.console.PrefixConsole;
 import com.google.errorprone.annotations.CanIgnoreReturnValue;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
@@ -141,6 +150,24 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
     return workdir;
   }
 
+  /** Asks the writer to push all the changes at the end. See {@link Writer#deferPublishing()}. */
+  boolean deferPublishing() {
+    return writer.deferPublishing();
+  }
+
+  /** Publishes the changes written since {@link #deferPublishing()}. */
+  ImmutableList<DestinationEffect> publishDeferred()
+      throws RepoException, IOException, ValidationException {
+    ImmutableList<DestinationEffect> effects;
+    try (ProfilerTask ignored = profiler().start("publish_deferred")) {
+      effects = writer.publishDeferred(getConsole());
+    }
+    if (!effects.isEmpty()) {
+      getDefaultMigrator().finishedMigrate(effects);
+    }
+    return effects;
+  }
+
   O getResolvedRef() {
     return resolvedRef;
   }
@@ -275,6 +302,26 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
     }
   }
 
+  /** A step of a migration that can fail like {@link ChangeMigrator#migrate}. */
+  interface MigrationStep<T> {
+
+    T run() throws IOException, RepoException, ValidationException;
+  }
+
+  /**
+   * The write of the previous change, when a change is prepared while the previous one is being
+   * written. Reads of the destination wait for it, so that they don't race with the write and see
+   * the same state as when the changes are migrated one after the other.
+   */
+  interface PendingWrite {
+
+    /** There is no write in progress. */
+    PendingWrite NONE = () -> {};
+
+    /** Waits until the write finishes, successfully or not. */
+    void await() throws RepoException;
+  }
+
   /**
    * Migrate a change for a workflow. Can overwrite the reader, writer, transformations, etc.
    */
@@ -409,20 +456,42 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
         @Nullable O changeIdentityRevision,
         @Nullable O originBaselineForMergeImport)
         throws IOException, RepoException, ValidationException {
+      return runMigration(changes, () -> doMigrate(
+          rev,
+          lastRev,
+          processConsole,
+          metadata,
+          changes,
+          destinationBaseline,
+          changeIdentityRevision,
+          originBaselineForMergeImport));
+    }
+
+    /**
+     * Writes a change that was already checked out and transformed with {@link #prepare}. Like
+     * {@link #migrate}, it notifies the event monitors and runs the after migration actions, also
+     * if the preparation failed.
+     *
+     * @param changes changes included in this migration
+     * @param processConsole console to use to print progress messages
+     * @param prepared returns the result of {@link #prepare} or throws the exception that it
+     *     failed with
+     */
+    @CanIgnoreReturnValue
+    final ImmutableList<DestinationEffect> migratePrepared(Changes changes,
+        Console processConsole, MigrationStep<TransformResult> prepared)
+        throws IOException, RepoException, ValidationException {
+      return runMigration(changes, () -> write(prepared.run(), processConsole));
+    }
+
+    private ImmutableList<DestinationEffect> runMigration(Changes changes,
+        MigrationStep<ImmutableList<DestinationEffect>> migration)
+        throws IOException, RepoException, ValidationException {
       ImmutableList<DestinationEffect> effects = ImmutableList.of();
       try {
         workflow.eventMonitors().dispatchEvent(
             m -> m.onChangeMigrationStarted(new ChangeMigrationStartedEvent()));
-        effects =
-            doMigrate(
-                rev,
-                lastRev,
-                processConsole,
-                metadata,
-                changes,
-                destinationBaseline,
-                changeIdentityRevision,
-                originBaselineForMergeImport);
+        effects = migration.run();
       } catch (RedundantChangeException e) {
         effects =
             ImmutableList.of(
@@ -550,10 +619,55 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
         @Nullable O changeIdentityRevision,
         @Nullable O originBaselineForPrune)
         throws IOException, RepoException, ValidationException {
+      return write(
+          prepare(
+              workdir,
+              rev,
+              lastRev,
+              processConsole,
+              metadata,
+              changes,
+              destinationBaseline,
+              changeIdentityRevision,
+              originBaselineForPrune,
+              PendingWrite.NONE),
+          processConsole);
+    }
+
+    /**
+     * Checks out and transforms {@code rev} in {@code workdir}, returning the result to write to
+     * the destination. It doesn't write to the destination, so it can run for the next change
+     * while the current one is being written, as long as they use different workdirs.
+     *
+     * <p>See {@link #migrate} for the rest of the parameters.
+     *
+     * @param workdir the directory to use for the migration. Its content is deleted.
+     * @param pendingWrite the write that the transformations wait for before reading the
+     *     destination
+     */
+    final TransformResult prepare(
+        Path workdir,
+        O rev,
+        @Nullable O lastRev,
+        Console processConsole,
+        Metadata metadata,
+        Changes changes,
+        @Nullable Baseline<O> destinationBaseline,
+        @Nullable O changeIdentityRevision,
+        @Nullable O originBaselineForPrune,
+        PendingWrite pendingWrite)
+        throws IOException, RepoException, ValidationException {
       Path checkoutDir = workdir.resolve("checkout");
+      PipelinedSequence pipelined = pipelinedTransformations();
+      // The pristine origin checkout of the previous change, if it can be reused
+      Path incrementalDir = useIncrementalCheckout(pipelined)
+          ? workdir.resolve("incremental")
+          : null;
       try (ProfilerTask ignored = profiler().start("prepare_workdir")) {
         processConsole.progress("Cleaning working directory");
-        if (Files.exists(workdir)) {
+        if (incrementalDir != null) {
+          cleanWorkdirKeeping(workdir, incrementalDir);
+        } else if (Files.exists(workdir)) {
           FileUtil.deleteRecursively(workdir);
         }
         Files.createDirectories(checkoutDir);
@@ -561,16 +675,26 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
       processConsole.progress("Checking out the change");
       boolean isShowDiffInOrigin = showDiffInOrigin(rev, lastRev, processConsole);
 
-      checkout(rev, processConsole, checkoutDir, "origin.checkout");
-
       Path originCopy = null;
       Console console = workflow.getConsole();
-      if (getReverseTransformForCheck() != null) {
-        try (ProfilerTask ignored = profiler().start("reverse_copy")) {
-          console.progress("Making a copy or the workdir for reverse checking");
+      if (pipelined != null) {
+        if (getReverseTransformForCheck() != null) {
           originCopy = Files.createDirectories(workdir.resolve("origin"));
+        }
+        pipelinedCheckout(rev, processConsole, checkoutDir, originCopy, pipelined);
+      } else if (incrementalDir == null
+          || !incrementalCheckout(rev, processConsole, checkoutDir, incrementalDir)) {
+        checkout(rev, processConsole, checkoutDir, "origin.checkout");
+      }
+
+      // Instead of a copy of the checkout for the reversible check, only the digest of the
+      // files is kept. The original files are only needed if the check fails.
+      TreeDigest originDigest = null;
+      if (pipelined == null && getReverseTransformForCheck() != null) {
+        try (ProfilerTask ignored = profiler().start("reverse_digest")) {
+          console.progress("Computing the digest of the workdir for reverse checking");
           try {
-            FileUtil.copyFilesRecursively(checkoutDir, originCopy, FAIL_OUTSIDE_SYMLINKS);
+            originDigest = TreeDigest.compute(checkoutDir, parallelizer());
           } catch (NoSuchFileException e) {
             throw new ValidationException(String.format(""
                 + "Failed to perform reversible check of transformations due to symlink '%s' "
@@ -583,9 +707,14 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
       }
       // Lazy loading to avoid running afoul of checks unless the instance is actually used.
       LazyResourceLoader<Endpoint> originApi = c -> reader.getFeedbackEndPoint(c);
-      LazyResourceLoader<Endpoint> destinationApi = c-> writer.getFeedbackEndPoint(c);
-      ResourceSupplier<DestinationReader> destinationReader = () ->
-          writer.getDestinationReader(console, destinationBaseline, checkoutDir);
+      LazyResourceLoader<Endpoint> destinationApi = c -> {
+        pendingWrite.await();
+        return writer.getFeedbackEndPoint(c);
+      };
+      ResourceSupplier<DestinationReader> destinationReader = () -> {
+        pendingWrite.await();
+        return writer.getDestinationReader(console, destinationBaseline, checkoutDir);
+      };
 
       TransformWork transformWork =
           new TransformWork(
@@ -593,7 +722,9 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
               metadata,
               changes,
               console,
-              new MigrationInfo(workflow.getRevIdLabel(), writer),
+              new MigrationInfo(workflow.getRevIdLabel(), pendingWrite == PendingWrite.NONE
+                  ? writer
+                  : new AfterPendingWrite<>(writer, pendingWrite)),
               resolvedRef,
               originApi,
               destinationApi,
@@ -601,14 +732,16 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
               .withLastRev(lastRev)
               .withCurrentRev(rev);
       try (ProfilerTask ignored = profiler().start("transforms")) {
-        TransformationStatus status = getTransformation().transform(transformWork);
+        TransformationStatus status = pipelined != null
+            ? pipelined.transform(transformWork)
+            : getTransformation().transform(transformWork);
         if (status.isNoop()) {
-          showInfoAboutNoop(console);
+          showInfoAboutNoop(console, workdir);
           status.throwException(console, workflow.getWorkflowOptions().ignoreNoop);
         }
       } catch (VoidOperationException e) {
         // This happens if an inner secuence throws noop as an exception.
-        showInfoAboutNoop(console);
+        showInfoAboutNoop(console, workdir);
         throw e;
       }
 
@@ -618,7 +751,17 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
         try (ProfilerTask ignored = profiler().start("reverse_copy")) {
           reverse = Files.createDirectories(workdir.resolve("reverse"));
           try {
-            FileUtil.copyFilesRecursively(checkoutDir, reverse, FAIL_OUTSIDE_SYMLINKS);
+            // The reverse transformations modify the files, so they are cloned (copy-on-write)
+            // instead of linked.
+            long startNanos = System.nanoTime();
+            CopyStats stats = FileUtil.copyFilesRecursively(checkoutDir, reverse,
+                FAIL_OUTSIDE_SYMLINKS, Glob.ALL_FILES, CopyMode.CLONE,
+                workflow.getWorkflowOptions().threads);
+            long endNanos = System.nanoTime();
+            profiler().simpleTask(String.format("copied_%d_files_%d_bytes",
+                stats.getCopiedFiles(), stats.getCopiedBytes()), startNanos, endNanos);
+            profiler().simpleTask(String.format("linked_%d_files_%d_bytes",
+                stats.getLinkedFiles(), stats.getLinkedBytes()), startNanos, endNanos);
           } catch (NoSuchFileException e) {
             throw new ValidationException(""
                 + "Failed to perform reversible check of transformations due to a symlink that "
@@ -648,22 +791,23 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
             status.throwException(console, workflow.getWorkflowOptions().ignoreNoop);
           }
         }
-        String diff;
+        ImmutableSortedSet<String> differences;
+        try (ProfilerTask ignored = profiler().start("reverse_digest")) {
+          if (originDigest == null) {
+            originDigest = TreeDigest.compute(originCopy, parallelizer());
+          }
+          differences = originDigest.differences(
+              TreeDigest.compute(reverse, parallelizer()), getReversibleCheckIgnoreFiles());
+        }
+        String diff = "";
         try {
-          byte[] byteDiff =
-              DiffUtil.diff(
-                  originCopy,
-                  reverse,
-                  workflow.isVerbose(),
-                  workflow.getGeneralOptions().getEnvironment());
-
-          // This should be more optimal than parsing a potential huge diff file.
-          if (getReversibleCheckIgnoreFiles() != null) {
-            PathMatcher pathMatcher =
-                getReversibleCheckIgnoreFiles().relativeTo(Paths.get("origin"));
-            diff = DiffUtil.filterDiff(byteDiff, (s -> !pathMatcher.matches(Paths.get(s))));
-          } else {
-            diff = new String(byteDiff, StandardCharsets.UTF_8);
+          if (!differences.isEmpty()) {
+            if (originCopy == null) {
+              console.progress("Checking out the change again for showing the reverse diff");
+              originCopy = Files.createDirectories(workdir.resolve("origin"));
+              checkout(rev, processConsole, originCopy, "reverse_checkout");
+            }
+            diff = diffFiles(workdir, differences, originCopy, reverse);
           }
         } catch (InsideGitDirException e) {
           throw new ValidationException(String.format(
@@ -713,6 +857,7 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
                 workflow.getDestinationFiles(), destinationFilesWorkdir);
         Path baselineWorkdir =
             checkoutBaselineAndTransform(
+                workdir,
                 lastRev,
                 metadata,
                 changes,
@@ -728,7 +873,9 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
                 new CommandLineDiffUtil(
                     workflow.getGeneralOptions().getDiffBin(),
                     workflow.getGeneralOptions().getEnvironment(),
-                    workflow.isVerbose()));
+                    workflow.isVerbose()),
+                workflow.getGeneralOptions().isInProcessMergeImport(),
+                workflow.getWorkflowOptions().threads);
         try (ProfilerTask ignored = profiler().start("merge_tool")) {
           mergeImportTool.mergeImport(
               checkoutDir,
@@ -745,6 +892,7 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
               WorkflowOptions.CHANGE_REQUEST_PARENT_FLAG);
           Path baselineWorkdir =
               checkoutBaselineAndTransform(
+                  workdir,
                   lastRev,
                   metadata,
                   changes,
@@ -764,13 +912,15 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
           }
         }
       }
-      transformResult =
-          transformResult
-              .withAskForConfirmation(workflow.isAskForConfirmation())
-              .withDiffInOrigin(isShowDiffInOrigin)
-              .withIdentity(workflow.getMigrationIdentity(changeIdentityRevision, transformWork))
-              .withApprovalsProvider(workflow.getOrigin().getApprovalsProvider());
+      return transformResult
+          .withAskForConfirmation(workflow.isAskForConfirmation())
+          .withDiffInOrigin(isShowDiffInOrigin)
+          .withIdentity(workflow.getMigrationIdentity(changeIdentityRevision, transformWork))
+          .withApprovalsProvider(workflow.getOrigin().getApprovalsProvider());
+    }
 
+    private ImmutableList<DestinationEffect> write(TransformResult transformResult,
+        Console processConsole) throws IOException, RepoException, ValidationException {
       ImmutableList<DestinationEffect> result;
       try (ProfilerTask ignored = profiler().start(
           "destination.write", profiler().taskType(workflow.getDestination().getType()))) {
@@ -783,6 +933,7 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
     }
 
     private Path checkoutBaselineAndTransform(
+        Path workdir,
         O lastRev,
         Metadata metadata,
         Changes changes,
@@ -820,7 +971,7 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
       return baselineWorkdir;
     }
 
-    private void showInfoAboutNoop(Console console) {
+    private void showInfoAboutNoop(Console console, Path workdir) {
       console.warnFmt("No-op detected, this could happen for several reasons:\n\n"
               + "    - origin_files doesn't include the files. Current origin_files: %s\n\n"
               + "    - Previous transformations didn't do what you were expecting. You can"
@@ -838,6 +989,147 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
           console.colorize(AnsiColor.YELLOW, "--read-config-from-change"));
     }
 
+    /**
+     * Returns the transformations to apply while preparing the checkout directory, or null if
+     * the workflow doesn't use a pipelined checkout.
+     */
+    @Nullable
+    private PipelinedSequence pipelinedTransformations() {
+      if (!workflow.getWorkflowOptions().pipelinedSquash
+          || workflow.getMode() != WorkflowMode.SQUASH
+          || !workflow.isCheckout()
+          || !(getTransformation() instanceof Sequence)) {
+        return null;
+      }
+      return ((Sequence) getTransformation()).pipelined();
+    }
+
+    /**
+     * Same as {@link #checkout} but removing the excluded origin files, copying the files for the
+     * reversible check and applying the leading content transformations in a single pipelined
+     * pass.
+     */
+    private void pipelinedCheckout(O rev, Console processConsole, Path checkoutDir,
+        @Nullable Path originCopy, PipelinedSequence pipelined)
+        throws RepoException, ValidationException, IOException {
+      try (ProfilerTask ignored = profiler().start(
+          "origin.checkout", profiler().taskType(workflow.getOrigin().getType()))) {
+        reader.checkout(rev, checkoutDir);
+      }
+      processConsole.progress("Preparing the checkout directory");
+      int deleted;
+      try (ProfilerTask ignored = profiler().start("pipelined_checkout")) {
+        deleted = new CheckoutPipeline(checkoutDir, getOriginFiles().relativeTo(checkoutDir),
+            originCopy, pipelined, workflow.getWorkflowOptions().threads)
+            .run();
+      }
+      if (deleted != 0) {
+        processConsole.infoFmt(
+            "Removed %d files from workdir that do not match origin_files", deleted);
+      }
+    }
+
+    /**
+     * Returns the textual diff of {@code paths} between the {@code origin} and {@code reverse}
+     * trees, as 'origin/path' and 'reverse/path'.
+     */
+    private String diffFiles(Path workdir, Iterable<String> paths, Path origin, Path reverse)
+        throws IOException, InsideGitDirException {
+      Path diffDir = Files.createDirectories(workdir.resolve("reverse_diff"));
+      Path originFiles = Files.createDirectories(diffDir.resolve("origin"));
+      Path reverseFiles = Files.createDirectories(diffDir.resolve("reverse"));
+      for (String path : paths) {
+        copyIfExists(origin, path, originFiles);
+        copyIfExists(reverse, path, reverseFiles);
+      }
+      return new String(
+          DiffUtil.diff(
+              originFiles,
+              reverseFiles,
+              workflow.isVerbose(),
+              workflow.getGeneralOptions().getEnvironment()),
+          StandardCharsets.UTF_8);
+    }
+
+    private void copyIfExists(Path root, String path, Path to) throws IOException {
+      Path file = root.resolve(path);
+      if (Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+        FileUtil.copyFile(root.normalize(), file.normalize(), to, FAIL_OUTSIDE_SYMLINKS);
+      }
+    }
+
+    private LocalParallelizer parallelizer() {
+      return workflow.getWorkflowOptions().parallelizer().withProfiler(profiler());
+    }
+
+    /**
+     * Whether the origin checkout is kept in the workdir between the changes of an ITERATIVE
+     * migration, so that the next change only needs to update the files that changed.
+     */
+    private boolean useIncrementalCheckout(@Nullable PipelinedSequence pipelined) {
+      return workflow.getWorkflowOptions().incrementalCheckout
+          && workflow.getMode() == WorkflowMode.ITERATIVE
+          && workflow.isCheckout()
+          && pipelined == null;
+    }
+
+    /** Deletes the content of {@code workdir}, except {@code keep}. */
+    private void cleanWorkdirKeeping(Path workdir, Path keep) throws IOException {
+      if (!Files.exists(workdir)) {
+        return;
+      }
+      try (DirectoryStream<Path> children = Files.newDirectoryStream(workdir)) {
+        for (Path child : children) {
+          if (!child.equals(keep)) {
+            FileUtil.deleteRecursively(child);
+          }
+        }
+      }
+    }
+
+    /**
+     * Updates the pristine origin checkout kept in {@code incrementalDir} to {@code rev}, and
+     * clones its files into {@code checkoutDir}.
+     *
+     * <p>The files are cloned instead of hardlinked because the transformations modify them in
+     * place, and the pristine tree must keep the origin content for the next change.
+     *
+     * @return false if the origin doesn't support incremental checkouts or the checkout cannot be
+     *     cloned. In that case {@code checkoutDir} is empty.
+     */
+    private boolean incrementalCheckout(
+        O rev, Console processConsole, Path checkoutDir, Path incrementalDir)
+        throws RepoException, ValidationException, IOException {
+      Path pristine = incrementalDir.resolve("tree");
+      Files.createDirectories(pristine);
+      try (ProfilerTask ignored = profiler().start(
+          "origin.incremental_checkout", profiler().taskType(workflow.getOrigin().getType()))) {
+        if (!reader.checkoutIncrementally(rev, pristine, incrementalDir)) {
+          FileUtil.deleteRecursively(incrementalDir);
+          return false;
+        }
+      }
+      processConsole.progress("Cloning the origin files from the previous checkout");
+      try (ProfilerTask ignored = profiler().start("incremental_clone")) {
+        long startNanos = System.nanoTime();
+        CopyStats stats = FileUtil.copyFilesRecursively(pristine, checkoutDir,
+            FAIL_OUTSIDE_SYMLINKS, getOriginFiles(), CopyMode.CLONE,
+            workflow.getWorkflowOptions().threads);
+        long endNanos = System.nanoTime();
+        profiler().simpleTask(String.format("copied_%d_files_%d_bytes",
+            stats.getCopiedFiles(), stats.getCopiedBytes()), startNanos, endNanos);
+        profiler().simpleTask(String.format("linked_%d_files_%d_bytes",
+            stats.getLinkedFiles(), stats.getLinkedBytes()), startNanos, endNanos);
+      } catch (AbsoluteSymlinksNotAllowed e) {
+        // Let the regular checkout materialize or reject the symlink
+        processConsole.verboseFmt("Cannot reuse the origin checkout: %s", e.getMessage());
+        FileUtil.deleteRecursively(checkoutDir);
+        Files.createDirectories(checkoutDir);
+        return false;
+      }
+      return true;
+    }
+
     private void checkout(
         O rev, Console processConsole, Path checkoutDir, String profileDescription)
         throws RepoException, ValidationException, IOException {
@@ -941,4 +1233,29 @@ public class WorkflowRunHelper<O extends Revision, D extends Revision> {
     return workflow.eventMonitors();
   }
 
+  /** Visits the changes of the destination once the pending write finishes. */
+  private static final class AfterPendingWrite<R extends Revision> implements ChangeVisitable<R> {
+
+    private final ChangeVisitable<R> delegate;
+    private final PendingWrite pendingWrite;
+
+    private AfterPendingWrite(ChangeVisitable<R> delegate, PendingWrite pendingWrite) {
+      this.delegate = checkNotNull(delegate);
+      this.pendingWrite = checkNotNull(pendingWrite);
+    }
+
+    @Override
+    public void visitChanges(@Nullable R start, ChangesVisitor visitor)
+        throws RepoException, ValidationException {
+      pendingWrite.await();
+      delegate.visitChanges(start, visitor);
+    }
+
+    @Override
+    public void visitChangesWithAnyLabel(@Nullable R start, ImmutableCollection<String> labels,
+        ChangesLabelVisitor visitor) throws RepoException, ValidationException {
+      pendingWrite.await();
+      delegate.visitChangesWithAnyLabel(start, labels, visitor);
+    }
+  }
 }
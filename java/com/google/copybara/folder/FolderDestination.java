@@ -29,6 +29,7 @@ import com.google.copybara.exception.RepoException;
 import com.google.copybara.exception.ValidationException;
 import com.google.copybara.revision.Revision;
 import com.google.copybara.util.FileUtil;
+import com.google.copybara.util.FileUtil.CopyMode;
 import com.google.copybara.util.FileUtil.CopySymlinkStrategy;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Console;
@@ -118,8 +119,10 @@ public class FolderDestination implements Destination<Revision> {
       FileUtil.deleteFilesRecursively(localFolder, destinationFiles.relativeTo(localFolder));
 
       console.progress("FolderDestination: Copying contents of the workdir to " + localFolder);
+      // Cloned so that the output doesn't take space until the files are modified
       FileUtil.copyFilesRecursively(transformResult.getPath(), localFolder,
-          CopySymlinkStrategy.FAIL_OUTSIDE_SYMLINKS);
+          CopySymlinkStrategy.FAIL_OUTSIDE_SYMLINKS, Glob.ALL_FILES, CopyMode.CLONE,
+          /*threads=*/ 1);
       return ImmutableList.of(
           new DestinationEffect(
               exists ? DestinationEffect.Type.UPDATED : DestinationEffect.Type.CREATED,
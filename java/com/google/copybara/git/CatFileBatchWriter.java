@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.copybara.git.GitRepository.TreeElement;
+import com.google.copybara.util.FileUtil;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * An {@link OutputStream} that parses the output of 'git cat-file --batch' and writes each blob
+ * directly to its location under a root directory.
+ *
+ * <p>Blobs are expected in the same order as the {@code elements} passed to the constructor, which
+ * is the order in which their SHA-1s were written to the process stdin. Executable files are
+ * created with the executable bit set and symlinks (mode 120000) are created as symlinks.
+ */
+class CatFileBatchWriter extends OutputStream {
+
+  private static final ImmutableSet<PosixFilePermission> EXECUTABLE =
+      ImmutableSet.of(PosixFilePermission.OWNER_EXECUTE, PosixFilePermission.GROUP_EXECUTE,
+          PosixFilePermission.OTHERS_EXECUTE);
+
+  private enum State {
+    HEADER,
+    CONTENT,
+    TRAILER
+  }
+
+  private final Path root;
+  private final ImmutableList<TreeElement> elements;
+
+  private State state = State.HEADER;
+  private int current = 0;
+  private long remaining;
+  private final ByteArrayOutputStream header = new ByteArrayOutputStream(64);
+  // Either a file on disk or a buffer for the symlink target.
+  @Nullable private OutputStream out;
+  @Nullable private IOException failure;
+
+  CatFileBatchWriter(Path root, List<TreeElement> elements) {
+    this.root = checkNotNull(root);
+    this.elements = ImmutableList.copyOf(elements);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    try {
+      doWrite(b, off, len);
+    } catch (IOException e) {
+      // Command wraps the exception thrown by the stream consumer. Keep the original one so that
+      // we can give a good error message.
+      if (failure == null) {
+        failure = e;
+      }
+      throw e;
+    }
+  }
+
+  private void doWrite(byte[] b, int off, int len) throws IOException {
+    int end = off + len;
+    int i = off;
+    while (i < end) {
+      switch (state) {
+        case HEADER:
+          byte c = b[i++];
+          if (c == '\n') {
+            startBlob(new String(header.toByteArray(), UTF_8));
+            header.reset();
+          } else {
+            header.write(c);
+          }
+          break;
+        case CONTENT:
+          int toWrite = (int) Math.min(remaining, end - i);
+          checkNotNull(out).write(b, i, toWrite);
+          i += toWrite;
+          remaining -= toWrite;
+          if (remaining == 0) {
+            finishBlob();
+          }
+          break;
+        case TRAILER:
+          if (b[i++] != '\n') {
+            throw new IOException("Unexpected 'git cat-file --batch' output after "
+                + elements.get(current - 1).getPath());
+          }
+          state = State.HEADER;
+          break;
+      }
+    }
+  }
+
+  private void startBlob(String line) throws IOException {
+    if (current >= elements.size()) {
+      throw new IOException("Unexpected object in 'git cat-file --batch' output: " + line);
+    }
+    TreeElement element = elements.get(current);
+    // Format is '<sha1> <type> <size>' or '<object> missing'
+    List<String> parts = Splitter.on(' ').splitToList(line);
+    if (parts.size() != 3 || !parts.get(0).equals(element.getRef())) {
+      throw new IOException(String.format("Cannot read '%s' (%s): %s",
+          element.getPath(), element.getRef(), line));
+    }
+    try {
+      remaining = Long.parseLong(parts.get(2));
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid size in 'git cat-file --batch' output: " + line, e);
+    }
+    Path path = root.resolve(element.getPath());
+    Files.createDirectories(path.getParent());
+    // Never follow an existing symlink when writing the file.
+    if (Files.isSymbolicLink(path)) {
+      Files.delete(path);
+    }
+    out = element.isSymlink()
+        ? new ByteArrayOutputStream()
+        : Files.newOutputStream(path);
+    state = State.CONTENT;
+    if (remaining == 0) {
+      finishBlob();
+    }
+  }
+
+  private void finishBlob() throws IOException {
+    TreeElement element = elements.get(current);
+    Path path = root.resolve(element.getPath());
+    OutputStream finished = checkNotNull(out);
+    finished.close();
+    out = null;
+    if (element.isSymlink()) {
+      Files.deleteIfExists(path);
+      Files.createSymbolicLink(
+          path, Paths.get(new String(((ByteArrayOutputStream) finished).toByteArray(), UTF_8)));
+    } else if (element.isExecutable()) {
+      FileUtil.addPermissions(path, EXECUTABLE);
+    }
+    current++;
+    state = State.TRAILER;
+  }
+
+  /**
+   * Returns the first error found while writing the files, if any.
+   */
+  @Nullable
+  IOException getFailure() {
+    return failure;
+  }
+
+  /**
+   * Returns true if all the requested blobs were fully written.
+   */
+  boolean isComplete() {
+    return current == elements.size() && state != State.CONTENT;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (out != null) {
+      out.close();
+      out = null;
+    }
+  }
+}
@@ -22,6 +22,8 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.copybara.ChangeMessage;
+import com.google.copybara.ChangeVisitable.ChangesVisitor;
+import com.google.copybara.ChangeVisitable.VisitResult;
 import com.google.copybara.authoring.Author;
 import com.google.copybara.authoring.Authoring;
 import com.google.copybara.exception.RepoException;
@@ -68,6 +70,34 @@ class ChangeReader {
 
   ImmutableList<Change<GitRevision>> run(String refExpression)
       throws RepoException, ValidationException {
+    // Log command does not filter by roots here because of how git log works. Some commits (e.g.
+    // fake merges) might not include the files in the log, and filtering here would return
+    // incorrect results. We do filter later on the changes to match the actual glob.
+    return parseChanges(logCmd(refExpression).run());
+  }
+
+  /**
+   * Visits the changes for {@code refExpression}, from newest to oldest, running a single
+   * 'git log' command. The changes are parsed as the command produces them and the command is
+   * stopped as soon as the visitor returns {@link VisitResult#TERMINATE}.
+   *
+   * @param readAhead max number of changes read from git but not visited yet
+   * @return the number of commits read from git
+   */
+  int visit(String refExpression, ChangesVisitor visitor, int readAhead)
+      throws RepoException, ValidationException {
+    GitRevision[] last = new GitRevision[1];
+    return logCmd(refExpression).visit(e -> {
+      // Keep the first commit if repeated (merge commits).
+      if (last[0] != null && last[0].equals(e.getCommit())) {
+        return VisitResult.CONTINUE;
+      }
+      last[0] = e.getCommit();
+      return visitor.visit(toChange(e));
+    }, readAhead);
+  }
+
+  private LogCmd logCmd(String refExpression) throws ValidationException {
     LogCmd logCmd = repository
         .log(refExpression)
         .firstParent(firstParent);
@@ -87,10 +117,7 @@ class ChangeReader {
     if (partialFetch) {
       logCmd = logCmd.withPaths(roots);
     }
-    // Log command does not filter by roots here because of how git log works. Some commits (e.g.
-    // fake merges) might not include the files in the log, and filtering here would return
-    // incorrect results. We do filter later on the changes to match the actual glob.
-    return parseChanges(logCmd.includeFiles(true).includeMergeDiff(true).run());
+    return logCmd.includeFiles(true).includeMergeDiff(true);
   }
 
   static final String BRANCH_COMMIT_LOG_HEADING = "-- Branch commit log --";
@@ -143,17 +170,21 @@ class ChangeReader {
         continue;
       }
       last = e.getCommit();
-      result.add(new Change<>(
-          e.getCommit().withUrl(url),
-          filterAuthor(e.getAuthor())
-          , e.getBody() + branchCommitLog(e.getCommit(), e.getParents()),
-          e.getAuthorDate(),
-          ChangeMessage.parseAllAsLabels(e.getBody()).labelsAsMultimap(),
-          e.getFiles(), e.getParents().size() > 1, e.getParents()));
+      result.add(toChange(e));
     }
     return result.build().reverse();
   }
 
+  private Change<GitRevision> toChange(GitLogEntry e) throws RepoException {
+    return new Change<>(
+        e.getCommit().withUrl(url),
+        filterAuthor(e.getAuthor())
+        , e.getBody() + branchCommitLog(e.getCommit(), e.getParents()),
+        e.getAuthorDate(),
+        ChangeMessage.parseAllAsLabels(e.getBody()).labelsAsMultimap(),
+        e.getFiles(), e.getParents().size() > 1, e.getParents());
+  }
+
   private Author filterAuthor(Author author) {
     return authoring == null || authoring.useAuthor(author.getEmail())
         ? author
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.copybara.exception.RepoException;
+import com.google.copybara.git.GitRepository.TreeElement;
+import com.google.copybara.util.Glob;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Builds the tree of a destination commit with git plumbing commands, without checking out the
+ * destination.
+ *
+ * <p>The index is reset to the destination {@code HEAD} (without touching the work-tree), and
+ * then only the paths matching {@code destination_files} are updated: the transformed files are
+ * hashed with {@code hash-object --stdin-paths} and added with {@code update-index --index-info},
+ * and the destination files that are not in the transformed files are removed. Files not matching
+ * {@code destination_files}, including submodules, are kept as they are in the destination.
+ */
+final class DestinationTreeBuilder {
+
+  private static final String FILE_MODE = "100644";
+  private static final String EXECUTABLE_MODE = "100755";
+  private static final String SYMLINK_MODE = "120000";
+  private static final String DELETED =
+      "0 0000000000000000000000000000000000000000\t";
+
+  private final GitRepository repo;
+  private final Glob destinationFiles;
+  private final PathMatcher pathMatcher;
+
+  /**
+   * @param repo the destination repository, using the transformed files as the work-tree
+   * @param destinationFiles the destination files
+   * @param pathMatcher {@code destinationFiles} relative to the destination work-tree
+   */
+  DestinationTreeBuilder(GitRepository repo, Glob destinationFiles, PathMatcher pathMatcher) {
+    this.repo = Preconditions.checkNotNull(repo);
+    this.destinationFiles = Preconditions.checkNotNull(destinationFiles);
+    this.pathMatcher = Preconditions.checkNotNull(pathMatcher);
+  }
+
+  /**
+   * Updates the index with the files in {@code workdir} and returns the SHA-1 of the tree.
+   *
+   * @param head the destination commit, or null if the destination is empty
+   * @param destinationWorkTree the work-tree that {@code pathMatcher} is relative to
+   */
+  String writeTree(Path workdir, @Nullable GitRevision head, Path destinationWorkTree)
+      throws RepoException, IOException {
+    if (head != null) {
+      repo.simpleCommand("read-tree", head.getSha1());
+    } else {
+      repo.simpleCommand("read-tree", "--empty");
+    }
+
+    List<String> files = new ArrayList<>();
+    List<String> symlinks = new ArrayList<>();
+    Files.walkFileTree(workdir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        // Like 'git add', don't add git directories
+        return dir.getFileName() != null && dir.getFileName().toString().equals(".git")
+            ? FileVisitResult.SKIP_SUBTREE
+            : FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        String path = workdir.relativize(file).toString();
+        // Files not in destination_files are never written
+        if (!pathMatcher.matches(destinationWorkTree.resolve(path))) {
+          return FileVisitResult.CONTINUE;
+        }
+        if (attrs.isSymbolicLink()) {
+          symlinks.add(path);
+        } else if (attrs.isRegularFile()) {
+          files.add(path);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+
+    StringBuilder indexInfo = new StringBuilder();
+    if (head != null) {
+      Set<String> written = new HashSet<>(files);
+      written.addAll(symlinks);
+      for (TreeElement element : destinationElements(head)) {
+        if (!written.contains(element.getPath())
+            && pathMatcher.matches(destinationWorkTree.resolve(element.getPath()))) {
+          indexInfo.append(DELETED).append(element.getPath()).append('\0');
+        }
+      }
+    }
+
+    if (!files.isEmpty()) {
+      String hashes = repo.gitWithInput(
+          (String.join("\n", files) + "\n").getBytes(UTF_8),
+          ImmutableList.of("hash-object", "-w", "--stdin-paths")).getStdout();
+      Iterator<String> sha1s = Splitter.on('\n').omitEmptyStrings().split(hashes).iterator();
+      for (String file : files) {
+        Preconditions.checkState(sha1s.hasNext(), "Missing hash for %s", file);
+        indexInfo.append(isExecutable(workdir.resolve(file)) ? EXECUTABLE_MODE : FILE_MODE)
+            .append(' ').append(sha1s.next()).append('\t').append(file).append('\0');
+      }
+    }
+    for (String symlink : symlinks) {
+      // The content of a symlink blob is its target. Symlinks are rare, so one process each.
+      String target = Files.readSymbolicLink(workdir.resolve(symlink)).toString();
+      String sha1 = repo.gitWithInput(target.getBytes(UTF_8),
+          ImmutableList.of("hash-object", "-w", "--no-filters", "--stdin")).getStdout().trim();
+      indexInfo.append(SYMLINK_MODE).append(' ').append(sha1).append('\t').append(symlink)
+          .append('\0');
+    }
+
+    if (indexInfo.length() > 0) {
+      repo.gitWithInput(indexInfo.toString().getBytes(UTF_8),
+          ImmutableList.of("update-index", "-z", "--index-info"));
+    }
+    return repo.simpleCommand("write-tree").getStdout().trim();
+  }
+
+  /** The elements of {@code head} that could be destination files, based on the glob roots. */
+  private List<TreeElement> destinationElements(GitRevision head) throws RepoException {
+    List<TreeElement> result = new ArrayList<>();
+    for (String root : destinationFiles.roots()) {
+      result.addAll(repo.lsTree(head, root.isEmpty() ? null : root, /*recursive=*/ true,
+          /*fullName=*/ true));
+    }
+    return result;
+  }
+
+  private static boolean isExecutable(Path file) throws IOException {
+    try {
+      // git only records the owner executable bit
+      return Files.getPosixFilePermissions(file, LinkOption.NOFOLLOW_LINKS)
+          .contains(PosixFilePermission.OWNER_EXECUTE);
+    } catch (UnsupportedOperationException e) {
+      return false;
+    }
+  }
+}
@@ -239,6 +239,12 @@ public final class GerritDestination implements Destination<GitRevision> {
           .withInclude(includes));
     }
 
+    @Override
+    public boolean requiresWorkTree() {
+      // The check for empty patch sets cherry-picks the change in the work-tree
+      return true;
+    }
+
     @Override
     public void beforePush(GitRepository repo, MessageInfo messageInfo, boolean skipPush,
         List<? extends Change<?>> originChanges) throws RepoException, ValidationException {
@@ -49,6 +49,7 @@ public class GerritOptions implements Option {
   private static final Pattern CHANGE_ID_PATTERN = Pattern.compile("I[0-9a-f]{40}");
   protected final GeneralOptions generalOptions;
   protected GitOptions gitOptions;
+  @Nullable private HttpApiSession apiSession;
 
   public GerritOptions(GeneralOptions generalOptions, GitOptions gitOptions) {
     this.generalOptions = generalOptions;
@@ -157,7 +158,19 @@ public class GerritOptions implements Option {
    */
   protected GerritApiTransport newGerritApiTransport(URI uri)
       throws RepoException, ValidationException {
-    return new GerritApiTransportImpl(getCredentialsRepo(), uri, getHttpTransport());
+    return new GerritApiTransportImpl(getApiSession(), uri);
+  }
+
+  /**
+   * Returns the {@link HttpApiSession} shared by all the {@link GerritApi} instances, so that
+   * credentials and connections are reused.
+   */
+  private synchronized HttpApiSession getApiSession() throws RepoException {
+    if (apiSession == null) {
+      apiSession =
+          new HttpApiSession(getCredentialsRepo(), getHttpTransport(), generalOptions.profiler());
+    }
+    return apiSession;
   }
 
   /**
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.FluentLogger;
+import com.google.copybara.exception.RepoException;
+import com.google.copybara.exception.ValidationException;
+import com.google.copybara.profiler.Profiler;
+import com.google.copybara.util.FileUtil;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coordinates the Copybara processes that share a cached repository, using advisory file locks in
+ * the repository directory.
+ *
+ * <p>Fetches hold an exclusive lock, so that concurrent fetches into the same repository wait for
+ * each other instead of failing on git's own lock files, like {@code shallow.lock} or the locks of
+ * the updated refs. Other operations don't take that lock and proceed while a fetch is running.
+ * Checkouts don't need it because they use a private index and don't update HEAD (see {@link
+ * GitRepository#forceCheckoutWithIndex}), so concurrent checkouts don't contend on the
+ * repository {@code index.lock} either.
+ *
+ * <p>Processes that use the repository hold a shared lock on a second file until they exit.
+ * {@link #deleteIfUnused} only deletes a repository if it can take that lock exclusively.
+ *
+ * <p>{@link #withExclusiveLock} serializes the updates of other files shared by the processes,
+ * like the metadata of the caches.
+ *
+ * <p>If the coalescing window is not zero, a fetch with the same arguments that another process
+ * did within the window is not repeated: its result, already in the repository, is reused. This is
+ * reported to the profiler as a {@code git_fetch_coalesced} task.
+ */
+final class GitCacheLock {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final String FETCH_LOCK = "copybara_fetch.lock";
+  static final String USE_LOCK = "copybara_use.lock";
+  static final String FETCH_LOG = "copybara_fetch_log";
+
+  private static final Duration RETRY_INTERVAL = Duration.ofMillis(100);
+
+  // Identifies the fetches done by this process in the fetch log
+  private static final String PROCESS_ID = UUID.randomUUID().toString();
+
+  // File locks are held by the whole JVM, so threads need their own locks
+  private static final Map<Path, ReentrantLock> fetchLocks = new ConcurrentHashMap<>();
+  // Shared locks held until the JVM exits
+  private static final Map<Path, FileLock> useLocks = new ConcurrentHashMap<>();
+  // Threads of this process updating a file shared with other processes
+  private static final Map<Path, ReentrantLock> updateLocks = new ConcurrentHashMap<>();
+
+  private final Path gitDir;
+  private final Duration coalesceWindow;
+  private final Duration timeout;
+  private final Profiler profiler;
+  private final Clock clock;
+
+  /**
+   * @param gitDir the directory of the cached repository
+   * @param coalesceWindow how long the result of a fetch by another process is reused. Zero
+   *     disables coalescing.
+   * @param timeout how long to wait for a fetch by another process
+   * @param profiler profiler where the waits and coalesced fetches are reported
+   * @param clock clock used for the fetch log
+   */
+  GitCacheLock(Path gitDir, Duration coalesceWindow, Duration timeout, Profiler profiler,
+      Clock clock) {
+    this.gitDir = checkNotNull(gitDir);
+    this.coalesceWindow = checkNotNull(coalesceWindow);
+    this.timeout = checkNotNull(timeout);
+    this.profiler = checkNotNull(profiler);
+    this.clock = checkNotNull(clock);
+  }
+
+  /** Takes the shared lock that prevents the deletion of the repository while this process runs. */
+  void markInUse() throws RepoException {
+    Path file = gitDir.resolve(USE_LOCK);
+    if (useLocks.containsKey(file)) {
+      return;
+    }
+    synchronized (useLocks) {
+      if (useLocks.containsKey(file)) {
+        return;
+      }
+      try {
+        Files.createDirectories(gitDir);
+        while (true) {
+          // The channel is never closed: the lock is released when the process exits
+          FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+              StandardOpenOption.READ, StandardOpenOption.WRITE);
+          FileLock lock = channel.lock(0, Long.MAX_VALUE, /*shared=*/ true);
+          if (Files.exists(file)) {
+            useLocks.put(file, lock);
+            return;
+          }
+          // The repository was deleted by another process while waiting for the lock
+          channel.close();
+          Files.createDirectories(gitDir);
+        }
+      } catch (IOException e) {
+        throw new RepoException("Cannot lock " + file, e);
+      }
+    }
+  }
+
+  /**
+   * Runs {@code fetch} while holding the fetch lock of the repository, unless another process did
+   * the same fetch within the coalescing window.
+   *
+   * @param key the arguments of the fetch. Fetches with the same key are coalesced.
+   */
+  FetchResult fetch(String key, FetchCall fetch) throws RepoException, ValidationException {
+    ReentrantLock threadLock = fetchLocks.computeIfAbsent(gitDir, k -> new ReentrantLock());
+    long start = System.nanoTime();
+    try {
+      if (!threadLock.tryLock(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+        throw new RepoException(String.format(
+            "Timed out after %s waiting for another fetch into %s", timeout, gitDir));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepoException("Interrupted while waiting for another fetch into " + gitDir, e);
+    }
+    try (FileChannel channel = FileChannel.open(gitDir.resolve(FETCH_LOCK),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock ignored = lock(channel, start)) {
+      profiler.simpleTask("git_fetch_lock_wait", start, System.nanoTime());
+      List<String> log = readLog();
+      if (fetchedByOtherProcess(log, key)) {
+        profiler.simpleTask("git_fetch_coalesced", start, System.nanoTime());
+        logger.atInfo().log("Reusing fetch into %s by another process: %s", gitDir, key);
+        return new FetchResult(ImmutableMap.of(), ImmutableMap.of());
+      }
+      FetchResult result = fetch.run();
+      if (!coalesceWindow.isZero()) {
+        writeLog(log, key);
+      }
+      return result;
+    } catch (IOException e) {
+      throw new RepoException("Cannot lock " + gitDir.resolve(FETCH_LOCK), e);
+    } finally {
+      threadLock.unlock();
+    }
+  }
+
+  /**
+   * Deletes the cached repository in {@code dir} if no process is using it. Returns whether it was
+   * deleted.
+   */
+  static boolean deleteIfUnused(Path dir) throws IOException {
+    Path file = dir.resolve(USE_LOCK);
+    if (useLocks.containsKey(file)) {
+      return false;
+    }
+    if (!Files.exists(file)) {
+      // Not used since locking was introduced, or not a repository
+      FileUtil.deleteRecursively(dir);
+      return true;
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      FileLock lock = channel.tryLock();
+      if (lock == null) {
+        return false;
+      }
+      try {
+        FileUtil.deleteRecursively(dir);
+        return true;
+      } finally {
+        lock.release();
+      }
+    } catch (OverlappingFileLockException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Runs {@code update} holding an exclusive lock on {@code lockFile}, so that concurrent
+   * read-modify-write updates of a file shared by several processes don't lose each other's
+   * changes.
+   */
+  static void withExclusiveLock(Path lockFile, LockedUpdate update) throws IOException {
+    ReentrantLock threadLock =
+        updateLocks.computeIfAbsent(lockFile.toAbsolutePath(), k -> new ReentrantLock());
+    threadLock.lock();
+    try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+        FileLock ignored = channel.lock()) {
+      update.run();
+    } finally {
+      threadLock.unlock();
+    }
+  }
+
+  private FileLock lock(FileChannel channel, long start) throws IOException, RepoException {
+    while (true) {
+      FileLock lock = channel.tryLock();
+      if (lock != null) {
+        return lock;
+      }
+      if (System.nanoTime() - start > timeout.toNanos()) {
+        throw new RepoException(String.format(
+            "Timed out after %s waiting for another process fetching into %s", timeout, gitDir));
+      }
+      try {
+        Thread.sleep(RETRY_INTERVAL.toMillis());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RepoException("Interrupted while waiting for another process fetching into "
+            + gitDir, e);
+      }
+    }
+  }
+
+  private boolean fetchedByOtherProcess(List<String> log, String key) {
+    if (coalesceWindow.isZero()) {
+      return false;
+    }
+    Instant since = clock.instant().minus(coalesceWindow);
+    for (String line : log) {
+      // <epoch millis> <process id> <key>
+      List<String> fields = Splitter.on(' ').limit(3).splitToList(line);
+      if (fields.size() == 3 && !fields.get(1).equals(PROCESS_ID) && fields.get(2).equals(key)
+          && time(fields.get(0)).isAfter(since)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private List<String> readLog() {
+    if (coalesceWindow.isZero()) {
+      return new ArrayList<>();
+    }
+    Path file = gitDir.resolve(FETCH_LOG);
+    try {
+      return Files.readAllLines(file, UTF_8);
+    } catch (NoSuchFileException e) {
+      return new ArrayList<>();
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot read fetch log %s. Ignoring it", file);
+      return new ArrayList<>();
+    }
+  }
+
+  /** Adds the fetch to the log, dropping the entries older than the window. */
+  private void writeLog(List<String> log, String key) {
+    Path file = gitDir.resolve(FETCH_LOG);
+    Instant now = clock.instant();
+    Instant since = now.minus(coalesceWindow);
+    try {
+      // Written to a temporary file first so that concurrent readers never see a partial file.
+      Path temp = Files.createTempFile(gitDir, FETCH_LOG, ".tmp");
+      try {
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, UTF_8)) {
+          for (String line : log) {
+            int space = line.indexOf(' ');
+            if (space > 0 && time(line.substring(0, space)).isAfter(since)) {
+              writer.write(line);
+              writer.newLine();
+            }
+          }
+          writer.write(now.toEpochMilli() + " " + PROCESS_ID + " " + key);
+          writer.newLine();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    } catch (IOException e) {
+      // Not fatal, other processes will fetch again.
+      logger.atWarning().withCause(e).log("Cannot write fetch log %s", file);
+    }
+  }
+
+  private static Instant time(String epochMillis) {
+    try {
+      return Instant.ofEpochMilli(Long.parseLong(epochMillis));
+    } catch (NumberFormatException e) {
+      return Instant.EPOCH;
+    }
+  }
+
+  /** An update of a shared file run while holding its lock. */
+  interface LockedUpdate {
+    void run() throws IOException;
+  }
+
+  /** A fetch run while holding the lock. */
+  interface FetchCall {
+    FetchResult run() throws RepoException, ValidationException;
+  }
+}
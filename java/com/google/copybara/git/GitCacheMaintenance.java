@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.flogger.FluentLogger;
+import com.google.copybara.exception.RepoException;
+import com.google.copybara.profiler.Profiler;
+import com.google.copybara.profiler.Profiler.ProfilerTask;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Maintenance of the cached repositories in the {@code git_repos} cache directory.
+ *
+ * <p>After a fetch that updates references, the commit-graph of the repository is written with
+ * changed-path Bloom filters, so that history walks (specially the ones limited to some paths)
+ * don't need to parse every commit and tree. A multi-pack-index is also written, so that object
+ * lookups don't search every pack. Both are written incrementally: a fetch only adds a layer with
+ * the new commits to the commit-graph.
+ *
+ * <p>The size and last use of each repository are tracked in a manifest in the cache directory.
+ * The manifest is shared by all the processes that use the cache, so it is only updated while
+ * holding an exclusive lock on {@link #MANIFEST_LOCK}. When the total size is above the budget,
+ * the least recently used repositories are deleted. Repositories used by this process, recently
+ * used by any process, or locked by a running process (see {@link GitCacheLock}) are never
+ * deleted.
+ *
+ * <p>Maintenance is best effort: errors are logged and don't fail the migration.
+ */
+final class GitCacheMaintenance {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final String MANIFEST = "copybara_cache_manifest";
+  static final String MANIFEST_LOCK = "copybara_cache_manifest.lock";
+
+  // Other Copybara processes might still be using the repositories used recently
+  @VisibleForTesting
+  static final Duration EVICTION_GRACE = Duration.ofHours(1);
+
+  private final Path cacheDir;
+  private final long maxBytes;
+  private final Profiler profiler;
+  private final Clock clock;
+
+  private final Set<String> used = ConcurrentHashMap.newKeySet();
+  // Set if the git binary doesn't support the maintenance commands
+  private boolean optimizeDisabled;
+
+  /**
+   * @param cacheDir the directory that contains the cached repositories
+   * @param maxBytes the budget for the total size of the cached repositories, or zero for no
+   *     limit
+   * @param profiler profiler where the maintenance is reported
+   * @param clock clock used for the last use of the repositories
+   */
+  GitCacheMaintenance(Path cacheDir, long maxBytes, Profiler profiler, Clock clock) {
+    checkArgument(maxBytes >= 0, "Invalid cache budget: %s", maxBytes);
+    this.cacheDir = checkNotNull(cacheDir);
+    this.maxBytes = maxBytes;
+    this.profiler = checkNotNull(profiler);
+    this.clock = checkNotNull(clock);
+  }
+
+  /** Records that {@code repo} is used now. It won't be evicted by this process. */
+  void markUsed(GitRepository repo) {
+    String name = name(repo);
+    used.add(name);
+    updateManifest(entries -> {
+      Entry entry = entries.get(name);
+      entries.put(name, new Entry(clock.instant(), entry == null ? -1 : entry.size));
+    });
+  }
+
+  /**
+   * Optimizes {@code repo} if the fetch updated any reference and records its new size.
+   *
+   * <p>Called while holding the fetch lock of {@code repo}, since the optimization writes to it.
+   */
+  void afterFetch(GitRepository repo, FetchResult result) {
+    if (!updatedRefs(result)) {
+      return;
+    }
+    optimize(repo);
+    String name = name(repo);
+    used.add(name);
+    long size;
+    try {
+      size = size(repo.getGitDir());
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot compute the size of %s", repo.getGitDir());
+      return;
+    }
+    updateManifest(entries -> entries.put(name, new Entry(clock.instant(), size)));
+  }
+
+  /**
+   * Evicts the least recently used repositories if the fetch updated any reference and the cache
+   * is above the budget.
+   *
+   * <p>Called after releasing the fetch lock, because it might need to walk every cached
+   * repository.
+   */
+  void evictAfterFetch(FetchResult result) {
+    if (maxBytes > 0 && updatedRefs(result)) {
+      updateManifest(this::evict);
+    }
+  }
+
+  private static boolean updatedRefs(FetchResult result) {
+    return !result.getInserted().isEmpty() || !result.getUpdated().isEmpty()
+        || !result.getDeleted().isEmpty();
+  }
+
+  /** Reads, updates and writes the manifest while holding its lock. */
+  private void updateManifest(Consumer<Map<String, Entry>> update) {
+    Path lockFile = cacheDir.resolve(MANIFEST_LOCK);
+    try {
+      GitCacheLock.withExclusiveLock(lockFile, () -> {
+        Map<String, Entry> entries = readManifest();
+        update.accept(entries);
+        writeManifest(entries);
+      });
+    } catch (IOException e) {
+      // Not fatal, the sizes are computed again when needed.
+      logger.atWarning().withCause(e).log("Cannot lock cache manifest %s", lockFile);
+    }
+  }
+
+  private void optimize(GitRepository repo) {
+    synchronized (this) {
+      if (optimizeDisabled) {
+        return;
+      }
+    }
+    try (ProfilerTask ignored = profiler.start("git_cache_maintenance")) {
+      repo.simpleCommand("commit-graph", "write", "--reachable", "--changed-paths", "--split");
+      // Small fetches are stored as loose objects, and git fails if there are no packs
+      if (hasPacks(repo.getGitDir())) {
+        repo.simpleCommand("multi-pack-index", "write");
+      }
+    } catch (RepoException | IOException e) {
+      // Most likely an old git version. Don't retry for every fetch.
+      logger.atWarning().withCause(e).log(
+          "Cannot write the commit-graph of %s. Disabling cache maintenance", repo.getGitDir());
+      synchronized (this) {
+        optimizeDisabled = true;
+      }
+    }
+  }
+
+  /**
+   * Deletes the least recently used repositories until the cache is below the budget. Cached
+   * repositories that are not in the manifest yet are added to it.
+   */
+  private void evict(Map<String, Entry> entries) {
+    // Repositories deleted by other means
+    entries.keySet().removeIf(name -> !Files.isDirectory(cacheDir.resolve(name)));
+    try (DirectoryStream<Path> dirs = Files.newDirectoryStream(cacheDir, Files::isDirectory)) {
+      for (Path dir : dirs) {
+        String name = dir.getFileName().toString();
+        Entry entry = entries.get(name);
+        if (entry == null || entry.size < 0) {
+          entries.put(name, new Entry(
+              entry != null ? entry.lastUse : Files.getLastModifiedTime(dir).toInstant(),
+              size(dir)));
+        }
+      }
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot list the cached repositories in %s", cacheDir);
+      return;
+    }
+    long total = entries.values().stream().mapToLong(e -> e.size).sum();
+    if (total <= maxBytes) {
+      return;
+    }
+    Instant recent = clock.instant().minus(EVICTION_GRACE);
+    List<String> candidates = new ArrayList<>();
+    for (Map.Entry<String, Entry> e : entries.entrySet()) {
+      if (!used.contains(e.getKey()) && e.getValue().lastUse.isBefore(recent)) {
+        candidates.add(e.getKey());
+      }
+    }
+    candidates.sort(Comparator.comparing(name -> entries.get(name).lastUse));
+    for (String name : candidates) {
+      if (total <= maxBytes) {
+        break;
+      }
+      Path dir = cacheDir.resolve(name);
+      Entry entry = entries.get(name);
+      try {
+        if (!GitCacheLock.deleteIfUnused(dir)) {
+          logger.atInfo().log("Not evicting cached repository %s: used by another process", dir);
+          continue;
+        }
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Cannot evict cached repository %s", dir);
+        continue;
+      }
+      logger.atInfo().log("Evicted cached repository %s: %d bytes, last used %s", dir,
+          entry.size, entry.lastUse);
+      total -= entry.size;
+      entries.remove(name);
+    }
+    if (total > maxBytes) {
+      logger.atInfo().log("Cached repositories use %d bytes, above the budget of %d bytes, but"
+          + " the rest were used recently", total, maxBytes);
+    }
+  }
+
+  private Map<String, Entry> readManifest() {
+    Map<String, Entry> entries = new TreeMap<>();
+    Path file = cacheDir.resolve(MANIFEST);
+    List<String> lines;
+    try {
+      lines = Files.readAllLines(file, UTF_8);
+    } catch (NoSuchFileException e) {
+      return entries;
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot read cache manifest %s. Ignoring it", file);
+      return entries;
+    }
+    for (String line : lines) {
+      // <last use epoch millis> <size in bytes or -1 if unknown> <directory name>
+      List<String> fields = Splitter.on(' ').limit(3).splitToList(line);
+      if (fields.size() != 3) {
+        logger.atWarning().log("Ignoring invalid cache manifest line '%s' in %s", line, file);
+        continue;
+      }
+      try {
+        entries.put(fields.get(2), new Entry(
+            Instant.ofEpochMilli(Long.parseLong(fields.get(0))), Long.parseLong(fields.get(1))));
+      } catch (NumberFormatException e) {
+        logger.atWarning().log("Ignoring invalid cache manifest line '%s' in %s", line, file);
+      }
+    }
+    return entries;
+  }
+
+  private void writeManifest(Map<String, Entry> entries) {
+    Path file = cacheDir.resolve(MANIFEST);
+    try {
+      // Written to a temporary file first so that concurrent readers never see a partial file.
+      Path temp = Files.createTempFile(cacheDir, MANIFEST, ".tmp");
+      try {
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, UTF_8)) {
+          for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            writer.write(e.getValue().lastUse.toEpochMilli() + " " + e.getValue().size + " "
+                + e.getKey());
+            writer.newLine();
+          }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    } catch (IOException e) {
+      // Not fatal, the sizes are computed again when needed.
+      logger.atWarning().withCause(e).log("Cannot write cache manifest %s", file);
+    }
+  }
+
+  private static String name(GitRepository repo) {
+    return repo.getGitDir().getFileName().toString();
+  }
+
+  private static boolean hasPacks(Path gitDir) throws IOException {
+    Path packDir = gitDir.resolve("objects/pack");
+    if (!Files.isDirectory(packDir)) {
+      return false;
+    }
+    try (DirectoryStream<Path> packs = Files.newDirectoryStream(packDir, "*.pack")) {
+      return packs.iterator().hasNext();
+    }
+  }
+
+  private static long size(Path dir) throws IOException {
+    long[] size = {0};
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        size[0] += attrs.size();
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException e) {
+        // For example a temporary file deleted by a concurrent git process
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return size[0];
+  }
+
+  private static final class Entry {
+
+    private final Instant lastUse;
+    private final long size;
+
+    private Entry(Instant lastUse, long size) {
+      this.lastUse = lastUse;
+      this.size = size;
+    }
+  }
+}
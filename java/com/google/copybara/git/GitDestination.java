@@ -63,6 +63,7 @@ import com.google.copybara.profiler.Profiler.ProfilerTask;
 import com.google.copybara.revision.Change;
 import com.google.copybara.revision.Revision;
 import com.google.copybara.util.DiffUtil;
+import com.google.copybara.util.FileUtil.CopyMode;
 import com.google.copybara.util.FileUtil.CopySymlinkStrategy;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Console;
@@ -71,6 +72,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import javax.annotation.Nullable;
@@ -82,6 +84,8 @@ import net.starlark.java.eval.Sequence;
 public class GitDestination implements Destination<GitRevision> {
 
   private static final String ORIGIN_LABEL_SEPARATOR = ": ";
+  // SHA-1 of the tree without entries
+  private static final String EMPTY_TREE = "4b825dc642cb6eb9a060e54bf8d69288fbee4904";
   public static final int SMALL_NUM_FILES_CHECKER_THRESHOLD = 100;
 
   static class MessageInfo {
@@ -191,7 +195,8 @@ public class GitDestination implements Destination<GitRevision> {
         destinationOptions.rebaseWhenBaseline(),
         gitOptions.visitChangePageSize,
         gitOptions.gitTagOverwrite,
-        checker);
+        checker,
+        destinationOptions.plumbing);
   }
 
   /**
@@ -242,6 +247,15 @@ public class GitDestination implements Destination<GitRevision> {
     private final int visitChangePageSize;
     private final boolean gitTagOverwrite;
     @Nullable private final Checker checker;
+    private final boolean plumbing;
+    // Writes that are not pushed yet. See deferPublishing()
+    private boolean deferPush;
+    @Nullable private TransformResult deferredWrite;
+    @Nullable private MessageInfo deferredMessageInfo;
+    private final List<Change<?>> deferredChanges = new ArrayList<>();
+    // Last commit that passed all the checks of write(), or the local branch before the first
+    // deferred write. A write that fails after committing leaves its commit in the local branch.
+    @Nullable private String deferredHead;
 
     /** Create a new git.destination writer */
     WriterImpl(
@@ -265,7 +279,8 @@ public class GitDestination implements Destination<GitRevision> {
         boolean rebase,
         int visitChangePageSize,
         boolean gitTagOverwrite,
-        Checker checker) {
+        Checker checker,
+        boolean plumbing) {
       this.skipPush = skipPush;
       this.repoUrl = checkNotNull(repoUrl);
       this.remoteFetch = checkNotNull(remoteFetch);
@@ -289,6 +304,7 @@ public class GitDestination implements Destination<GitRevision> {
       this.visitChangePageSize = visitChangePageSize;
       this.gitTagOverwrite = gitTagOverwrite;
       this.checker = checker;
+      this.plumbing = plumbing;
     }
 
     @Override
@@ -444,6 +460,22 @@ public class GitDestination implements Destination<GitRevision> {
       default ImmutableSetMultimap<String, String> describe() {
         return ImmutableSetMultimap.of();
       }
+
+      /**
+       * Whether {@link #beforePush} needs the destination files checked out in the work-tree of
+       * the repository.
+       */
+      default boolean requiresWorkTree() {
+        return false;
+      }
+
+      /**
+       * Whether the commits of several writes can be pushed at once at the end of the migration,
+       * skipping {@link #afterPush} for all but the last write.
+       */
+      default boolean supportsDeferredPush() {
+        return false;
+      }
     }
 
     /**
@@ -479,6 +511,11 @@ public class GitDestination implements Destination<GitRevision> {
           GitRepository repo, String pushToRefsFor, TransformResult transformResult) {
         return pushToRefsFor;
       }
+
+      @Override
+      public boolean supportsDeferredPush() {
+        return true;
+      }
     }
 
     @Override
@@ -495,6 +532,10 @@ public class GitDestination implements Destination<GitRevision> {
 
       GitRevision localBranchRevision = getLocalBranchRevision(scratchClone);
       updateLocalBranchToBaseline(scratchClone, baseline);
+      boolean usePlumbing = usePlumbing(baseline);
+      if (deferPush && state.firstWrite && localBranchRevision != null) {
+        deferredHead = localBranchRevision.getSha1();
+      }
       if (state.firstWrite) {
         String reference = baseline != null ? baseline : state.localBranch;
         configForPush(getRepository(console), repoUrl, remotePush);
@@ -505,57 +546,93 @@ public class GitDestination implements Destination<GitRevision> {
               repoUrl,
               GeneralOptions.FORCE));
         }
-        if (localBranchRevision != null) {
+        if (localBranchRevision != null && !usePlumbing) {
           scratchClone.simpleCommand("checkout", "-f", "-q", reference);
         } else {
-          // Configure the commit to go to local branch instead of main branch.
+          // Configure the commit to go to local branch instead of main branch. When using
+          // plumbing, the local branch already points to the reference (See
+          // updateLocalBranchToBaseline).
           scratchClone.simpleCommand("symbolic-ref", "HEAD", getCompleteRef(state.localBranch));
         }
         state.firstWrite = false;
       } else {
-        if (!skipPush) {
+        if (!skipPush && !deferPush) {
           // Should be a no-op, but an iterative migration could take several minutes between
           // migrations so lets fetch the latest first.
           fetchFromRemote(console, scratchClone, repoUrl, remoteFetch);
         }
         // Checkout again in case the origin checkout changed the branch (origin = destination)
         if (Strings.isNullOrEmpty(scratchClone.getCurrentBranch())) {
-           scratchClone.simpleCommand("checkout", "-q", "-f", state.localBranch);
+          if (usePlumbing) {
+            scratchClone.simpleCommand(
+                "symbolic-ref", "HEAD", getCompleteRef(state.localBranch));
+          } else {
+            scratchClone.simpleCommand("checkout", "-q", "-f", state.localBranch);
+          }
+        }
+        if (deferPush && deferredHead != null) {
+          // Drop the commit of a previous write that failed
+          if (usePlumbing) {
+            scratchClone.simpleCommand(
+                "update-ref", getCompleteRef(state.localBranch), deferredHead);
+          } else {
+            scratchClone.simpleCommand("reset", "-q", "--hard", deferredHead);
+          }
         }
       }
       PathMatcher pathMatcher = destinationFiles.relativeTo(scratchClone.getWorkTree());
-      // Get the submodules before we stage them for deletion with
-      // repo.simpleCommand(add --all)
-      AddExcludedFilesToIndex excludedAdder =
-          new AddExcludedFilesToIndex(scratchClone, pathMatcher);
-      excludedAdder.prepare(transformResult.getPath());
-      excludedAdder.findSubmodules(console);
-
       GitRepository alternate = scratchClone.withWorkTree(transformResult.getPath());
 
-      console.progress("Git Destination: Adding all files");
-      try (ProfilerTask ignored = generalOptions.profiler().start("add_files")) {
-        alternate.add().force().all().run();
-      }
+      GitRevision parent = null;
+      String tree = null;
+      if (usePlumbing) {
+        try {
+          parent = scratchClone.resolveReference("HEAD");
+        } catch (CannotResolveRevisionException e) {
+          // Empty destination
+        }
+        console.progress("Git Destination: Writing the tree");
+        try (ProfilerTask ignored = generalOptions.profiler().start("write_tree")) {
+          tree = new DestinationTreeBuilder(alternate, destinationFiles, pathMatcher)
+              .writeTree(transformResult.getPath(), parent, scratchClone.getWorkTree());
+        }
+      } else {
+        // Get the submodules before we stage them for deletion with
+        // repo.simpleCommand(add --all)
+        AddExcludedFilesToIndex excludedAdder =
+            new AddExcludedFilesToIndex(scratchClone, pathMatcher);
+        excludedAdder.prepare(transformResult.getPath());
+        excludedAdder.findSubmodules(console);
+
+        console.progress("Git Destination: Adding all files");
+        try (ProfilerTask ignored = generalOptions.profiler().start("add_files")) {
+          alternate.add().force().all().run();
+        }
 
-      console.progress("Git Destination: Excluding files");
-      try (ProfilerTask ignored = generalOptions.profiler().start("exclude_files")) {
-        excludedAdder.add();
+        console.progress("Git Destination: Excluding files");
+        try (ProfilerTask ignored = generalOptions.profiler().start("exclude_files")) {
+          excludedAdder.add();
+        }
       }
 
       console.progress("Git Destination: Creating a local commit");
       MessageInfo messageInfo = writeHook.generateMessageInfo(transformResult);
 
-      alternate.commit(
-          transformResult.getAuthor().toString(),
-          transformResult.getTimestamp(),
-          addDestinationLabels(
-              messageInfo,
-              transformResult.getSummary().trim().isEmpty()
-                  // Won't be really used if commit is successful, as there is a validation
-                  // below. This allows us to not fail on commit because of empty description.
-                  ? "Internal change"
-                  : transformResult.getSummary()));
+      String commitMessage = addDestinationLabels(
+          messageInfo,
+          transformResult.getSummary().trim().isEmpty()
+              // Won't be really used if commit is successful, as there is a validation
+              // below. This allows us to not fail on commit because of empty description.
+              ? "Internal change"
+              : transformResult.getSummary());
+      if (usePlumbing) {
+        commitTree(scratchClone, tree, parent, transformResult, commitMessage);
+      } else {
+        alternate.commit(
+            transformResult.getAuthor().toString(),
+            transformResult.getTimestamp(),
+            commitMessage);
+      }
 
       maybeCheckHeadCommit(alternate, transformResult.getSummary(), messageInfo);
 
@@ -574,11 +651,14 @@ public class GitDestination implements Destination<GitRevision> {
               + "change without description.");
 
       // Don't leave unstaged/untracked files in the work-tree. This is a problem for rebase
-      // and in general any inspection of the directory after Copybara execution.
-      // Clean unstaged:
-      scratchClone.simpleCommand("reset", "--hard");
-      // ...and untracked ones:
-      scratchClone.forceClean();
+      // and in general any inspection of the directory after Copybara execution. Not needed
+      // when using plumbing, since the work-tree is not used.
+      if (!usePlumbing) {
+        // Clean unstaged:
+        scratchClone.simpleCommand("reset", "--hard");
+        // ...and untracked ones:
+        scratchClone.forceClean();
+      }
 
       GitRevision afterRebaseRev = null;
       if (baseline != null && rebase) {
@@ -649,6 +729,56 @@ public class GitDestination implements Destination<GitRevision> {
                 originChanges,
                 new DestinationEffect.DestinationRef(head.getSha1(), "commit", /*url=*/ null)));
       }
+      if (deferPush) {
+        deferredWrite = transformResult;
+        deferredMessageInfo = messageInfo;
+        deferredChanges.addAll(originChanges);
+        deferredHead = head.getSha1();
+        console.infoFmt("Git Destination: commit %s created locally. It will be pushed at the end"
+            + " of the migration.", head.getSha1());
+        return ImmutableList.of(
+            new DestinationEffect(
+                DestinationEffect.Type.CREATED,
+                String.format("Commit '%s' created locally, pending push", head),
+                originChanges,
+                new DestinationEffect.DestinationRef(head.getSha1(), "commit", /*url=*/ null)));
+      }
+      return push(scratchClone, console, transformResult, tagName, messageInfo, "HEAD", head,
+          originChanges);
+    }
+
+    @Override
+    public boolean deferPublishing() {
+      // Tags and hooks that update reviews need to be pushed for each change
+      if (skipPush || tagNameTemplate != null || !writeHook.supportsDeferredPush()) {
+        return false;
+      }
+      deferPush = true;
+      return true;
+    }
+
+    @Override
+    public ImmutableList<DestinationEffect> publishDeferred(Console console)
+        throws ValidationException, RepoException {
+      if (deferredWrite == null) {
+        return ImmutableList.of();
+      }
+      GitRepository scratchClone = getRepository(console);
+      // Pushing the last commit pushes all the previous ones. Not HEAD, that might contain the
+      // commit of a write that failed afterwards.
+      ImmutableList<DestinationEffect> effects = push(scratchClone, console, deferredWrite,
+          /*tagName=*/ null, deferredMessageInfo, deferredHead,
+          scratchClone.resolveReference(deferredHead), ImmutableList.copyOf(deferredChanges));
+      deferredWrite = null;
+      deferredMessageInfo = null;
+      deferredChanges.clear();
+      return effects;
+    }
+
+    private ImmutableList<DestinationEffect> push(GitRepository scratchClone, Console console,
+        TransformResult transformResult, @Nullable String tagName, MessageInfo messageInfo,
+        String source, GitRevision head, List<? extends Change<?>> originChanges)
+        throws ValidationException, RepoException {
       String push =
           writeHook.getPushReference(scratchClone, getCompleteRef(remotePush), transformResult);
       console.progress(String.format("Git Destination: Pushing to %s %s", repoUrl, push));
@@ -662,16 +792,48 @@ public class GitDestination implements Destination<GitRevision> {
               .withRefspecs(repoUrl,
                   tagName != null
                   ? ImmutableList.of(scratchClone.createRefSpec(
-                  (nonFastForwardPush ? "+" : "") + "HEAD:" + push),
+                  (nonFastForwardPush ? "+" : "") + source + ":" + push),
                       scratchClone.createRefSpec((gitTagOverwrite ? "+" : "")
                           + tagName))
               : ImmutableList.of(scratchClone.createRefSpec(
-                  (nonFastForwardPush ? "+" : "") + "HEAD:" + push)))
+                  (nonFastForwardPush ? "+" : "") + source + ":" + push)))
               .run()
       );
       return writeHook.afterPush(serverResponse, messageInfo, head, originChanges);
     }
 
+    /**
+     * Whether the commit can be created with git plumbing commands, without checking out the
+     * destination. Integrates, rebase and the local repository need the files in the work-tree.
+     */
+    private boolean usePlumbing(@Nullable String baseline) {
+      return plumbing
+          && localRepoPath == null
+          && Iterables.isEmpty(integrates)
+          && !(baseline != null && rebase)
+          && !writeHook.requiresWorkTree();
+    }
+
+    /** Creates a commit for {@code tree} and updates HEAD to point to it. */
+    private void commitTree(GitRepository repo, String tree, @Nullable GitRevision parent,
+        TransformResult transformResult, String message)
+        throws RepoException, ValidationException {
+      String parentTree = parent == null
+          ? EMPTY_TREE
+          : repo.parseRef(parent.getSha1() + "^{tree}");
+      if (tree.equals(parentTree)) {
+        throw new EmptyChangeException(
+            String.format(
+                "Migration of the revision resulted in an empty change from baseline '%s'.\n"
+                    + "Is the change already migrated?",
+                parent == null ? "unknown" : parent.getSha1()));
+      }
+      String commit = repo.commitTree(tree,
+          parent == null ? ImmutableList.of() : ImmutableList.of(parent.getSha1()),
+          transformResult.getAuthor(), transformResult.getTimestamp(), message);
+      repo.simpleCommand("update-ref", "HEAD", commit);
+    }
+
     private String addDestinationLabels(MessageInfo messageInfo, String summary) {
       ChangeMessage msg = ChangeMessage.parseMessage(summary);
       for (LabelFinder label : messageInfo.labelsToAdd) {
@@ -699,11 +861,14 @@ public class GitDestination implements Destination<GitRevision> {
       // have to check all the existing tree.
       if (files != null && files.size() < SMALL_NUM_FILES_CHECKER_THRESHOLD) {
         Path dest = generalOptions.getDirFactory().newTempDir("git_dest_checker");
+        // The checker only reads the files, so they can be linked.
         copyFilesRecursively(
             alternate.getWorkTree(),
             dest,
             CopySymlinkStrategy.IGNORE_INVALID_SYMLINKS,
-            Glob.createGlob(files));
+            Glob.createGlob(files),
+            CopyMode.LINK,
+            /*threads=*/ 1);
         target = dest;
       }
       checker.doCheck(target, baseConsole);
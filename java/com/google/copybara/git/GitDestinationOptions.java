@@ -114,6 +114,14 @@ public final class GitDestinationOptions implements Option {
       description = "Don't rebase the change automatically for workflows CHANGE_REQUEST mode")
   public boolean noRebase = false;
 
+  @Parameter(names = "--git-destination-plumbing",
+      description = "Create the destination commit with git plumbing commands instead of checking"
+          + " out the destination branch. Only the transformed files are hashed, and the rest of"
+          + " the destination tree is reused as is. Commit hooks are not run. Ignored when the"
+          + " destination needs a work-tree, like when using integrates, rebase or"
+          + " --git-destination-path.")
+  public boolean plumbing = false;
+
   boolean rebaseWhenBaseline() {
     return !noRebase;
   }
@@ -20,6 +20,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import java.nio.file.FileSystems;
+import java.nio.file.Path;
 import java.util.Map;
 
 public class GitEnvironment {
@@ -56,6 +57,13 @@ public class GitEnvironment {
     return new GitEnvironment(this.environment, true);
   }
 
+  /** Returns a copy of this environment that uses {@code index} as the index file. */
+  GitEnvironment withIndexFile(Path index) {
+    Map<String, String> env = Maps.newHashMap(environment);
+    env.put("GIT_INDEX_FILE", index.toString());
+    return new GitEnvironment(env, noGitPrompt);
+  }
+
   /**
    * Returns a String representing the git binary to be executed.
    *
@@ -30,11 +30,13 @@ import com.google.copybara.checks.Checker;
 import com.google.copybara.exception.RepoException;
 import com.google.copybara.exception.ValidationException;
 import com.google.copybara.git.github.api.GitHubApi;
+import com.google.copybara.git.github.api.GitHubApiCache;
 import com.google.copybara.git.github.api.GitHubApiTransport;
 import com.google.copybara.git.github.api.GitHubApiTransportImpl;
 import com.google.copybara.git.github.api.GitHubApiTransportWithChecker;
 import com.google.copybara.git.github.util.GitHubHost;
 import com.google.copybara.util.console.Console;
+import java.io.IOException;
 import javax.annotation.Nullable;
 
 /**
@@ -45,6 +47,8 @@ public class GitHubOptions implements Option {
 
   protected final GeneralOptions generalOptions;
   private final GitOptions gitOptions;
+  @Nullable private HttpApiSession apiSession;
+  @Nullable private GitHubApiCache apiCache;
 
   public GitHubOptions(GeneralOptions generalOptions, GitOptions gitOptions) {
     this.generalOptions = Preconditions.checkNotNull(generalOptions);
@@ -77,13 +81,11 @@ public class GitHubOptions implements Option {
    */
   public GitHubApi newGitHubApi(String gitHubProject, @Nullable Checker checker, Console console)
       throws RepoException {
-    GitRepository repo = getCredentialsRepo();
-
     String storePath = gitOptions.getCredentialHelperStorePath();
     if (storePath == null) {
       storePath = "~/.git-credentials";
     }
-    GitHubApiTransport transport = newTransport(repo, storePath, console);
+    GitHubApiTransport transport = newTransport(storePath, console);
     if (checker != null) {
       transport = new GitHubApiTransportWithChecker(transport, new ApiChecker(checker, console));
     }
@@ -94,6 +96,12 @@ public class GitHubOptions implements Option {
       description = "Overwrite git.github_destination delete_pr_branch field", arity = 1)
   Boolean gitHubDeletePrBranch = null;
 
+  @Parameter(names = "--github-api-cache-size-mb",
+      description = "Maximum size in megabytes of the on-disk cache of GitHub API responses. Cached"
+          + " responses are revalidated with conditional requests, that don't count against the"
+          + " GitHub rate limit. 0 disables the cache.")
+  int apiCacheSizeMb = 100;
+
   @VisibleForTesting
   protected GitRepository getCredentialsRepo() throws RepoException {
     return gitOptions.cachedBareRepoForUrl("just_for_github_api");
@@ -104,9 +112,35 @@ public class GitHubOptions implements Option {
     // Accept any by default
   }
 
-  private GitHubApiTransport newTransport(
-      GitRepository repo, String storePath, Console console) {
-    return new GitHubApiTransportImpl(repo, newHttpTransport(), storePath, console);
+  private GitHubApiTransport newTransport(String storePath, Console console)
+      throws RepoException {
+    return new GitHubApiTransportImpl(getApiSession(), getApiCache(), storePath, console);
+  }
+
+  /** Returns the cache of GitHub API responses or null if it is disabled. */
+  @Nullable
+  private synchronized GitHubApiCache getApiCache() throws RepoException {
+    if (apiCache == null && apiCacheSizeMb > 0) {
+      try {
+        apiCache = new GitHubApiCache(generalOptions.getDirFactory().getCacheDir("github_api"),
+            apiCacheSizeMb * 1024L * 1024L);
+      } catch (IOException e) {
+        throw new RepoException("Cannot create the GitHub API cache", e);
+      }
+    }
+    return apiCache;
+  }
+
+  /**
+   * Returns the {@link HttpApiSession} shared by all the {@link GitHubApi} instances, so that
+   * credentials and connections are reused.
+   */
+  private synchronized HttpApiSession getApiSession() throws RepoException {
+    if (apiSession == null) {
+      apiSession =
+          new HttpApiSession(getCredentialsRepo(), newHttpTransport(), generalOptions.profiler());
+    }
+    return apiSession;
   }
 
   protected HttpTransport newHttpTransport() {
@@ -30,6 +30,7 @@ import com.google.common.base.CharMatcher;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
@@ -37,6 +38,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.copybara.BaselinesWithoutLabelVisitor;
 import com.google.copybara.Endpoint;
@@ -78,6 +80,11 @@ import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.stream.Collectors;
@@ -286,10 +293,7 @@ public class GitHubPrOrigin implements Origin<GitRevision> {
 
     checkPrState(prData);
     checkPrBranch(project, prData);
-    checkRequiredLabels(api, project, prData);
-    checkRequiredStatusContextNames(api, project, prData);
-    checkRequiredCheckRuns(api, project, prData);
-    checkReviewApprovers(api, project, prData, labels);
+    checkPrMetadata(api, project, prData, labels);
 
     // Fetch also the baseline branch. It is almost free and doing a roundtrip later would hurt
     // latency.
@@ -407,6 +411,75 @@ public class GitHubPrOrigin implements Origin<GitRevision> {
     return describeVersion ? getRepository().addDescribeVersion(result) : result;
   }
 
+  /**
+   * Runs the checks that need more information about the PR from the GitHub API: labels, commit
+   * statuses, check runs and reviews.
+   *
+   * <p>These requests don't depend on each other, so they are issued concurrently up front. The
+   * checks still run in the same order and each one waits for the response that it needs, so the
+   * reported error is the same as if the requests were done one after the other. Requests whose
+   * response is not needed anymore because a check failed are cancelled.
+   */
+  private void checkPrMetadata(
+      GitHubApi api,
+      String project,
+      PullRequest prData,
+      ImmutableListMultimap.Builder<String, String> labelsBuilder)
+      throws ValidationException, RepoException {
+    ExecutorService executor = Executors.newFixedThreadPool(
+        gitHubPrOriginOptions.metadataThreads,
+        new ThreadFactoryBuilder().setNameFormat("github-pr-metadata-%d").setDaemon(true).build());
+    try {
+      Future<Issue> issue = null;
+      if (!forceImport() && !getRequiredLabels().isEmpty()) {
+        issue = submit(executor, "github_api_get_issue",
+            () -> api.getIssue(project, prData.getNumber()));
+      }
+      Future<CombinedStatus> combinedStatus = null;
+      if (!forceImport() && !getRequiredStatusContextNames().isEmpty()) {
+        combinedStatus = submit(executor, "github_api_get_combined_status",
+            () -> api.getCombinedStatus(project, prData.getHead().getSha()));
+      }
+      Future<CheckRuns> checkRuns = null;
+      if (!forceImport() && !getRequiredCheckRuns().isEmpty()) {
+        checkRuns = submit(executor, "github_api_get_check_runs",
+            () -> api.getCheckRuns(project, prData.getHead().getSha()));
+      }
+      Future<ImmutableList<Review>> reviews = null;
+      if (reviewState != null) {
+        reviews = submit(executor, "github_api_get_reviews",
+            () -> api.getReviews(project, prData.getNumber()));
+      }
+      checkRequiredLabels(api, project, prData, issue);
+      checkRequiredStatusContextNames(project, prData, combinedStatus);
+      checkRequiredCheckRuns(project, prData, checkRuns);
+      checkReviewApprovers(project, prData, reviews, labelsBuilder);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private <T> Future<T> submit(ExecutorService executor, String description, Callable<T> request) {
+    return executor.submit(() -> {
+      try (ProfilerTask ignore = generalOptions.profiler().start(description)) {
+        return request.call();
+      }
+    });
+  }
+
+  /** Waits for the response of a request started by {@link #checkPrMetadata}. */
+  private static <T> T join(Future<T> response) throws ValidationException, RepoException {
+    try {
+      return response.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepoException("Interrupted while waiting for the GitHub API", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), ValidationException.class, RepoException.class);
+      throw new RepoException("Unexpected error calling the GitHub API", e.getCause());
+    }
+  }
+
   /**
    * Check that the state of the PR (i.e. {open,closed}) matches the provided value of the `state`
    * param
@@ -430,8 +503,8 @@ public class GitHubPrOrigin implements Origin<GitRevision> {
   }
 
   /** Check that the PR has all the labels provided in the `required_labels` param */
-  private void checkRequiredLabels(GitHubApi api, String project, PullRequest prData)
-      throws ValidationException, RepoException {
+  private void checkRequiredLabels(GitHubApi api, String project, PullRequest prData,
+      @Nullable Future<Issue> firstIssue) throws ValidationException, RepoException {
     Set<String> requiredLabels = getRequiredLabels();
     Set<String> retryableLabels = getRetryableLabels();
     if (forceImport() || requiredLabels.isEmpty()) {
@@ -441,8 +514,12 @@ public class GitHubPrOrigin implements Origin<GitRevision> {
     Set<String> requiredButNotPresent;
     do {
       Issue issue;
-      try (ProfilerTask ignore = generalOptions.profiler().start("github_api_get_issue")) {
-        issue = api.getIssue(project, prData.getNumber());
+      if (retryCount == 0) {
+        issue = join(firstIssue);
+      } else {
+        try (ProfilerTask ignore = generalOptions.profiler().start("github_api_get_issue")) {
+          issue = api.getIssue(project, prData.getNumber());
+        }
       }
 
       requiredButNotPresent = Sets.newHashSet(requiredLabels);
@@ -468,28 +545,25 @@ public class GitHubPrOrigin implements Origin<GitRevision> {
    * Check that the PR has a state of "success" for each status whose context is in the list
    * provided in the `required_status_context_names` param
    */
-  private void checkRequiredStatusContextNames(GitHubApi api, String project, PullRequest prData)
-      throws ValidationException, RepoException {
+  private void checkRequiredStatusContextNames(String project, PullRequest prData,
+      @Nullable Future<CombinedStatus> response) throws ValidationException, RepoException {
     Set<String> requiredStatusContextNames = getRequiredStatusContextNames();
     if (forceImport() || requiredStatusContextNames.isEmpty()) {
       return;
     }
-    try (ProfilerTask ignore = generalOptions.profiler()
-        .start("github_api_get_combined_status")) {
-      CombinedStatus combinedStatus = api.getCombinedStatus(project, prData.getHead().getSha());
-      Set<String> requiredButNotPresent = Sets.newHashSet(requiredStatusContextNames);
-      List<Status> successStatuses =
-          combinedStatus.getStatuses().stream()
-              .filter(e -> e.getState() == State.SUCCESS)
-              .collect(Collectors.toList());
-      requiredButNotPresent.removeAll(Collections2.transform(successStatuses, Status::getContext));
-      if (!requiredButNotPresent.isEmpty()) {
-        throw new EmptyChangeException(
-            String.format(
-                "Cannot migrate http://github.com/%s/pull/%d because the following ci labels "
-                    + "have not been passed: %s",
-                project, prData.getNumber(), requiredButNotPresent));
-      }
+    CombinedStatus combinedStatus = join(response);
+    Set<String> requiredButNotPresent = Sets.newHashSet(requiredStatusContextNames);
+    List<Status> successStatuses =
+        combinedStatus.getStatuses().stream()
+            .filter(e -> e.getState() == State.SUCCESS)
+            .collect(Collectors.toList());
+    requiredButNotPresent.removeAll(Collections2.transform(successStatuses, Status::getContext));
+    if (!requiredButNotPresent.isEmpty()) {
+      throw new EmptyChangeException(
+          String.format(
+              "Cannot migrate http://github.com/%s/pull/%d because the following ci labels "
+                  + "have not been passed: %s",
+              project, prData.getNumber(), requiredButNotPresent));
     }
   }
 
@@ -497,28 +571,25 @@ public class GitHubPrOrigin implements Origin<GitRevision> {
    * Check that the PR has a conclusion of "success" for each check_run whose name is in the list
    * provided in the `required_check_runs` param
    */
-  private void checkRequiredCheckRuns(GitHubApi api, String project, PullRequest prData)
-      throws ValidationException, RepoException {
+  private void checkRequiredCheckRuns(String project, PullRequest prData,
+      @Nullable Future<CheckRuns> response) throws ValidationException, RepoException {
     Set<String> requiredCheckRuns = getRequiredCheckRuns();
     if (forceImport() || requiredCheckRuns.isEmpty()) {
       return;
     }
-    try (ProfilerTask ignore = generalOptions.profiler()
-        .start("github_api_get_combined_status")) {
-      CheckRuns checkRuns = api.getCheckRuns(project, prData.getHead().getSha());
-      Set<String> requiredButNotPresent = Sets.newHashSet(requiredCheckRuns);
-      List<CheckRun> passedCheckRuns =
-          checkRuns.getCheckRuns().stream()
-              .filter(e -> e.getConclusion().equals("success"))
-              .collect(Collectors.toList());
-      requiredButNotPresent.removeAll(Collections2.transform(passedCheckRuns, CheckRun::getName));
-      if (!requiredButNotPresent.isEmpty()) {
-        throw new EmptyChangeException(
-            String.format(
-                "Cannot migrate http://github.com/%s/pull/%d because the following check runs "
-                    + "have not been passed: %s",
-                project, prData.getNumber(), requiredButNotPresent));
-      }
+    CheckRuns checkRuns = join(response);
+    Set<String> requiredButNotPresent = Sets.newHashSet(requiredCheckRuns);
+    List<CheckRun> passedCheckRuns =
+        checkRuns.getCheckRuns().stream()
+            .filter(e -> e.getConclusion().equals("success"))
+            .collect(Collectors.toList());
+    requiredButNotPresent.removeAll(Collections2.transform(passedCheckRuns, CheckRun::getName));
+    if (!requiredButNotPresent.isEmpty()) {
+      throw new EmptyChangeException(
+          String.format(
+              "Cannot migrate http://github.com/%s/pull/%d because the following check runs "
+                  + "have not been passed: %s",
+              project, prData.getNumber(), requiredButNotPresent));
     }
   }
 
@@ -527,15 +598,15 @@ public class GitHubPrOrigin implements Origin<GitRevision> {
    * with the values provided in the `review_state` and `review_approvers` params
    */
   private void checkReviewApprovers(
-      GitHubApi api,
       String project,
       PullRequest prData,
+      @Nullable Future<ImmutableList<Review>> response,
       ImmutableListMultimap.Builder<String, String> labelsBuilder)
       throws ValidationException, RepoException {
     if (reviewState == null) {
       return;
     }
-    ImmutableList<Review> reviews = api.getReviews(project, prData.getNumber());
+    ImmutableList<Review> reviews = join(response);
     ApproverState approverState =
         reviewState.shouldMigrate(reviews, reviewApprovers, prData.getHead().getSha());
     if (!forceImport() && !approverState.shouldMigrate()) {
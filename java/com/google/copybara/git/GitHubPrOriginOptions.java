@@ -20,6 +20,7 @@ import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import com.google.common.collect.ImmutableSet;
 import com.google.copybara.Option;
+import com.google.copybara.jcommander.GreaterThanZeroValidator;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -82,6 +83,14 @@ public class GitHubPrOriginOptions implements Option {
   @Parameter(names = "--github-pr-merge", description = "Override merge bit from config", arity = 1)
   public Boolean overrideMerge = null;
 
+  @Parameter(
+      names = "--github-pr-metadata-threads",
+      description =
+          "Number of concurrent GitHub API requests used for fetching the labels, statuses, check"
+              + " runs and reviews of the Pull Request before importing it",
+      validateWith = GreaterThanZeroValidator.class)
+  public int metadataThreads = 4;
+
   /**
    * Compute the labels that should be required by git.github_pr_origin for importing a Pull
    * Request.
@@ -114,6 +114,12 @@ public class GitHubPrWriteHook extends DefaultWriteHook {
     }
   }
 
+  @Override
+  public boolean supportsDeferredPush() {
+    // Each push updates a pull request
+    return false;
+  }
+
   protected GitHubPrWriteHook withUpdatedPrBranch(String prBranchToUpdate) {
     return new GitHubPrWriteHook(
         this.generalOptions,
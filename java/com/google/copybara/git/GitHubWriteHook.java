@@ -174,6 +174,12 @@ public class GitHubWriteHook extends DefaultWriteHook {
         : ImmutableSetMultimap.of("pr_branch_to_update", prBranchToUpdate);
   }
 
+  @Override
+  public boolean supportsDeferredPush() {
+    // The PR branch is updated after each push
+    return false;
+  }
+
   private String getUpdatedPrBranch(Dict<String, String> labelDict) throws ValidationException {
     try {
       return GitHubUtil.getValidBranchName(
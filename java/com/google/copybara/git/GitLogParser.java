@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.FluentLogger;
+import com.google.copybara.authoring.Author;
+import com.google.copybara.authoring.AuthorParser;
+import com.google.copybara.authoring.InvalidAuthorException;
+import com.google.copybara.exception.RepoException;
+import com.google.copybara.git.GitRepository.GitLogEntry;
+import com.google.copybara.git.GitRepository.LogCmd;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Parser for the output of {@link LogCmd}.
+ *
+ * <p>Works directly on the bytes produced by git, without splitting the output in intermediate
+ * strings: Only the values of the fields are decoded. Authors are cached, since the same authors
+ * usually appear in many commits.
+ *
+ * <p>Instances keep some state for reusing buffers and are not thread-safe.
+ */
+final class GitLogParser {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final byte[] SEPARATOR = ("\0" + LogCmd.COMMIT_SEPARATOR).getBytes(UTF_8);
+  private static final byte[] GROUP = ("\n" + LogCmd.GROUP).getBytes(UTF_8);
+  private static final byte[] COMMIT = LogCmd.COMMIT_FIELD.getBytes(UTF_8);
+  private static final byte[] PARENTS = LogCmd.PARENTS_FIELD.getBytes(UTF_8);
+  private static final byte[] TREE = LogCmd.TREE_FIELD.getBytes(UTF_8);
+  private static final byte[] AUTHOR = LogCmd.AUTHOR_FIELD.getBytes(UTF_8);
+  private static final byte[] AUTHOR_DATE = LogCmd.AUTHOR_DATE_FIELD.getBytes(UTF_8);
+  private static final byte[] COMMITTER = LogCmd.COMMITTER_FIELD.getBytes(UTF_8);
+  private static final byte[] COMMITTER_DATE = LogCmd.COMMITTER_DATE.getBytes(UTF_8);
+  private static final int BEGIN_BODY_LENGTH = LogCmd.BEGIN_BODY.length() + 1;
+  private static final int END_BODY_LENGTH = LogCmd.END_BODY.length() + 1;
+  private static final String BODY_INDENT = "    ";
+
+  private static final int MAX_CACHED_AUTHORS = 1000;
+
+  private final GitRepository repo;
+  private final boolean includeBody;
+  private final boolean includeStat;
+  private final Map<String, Author> authors = new HashMap<>();
+  private byte[] body = new byte[1024];
+
+  GitLogParser(GitRepository repo, boolean includeBody, boolean includeStat) {
+    this.repo = checkNotNull(repo);
+    this.includeBody = includeBody;
+    this.includeStat = includeStat;
+  }
+
+  /**
+   * Parses the complete output of 'git log', that contains zero or more entries.
+   */
+  ImmutableList<GitLogEntry> parseAll(byte[] log) throws RepoException {
+    // No changes. We cannot know until we run git log since fromRef can be null (HEAD)
+    if (log.length == 0) {
+      return ImmutableList.of();
+    }
+    ImmutableList.Builder<GitLogEntry> commits = ImmutableList.builder();
+    // The first entry is not preceded by the NUL character
+    int start = SEPARATOR.length - 1;
+    int end;
+    while ((end = indexOf(log, start, log.length, SEPARATOR)) != -1) {
+      commits.add(parse(log, start, end));
+      start = end + SEPARATOR.length;
+    }
+    commits.add(parse(log, start, log.length));
+    return commits.build();
+  }
+
+  /**
+   * Parses the output of 'git log' for one commit, located in {@code buffer} between
+   * {@code start} (inclusive) and {@code end} (exclusive), without the commit separator.
+   */
+  GitLogEntry parse(byte[] buffer, int start, int end) throws RepoException {
+    int headerEnd = indexOf(buffer, start, end, GROUP);
+    if (headerEnd == -1) {
+      throw new RepoException("Cannot parse 'git log' entry: "
+          + new String(buffer, start, end - start, UTF_8));
+    }
+    String commit = null;
+    String parents = null;
+    String tree = null;
+    String author = null;
+    String authorDate = null;
+    String committer = null;
+    String committerDate = null;
+    int line = start;
+    while (line < headerEnd) {
+      int lineEnd = indexOf(buffer, line, headerEnd, (byte) '\n');
+      if (lineEnd == -1) {
+        lineEnd = headerEnd;
+      }
+      int eq = indexOf(buffer, line, lineEnd, (byte) '=');
+      if (eq == -1) {
+        throw new RepoException("Cannot parse 'git log' field: "
+            + new String(buffer, line, lineEnd - line, UTF_8));
+      }
+      int valueStart = eq + 1;
+      int valueLength = lineEnd - valueStart;
+      if (keyEquals(buffer, line, eq, COMMIT)) {
+        commit = new String(buffer, valueStart, valueLength, ISO_8859_1);
+      } else if (keyEquals(buffer, line, eq, PARENTS)) {
+        parents = new String(buffer, valueStart, valueLength, ISO_8859_1);
+      } else if (keyEquals(buffer, line, eq, TREE)) {
+        tree = new String(buffer, valueStart, valueLength, ISO_8859_1);
+      } else if (keyEquals(buffer, line, eq, AUTHOR)) {
+        author = new String(buffer, valueStart, valueLength, UTF_8);
+      } else if (keyEquals(buffer, line, eq, AUTHOR_DATE)) {
+        authorDate = new String(buffer, valueStart, valueLength, ISO_8859_1);
+      } else if (keyEquals(buffer, line, eq, COMMITTER)) {
+        committer = new String(buffer, valueStart, valueLength, UTF_8);
+      } else if (keyEquals(buffer, line, eq, COMMITTER_DATE)) {
+        committerDate = new String(buffer, valueStart, valueLength, ISO_8859_1);
+      }
+      line = lineEnd + 1;
+    }
+
+    int bodyStart = headerEnd + GROUP.length;
+    int bodyEnd = indexOf(buffer, bodyStart, end, GROUP);
+    if (bodyEnd == -1) {
+      bodyEnd = end;
+    }
+    String body = includeBody ? parseBody(buffer, bodyStart, bodyEnd) : null;
+    ImmutableSet<String> files = includeStat
+        ? parseFiles(buffer, Math.min(bodyEnd + GROUP.length, end), end)
+        : null;
+
+    checkField(commit, LogCmd.COMMIT_FIELD);
+    checkField(parents, LogCmd.PARENTS_FIELD);
+    ImmutableList.Builder<GitRevision> parentRevs = ImmutableList.builder();
+    int parentStart = 0;
+    while (parentStart < parents.length()) {
+      int parentEnd = parents.indexOf(' ', parentStart);
+      if (parentEnd == -1) {
+        parentEnd = parents.length();
+      }
+      if (parentEnd > parentStart) {
+        parentRevs.add(repo.createReferenceFromCompleteSha1(
+            parents.substring(parentStart, parentEnd)));
+      }
+      parentStart = parentEnd + 1;
+    }
+    try {
+      return new GitLogEntry(
+          repo.createReferenceFromCompleteSha1(commit), parentRevs.build(),
+          checkField(tree, LogCmd.TREE_FIELD),
+          parseAuthor(checkField(author, LogCmd.AUTHOR_FIELD)),
+          parseAuthor(checkField(committer, LogCmd.COMMITTER_FIELD)),
+          parseDate(checkField(authorDate, LogCmd.AUTHOR_DATE_FIELD), commit),
+          parseDate(checkField(committerDate, LogCmd.COMMITTER_DATE), commit),
+          body, files);
+    } catch (InvalidAuthorException e) {
+      throw new RepoException("Error in commit '" + commit + "'. Invalid author.", e);
+    }
+  }
+
+  /**
+   * The body is indented by four spaces and surrounded by the begin and end markers. Removes the
+   * markers and the indentation and normalizes line endings to \n, decoding the result once.
+   */
+  private String parseBody(byte[] buffer, int start, int end) throws RepoException {
+    if (body.length < end - start) {
+      body = new byte[Math.max(body.length * 2, end - start)];
+    }
+    // Unindent
+    int length = 0;
+    for (int i = start; i < end; i++) {
+      byte b = buffer[i];
+      body[length++] = b;
+      if (b == '\n' && startsWith(buffer, i + 1, end, BODY_INDENT)) {
+        i += BODY_INDENT.length();
+      }
+    }
+    if (length < BEGIN_BODY_LENGTH + END_BODY_LENGTH) {
+      throw new RepoException("Cannot parse 'git log' body: "
+          + new String(buffer, start, end - start, UTF_8));
+    }
+    // Remove the markers and convert \r\n to \n. Copybara assumes \n as a separator in many places.
+    int bodyEnd = length - END_BODY_LENGTH;
+    int newLength = 0;
+    for (int i = BEGIN_BODY_LENGTH; i < bodyEnd; i++) {
+      if (body[i] == '\r' && i + 1 < bodyEnd && body[i + 1] == '\n') {
+        continue;
+      }
+      body[newLength++] = body[i];
+    }
+    return new String(body, 0, newLength, UTF_8);
+  }
+
+  private static ImmutableSet<String> parseFiles(byte[] buffer, int start, int end) {
+    if (end - start >= 2 && buffer[start] == '\0' && buffer[start + 1] == '\n') {
+      start += 2;
+    }
+    ImmutableSet.Builder<String> files = ImmutableSet.builder();
+    while (start < end) {
+      int fileEnd = indexOf(buffer, start, end, (byte) '\0');
+      if (fileEnd == -1) {
+        fileEnd = end;
+      }
+      if (fileEnd > start) {
+        files.add(new String(buffer, start, fileEnd - start, UTF_8));
+      }
+      start = fileEnd + 1;
+    }
+    return files.build();
+  }
+
+  private Author parseAuthor(String author) throws InvalidAuthorException {
+    Author result = authors.get(author);
+    if (result == null) {
+      result = AuthorParser.parse(author);
+      if (authors.size() >= MAX_CACHED_AUTHORS) {
+        authors.clear();
+      }
+      authors.put(author, result);
+    }
+    return result;
+  }
+
+  /**
+   * Parses a strict ISO-8601 date as returned by '%aI' and '%cI' (e.g.
+   * '2022-01-31T10:20:30+01:00') without going through a {@link java.time.format.DateTimeFormatter}.
+   * Falls back to {@link ZonedDateTime#parse} for any other format.
+   */
+  private static ZonedDateTime parseDate(String value, String commit) {
+    if (value.length() == 25
+        && value.charAt(4) == '-' && value.charAt(7) == '-' && value.charAt(10) == 'T'
+        && value.charAt(13) == ':' && value.charAt(16) == ':'
+        && (value.charAt(19) == '+' || value.charAt(19) == '-') && value.charAt(22) == ':') {
+      int year = digits(value, 0, 4);
+      int month = digits(value, 5, 2);
+      int day = digits(value, 8, 2);
+      int hour = digits(value, 11, 2);
+      int minute = digits(value, 14, 2);
+      int second = digits(value, 17, 2);
+      int offsetHours = digits(value, 20, 2);
+      int offsetMinutes = digits(value, 23, 2);
+      if (year >= 0 && month >= 0 && day >= 0 && hour >= 0 && minute >= 0 && second >= 0
+          && offsetHours >= 0 && offsetMinutes >= 0) {
+        int sign = value.charAt(19) == '-' ? -1 : 1;
+        try {
+          return ZonedDateTime.of(year, month, day, hour, minute, second, /*nanoOfSecond=*/ 0,
+              ZoneOffset.ofHoursMinutes(sign * offsetHours, sign * offsetMinutes));
+        } catch (DateTimeException e) {
+          // Let ZonedDateTime.parse deal with it
+        }
+      }
+    }
+    try {
+      return ZonedDateTime.parse(value);
+    } catch (DateTimeParseException e) {
+      logger.atSevere().log("Cannot parse date '%s' for commit %s. Using epoch time instead",
+          value, commit);
+      return ZonedDateTime.ofInstant(Instant.EPOCH, ZoneOffset.UTC);
+    }
+  }
+
+  /** Returns the number represented by {@code length} ASCII digits or -1 if not a number. */
+  private static int digits(String value, int start, int length) {
+    int result = 0;
+    for (int i = start; i < start + length; i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+
+  private static String checkField(@Nullable String value, String field) {
+    return checkNotNull(value, "%s not present", field);
+  }
+
+  private static boolean keyEquals(byte[] buffer, int start, int end, byte[] key) {
+    return end - start == key.length && startsWith(buffer, start, end, key);
+  }
+
+  private static boolean startsWith(byte[] buffer, int start, int end, byte[] prefix) {
+    if (end - start < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (buffer[start + i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean startsWith(byte[] buffer, int start, int end, String asciiPrefix) {
+    if (end - start < asciiPrefix.length()) {
+      return false;
+    }
+    for (int i = 0; i < asciiPrefix.length(); i++) {
+      if (buffer[start + i] != asciiPrefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int indexOf(byte[] buffer, int start, int end, byte b) {
+    for (int i = start; i < end; i++) {
+      if (buffer[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the position of the first occurrence of {@code pattern} in {@code buffer} between
+   * {@code start} and {@code end} or -1 if not found.
+   */
+  static int indexOf(byte[] buffer, int start, int end, byte[] pattern) {
+    int first = pattern[0];
+    for (int i = start; i <= end - pattern.length; i++) {
+      if (buffer[i] == first && startsWith(buffer, i, end, pattern)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
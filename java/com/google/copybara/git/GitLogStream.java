@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.copybara.util.CommandRunner.DEFAULT_TIMEOUT;
+import static com.google.copybara.util.CommandRunner.NO_INPUT;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.copybara.exception.RepoException;
+import com.google.copybara.git.GitRepository.GitLogEntry;
+import com.google.copybara.git.GitRepository.LogCmd;
+import com.google.copybara.shell.Killable;
+import com.google.copybara.shell.KillableObserver;
+import com.google.copybara.util.CommandOutputWithStatus;
+import com.google.copybara.util.CommandRunner;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Runs a 'git log' command in a background thread and returns the entries to the caller as soon
+ * as they are parsed from the process output.
+ *
+ * <p>At most {@code readAhead} entries are kept in memory. If the caller doesn't consume them, git
+ * blocks writing its output. Closing the stream kills the git process if it is still running.
+ */
+class GitLogStream implements AutoCloseable {
+
+  /** Separator between commits. The first commit is not preceded by the NUL character. */
+  private static final byte[] SEPARATOR = ("\0" + LogCmd.COMMIT_SEPARATOR).getBytes(UTF_8);
+
+  private static final Object END = new Object();
+
+  private final BlockingQueue<Object> queue;
+  private final Thread thread;
+  private volatile boolean closed;
+  @Nullable private volatile Killable killable;
+  private boolean finished;
+
+  /**
+   * Parses the output of 'git log' for one commit, located in {@code buffer} between {@code start}
+   * and {@code end}, without the separator.
+   */
+  interface EntryParser {
+    GitLogEntry parse(byte[] buffer, int start, int end) throws RepoException;
+  }
+
+  GitLogStream(GitRepository repo, List<String> args, EntryParser parser, int readAhead) {
+    checkArgument(readAhead > 0, "readAhead should be > 0: %s", readAhead);
+    this.queue = new ArrayBlockingQueue<>(readAhead);
+    ImmutableList<String> params = ImmutableList.copyOf(args);
+    EntrySplitter splitter = new EntrySplitter(checkNotNull(parser));
+    // Avoid logging or printing the output, since git log can return LOT of entries.
+    CommandRunner runner = repo.gitRunner(NO_INPUT, params, DEFAULT_TIMEOUT)
+        .withVerbose(false)
+        .withMaxStdOutLogLines(0)
+        .withStdOutStream(splitter)
+        .withObserver(new KillableObserver() {
+          @Override
+          public void startObserving(Killable killable) {
+            GitLogStream.this.killable = killable;
+            if (closed) {
+              killable.kill();
+            }
+          }
+
+          @Override
+          public void stopObserving(Killable killable) {
+            GitLogStream.this.killable = null;
+          }
+        });
+    this.thread = new Thread(() -> {
+      Object result = END;
+      try {
+        CommandOutputWithStatus output = repo.executeAllowNonZeroExit(runner, params);
+        if (splitter.failure != null) {
+          result = splitter.failure;
+        } else if (!output.getTerminationStatus().success()) {
+          result = repo.gitError(output, params);
+        } else {
+          splitter.finish();
+        }
+      } catch (RepoException e) {
+        result = splitter.failure != null ? splitter.failure : e;
+      } catch (RuntimeException e) {
+        result = new RepoException("Error reading 'git log' output", e);
+      } finally {
+        put(result);
+      }
+    }, "git-log-stream");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Returns the next entry in the log or null if there are no more entries.
+   *
+   * @throws RepoException if git failed or the output couldn't be parsed
+   */
+  @Nullable
+  GitLogEntry next() throws RepoException {
+    if (finished) {
+      return null;
+    }
+    Object next;
+    try {
+      next = queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepoException("Interrupted while reading 'git log' output", e);
+    }
+    if (next == END) {
+      finished = true;
+      return null;
+    }
+    if (next instanceof RepoException) {
+      finished = true;
+      throw (RepoException) next;
+    }
+    return (GitLogEntry) next;
+  }
+
+  /**
+   * Stops reading the log. If git is still running, the process is killed.
+   */
+  @Override
+  public void close() throws RepoException {
+    closed = true;
+    Killable current = killable;
+    if (current != null) {
+      current.kill();
+    }
+    queue.clear();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepoException("Interrupted while stopping 'git log'", e);
+    }
+  }
+
+  private void put(Object element) {
+    try {
+      while (!closed && !queue.offer(element, 100, TimeUnit.MILLISECONDS)) {
+        // Wait for the consumer to read more entries or to close the stream.
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Splits the output of 'git log' in commits and parses them as soon as they are complete.
+   */
+  private class EntrySplitter extends OutputStream {
+
+    private final EntryParser parser;
+    private byte[] buffer = new byte[64 * 1024];
+    private int length;
+    // Position where the separator search should continue.
+    private int searchFrom;
+    private boolean firstSeparator = true;
+    @Nullable private volatile RepoException failure;
+
+    private EntrySplitter(EntryParser parser) {
+      this.parser = parser;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        throw new IOException("git log stream closed");
+      }
+      if (length + len > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + len));
+      }
+      System.arraycopy(b, off, buffer, length, len);
+      length += len;
+      emitCompleteEntries();
+    }
+
+    private void emitCompleteEntries() throws IOException {
+      if (firstSeparator) {
+        // The output starts with the separator without the NUL character
+        if (length < SEPARATOR.length - 1) {
+          return;
+        }
+        removeFirst(SEPARATOR.length - 1);
+        firstSeparator = false;
+      }
+      int start = 0;
+      int pos;
+      while ((pos = indexOfSeparator(start)) != -1) {
+        emit(start, pos);
+        start = pos + SEPARATOR.length;
+        searchFrom = start;
+      }
+      removeFirst(start);
+      searchFrom = Math.max(0, length - SEPARATOR.length + 1);
+    }
+
+    private int indexOfSeparator(int start) {
+      return GitLogParser.indexOf(buffer, Math.max(start, searchFrom), length, SEPARATOR);
+    }
+
+    private void removeFirst(int bytes) {
+      if (bytes == 0) {
+        return;
+      }
+      System.arraycopy(buffer, bytes, buffer, 0, length - bytes);
+      length -= bytes;
+    }
+
+    private void emit(int start, int end) throws IOException {
+      try {
+        put(parse(start, end));
+      } catch (RepoException e) {
+        throw new IOException(e);
+      }
+    }
+
+    private GitLogEntry parse(int start, int end) throws RepoException {
+      try {
+        return parser.parse(buffer, start, end);
+      } catch (RepoException | RuntimeException e) {
+        failure = e instanceof RepoException
+            ? (RepoException) e
+            : new RepoException("Cannot parse 'git log' output", e);
+        throw failure;
+      }
+    }
+
+    /** Emits the last entry. Called once git has successfully finished writing its output. */
+    private void finish() throws RepoException {
+      if (closed || firstSeparator || length == 0) {
+        // Stopped by the client or empty log.
+        return;
+      }
+      put(parse(0, length));
+      length = 0;
+    }
+  }
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.copybara.exception.RepoException;
+import com.google.copybara.git.GitRepository.GitObjectType;
+import com.google.copybara.profiler.Profiler;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Answers object and reference lookups for a repository using long-lived {@code git cat-file
+ * --batch-check} and {@code git cat-file --batch} processes, instead of forking a git process for
+ * each lookup.
+ *
+ * <p>Each process is started the first time it is needed and kept until the session is closed.
+ * Lookups of several objects are pipelined: the requests are written to the process in a
+ * background thread while the responses are read. If a process fails, it is killed and the next
+ * call starts a new one. The processes also exit if Copybara exits without closing the session,
+ * since their input is closed.
+ *
+ * <p>The latency of each call is reported to the profiler as {@code git_session_lookup} and
+ * {@code git_session_read} tasks, and the totals are available in {@link #getLookupStats()} and
+ * {@link #getReadStats()}.
+ *
+ * <p>Sessions are thread-safe. The calls that use the same process are serialized.
+ */
+public final class GitObjectSession implements AutoCloseable {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(5);
+  // Enough to show the last errors of the process
+  private static final int MAX_STDERR_BYTES = 4096;
+
+  private final Path gitDir;
+  private final GitEnvironment gitEnv;
+  private final Profiler profiler;
+  private final BatchProcess lookupProcess;
+  private final BatchProcess readProcess;
+  private final Stats lookupStats = new Stats();
+  private final Stats readStats = new Stats();
+  private final ExecutorService writer;
+  private volatile boolean closed;
+
+  GitObjectSession(Path gitDir, GitEnvironment gitEnv, Profiler profiler) {
+    this.gitDir = checkNotNull(gitDir);
+    this.gitEnv = checkNotNull(gitEnv);
+    this.profiler = checkNotNull(profiler);
+    this.lookupProcess = new BatchProcess("--batch-check", /*withContent=*/ false);
+    this.readProcess = new BatchProcess("--batch", /*withContent=*/ true);
+    this.writer = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+        .setNameFormat("git-session-writer-%d").setDaemon(true).build());
+  }
+
+  /**
+   * Returns the object that {@code revision} resolves to, or null if it doesn't exist.
+   *
+   * @param revision any object name that 'git cat-file' understands, for example a SHA-1, a
+   *     reference, {@code ref^{commit}} or {@code rev:path}
+   */
+  @Nullable
+  ObjectInfo lookup(String revision) throws RepoException {
+    return lookup(ImmutableList.of(revision)).get(revision);
+  }
+
+  /**
+   * Looks up several revisions with a single round trip. Revisions that don't exist are not in
+   * the result.
+   */
+  ImmutableMap<String, ObjectInfo> lookup(Collection<String> revisions) throws RepoException {
+    return lookupProcess.request(revisions, "git_session_lookup", lookupStats);
+  }
+
+  /** Like {@link #lookup(String)}, but the result includes the content of the object. */
+  @Nullable
+  ObjectInfo read(String revision) throws RepoException {
+    return read(ImmutableList.of(revision)).get(revision);
+  }
+
+  /** Like {@link #lookup(Collection)}, but the results include the content of the objects. */
+  ImmutableMap<String, ObjectInfo> read(Collection<String> revisions) throws RepoException {
+    return readProcess.request(revisions, "git_session_read", readStats);
+  }
+
+  public Stats getLookupStats() {
+    return lookupStats;
+  }
+
+  public Stats getReadStats() {
+    return readStats;
+  }
+
+  /** Stops the git processes. Closing a session more than once has no effect. */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    lookupProcess.stop();
+    readProcess.stop();
+    writer.shutdownNow();
+    logger.atInfo().log("Git object session for %s. Lookups: %s. Reads: %s", gitDir,
+        lookupStats, readStats);
+  }
+
+  /** An object found by the session. */
+  static final class ObjectInfo {
+
+    private final String sha1;
+    private final GitObjectType type;
+    private final long size;
+    @Nullable private final byte[] content;
+
+    private ObjectInfo(String sha1, GitObjectType type, long size, @Nullable byte[] content) {
+      this.sha1 = checkNotNull(sha1);
+      this.type = checkNotNull(type);
+      this.size = size;
+      this.content = content;
+    }
+
+    String getSha1() {
+      return sha1;
+    }
+
+    GitObjectType getType() {
+      return type;
+    }
+
+    long getSize() {
+      return size;
+    }
+
+    /** The content of the object, if it was read with {@link #read}. */
+    @Nullable
+    byte[] getContent() {
+      return content;
+    }
+  }
+
+  /** Number of calls, objects requested and latency of the calls of a session. */
+  public static final class Stats {
+
+    private long calls;
+    private long objects;
+    private long totalNanos;
+    private long maxNanos;
+
+    private synchronized void record(int requested, long nanos) {
+      calls++;
+      objects += requested;
+      totalNanos += nanos;
+      maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    public synchronized long getCalls() {
+      return calls;
+    }
+
+    public synchronized long getObjects() {
+      return objects;
+    }
+
+    public synchronized Duration getTotalLatency() {
+      return Duration.ofNanos(totalNanos);
+    }
+
+    public synchronized Duration getMaxLatency() {
+      return Duration.ofNanos(maxNanos);
+    }
+
+    @Override
+    public synchronized String toString() {
+      return String.format("%d calls, %d objects, total %dms, max %dms", calls, objects,
+          TimeUnit.NANOSECONDS.toMillis(totalNanos), TimeUnit.NANOSECONDS.toMillis(maxNanos));
+    }
+  }
+
+  /** A 'git cat-file' process in batch mode. */
+  private final class BatchProcess {
+
+    private final String mode;
+    private final boolean withContent;
+    @Nullable private Process process;
+    @Nullable private OutputStream stdin;
+    @Nullable private InputStream stdout;
+    @Nullable private StderrReader stderr;
+
+    private BatchProcess(String mode, boolean withContent) {
+      this.mode = mode;
+      this.withContent = withContent;
+    }
+
+    private synchronized ImmutableMap<String, ObjectInfo> request(Collection<String> revisions,
+        String profilerTask, Stats stats) throws RepoException {
+      checkState(!closed, "The git object session for %s is closed", gitDir);
+      long start = System.nanoTime();
+      ImmutableSet<String> requests = ImmutableSet.copyOf(revisions);
+      StringBuilder input = new StringBuilder();
+      for (String revision : requests) {
+        checkArgument(!revision.isEmpty() && revision.indexOf('\n') == -1,
+            "Invalid revision for 'git cat-file': '%s'", revision);
+        input.append(revision).append('\n');
+      }
+      ImmutableMap.Builder<String, ObjectInfo> result = ImmutableMap.builder();
+      try {
+        start();
+        byte[] bytes = input.toString().getBytes(UTF_8);
+        Future<?> writing = null;
+        if (requests.size() == 1) {
+          write(bytes);
+        } else {
+          // git doesn't read more requests while its output is full, so the responses need to be
+          // read while writing.
+          writing = writer.submit(() -> {
+            write(bytes);
+            return null;
+          });
+        }
+        for (String revision : requests) {
+          ObjectInfo info = readResponse(revision);
+          if (info != null) {
+            result.put(revision, info);
+          }
+        }
+        if (writing != null) {
+          writing.get();
+        }
+      } catch (IOException e) {
+        throw failure(e);
+      } catch (ExecutionException e) {
+        throw failure(e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw failure(e);
+      } finally {
+        long end = System.nanoTime();
+        stats.record(requests.size(), end - start);
+        profiler.simpleTask(profilerTask, start, end);
+      }
+      return result.build();
+    }
+
+    private void start() throws IOException {
+      if (process != null) {
+        return;
+      }
+      ProcessBuilder builder = new ProcessBuilder(ImmutableList.of(
+          gitEnv.resolveGitBinary(), "--git-dir=" + gitDir, "cat-file", mode));
+      builder.environment().clear();
+      builder.environment().putAll(gitEnv.getEnvironment());
+      builder.directory(gitDir.toFile());
+      process = builder.start();
+      stdin = process.getOutputStream();
+      stdout = new BufferedInputStream(process.getInputStream());
+      stderr = new StderrReader(process.getErrorStream());
+    }
+
+    private void write(byte[] bytes) throws IOException {
+      OutputStream out = checkNotNull(stdin);
+      out.write(bytes);
+      out.flush();
+    }
+
+    @Nullable
+    private ObjectInfo readResponse(String revision) throws IOException {
+      String header = readLine();
+      if (header.equals(revision + " missing") || header.equals(revision + " ambiguous")) {
+        return null;
+      }
+      List<String> fields = Splitter.on(' ').splitToList(header);
+      if (fields.size() != 3) {
+        throw new IOException(
+            String.format("Unexpected response for '%s': '%s'", revision, header));
+      }
+      GitObjectType type;
+      long size;
+      try {
+        type = GitObjectType.valueOf(fields.get(1).toUpperCase());
+        size = Long.parseLong(fields.get(2));
+      } catch (IllegalArgumentException e) {
+        throw new IOException(
+            String.format("Unexpected response for '%s': '%s'", revision, header), e);
+      }
+      byte[] content = null;
+      if (withContent) {
+        if (size > Integer.MAX_VALUE - 1) {
+          throw new IOException(String.format("Object '%s' is too big: %d", revision, size));
+        }
+        content = new byte[(int) size];
+        ByteStreams.readFully(stdout, content);
+        if (stdout.read() != '\n') {
+          throw new IOException("Missing new line after the content of " + revision);
+        }
+      }
+      return new ObjectInfo(fields.get(0), type, size, content);
+    }
+
+    private String readLine() throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+      int b;
+      while ((b = stdout.read()) != '\n') {
+        if (b == -1) {
+          throw new EOFException("'git cat-file " + mode + "' exited");
+        }
+        line.write(b);
+      }
+      return new String(line.toByteArray(), UTF_8);
+    }
+
+    /** Kills the process, so that the next request starts a new one, and returns the error. */
+    private RepoException failure(Throwable cause) {
+      String errors = stderr != null ? stderr.get() : "";
+      kill();
+      return new RepoException(String.format("Error running 'git cat-file %s' in %s%s", mode,
+          gitDir, errors.isEmpty() ? "" : ":\n" + errors), cause);
+    }
+
+    private void kill() {
+      if (process != null) {
+        process.destroyForcibly();
+      }
+      process = null;
+      stdin = null;
+      stdout = null;
+      stderr = null;
+    }
+
+    /** Closes the input of the process, which makes it exit, and waits for it. */
+    private synchronized void stop() {
+      if (process == null) {
+        return;
+      }
+      try {
+        stdin.close();
+        if (!process.waitFor(CLOSE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+          logger.atWarning().log("'git cat-file %s' in %s didn't exit. Killing it", mode, gitDir);
+        }
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Error stopping 'git cat-file %s' in %s", mode,
+            gitDir);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        kill();
+      }
+    }
+  }
+
+  /** Keeps the last bytes of the error output of a process, so that it never blocks on it. */
+  private static final class StderrReader extends Thread {
+
+    private final InputStream input;
+    private final byte[] buffer = new byte[MAX_STDERR_BYTES];
+    private int size;
+
+    private StderrReader(InputStream input) {
+      super("git-session-stderr");
+      this.input = input;
+      setDaemon(true);
+      start();
+    }
+
+    @Override
+    public void run() {
+      byte[] chunk = new byte[1024];
+      try {
+        int read;
+        while ((read = input.read(chunk)) != -1) {
+          append(chunk, read);
+        }
+      } catch (IOException e) {
+        // The process was killed
+      }
+    }
+
+    private synchronized void append(byte[] chunk, int length) {
+      int keep = Math.min(size, MAX_STDERR_BYTES - length);
+      if (keep < 0) {
+        System.arraycopy(chunk, length - MAX_STDERR_BYTES, buffer, 0, MAX_STDERR_BYTES);
+        size = MAX_STDERR_BYTES;
+        return;
+      }
+      System.arraycopy(buffer, size - keep, buffer, 0, keep);
+      System.arraycopy(chunk, 0, buffer, keep, length);
+      size = keep + length;
+    }
+
+    private synchronized String get() {
+      return new String(buffer, 0, size, UTF_8).trim();
+    }
+  }
+}
@@ -24,9 +24,13 @@ import com.google.common.base.Preconditions;
 import com.google.copybara.GeneralOptions;
 import com.google.copybara.Option;
 import com.google.copybara.exception.RepoException;
+import com.google.copybara.jcommander.DurationConverter;
 import com.google.copybara.jcommander.GreaterThanZeroValidator;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.HashMap;
 import java.util.Map;
 import javax.annotation.Nullable;
 
@@ -64,7 +68,8 @@ public class GitOptions implements Option {
   boolean noGitPrompt = false;
 
   @Parameter(names = "--git-visit-changes-page-size",
-      description = "Size of the git log page used for visiting changes.", hidden = true,
+      description = "Max number of changes read ahead from git log while visiting changes.",
+      hidden = true,
       validateWith = GreaterThanZeroValidator.class)
   int visitChangePageSize = 200;
 
@@ -81,6 +86,54 @@ public class GitOptions implements Option {
       "Pass the '--no-verify' option to git pushes and commits to disable git commit hooks.")
   public boolean gitNoVerify = false;
 
+  @Parameter(names = "--nogit-ref-cache",
+      description = "Always fetch when resolving a reference, even if it is a SHA-1 that already"
+          + " exists in the local cache of the repository.")
+  boolean noRefCache = false;
+
+  @Parameter(names = "--git-ref-cache-ttl",
+      description = "How long a fetched reference (for example a branch) is resolved from the"
+          + " local cache of the repository without fetching it again. For example 10m. By default"
+          + " references are always fetched.",
+      converter = DurationConverter.class)
+  Duration refCacheTtl = Duration.ZERO;
+
+  @Parameter(names = "--nogit-cache-lock",
+      description = "Don't coordinate with other Copybara processes that use the same cached"
+          + " repository. By default fetches into a cached repository wait for the fetches of"
+          + " other processes, and repositories in use are not evicted.")
+  boolean noCacheLock = false;
+
+  @Parameter(names = "--git-fetch-coalesce-window",
+      description = "Don't repeat a fetch into a cached repository if another Copybara process"
+          + " did the same fetch less than this time ago, and reuse its result instead. For"
+          + " example 30s. By default fetches are never coalesced.",
+      converter = DurationConverter.class)
+  Duration fetchCoalesceWindow = Duration.ZERO;
+
+  @Parameter(names = "--experimental-git-object-session",
+      description = "Resolve references and read files of the cached repositories with long-lived"
+          + " 'git cat-file --batch' processes, instead of a git process for each lookup.")
+  boolean objectSession = false;
+
+  @Parameter(names = "--experimental-git-cache-maintenance",
+      description = "After fetching into a cached repository, write its commit-graph with"
+          + " changed-path Bloom filters and a multi-pack-index, and track the size and last use"
+          + " of the cached repositories.")
+  boolean cacheMaintenance = false;
+
+  @Parameter(names = "--experimental-git-cache-max-size-mb",
+      description = "With --experimental-git-cache-maintenance, delete the least recently used"
+          + " cached repositories when they use more than this size. Repositories used in the"
+          + " last hour are kept. By default there is no limit.",
+      validateWith = GreaterThanZeroValidator.class)
+  int cacheMaxSizeMb = 0;
+
+  @Nullable private GitCacheMaintenance maintenance;
+
+  // One session per cached repository, closed when Copybara exits
+  private final Map<Path, GitObjectSession> objectSessions = new HashMap<>();
+
   public GitOptions(GeneralOptions generalOptions) {
     this.generalOptions = Preconditions.checkNotNull(generalOptions);
   }
@@ -97,12 +150,62 @@ public class GitOptions implements Option {
   public GitRepository cachedBareRepoForUrl(String url) throws RepoException {
     Preconditions.checkNotNull(url);
     try {
-      return createBareRepo(generalOptions, resolveDirInCache(url, getRepoStorage()));
+      Path gitDir = resolveDirInCache(url, getRepoStorage());
+      GitCacheLock cacheLock = null;
+      if (!noCacheLock) {
+        // Before initializing it, so that it is not evicted by another process meanwhile
+        cacheLock = new GitCacheLock(gitDir, fetchCoalesceWindow, generalOptions.fetchTimeout,
+            generalOptions.profiler(), Clock.systemUTC());
+        cacheLock.markInUse();
+      }
+      GitRepository repo = createBareRepo(generalOptions, gitDir);
+      if (cacheLock != null) {
+        repo.withCacheLock(cacheLock);
+      }
+      if (objectSession) {
+        repo.withObjectSession(objectSession(repo));
+      }
+      if (cacheMaintenance) {
+        GitCacheMaintenance maintenance = maintenance();
+        maintenance.markUsed(repo);
+        repo.withCacheMaintenance(maintenance);
+      }
+      if (noRefCache) {
+        return repo;
+      }
+      return repo.withRefCache(
+          GitRefCache.forRepo(repo, refCacheTtl, generalOptions.profiler()));
     } catch (IOException e) {
       throw new RepoException("Cannot create a cached repo for " + url, e);
     }
   }
 
+  private synchronized GitCacheMaintenance maintenance() throws IOException {
+    if (maintenance == null) {
+      maintenance = new GitCacheMaintenance(getRepoStorage(), cacheMaxSizeMb * 1024L * 1024,
+          generalOptions.profiler(), Clock.systemUTC());
+    }
+    return maintenance;
+  }
+
+  private synchronized GitObjectSession objectSession(GitRepository repo) {
+    GitObjectSession session = objectSessions.get(repo.getGitDir());
+    if (session != null) {
+      return session;
+    }
+    if (objectSessions.isEmpty()) {
+      Runtime.getRuntime().addShutdownHook(new Thread(this::closeObjectSessions,
+          "git-session-shutdown"));
+    }
+    session = repo.newObjectSession(generalOptions.profiler());
+    objectSessions.put(repo.getGitDir(), session);
+    return session;
+  }
+
+  private synchronized void closeObjectSessions() {
+    objectSessions.values().forEach(GitObjectSession::close);
+  }
+
   /**
    * Rewrite url for subodule fetch
    */
@@ -322,8 +322,24 @@ public class GitOrigin implements Origin<GitRevision> {
       }
     }
 
+    @Override
+    public boolean checkoutIncrementally(GitRevision ref, Path workdir, Path stateDir)
+        throws RepoException, ValidationException {
+      // These modify the checkout after reading the tree, so it cannot be updated in place.
+      if (submoduleStrategy != SubmoduleStrategy.NO
+          || patchTransformation != null
+          || partialFetch
+          || gitOriginOptions.originRebaseRef != null
+          || !Strings.isNullOrEmpty(gitOriginOptions.originCheckoutHook)) {
+        return false;
+      }
+      getRepository().withWorkTree(workdir)
+          .checkoutWithIndex(stateDir.resolve("index"), ref.getSha1());
+      return true;
+    }
+
     private GitRepository checkout(
-        GitRepository repository, Path workdir, GitRevision ref)
+        GitRepository repository, Path workdir, GitRevision ref, boolean topLevelCheckout)
         throws RepoException {
       GitRepository repo = repository.withWorkTree(workdir);
       if (partialFetch) {
@@ -331,10 +347,33 @@ public class GitOrigin implements Origin<GitRevision> {
         repo.forceCheckout(ref.getSha1());
         return repo;
       }
-      repo.forceCheckout(ref.getSha1(),
-          gitOptions.experimentCheckoutAffectedFiles
+      ImmutableSet<String> checkoutPaths = gitOptions.experimentCheckoutAffectedFiles
           ? originFiles.roots()
-          : ImmutableSet.of());
+          : ImmutableSet.of();
+      // The rebase works on the repository HEAD and index
+      if (topLevelCheckout && gitOriginOptions.originRebaseRef != null) {
+        repo.forceCheckout(ref.getSha1(), checkoutPaths);
+        return repo;
+      }
+      // The cached repository is shared with other migrations, that might be checking out
+      // concurrently, so use a private index.
+      Path indexDir;
+      try {
+        indexDir = generalOptions.getDirFactory().newTempDir("git_index");
+      } catch (IOException e) {
+        throw new RepoException("Cannot create a temporary directory for the git index", e);
+      }
+      Path index = indexDir.resolve("index");
+      try {
+        repo.forceCheckoutWithIndex(index, ref.getSha1(), checkoutPaths);
+      } finally {
+        try {
+          Files.deleteIfExists(index);
+          Files.delete(indexDir);
+        } catch (IOException e) {
+          // Deleted later with the rest of the temporary files
+        }
+      }
       return repo;
     }
 
@@ -355,7 +394,7 @@ public class GitOrigin implements Origin<GitRevision> {
             + " first_parent = False instead. metadata.squash_notes and metadata.use_last_change"
             + " don't include merge commits by default");
       }
-      GitRepository repo = checkout(repository, workdir, ref);
+      GitRepository repo = checkout(repository, workdir, ref, topLevelCheckout);
       if (topLevelCheckout) {
         maybeRebase(repo, ref, workdir);
       }
@@ -483,7 +522,7 @@ public class GitOrigin implements Origin<GitRevision> {
     }
 
     /**
-     * Visit changes using git --skip and -n for pagination.
+     * Visit changes streaming the output of a single git log command.
      *
      * <p>We only visit files in the roots. The reason is that there can be different project
      * imports from the same git repository. Using origin_files glob directly would be more
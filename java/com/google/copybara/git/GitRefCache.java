@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Splitter;
+import com.google.common.flogger.FluentLogger;
+import com.google.copybara.profiler.Profiler;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Resolution layer for {@link GitRepository#fetchSingleRefWithTags} that avoids remote fetches
+ * when the answer is already known locally.
+ *
+ * <p>Complete SHA-1s are looked up in the local object database first. Other references are
+ * resolved from a ref to SHA-1 cache that is persisted in the repository directory, as long as the
+ * entry is younger than the configured TTL and the object is still present.
+ *
+ * <p>The file is shared by all the processes that use the repository. It is updated holding a
+ * file lock, merging the entries written by other processes.
+ *
+ * <p>Lookups are reported to the profiler as {@code ref_cache_hit} and {@code ref_cache_miss}
+ * tasks.
+ */
+final class GitRefCache {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final String FILE_NAME = "copybara_ref_cache";
+  static final String LOCK_FILE_NAME = "copybara_ref_cache.lock";
+
+  private final Path file;
+  private final Duration ttl;
+  private final Profiler profiler;
+  private final Clock clock;
+
+  @Nullable private Map<String, Entry> entries;
+  // Entries invalidated by this process, that must not be merged back from the file
+  private final Map<String, Entry> invalidated = new HashMap<>();
+
+  /**
+   * @param file file where the cache is persisted
+   * @param ttl how long a resolved reference is reused before fetching it again. Zero disables
+   *     caching of references that are not complete SHA-1s.
+   * @param profiler profiler where the hits and misses are reported
+   * @param clock clock used for the TTL
+   */
+  GitRefCache(Path file, Duration ttl, Profiler profiler, Clock clock) {
+    this.file = checkNotNull(file);
+    this.ttl = checkNotNull(ttl);
+    this.profiler = checkNotNull(profiler);
+    this.clock = checkNotNull(clock);
+  }
+
+  /** Creates a cache persisted in the directory of {@code repo}. */
+  static GitRefCache forRepo(GitRepository repo, Duration ttl, Profiler profiler) {
+    return new GitRefCache(repo.getGitDir().resolve(FILE_NAME), ttl, profiler, Clock.systemUTC());
+  }
+
+  /**
+   * Returns the SHA-1 that {@code ref} resolved to for {@code url} if it was recorded less than
+   * the TTL ago, or null otherwise.
+   */
+  @Nullable
+  synchronized String get(String url, String ref) {
+    if (ttl.isZero()) {
+      return null;
+    }
+    Entry entry = entries().get(key(url, ref));
+    if (entry == null || entry.time.plus(ttl).isBefore(clock.instant())) {
+      return null;
+    }
+    return entry.sha1;
+  }
+
+  /** Records that {@code ref} resolved to {@code sha1} for {@code url}. */
+  synchronized void put(String url, String ref, String sha1) {
+    if (ttl.isZero()) {
+      return;
+    }
+    String key = key(url, ref);
+    Entry entry = new Entry(sha1, clock.instant());
+    entries().put(key, entry);
+    invalidated.remove(key);
+    try {
+      GitCacheLock.withExclusiveLock(file.resolveSibling(LOCK_FILE_NAME), () -> {
+        // Other processes might have updated the file since it was read
+        entries = merge(read(), entries);
+        write();
+      });
+    } catch (IOException e) {
+      // Not fatal, the reference will be fetched next time.
+      logger.atWarning().withCause(e).log("Cannot write ref cache %s", file);
+    }
+  }
+
+  /** Removes the entry for {@code ref}, for example because the object is not present anymore. */
+  synchronized void invalidate(String url, String ref) {
+    String key = key(url, ref);
+    Entry entry = entries().remove(key);
+    if (entry != null) {
+      invalidated.put(key, entry);
+    }
+  }
+
+  /** Reports a lookup that started at {@code startNanos} to the profiler. */
+  void recordLookup(boolean hit, long startNanos) {
+    profiler.simpleTask(hit ? "ref_cache_hit" : "ref_cache_miss", startNanos, System.nanoTime());
+  }
+
+  private Map<String, Entry> entries() {
+    if (entries == null) {
+      entries = read();
+    }
+    return entries;
+  }
+
+  /**
+   * Returns the entries of {@code fromFile} and {@code local}, taking the most recent one when
+   * both have the same key, without the entries invalidated by this process.
+   */
+  private Map<String, Entry> merge(Map<String, Entry> fromFile, Map<String, Entry> local) {
+    Map<String, Entry> result = new LinkedHashMap<>(fromFile);
+    for (Map.Entry<String, Entry> e : local.entrySet()) {
+      Entry other = result.get(e.getKey());
+      if (other == null || other.time.isBefore(e.getValue().time)) {
+        result.put(e.getKey(), e.getValue());
+      }
+    }
+    for (Map.Entry<String, Entry> e : invalidated.entrySet()) {
+      Entry other = result.get(e.getKey());
+      if (other != null && other.sha1.equals(e.getValue().sha1)
+          && !other.time.isAfter(e.getValue().time)) {
+        result.remove(e.getKey());
+      }
+    }
+    return result;
+  }
+
+  private Map<String, Entry> read() {
+    Map<String, Entry> entries = new LinkedHashMap<>();
+    List<String> lines;
+    try {
+      lines = Files.readAllLines(file, UTF_8);
+    } catch (NoSuchFileException e) {
+      return entries;
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot read ref cache %s. Ignoring it", file);
+      return entries;
+    }
+    for (String line : lines) {
+      // <sha1> <epoch millis> <url> <ref>
+      List<String> fields = Splitter.on(' ').limit(4).splitToList(line);
+      if (fields.size() != 4
+          || !GitRevision.COMPLETE_SHA1_PATTERN.matcher(fields.get(0)).matches()) {
+        logger.atWarning().log("Ignoring invalid ref cache line '%s' in %s", line, file);
+        continue;
+      }
+      try {
+        entries.put(key(fields.get(2), fields.get(3)),
+            new Entry(fields.get(0), Instant.ofEpochMilli(Long.parseLong(fields.get(1)))));
+      } catch (NumberFormatException e) {
+        logger.atWarning().log("Ignoring invalid ref cache line '%s' in %s", line, file);
+      }
+    }
+    return entries;
+  }
+
+  private void write() throws IOException {
+    // Written to a temporary file first so that concurrent readers never see a partial file.
+    Path temp = Files.createTempFile(file.getParent(), FILE_NAME, ".tmp");
+    try {
+      try (BufferedWriter writer = Files.newBufferedWriter(temp, UTF_8)) {
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+          writer.write(e.getValue().sha1 + " " + e.getValue().time.toEpochMilli() + " "
+              + e.getKey());
+          writer.newLine();
+        }
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static String key(String url, String ref) {
+    return url + " " + ref;
+  }
+
+  private static final class Entry {
+
+    private final String sha1;
+    private final Instant time;
+
+    private Entry(String sha1, Instant time) {
+      this.sha1 = sha1;
+      this.time = time;
+    }
+  }
+}
@@ -17,11 +17,13 @@
 package com.google.copybara.git;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import static com.google.copybara.exception.ValidationException.checkCondition;
 import static com.google.copybara.util.CommandRunner.DEFAULT_TIMEOUT;
 import static com.google.copybara.util.CommandRunner.NO_INPUT;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.CharMatcher;
 import com.google.common.base.Joiner;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
@@ -40,15 +42,15 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Range;
 import com.google.common.flogger.FluentLogger;
+import com.google.copybara.ChangeVisitable.VisitResult;
 import com.google.copybara.authoring.Author;
-import com.google.copybara.authoring.AuthorParser;
-import com.google.copybara.authoring.InvalidAuthorException;
 import com.google.copybara.exception.AccessValidationException;
 import com.google.copybara.exception.CannotResolveRevisionException;
 import com.google.copybara.exception.EmptyChangeException;
 import com.google.copybara.exception.RepoException;
 import com.google.copybara.exception.ValidationException;
 import com.google.copybara.git.GitCredential.UserPassword;
+import com.google.copybara.profiler.Profiler;
 import com.google.copybara.util.BadExitStatusWithOutputException;
 import com.google.copybara.util.CommandOutput;
 import com.google.copybara.util.CommandOutputWithStatus;
@@ -69,14 +71,12 @@ import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.time.Duration;
-import java.time.Instant;
-import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -177,6 +177,11 @@ public class GitRepository {
   private final Duration fetchTimeout;
   protected final boolean noVerify;
 
+  @Nullable private GitRefCache refCache;
+  @Nullable private GitObjectSession objectSession;
+  @Nullable private GitCacheMaintenance cacheMaintenance;
+  @Nullable private GitCacheLock cacheLock;
+
   private static final Map<Character, StatusCode> CHAR_TO_STATUS_CODE =
       Arrays.stream(StatusCode.values())
           .collect(Collectors.toMap(StatusCode::getCode, Function.identity()));
@@ -285,6 +290,10 @@ public class GitRepository {
     // below) and hope the sha1 is reachable from heads.
     // If we fail to find the SHA-1 with that fetch we fetch the SHA-1 directly and hope the server
     // allows to download it.
+    GitRevision cached = resolveFromRefCache(url, ref, fetchTags);
+    if (cached != null) {
+      return cached;
+    }
     if (isSha1Reference(ref)) {
       // Tags are fetched by the default refspec
       try {
@@ -316,10 +325,47 @@ public class GitRepository {
           /*prune=*/ false,
           /*force=*/ true,
           ImmutableList.of(ref + ":refs/copybara_fetch/" + ref), partialFetch);
-      return resolveReferenceWithContext("refs/copybara_fetch/" + ref, /*contextRef=*/ref, url);
+      GitRevision rev =
+          resolveReferenceWithContext("refs/copybara_fetch/" + ref, /*contextRef=*/ref, url);
+      if (refCache != null && !isSha1Reference(ref)) {
+        refCache.put(url, ref, rev.getSha1());
+      }
+      return rev;
     }
   }
 
+  /**
+   * Resolves {@code ref} without fetching if a {@link GitRefCache} is configured and the result
+   * is known locally: either {@code ref} is a complete SHA-1 already present in the repository or
+   * it was fetched less than the cache TTL ago. Returns null if {@code ref} needs to be fetched.
+   *
+   * <p>Requests that need tags always fetch, since tags might have been added remotely.
+   */
+  @Nullable
+  private GitRevision resolveFromRefCache(String url, String ref, boolean fetchTags)
+      throws RepoException {
+    if (refCache == null || fetchTags) {
+      return null;
+    }
+    long start = System.nanoTime();
+    String sha1 = GitRevision.COMPLETE_SHA1_PATTERN.matcher(ref).matches()
+        ? ref
+        : refCache.get(url, ref);
+    if (sha1 != null && checkSha1Exists(sha1)) {
+      refCache.recordLookup(/*hit=*/ true, start);
+      // Same revisions that resolveReferenceWithContext would return after fetching
+      return sha1.equals(ref)
+          ? new GitRevision(this, sha1)
+          : new GitRevision(this, sha1, /*reviewReference=*/ null, /*reference=*/ ref,
+              ImmutableListMultimap.of(), url);
+    }
+    if (sha1 != null && !sha1.equals(ref)) {
+      refCache.invalidate(url, ref);
+    }
+    refCache.recordLookup(/*hit=*/ false, start);
+    return null;
+  }
+
   public GitRevision addDescribeVersion(GitRevision rev) throws RepoException {
     return rev.withLabels(
         ImmutableListMultimap.of(
@@ -393,11 +439,27 @@ public class GitRepository {
       args.add(ref);
     }
 
+    FetchResult result = cacheLock != null
+        ? cacheLock.fetch(Joiner.on(' ').join(args), () -> runFetch(url, args, requestedRefs))
+        : runFetch(url, args, requestedRefs);
+    if (cacheMaintenance != null) {
+      // Outside of the fetch lock, eviction can take a while
+      cacheMaintenance.evictAfterFetch(result);
+    }
+    return result;
+  }
+
+  private FetchResult runFetch(String url, List<String> args, List<String> requestedRefs)
+      throws RepoException, ValidationException {
     ImmutableMap<String, GitRevision> before = showRef();
     CommandOutputWithStatus output = gitAllowNonZeroExit(NO_INPUT, args, fetchTimeout);
     if (output.getTerminationStatus().success()) {
       ImmutableMap<String, GitRevision> after = showRef();
-      return new FetchResult(before, after);
+      FetchResult result = new FetchResult(before, after);
+      if (cacheMaintenance != null) {
+        cacheMaintenance.afterFetch(this, result);
+      }
+      return result;
     }
     checkFetchError(output.getStderr(), url, requestedRefs);
     throw throwUnknownGitError(output, args);
@@ -925,6 +987,13 @@ public class GitRepository {
    * Resolves a git reference to the SHA-1 reference
    */
   public String parseRef(String ref) throws RepoException, CannotResolveRevisionException {
+    if (objectSession != null && isSingleRevision(ref)) {
+      GitObjectSession.ObjectInfo commit = objectSession.lookup(ref + "^{commit}");
+      if (commit != null) {
+        return commit.getSha1();
+      }
+      // Let rev-list report the error
+    }
     // Runs rev-list on the reference and remove the extra newline from the output.
     CommandOutputWithStatus result = gitAllowNonZeroExit(
         NO_INPUT, ImmutableList.of("rev-list", "-1", ref, "--"), DEFAULT_TIMEOUT);
@@ -936,6 +1005,12 @@ public class GitRepository {
     return sha1;
   }
 
+  /** Whether {@code ref} names a single revision, and not a range or an option. */
+  private static boolean isSingleRevision(String ref) {
+    return !ref.isEmpty() && !ref.startsWith("-") && !ref.startsWith("^") && !ref.contains("..")
+        && CharMatcher.whitespace().matchesNoneOf(ref);
+  }
+
   boolean refExists(String ref) throws RepoException {
     try {
       parseRef(ref);
@@ -1082,6 +1157,31 @@ public class GitRepository {
     return simpleCommand(argv.build());
   }
 
+  /**
+   * Like {@link #forceCheckout(String, ImmutableSet)}, but using {@code index} instead of the
+   * repository index, and without updating HEAD. Several work-trees can be checked out
+   * concurrently from the same repository this way, for example from a cached bare repository
+   * shared by several migrations.
+   */
+  public void forceCheckoutWithIndex(Path index, String ref, ImmutableSet<String> checkoutPaths)
+      throws RepoException {
+    ImmutableSet<String> paths = checkoutPaths.stream()
+        .filter(e -> !e.isEmpty())
+        .collect(toImmutableSet());
+    if (paths.isEmpty()) {
+      checkoutWithIndex(index, ref);
+      return;
+    }
+    checkNotNull(workTree, "Checkouts need a work-tree");
+    ImmutableList.Builder<String> argv = ImmutableList.builder();
+    // Checking out paths doesn't update HEAD
+    argv.add("checkout", "-q", "-f", checkNotNull(ref), "--");
+    argv.addAll(paths);
+    new GitRepository(gitDir, workTree, verbose, gitEnv.withIndexFile(index), fetchTimeout,
+        noVerify)
+        .simpleCommand(argv.build());
+  }
+
   /**
    * Set the sparse checkout
    */
@@ -1172,6 +1272,69 @@ public class GitRepository {
     }
   }
 
+  /**
+   * Creates a commit for {@code tree} with {@code parents} and returns its SHA-1. Unlike {@link
+   * #commit}, it doesn't use the index or the work-tree, doesn't run hooks and doesn't update any
+   * reference.
+   *
+   * <p>The message is cleaned up like {@code git commit} does by default.
+   */
+  public String commitTree(String tree, Iterable<String> parents, Author author,
+      ZonedDateTime timestamp, String message) throws RepoException {
+    String cleanMessage = gitWithInput(message.getBytes(StandardCharsets.UTF_8),
+        ImmutableList.of("stripspace")).getStdout();
+    List<String> params = Lists.newArrayList("commit-tree", tree);
+    for (String parent : parents) {
+      params.add("-p");
+      params.add(parent);
+    }
+    params.add("-F");
+    params.add("-");
+    Map<String, String> env = new HashMap<>(gitEnv.getEnvironment());
+    env.put("GIT_AUTHOR_NAME", author.getName());
+    env.put("GIT_AUTHOR_EMAIL", author.getEmail());
+    env.put("GIT_AUTHOR_DATE", timestamp.format(ISO_OFFSET_DATE_TIME_NO_SUBSECONDS));
+    List<String> allParams = new ArrayList<>();
+    allParams.add(gitEnv.resolveGitBinary());
+    allParams.addAll(addGitDirAndWorkTreeParams(params));
+    CommandRunner runner = new CommandRunner(
+        new Command(Iterables.toArray(allParams, String.class), env, getCwd().toFile()))
+        .withVerbose(verbose)
+        .withInput(cleanMessage.getBytes(StandardCharsets.UTF_8));
+    CommandOutputWithStatus output = executeAllowNonZeroExit(runner, params);
+    if (!output.getTerminationStatus().success()) {
+      throw gitError(output, params);
+    }
+    return output.getStdout().trim();
+  }
+
+  /**
+   * Updates the work-tree to {@code ref} with {@code read-tree --reset -u}, using {@code index}
+   * instead of the repository index.
+   *
+   * <p>The work-tree needs to be empty or contain a previous checkout done with the same index.
+   * Only the files that are different in {@code ref}, or that were modified in the work-tree since
+   * the previous checkout, are written.
+   */
+  public void checkoutWithIndex(Path index, String ref) throws RepoException {
+    checkNotNull(workTree, "Incremental checkouts need a work-tree");
+    new GitRepository(gitDir, workTree, verbose, gitEnv.withIndexFile(index), fetchTimeout,
+        noVerify)
+        .simpleCommand("read-tree", "--reset", "-u", ref);
+  }
+
+  /**
+   * Runs git with {@code stdin} as the standard input and fails if the command fails.
+   */
+  CommandOutputWithStatus gitWithInput(byte[] stdin, Iterable<String> params)
+      throws RepoException {
+    CommandOutputWithStatus output = gitAllowNonZeroExit(stdin, params, DEFAULT_TIMEOUT);
+    if (!output.getTerminationStatus().success()) {
+      throw gitError(output, params);
+    }
+    return output;
+  }
+
   /**
    * Check if staging is empty. That means that a commit would fail with EmptyCommitException.
    */
@@ -1278,12 +1441,12 @@ public class GitRepository {
       if (!matcher.matches()) {
         throw new RepoException("Unexpected format for ls-tree output: " + line);
       }
-      // We ignore the mode for now
+      String mode = matcher.group(1);
       GitObjectType objectType = GitObjectType.valueOf(matcher.group(2).toUpperCase());
       String sha1 = matcher.group(3);
       String path = matcher.group(4);
 
-      result.add(new TreeElement(objectType, sha1, path));
+      result.add(new TreeElement(mode, objectType, sha1, path));
     }
     return result.build();
   }
@@ -1350,6 +1513,50 @@ public class GitRepository {
     this.simpleCommand("config", String.format("%s.%s", category, field), value, "--local");
   }
 
+  /**
+   * Makes {@link #fetchSingleRefWithTags} resolve references locally when possible, using {@code
+   * refCache}. See {@link GitRefCache}.
+   */
+  GitRepository withRefCache(GitRefCache refCache) {
+    this.refCache = checkNotNull(refCache);
+    return this;
+  }
+
+  /**
+   * Makes {@link #fetch} coordinate with other processes fetching into this repository. See
+   * {@link GitCacheLock}.
+   */
+  GitRepository withCacheLock(GitCacheLock cacheLock) {
+    this.cacheLock = checkNotNull(cacheLock);
+    return this;
+  }
+
+  /**
+   * Makes {@link #fetch} optimize the repository and evict other cached repositories after
+   * fetching. See {@link GitCacheMaintenance}.
+   */
+  GitRepository withCacheMaintenance(GitCacheMaintenance cacheMaintenance) {
+    this.cacheMaintenance = checkNotNull(cacheMaintenance);
+    return this;
+  }
+
+  /**
+   * Makes {@link #parseRef}, {@link #resolveReference} and {@link #readFile} use {@code session}
+   * instead of starting a git process for each call. See {@link GitObjectSession}.
+   */
+  GitRepository withObjectSession(GitObjectSession session) {
+    this.objectSession = checkNotNull(session);
+    return this;
+  }
+
+  /**
+   * Creates a session that looks up objects in this repository with long-lived git processes.
+   * The caller is responsible for closing it.
+   */
+  public GitObjectSession newObjectSession(Profiler profiler) {
+    return new GitObjectSession(gitDir, gitEnv, profiler);
+  }
+
   public GitRepository enablePartialFetch() {
     try {
       this.simpleCommand("config", "core.repositoryFormatVersion", "1");
@@ -1391,17 +1598,7 @@ public class GitRepository {
       // Use maxLoglines 0 and verbose=false to avoid redirection
       return executeGit(getCwd(), params, gitEnv, /*verbose*/ false, /*maxLoglines*/ 0);
     } catch (BadExitStatusWithOutputException e) {
-      CommandOutputWithStatus output = e.getOutput();
-
-      for (Pattern error : REF_NOT_FOUND_ERRORS) {
-        Matcher matcher = error.matcher(output.getStderr());
-        if (matcher.find()) {
-          throw new RepoException(
-              "Cannot find reference '" + matcher.group(1) + "'");
-        }
-      }
-
-      throw throwUnknownGitError(output, params);
+      throw gitError(e.getOutput(), params);
     } catch (CommandException e) {
       throw new RepoException("Error executing 'git': " + e.getMessage(), e);
     }
@@ -1464,22 +1661,30 @@ public class GitRepository {
     try {
       return executeGit(cwd, params, gitEnv, verbose);
     } catch (BadExitStatusWithOutputException e) {
-      CommandOutputWithStatus output = e.getOutput();
-
-      for (Pattern error : REF_NOT_FOUND_ERRORS) {
-        Matcher matcher = error.matcher(output.getStderr());
-        if (matcher.find()) {
-          throw new RepoException(
-              "Cannot find reference '" + matcher.group(1) + "'");
-        }
-      }
-
-      throw throwUnknownGitError(output, params);
+      throw gitError(e.getOutput(), params);
     } catch (CommandException e) {
       throw new RepoException("Error executing 'git': " + e.getMessage(), e);
     }
   }
 
+  /**
+   * Returns the exception to throw for a git command that failed with {@code output}.
+   */
+  RepoException gitError(CommandOutputWithStatus output, Iterable<String> params) {
+    for (Pattern error : REF_NOT_FOUND_ERRORS) {
+      Matcher matcher = error.matcher(output.getStderr());
+      if (matcher.find()) {
+        return new RepoException(
+            "Cannot find reference '" + matcher.group(1) + "'");
+      }
+    }
+    try {
+      return throwUnknownGitError(output, params);
+    } catch (RepoException e) {
+      return e;
+    }
+  }
+
   private RepoException throwUnknownGitError(
       CommandOutputWithStatus output, Iterable<String> params) throws RepoException {
     throw new RepoException(
@@ -1498,19 +1703,36 @@ public class GitRepository {
   protected CommandOutputWithStatus gitAllowNonZeroExit(byte[] stdin, Iterable<String> params,
       Duration defaultTimeout)
       throws RepoException {
+    return executeAllowNonZeroExit(gitRunner(stdin, params, defaultTimeout), params);
+  }
+
+  /**
+   * Creates a {@link CommandRunner} for running git with {@code params} in this repository. Can be
+   * customized before executing it with {@link #executeAllowNonZeroExit}. For example to stream the
+   * output instead of accumulating it in memory.
+   */
+  CommandRunner gitRunner(byte[] stdin, Iterable<String> params, Duration timeout) {
+    List<String> allParams = new ArrayList<>();
+    allParams.add(gitEnv.resolveGitBinary());
+    allParams.addAll(addGitDirAndWorkTreeParams(params));
+    Command cmd =
+        new Command(
+            Iterables.toArray(allParams, String.class),
+            gitEnv.getEnvironment(),
+            getCwd().toFile());
+    return new CommandRunner(cmd, timeout)
+        .withVerbose(verbose)
+        .withInput(stdin);
+  }
+
+  /**
+   * Executes a runner created by {@link #gitRunner} with the same semantics as
+   * {@link #gitAllowNonZeroExit(byte[], Iterable, Duration)}.
+   */
+  CommandOutputWithStatus executeAllowNonZeroExit(CommandRunner runner, Iterable<String> params)
+      throws RepoException {
     try {
-      List<String> allParams = new ArrayList<>();
-      allParams.add(gitEnv.resolveGitBinary());
-      allParams.addAll(addGitDirAndWorkTreeParams(params));
-      Command cmd =
-          new Command(
-              Iterables.toArray(allParams, String.class),
-              gitEnv.getEnvironment(),
-              getCwd().toFile());
-      return new CommandRunner(cmd, defaultTimeout)
-          .withVerbose(verbose)
-          .withInput(stdin)
-          .execute();
+      return runner.execute();
     } catch (BadExitStatusWithOutputException e) {
       CommandOutputWithStatus output = e.getOutput();
       int exitCode = e.getOutput().getTerminationStatus().getExitCode();
@@ -1596,6 +1818,9 @@ public class GitRepository {
    * Checks if a SHA-1 object exist in the repository
    */
   private boolean checkSha1Exists(String reference) throws RepoException {
+    if (objectSession != null) {
+      return objectSession.lookup(reference) != null;
+    }
     ImmutableList<String> params = ImmutableList.of("cat-file", "-e", reference);
     CommandOutputWithStatus output = gitAllowNonZeroExit(NO_INPUT, params,
         DEFAULT_TIMEOUT);
@@ -1612,6 +1837,14 @@ public class GitRepository {
    * Resolves a git reference to the SHA-1 reference
    */
   public String readFile(String revision, String path) throws RepoException {
+    if (objectSession != null && path.indexOf('\n') == -1) {
+      GitObjectSession.ObjectInfo file =
+          objectSession.read(String.format("%s:%s", revision, path));
+      if (file != null && file.getType() == GitObjectType.BLOB) {
+        return new String(file.getContent(), StandardCharsets.UTF_8);
+      }
+      // 'git show' prints the other objects or fails
+    }
     CommandOutputWithStatus result = gitAllowNonZeroExit(NO_INPUT,
         ImmutableList.of("--no-pager", "show", String.format("%s:%s", revision, path)),
         DEFAULT_TIMEOUT);
@@ -1621,21 +1854,53 @@ public class GitRepository {
     return result.getStdout();
   }
 
+  /**
+   * Writes the files in {@code rev} that match {@code glob} into {@code destRoot}.
+   *
+   * <p>All the blobs are read by a single 'git cat-file --batch' process and streamed directly to
+   * disk. The executable bit and symlinks are preserved. Submodules are skipped.
+   */
   public void checkout(Glob glob, Path destRoot, GitRevision rev) throws RepoException {
     ImmutableList<TreeElement> treeElements = lsTree(rev, null, true, true);
     PathMatcher pathMatcher = glob.relativeTo(destRoot);
+    List<TreeElement> files = new ArrayList<>();
+    StringBuilder stdin = new StringBuilder();
     for (TreeElement file : treeElements) {
-      Path path = destRoot.resolve(file.getPath());
-      if (pathMatcher.matches(path)) {
-        try {
-          Files.write(
-              path, readFile(rev.getSha1(), file.getPath()).getBytes(StandardCharsets.UTF_8));
-        } catch (IOException e) {
-          throw new RepoException(String
-              .format("Cannot write '%s' from reference '%s' into '%s'", file.getPath(), rev,
-                  path), e);
+      if (file.getType() == GitObjectType.BLOB
+          && pathMatcher.matches(destRoot.resolve(file.getPath()))) {
+        files.add(file);
+        stdin.append(file.getRef()).append('\n');
+      }
+    }
+    if (files.isEmpty()) {
+      return;
+    }
+    ImmutableList<String> params = ImmutableList.of("cat-file", "--batch");
+    CommandOutputWithStatus output;
+    try (CatFileBatchWriter writer = new CatFileBatchWriter(destRoot, files)) {
+      try {
+        output = executeAllowNonZeroExit(
+            gitRunner(stdin.toString().getBytes(StandardCharsets.UTF_8), params, DEFAULT_TIMEOUT)
+                .withStdOutStream(writer),
+            params);
+      } catch (RepoException e) {
+        if (writer.getFailure() != null) {
+          throw new RepoException(String.format("Cannot write files from reference '%s' into '%s'",
+              rev.getSha1(), destRoot), writer.getFailure());
         }
+        throw e;
+      }
+      if (!output.getTerminationStatus().success()) {
+        throw throwUnknownGitError(output, params);
+      }
+      if (!writer.isComplete()) {
+        throw new RepoException(String.format(
+            "'git cat-file --batch' didn't return all the files for reference '%s'",
+            rev.getSha1()));
       }
+    } catch (IOException e) {
+      throw new RepoException(
+          String.format("Cannot write files from reference '%s' into '%s'", rev, destRoot), e);
     }
   }
 
@@ -1654,7 +1919,7 @@ public class GitRepository {
   /**
    * Creates a reference from a complete SHA-1 string without any validation that it exists.
    */
-  private GitRevision createReferenceFromCompleteSha1(String ref) {
+  GitRevision createReferenceFromCompleteSha1(String ref) {
     return new GitRevision(this, ref);
   }
 
@@ -1720,16 +1985,34 @@ public class GitRepository {
 
   static class TreeElement {
 
+    private static final String EXECUTABLE_MODE = "100755";
+    private static final String SYMLINK_MODE = "120000";
+
+    private final String mode;
     private final GitObjectType type;
     private final String ref;
     private final String path;
 
-    private TreeElement(GitObjectType type, String ref, String path) {
+    private TreeElement(String mode, GitObjectType type, String ref, String path) {
+      this.mode = checkNotNull(mode);
       this.type = checkNotNull(type);
       this.ref = checkNotNull(ref);
       this.path = checkNotNull(path);
     }
 
+    /** Git file mode, for example '100644' for regular files. */
+    String getMode() {
+      return mode;
+    }
+
+    boolean isExecutable() {
+      return mode.equals(EXECUTABLE_MODE);
+    }
+
+    boolean isSymlink() {
+      return mode.equals(SYMLINK_MODE);
+    }
+
     GitObjectType getType() {
       return type;
     }
@@ -1745,6 +2028,7 @@ public class GitRepository {
     @Override
     public String toString() {
       return MoreObjects.toStringHelper(this)
+          .add("mode", mode)
           .add("type", type)
           .add("ref", ref)
           .add("file", path)
@@ -1940,18 +2224,17 @@ public class GitRepository {
    */
   public static class LogCmd {
 
-    private static final String COMMIT_FIELD = "commit";
-    private static final String PARENTS_FIELD = "parents";
-    private static final String TREE_FIELD = "tree";
-    private static final String AUTHOR_FIELD = "author";
-    private static final String AUTHOR_DATE_FIELD = "author_date";
-    private static final String COMMITTER_FIELD = "committer";
-    private static final String COMMITTER_DATE = "committer_date";
-    private static final String BEGIN_BODY = "begin_body";
-    private static final String END_BODY = "end_body";
-    private static final String COMMIT_SEPARATOR = "\u0001copybara\u0001";
-    private static final Pattern UNINDENT = Pattern.compile("\n    ");
-    private static final String GROUP = "--\n";
+    static final String COMMIT_FIELD = "commit";
+    static final String PARENTS_FIELD = "parents";
+    static final String TREE_FIELD = "tree";
+    static final String AUTHOR_FIELD = "author";
+    static final String AUTHOR_DATE_FIELD = "author_date";
+    static final String COMMITTER_FIELD = "committer";
+    static final String COMMITTER_DATE = "committer_date";
+    static final String BEGIN_BODY = "begin_body";
+    static final String END_BODY = "end_body";
+    static final String COMMIT_SEPARATOR = "\u0001copybara\u0001";
+    static final String GROUP = "--\n";
     private final int limit;
     private final ImmutableCollection<String> paths;
     private final String refExpr;
@@ -2073,6 +2356,56 @@ public class GitRepository {
      * Run 'git log' and returns zero or more {@link GitLogEntry}.
      */
     public ImmutableList<GitLogEntry> run() throws RepoException {
+      List<String> cmd = createArgs();
+      logger.atInfo().log("Executing: %s", cmd);
+      // Avoid logging since git log can return LOT of entries.
+      CommandOutput output = limit > 0 && limit < 10
+          ? repo.simpleCommand(cmd)
+          : repo.simpleCommandNoRedirectOutput(cmd.toArray(new String[0]));
+      ImmutableList<GitLogEntry> res = newParser().parseAll(output.getStdoutBytes());
+      logger.atInfo().log("Log command returned %s entries", res.size());
+      if (!res.isEmpty()) {
+        logger.atInfo().log("First commit: %s", res.get(0));
+        logger.atInfo().log("Last commit: %s", Iterables.getLast(res));
+      }
+      return res;
+    }
+
+    /**
+     * Run 'git log' and call {@code visitor} for each {@link GitLogEntry} as soon as it is read
+     * from the git output, instead of waiting for the command to finish and keeping all the
+     * output in memory.
+     *
+     * <p>If the visitor returns {@link VisitResult#TERMINATE}, the git process is killed and no
+     * more entries are read.
+     *
+     * @param readAhead max number of entries parsed but not yet visited
+     * @return the number of entries visited
+     */
+    public int visit(LogVisitor visitor, int readAhead)
+        throws RepoException, ValidationException {
+      List<String> cmd = createArgs();
+      logger.atInfo().log("Executing (streaming): %s", cmd);
+      int count = 0;
+      GitLogParser parser = newParser();
+      try (GitLogStream stream = new GitLogStream(repo, cmd, parser::parse, readAhead)) {
+        GitLogEntry entry;
+        while ((entry = stream.next()) != null) {
+          count++;
+          if (visitor.visit(entry) == VisitResult.TERMINATE) {
+            break;
+          }
+        }
+      }
+      logger.atInfo().log("Visited %s entries", count);
+      return count;
+    }
+
+    private GitLogParser newParser() {
+      return new GitLogParser(repo, includeBody, includeStat);
+    }
+
+    private List<String> createArgs() {
       List<String> cmd = Lists.newArrayList("log", "--no-color", createFormat(includeBody));
 
       if (limit > 0) {
@@ -2111,91 +2444,7 @@ public class GitRepository {
         cmd.add("--");
         cmd.addAll(paths);
       }
-      logger.atInfo().log("Executing: %s", cmd);
-      // Avoid logging since git log can return LOT of entries.
-      CommandOutput output = limit > 0 && limit < 10
-          ? repo.simpleCommand(cmd)
-          : repo.simpleCommandNoRedirectOutput(cmd.toArray(new String[0]));
-      ImmutableList<GitLogEntry> res = parseLog(output.getStdout(), includeBody);
-      logger.atInfo().log("Log command returned %s entries", res.size());
-      if (!res.isEmpty()) {
-        logger.atInfo().log("First commit: %s", res.get(0));
-        logger.atInfo().log("Last commit: %s", Iterables.getLast(res));
-      }
-      return res;
-    }
-
-    private ImmutableList<GitLogEntry> parseLog(String log, boolean includeBody)
-        throws RepoException {
-      // No changes. We cannot know until we run git log since fromRef can be null (HEAD)
-      if (log.isEmpty()) {
-        return ImmutableList.of();
-      }
-
-      ImmutableList.Builder<GitLogEntry> commits = ImmutableList.builder();
-      for (String msg : Splitter.on("\0" + COMMIT_SEPARATOR).
-          split(log.substring(COMMIT_SEPARATOR.length()))) {
-
-        List<String> groups = Splitter.on("\n" + GROUP).splitToList(msg);
-
-        Map<String, String> fields = Splitter.on("\n")
-            .withKeyValueSeparator(Splitter.on("=").limit(2))
-            .split(groups.get(0));
-
-        String body = null;
-        if (includeBody) {
-          body = UNINDENT.matcher(groups.get(1)).replaceAll("\n");
-          body = body.substring(BEGIN_BODY.length() + 1, body.length() - END_BODY.length() - 1);
-          // Copybara assumes \n as a separator in many places.
-          body = body.replace("\r\n", "\n");
-        }
-
-        ImmutableSet<String> files = null;
-        if (includeStat) {
-          String fileString = groups.get(2);
-          if (fileString.startsWith("\0\n")) {
-            fileString = fileString.substring(2);
-          }
-          files = ImmutableSet.copyOf(Splitter.on("\0").omitEmptyStrings().split(fileString));
-        }
-        ImmutableList.Builder<GitRevision> parents = ImmutableList.builder();
-        for (String parent : Splitter.on(" ").omitEmptyStrings()
-            .split(getField(fields, PARENTS_FIELD))) {
-          parents.add(repo.createReferenceFromCompleteSha1(parent));
-        }
-
-        String tree = getField(fields, TREE_FIELD);
-        String commit = getField(fields, COMMIT_FIELD);
-        try {
-          commits.add(new GitLogEntry(
-              repo.createReferenceFromCompleteSha1(commit), parents.build(),
-              tree,
-              AuthorParser.parse(getField(fields, AUTHOR_FIELD)),
-              AuthorParser.parse(getField(fields, COMMITTER_FIELD)),
-              tryParseDate(fields, AUTHOR_DATE_FIELD, commit),
-              tryParseDate(fields, COMMITTER_DATE, commit),
-              body, files));
-        } catch (InvalidAuthorException e) {
-          throw new RepoException("Error in commit '" + commit + "'. Invalid author.", e);
-        }
-      }
-      return commits.build();
-    }
-
-    private ZonedDateTime tryParseDate(Map<String, String> fields, String dateField,
-        String commit) {
-      String value = getField(fields, dateField);
-      try {
-        return ZonedDateTime.parse(value);
-      } catch (DateTimeParseException e) {
-        logger.atSevere().log("Cannot parse date '%s' for commit %s. Using epoch time instead",
-            value, commit);
-        return ZonedDateTime.ofInstant(Instant.EPOCH, ZoneOffset.UTC);
-      }
-    }
-
-    private String getField(Map<String, String> fields, String field) {
-      return checkNotNull(fields.get(field), "%s not present", field);
+      return cmd;
     }
 
     /**
@@ -2221,6 +2470,18 @@ public class GitRepository {
     }
   }
 
+  /**
+   * A visitor of {@link GitLogEntry} for {@link LogCmd#visit}.
+   */
+  public interface LogVisitor {
+
+    /**
+     * Invoked for each entry in the log, in 'git log' order. The implementation can stop the
+     * visitation by returning {@link VisitResult#TERMINATE}.
+     */
+    VisitResult visit(GitLogEntry entry) throws RepoException, ValidationException;
+  }
+
   /**
    * An object that represent a commit as returned by 'git log'.
    */
@@ -17,7 +17,6 @@
 package com.google.copybara.git;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
 import com.google.copybara.ChangeVisitable.ChangesVisitor;
 import com.google.copybara.ChangeVisitable.VisitResult;
 import com.google.copybara.GeneralOptions;
@@ -25,14 +24,20 @@ import com.google.copybara.exception.CannotResolveRevisionException;
 import com.google.copybara.exception.RepoException;
 import com.google.copybara.exception.ValidationException;
 import com.google.copybara.profiler.Profiler.ProfilerTask;
-import com.google.copybara.revision.Change;
+import java.util.concurrent.TimeUnit;
 
 /** Utility methods for visiting Git repos. */
 public class GitVisitorUtil {
 
   private GitVisitorUtil() {}
 
-  /** Visits */
+  /**
+   * Visits the changes reachable from {@code start}, from newest to oldest.
+   *
+   * <p>Uses a single 'git log' command whose output is parsed incrementally. At most {@code
+   * visitChangePageSize} changes are read ahead of the visitor, and git is stopped as soon as
+   * the visitor returns {@link VisitResult#TERMINATE}.
+   */
   static void visitChanges(
       GitRevision start,
       ChangesVisitor visitor,
@@ -42,34 +47,17 @@ public class GitVisitorUtil {
       int visitChangePageSize)
       throws RepoException, ValidationException {
     Preconditions.checkNotNull(start);
-    int skip = 0;
-    boolean finished = false;
+    int visited;
     try (ProfilerTask ignore = generalOptions.profiler().start(type + "/visit_changes")) {
-      while (!finished) {
-        ImmutableList<Change<GitRevision>> result;
-        try (ProfilerTask ignore2 =
-            generalOptions.profiler().start("git_log_" + skip + "_" + visitChangePageSize)) {
-          result =
-              queryChanges
-                  .setSkip(skip)
-                  .setLimit(visitChangePageSize)
-                  .build()
-                  .run(start.getSha1())
-                  .reverse();
-        }
-        if (result.isEmpty()) {
-          break;
-        }
-        skip += result.size();
-        for (Change<GitRevision> current : result) {
-          if (visitor.visit(current) == VisitResult.TERMINATE) {
-            finished = true;
-            break;
-          }
-        }
-      }
+      long startNanos = System.nanoTime();
+      visited = queryChanges.build().visit(start.getSha1(), visitor, visitChangePageSize);
+      long endNanos = System.nanoTime();
+      long perSecond = visited * TimeUnit.SECONDS.toNanos(1) / Math.max(1, endNanos - startNanos);
+      generalOptions.profiler().simpleTask(
+          String.format("git_log_%d_commits_%d_per_second", visited, perSecond),
+          startNanos, endNanos);
     }
-    if (skip == 0) {
+    if (visited == 0) {
       throw new CannotResolveRevisionException("Cannot resolve reference " + start.getSha1());
     }
   }
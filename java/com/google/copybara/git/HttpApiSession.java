@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.copybara.exception.RepoException;
+import com.google.copybara.exception.ValidationException;
+import com.google.copybara.git.GitCredential.UserPassword;
+import com.google.copybara.profiler.Profiler;
+import com.google.copybara.profiler.Profiler.ProfilerTask;
+import com.google.re2j.Pattern;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * State shared by the HTTP API transports (GitHub, Gerrit) during a Copybara run.
+ *
+ * <p>Resolving credentials forks {@code git credential fill}, so the result for each url is
+ * resolved once and reused by all the requests. All the transports use the same {@link
+ * HttpTransport}, so connections to the same host are kept alive and reused between requests.
+ */
+public final class HttpApiSession {
+
+  // Path segments that identify a particular object (PR numbers, SHA-1s, Gerrit change ids), and
+  // that are not part of the endpoint for profiling purposes.
+  private static final Pattern OBJECT_ID = Pattern.compile("[0-9]+|I?[0-9a-fA-F]{40}|.*~.*");
+
+  private final GitRepository credentialsRepo;
+  private final HttpTransport httpTransport;
+  private final Profiler profiler;
+  private final Map<String, Credentials> credentials = new HashMap<>();
+
+  public HttpApiSession(GitRepository credentialsRepo, HttpTransport httpTransport,
+      Profiler profiler) {
+    this.credentialsRepo = checkNotNull(credentialsRepo);
+    this.httpTransport = checkNotNull(httpTransport);
+    this.profiler = checkNotNull(profiler);
+  }
+
+  /** Creates a request factory that uses the shared transport. */
+  public HttpRequestFactory createRequestFactory(HttpRequestInitializer initializer) {
+    return httpTransport.createRequestFactory(initializer);
+  }
+
+  /**
+   * Returns the credentials for {@code url} from the git credential helper. The helper is only
+   * invoked the first time that a url is requested.
+   *
+   * @throws ValidationException if the credential helper doesn't have credentials for the url
+   */
+  public synchronized UserPassword credentialFill(String url)
+      throws RepoException, ValidationException {
+    Credentials cached = credentials.get(url);
+    if (cached == null) {
+      try {
+        cached = new Credentials(credentialsRepo.credentialFill(url), /*notFound=*/ null);
+      } catch (ValidationException e) {
+        cached = new Credentials(/*userPassword=*/ null, e);
+      }
+      // RepoExceptions are not cached, since they might be transient errors.
+      credentials.put(url, cached);
+    }
+    if (cached.notFound != null) {
+      throw new ValidationException(cached.notFound.getMessage(), cached.notFound);
+    }
+    return cached.userPassword;
+  }
+
+  /**
+   * Starts a profiler task for a request, so that the latency is recorded per endpoint. Object
+   * ids in {@code path} are replaced by '*' so that requests to the same endpoint are grouped.
+   */
+  public ProfilerTask profileRequest(String method, String path) {
+    return profiler.start(method + " " + endpoint(path));
+  }
+
+  @VisibleForTesting
+  static String endpoint(String path) {
+    int query = path.indexOf('?');
+    if (query != -1) {
+      path = path.substring(0, query);
+    }
+    List<String> segments = new ArrayList<>();
+    for (String segment : Splitter.on('/').split(path)) {
+      segments.add(OBJECT_ID.matcher(segment).matches() ? "*" : segment);
+    }
+    return Joiner.on('/').join(segments);
+  }
+
+  private static final class Credentials {
+
+    @Nullable private final UserPassword userPassword;
+    @Nullable private final ValidationException notFound;
+
+    private Credentials(@Nullable UserPassword userPassword,
+        @Nullable ValidationException notFound) {
+      this.userPassword = userPassword;
+      this.notFound = notFound;
+    }
+  }
+}
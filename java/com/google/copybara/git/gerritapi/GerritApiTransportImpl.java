@@ -28,10 +28,14 @@ import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.JsonObjectParser;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
 import com.google.copybara.exception.RepoException;
 import com.google.copybara.exception.ValidationException;
 import com.google.copybara.git.GitCredential.UserPassword;
 import com.google.copybara.git.GitRepository;
+import com.google.copybara.git.HttpApiSession;
+import com.google.copybara.profiler.Profiler;
+import com.google.copybara.profiler.Profiler.ProfilerTask;
 
 import java.io.IOException;
 import java.lang.reflect.Type;
@@ -48,24 +52,32 @@ public class GerritApiTransportImpl implements GerritApiTransport {
 
   private static final JsonFactory JSON_FACTORY = new GsonFactory();
 
-  private final GitRepository repo;
+  private final HttpApiSession session;
   private final URI uri;
-  private final HttpTransport httpTransport;
+  private final HttpRequestFactory requestFactory;
 
   public GerritApiTransportImpl(GitRepository repo, URI uri, HttpTransport httpTransport) {
-    this.repo = repo;
+    this(new HttpApiSession(repo, httpTransport, new Profiler(Ticker.systemTicker())), uri);
+  }
+
+  public GerritApiTransportImpl(HttpApiSession session, URI uri) {
+    this.session = Preconditions.checkNotNull(session);
     this.uri = Preconditions.checkNotNull(uri);
-    this.httpTransport = Preconditions.checkNotNull(httpTransport);
+    this.requestFactory = session.createRequestFactory(
+        request -> {
+          request.setConnectTimeout((int) Duration.ofMinutes(1).toMillis());
+          request.setReadTimeout((int) Duration.ofMinutes(1).toMillis());
+          request.setParser(new JsonObjectParser(JSON_FACTORY));
+        });
   }
 
   @Override
   public <T> T get(String path, Type responseType)
       throws RepoException, ValidationException {
-    HttpRequestFactory requestFactory = getHttpRequestFactory(
-        getCredentialsIfPresent(uri.toString()));
+    HttpHeaders headers = getHttpHeaders(getCredentialsIfPresent(uri.toString()));
     GenericUrl url = getUrl(path);
-    try {
-      return execute(responseType, requestFactory.buildGetRequest(url));
+    try (ProfilerTask ignore = session.profileRequest("GET", path)) {
+      return execute(responseType, requestFactory.buildGetRequest(url).setHeaders(headers));
     } catch (IOException e) {
       throw new RepoException("Error running Gerrit API operation " + url, e);
     }
@@ -74,11 +86,11 @@ public class GerritApiTransportImpl implements GerritApiTransport {
   @Override
   public <T> T post(String path, Object request, Type responseType)
       throws RepoException, ValidationException {
-    HttpRequestFactory requestFactory = getHttpRequestFactory(getCredentials(uri.toString()));
+    HttpHeaders headers = getHttpHeaders(getCredentials(uri.toString()));
     GenericUrl url = getUrl(path);
-    try {
+    try (ProfilerTask ignore = session.profileRequest("POST", path)) {
       return execute(responseType, requestFactory.buildPostRequest(
-          url, new JsonHttpContent(JSON_FACTORY, request)));
+          url, new JsonHttpContent(JSON_FACTORY, request)).setHeaders(headers));
     } catch (IOException e) {
       throw new RepoException("Error running Gerrit API operation " + url, e);
     }
@@ -87,11 +99,11 @@ public class GerritApiTransportImpl implements GerritApiTransport {
   @Override
   public <T> T put(String path, Object request, Type responseType)
       throws RepoException, ValidationException {
-    HttpRequestFactory requestFactory = getHttpRequestFactory(getCredentials(uri.toString()));
+    HttpHeaders headers = getHttpHeaders(getCredentials(uri.toString()));
     GenericUrl url = getUrl(path);
-    try {
+    try (ProfilerTask ignore = session.profileRequest("PUT", path)) {
       return execute(responseType, requestFactory.buildPutRequest(
-          url, new JsonHttpContent(JSON_FACTORY, request)));
+          url, new JsonHttpContent(JSON_FACTORY, request)).setHeaders(headers));
     } catch (IOException e) {
       throw new RepoException("Error running Gerrit API operation " + url, e);
     }
@@ -125,20 +137,13 @@ public class GerritApiTransportImpl implements GerritApiTransport {
   /**
    * TODO(malcon): Consolidate GitHub and this one in one class
    */
-  private HttpRequestFactory getHttpRequestFactory(@Nullable UserPassword userPassword)
-      throws RepoException, ValidationException {
-    return httpTransport.createRequestFactory(
-        request -> {
-          request.setConnectTimeout((int) Duration.ofMinutes(1).toMillis());
-          request.setReadTimeout((int) Duration.ofMinutes(1).toMillis());
-          HttpHeaders httpHeaders = new HttpHeaders();
-          if (userPassword != null) {
-            httpHeaders.setBasicAuthentication(userPassword.getUsername(),
-                                               userPassword.getPassword_BeCareful());
-          }
-          request.setHeaders(httpHeaders);
-          request.setParser(new JsonObjectParser(JSON_FACTORY));
-        });
+  private static HttpHeaders getHttpHeaders(@Nullable UserPassword userPassword) {
+    HttpHeaders httpHeaders = new HttpHeaders();
+    if (userPassword != null) {
+      httpHeaders.setBasicAuthentication(userPassword.getUsername(),
+                                         userPassword.getPassword_BeCareful());
+    }
+    return httpHeaders;
   }
 
   /**
@@ -164,7 +169,7 @@ public class GerritApiTransportImpl implements GerritApiTransport {
    */
   private UserPassword getCredentials(String url) throws ValidationException, RepoException {
     try {
-      return repo.credentialFill(url);
+      return session.credentialFill(url);
     } catch (ValidationException e) {
       throw new ValidationException(
           String.format("Cannot get credentials for host %s, from credentials helper", url), e);
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git.github.api;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.hash.Hashing;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * On-disk cache of GitHub API GET responses, revalidated with conditional requests.
+ *
+ * <p>Responses are stored together with their ETag and Last-Modified headers. When the same
+ * request is done again, these are sent as If-None-Match and If-Modified-Since, and if GitHub
+ * answers 304 Not Modified the stored body is used. 304 responses don't count against the rate
+ * limit.
+ *
+ * <p>The cache is bounded: when it grows over the maximum size, the least recently used entries
+ * are deleted.
+ */
+public final class GitHubApiCache {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final int VERSION = 1;
+  private static final String SUFFIX = ".response";
+
+  private final Path dir;
+  private final long maxBytes;
+
+  // Lazily computed, since it requires listing the directory
+  private long totalBytes = -1;
+  private long hits;
+  private long misses;
+
+  /**
+   * @param dir directory where the responses are stored
+   * @param maxBytes maximum size of the stored responses
+   */
+  public GitHubApiCache(Path dir, long maxBytes) {
+    checkArgument(maxBytes > 0, "maxBytes should be positive: %s", maxBytes);
+    this.dir = checkNotNull(dir);
+    this.maxBytes = maxBytes;
+  }
+
+  /** Returns the stored response for {@code key} or null if there is none. */
+  @Nullable
+  synchronized Entry get(String key) {
+    Path file = file(key);
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != VERSION || !in.readUTF().equals(key)) {
+        return null;
+      }
+      String etag = in.readUTF();
+      String lastModified = in.readUTF();
+      String link = in.readUTF();
+      byte[] body = new byte[in.readInt()];
+      in.readFully(body);
+      return new Entry(
+          emptyToNull(etag), emptyToNull(lastModified), emptyToNull(link), body);
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Ignoring invalid GitHub API cache entry %s", file);
+      return null;
+    }
+  }
+
+  /** Records that the response stored for {@code key} was still valid. */
+  synchronized void hit(String key) {
+    hits++;
+    try {
+      // Keep the least recently used order for eviction
+      Files.setLastModifiedTime(file(key), FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot update GitHub API cache entry for %s", key);
+    }
+  }
+
+  /**
+   * Records that {@code key} had to be downloaded and stores the response if it can be
+   * revalidated later.
+   */
+  synchronized void miss(String key, @Nullable Entry entry) {
+    misses++;
+    if (entry == null || (entry.etag == null && entry.lastModified == null)) {
+      return;
+    }
+    try {
+      put(key, entry);
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot store GitHub API cache entry for %s", key);
+    }
+  }
+
+  /** Number of responses served from the cache since it was created. */
+  public synchronized long hits() {
+    return hits;
+  }
+
+  /** Number of responses that had to be downloaded since the cache was created. */
+  public synchronized long misses() {
+    return misses;
+  }
+
+  /** Ratio of requests served from the cache, or 0 if there were no requests. */
+  public synchronized double hitRatio() {
+    return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("hits=%d, misses=%d, hit ratio=%.2f", hits, misses, hitRatio());
+  }
+
+  private void put(String key, Entry entry) throws IOException {
+    Path file = file(key);
+    long previousTotal = totalBytes();
+    long previousSize = Files.exists(file) ? Files.size(file) : 0;
+    Path temp = Files.createTempFile(dir, "entry", ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        out.writeInt(VERSION);
+        out.writeUTF(key);
+        out.writeUTF(Strings.nullToEmpty(entry.etag));
+        out.writeUTF(Strings.nullToEmpty(entry.lastModified));
+        out.writeUTF(Strings.nullToEmpty(entry.link));
+        out.writeInt(entry.body.length);
+        out.write(entry.body);
+      }
+      long size = Files.size(temp);
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      totalBytes = previousTotal - previousSize + size;
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    if (totalBytes > maxBytes) {
+      evict();
+    }
+  }
+
+  private long totalBytes() throws IOException {
+    if (totalBytes < 0) {
+      totalBytes = 0;
+      for (StoredFile file : listFiles()) {
+        totalBytes += file.attributes.size();
+      }
+    }
+    return totalBytes;
+  }
+
+  /** Deletes the least recently used entries until the cache uses 90% of the maximum size. */
+  private void evict() throws IOException {
+    List<StoredFile> files = listFiles();
+    files.sort(Comparator.comparing(f -> f.attributes.lastModifiedTime()));
+    long target = maxBytes / 10 * 9;
+    totalBytes = 0;
+    for (StoredFile file : files) {
+      totalBytes += file.attributes.size();
+    }
+    for (StoredFile file : files) {
+      if (totalBytes <= target) {
+        break;
+      }
+      if (Files.deleteIfExists(file.path)) {
+        totalBytes -= file.attributes.size();
+      }
+    }
+  }
+
+  private List<StoredFile> listFiles() throws IOException {
+    List<StoredFile> result = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+      for (Path path : stream) {
+        try {
+          result.add(new StoredFile(path, Files.readAttributes(path, BasicFileAttributes.class)));
+        } catch (NoSuchFileException e) {
+          // Deleted concurrently
+        }
+      }
+    }
+    return result;
+  }
+
+  @VisibleForTesting
+  Path file(String key) {
+    return dir.resolve(Hashing.sha256().hashString(key, UTF_8) + SUFFIX);
+  }
+
+  @Nullable
+  private static String emptyToNull(String value) {
+    return value.isEmpty() ? null : value;
+  }
+
+  /** A stored response. */
+  static final class Entry {
+
+    @Nullable private final String etag;
+    @Nullable private final String lastModified;
+    @Nullable private final String link;
+    private final byte[] body;
+
+    Entry(@Nullable String etag, @Nullable String lastModified, @Nullable String link,
+        byte[] body) {
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.link = link;
+      this.body = checkNotNull(body);
+    }
+
+    /** Adds the headers that make a request conditional on the response having changed. */
+    void addConditionalHeaders(HttpHeaders headers) {
+      if (etag != null) {
+        headers.setIfNoneMatch(etag);
+      }
+      if (lastModified != null) {
+        headers.setIfModifiedSince(lastModified);
+      }
+    }
+
+    @Nullable
+    String getLink() {
+      return link;
+    }
+
+    byte[] getBody() {
+      return body;
+    }
+  }
+
+  private static final class StoredFile {
+
+    private final Path path;
+    private final BasicFileAttributes attributes;
+
+    private StoredFile(Path path, BasicFileAttributes attributes) {
+      this.path = path;
+      this.attributes = attributes;
+    }
+  }
+}
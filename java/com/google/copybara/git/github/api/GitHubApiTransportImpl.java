@@ -16,27 +16,37 @@
 
 package com.google.copybara.git.github.api;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.json.JsonHttpContent;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.JsonObjectParser;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.Iterables;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.io.ByteStreams;
 import com.google.copybara.exception.RepoException;
 import com.google.copybara.exception.ValidationException;
 import com.google.copybara.git.GitCredential.UserPassword;
 import com.google.copybara.git.GitRepository;
+import com.google.copybara.git.HttpApiSession;
+import com.google.copybara.profiler.Profiler;
+import com.google.copybara.profiler.Profiler.ProfilerTask;
 import com.google.copybara.util.console.Console;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Type;
 import java.net.URI;
 import java.time.Duration;
@@ -58,15 +68,36 @@ public class GitHubApiTransportImpl implements GitHubApiTransport {
   private static final String API_PREFIX = API_URL + "/";
   private static final String GITHUB_WEB_URL = "https://github.com";
 
-  private final GitRepository repo;
-  private final HttpTransport httpTransport;
+  private final HttpApiSession session;
+  private final HttpRequestFactory requestFactory;
+  @Nullable private final GitHubApiCache cache;
   private final String storePath;
   private final Console console;
 
   public GitHubApiTransportImpl(GitRepository repo, HttpTransport httpTransport,
       String storePath, Console console) {
-    this.repo = Preconditions.checkNotNull(repo);
-    this.httpTransport = Preconditions.checkNotNull(httpTransport);
+    this(new HttpApiSession(repo, httpTransport, new Profiler(Ticker.systemTicker())), storePath,
+        console);
+  }
+
+  public GitHubApiTransportImpl(HttpApiSession session, String storePath, Console console) {
+    this(session, /*cache=*/ null, storePath, console);
+  }
+
+  /**
+   * @param cache if not null, GET responses are stored in the cache and revalidated with
+   *     conditional requests
+   */
+  public GitHubApiTransportImpl(HttpApiSession session, @Nullable GitHubApiCache cache,
+      String storePath, Console console) {
+    this.session = Preconditions.checkNotNull(session);
+    this.cache = cache;
+    this.requestFactory = session.createRequestFactory(
+        request -> {
+          request.setConnectTimeout((int) Duration.ofMinutes(1).toMillis());
+          request.setReadTimeout((int) Duration.ofMinutes(1).toMillis());
+          request.setParser(new JsonObjectParser(JSON_FACTORY));
+        });
     this.storePath = storePath;
     this.console = Preconditions.checkNotNull(console);
   }
@@ -75,11 +106,15 @@ public class GitHubApiTransportImpl implements GitHubApiTransport {
   @Override
   public <T> T get(String path, Type responseType, ImmutableListMultimap<String, String> headers)
       throws RepoException, ValidationException {
-    HttpRequestFactory requestFactory = getHttpRequestFactory(getCredentialsIfPresent(), headers);
+    UserPassword userPassword = getCredentialsIfPresent();
+    HttpHeaders httpHeaders = getHttpHeaders(userPassword, headers);
     GenericUrl url = new GenericUrl(URI.create(API_PREFIX + path));
+    if (cache != null) {
+      return getWithCache(path, url, responseType, headers, httpHeaders, userPassword);
+    }
 
-    try {
-      HttpRequest httpRequest = requestFactory.buildGetRequest(url);
+    try (ProfilerTask ignore = session.profileRequest("GET", path)) {
+      HttpRequest httpRequest = requestFactory.buildGetRequest(url).setHeaders(httpHeaders);
       HttpResponse response = httpRequest.execute();
       Object responseObj = response.parseAs(responseType);
       if (responseObj instanceof PaginatedList) {
@@ -95,6 +130,57 @@ public class GitHubApiTransportImpl implements GitHubApiTransport {
     }
   }
 
+  /**
+   * Same as {@link #get} but sending a conditional request if the response is in the cache, and
+   * using the cached response if GitHub answers that it didn't change (304).
+   */
+  @SuppressWarnings("unchecked")
+  private <T> T getWithCache(String path, GenericUrl url, Type responseType,
+      ImmutableListMultimap<String, String> headers, HttpHeaders httpHeaders,
+      @Nullable UserPassword userPassword) throws RepoException, ValidationException {
+    // Responses can depend on the user and on headers like 'Accept'
+    String key = String.format("%s %s %s", url.build(), headers,
+        userPassword == null ? "" : userPassword.getUsername());
+    GitHubApiCache.Entry cached = cache.get(key);
+    if (cached != null) {
+      cached.addConditionalHeaders(httpHeaders);
+    }
+    byte[] body;
+    String link;
+    try (ProfilerTask ignore = session.profileRequest("GET", path)) {
+      HttpRequest httpRequest = requestFactory.buildGetRequest(url).setHeaders(httpHeaders);
+      try {
+        HttpResponse response = httpRequest.execute();
+        try (InputStream content = response.getContent()) {
+          body = content == null ? new byte[0] : ByteStreams.toByteArray(content);
+        }
+        link = maybeGetLinkHeader(response);
+        HttpHeaders responseHeaders = response.getHeaders();
+        cache.miss(key, new GitHubApiCache.Entry(responseHeaders.getETag(),
+            responseHeaders.getLastModified(), link, body));
+      } catch (HttpResponseException e) {
+        if (cached == null || e.getStatusCode() != HttpStatusCodes.STATUS_CODE_NOT_MODIFIED) {
+          throw e;
+        }
+        cache.hit(key);
+        logger.atFine().log("GET %s not modified. GitHub API cache: %s", path, cache);
+        body = cached.getBody();
+        link = cached.getLink();
+      }
+      Object responseObj = new JsonObjectParser(JSON_FACTORY)
+          .parseAndClose(new ByteArrayInputStream(body), UTF_8, responseType);
+      if (responseObj instanceof PaginatedList) {
+        return (T) ((PaginatedList) responseObj).withPaginationInfo(API_PREFIX, link);
+      }
+      return (T) responseObj;
+    } catch (HttpResponseException e) {
+      throw new GitHubApiException(e.getStatusCode(), parseErrorOrIgnore(e),
+                                   "GET", path, null, e.getContent());
+    } catch (IOException e) {
+      throw new RepoException("Error running GitHub API operation " + path, e);
+    }
+  }
+
   @SuppressWarnings("unchecked")
   @Nullable
   private static String maybeGetLinkHeader(HttpResponse response) {
@@ -137,13 +223,12 @@ public class GitHubApiTransportImpl implements GitHubApiTransport {
   @Override
   public <T> T post(String path, Object request, Type responseType)
       throws RepoException, ValidationException {
-    HttpRequestFactory requestFactory =
-        getHttpRequestFactory(getCredentials(), ImmutableListMultimap.of());
+    HttpHeaders httpHeaders = getHttpHeaders(getCredentials(), ImmutableListMultimap.of());
 
     GenericUrl url = new GenericUrl(URI.create(API_PREFIX + path));
-    try {
+    try (ProfilerTask ignore = session.profileRequest("POST", path)) {
       HttpRequest httpRequest = requestFactory.buildPostRequest(url,
-          new JsonHttpContent(JSON_FACTORY, request));
+          new JsonHttpContent(JSON_FACTORY, request)).setHeaders(httpHeaders);
       HttpResponse response = httpRequest.execute();
       Object responseObj = response.parseAs(responseType);
       if (responseObj instanceof PaginatedList) {
@@ -168,12 +253,12 @@ public class GitHubApiTransportImpl implements GitHubApiTransport {
 
   @Override
   public void delete(String path) throws RepoException, ValidationException {
-    HttpRequestFactory requestFactory =
-        getHttpRequestFactory(getCredentials(), ImmutableListMultimap.of());
+    HttpHeaders httpHeaders = getHttpHeaders(getCredentials(), ImmutableListMultimap.of());
 
     GenericUrl url = new GenericUrl(URI.create(API_PREFIX + path));
-    try {
-      requestFactory.buildDeleteRequest(url).execute();
+    try (ProfilerTask ignore = session.profileRequest("DELETE", path)) {
+      // Consume the response so that the connection can be reused
+      requestFactory.buildDeleteRequest(url).setHeaders(httpHeaders).execute().ignore();
     } catch (HttpResponseException e) {
       throw new GitHubApiException(e.getStatusCode(), parseErrorOrIgnore(e),
           "DELETE", path, /*request=*/ null, e.getContent());
@@ -182,23 +267,17 @@ public class GitHubApiTransportImpl implements GitHubApiTransport {
     }
   }
 
-  private HttpRequestFactory getHttpRequestFactory(
+  private static HttpHeaders getHttpHeaders(
       @Nullable UserPassword userPassword, ImmutableListMultimap<String, String> headers) {
-    return httpTransport.createRequestFactory(
-        request -> {
-          request.setConnectTimeout((int) Duration.ofMinutes(1).toMillis());
-          request.setReadTimeout((int) Duration.ofMinutes(1).toMillis());
-          HttpHeaders httpHeaders = new HttpHeaders();
-          if (userPassword != null) {
-            httpHeaders.setBasicAuthentication(userPassword.getUsername(),
-                userPassword.getPassword_BeCareful());
-          }
-          for (Map.Entry<String, Collection<String>> header : headers.asMap().entrySet()) {
-            httpHeaders.put(header.getKey(), header.getValue());
-          }
-          request.setHeaders(httpHeaders);
-          request.setParser(new JsonObjectParser(JSON_FACTORY));
-        });
+    HttpHeaders httpHeaders = new HttpHeaders();
+    if (userPassword != null) {
+      httpHeaders.setBasicAuthentication(userPassword.getUsername(),
+          userPassword.getPassword_BeCareful());
+    }
+    for (Map.Entry<String, Collection<String>> header : headers.asMap().entrySet()) {
+      httpHeaders.put(header.getKey(), header.getValue());
+    }
+    return httpHeaders;
   }
 
   /**
@@ -208,10 +287,10 @@ public class GitHubApiTransportImpl implements GitHubApiTransport {
    */
   private UserPassword getCredentials() throws RepoException, ValidationException {
     try {
-      return repo.credentialFill(API_URL);
+      return session.credentialFill(API_URL);
     } catch (ValidationException e) {
       try {
-        return repo.credentialFill(GITHUB_WEB_URL);
+        return session.credentialFill(GITHUB_WEB_URL);
       } catch (ValidationException e1) {
         // Ugly, but helpful...
         throw new ValidationException(String.format(
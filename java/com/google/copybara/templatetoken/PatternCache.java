@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.templatetoken;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.re2j.Pattern;
+
+/**
+ * A process-wide cache of compiled {@link Pattern}s, keyed by regex and flags.
+ *
+ * <p>re2j patterns are immutable and can be used concurrently, so transformations that are
+ * instantiated over and over (for example once per change in ITERATIVE mode) can share the same
+ * compiled pattern instead of compiling the regex again.
+ */
+public final class PatternCache {
+
+  private static final LoadingCache<Key, Pattern> CACHE = CacheBuilder.newBuilder()
+      .maximumSize(10_000)
+      .recordStats()
+      .build(new CacheLoader<Key, Pattern>() {
+        @Override
+        public Pattern load(Key key) {
+          return Pattern.compile(key.regex, key.flags);
+        }
+      });
+
+  private PatternCache() {}
+
+  /**
+   * Same as {@link Pattern#compile(String)} but returning a cached instance if the regex was
+   * already compiled.
+   *
+   * @throws com.google.re2j.PatternSyntaxException if the regex is not valid
+   */
+  public static Pattern compile(String regex) {
+    return compile(regex, 0);
+  }
+
+  /**
+   * Same as {@link Pattern#compile(String, int)} but returning a cached instance if the regex was
+   * already compiled with the same flags.
+   *
+   * @throws com.google.re2j.PatternSyntaxException if the regex is not valid
+   */
+  public static Pattern compile(String regex, int flags) {
+    try {
+      return CACHE.getUnchecked(new Key(regex, flags));
+    } catch (UncheckedExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw e;
+    }
+  }
+
+  /** Hit and miss counters of the cache since the process started. */
+  public static CacheStats stats() {
+    return CACHE.stats();
+  }
+
+  private static final class Key {
+
+    private final String regex;
+    private final int flags;
+
+    private Key(String regex, int flags) {
+      this.regex = regex;
+      this.flags = flags;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) o;
+      return flags == key.flags && regex.equals(key.regex);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(regex, flags);
+    }
+  }
+}
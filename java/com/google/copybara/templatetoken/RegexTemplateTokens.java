@@ -54,6 +54,7 @@ public final class RegexTemplateTokens {
   private final ImmutableList<Token> tokens;
   private final Set<String> unusedGroups;
   private final Location location;
+  private final boolean matchExactly;
 
   public RegexTemplateTokens(
       String template, Map<String, Pattern> regexGroups, boolean repeatedGroups, Location location)
@@ -72,6 +73,7 @@ public final class RegexTemplateTokens {
 
     this.tokens = ImmutableList.copyOf(new Parser().parse(template));
     this.location = Preconditions.checkNotNull(location);
+    this.matchExactly = matchExactly;
     this.before = buildBefore(regexGroups, repeatedGroups, matchExactly);
 
     this.unusedGroups = Sets.difference(regexGroups.keySet(), groupIndexes.keySet());
@@ -99,6 +101,28 @@ public final class RegexTemplateTokens {
         || (this.tokens.size() == 1 && this.tokens.get(0).getType() == TokenType.LITERAL);
   }
 
+  /**
+   * Returns the longest literal piece of the template, that needs to be present in any string that
+   * the before regex matches, or null if the template doesn't have literals.
+   */
+  @Nullable
+  private String requiredLiteral() {
+    String longest = null;
+    for (Token token : tokens) {
+      if (token.getType() == TokenType.LITERAL
+          && (longest == null || token.getValue().length() > longest.length())) {
+        longest = token.getValue();
+      }
+    }
+    return longest == null || longest.isEmpty() ? null : longest;
+  }
+
+  /** Returns the text of a literal template. */
+  private String literalValue() {
+    Preconditions.checkState(isLiteral(), "Not a literal template: %s", template);
+    return isEmpty() ? "" : tokens.get(0).getValue();
+  }
+
   public ImmutableListMultimap<String, Integer> getGroupIndexes() {
     return ImmutableListMultimap.copyOf(groupIndexes);
   }
@@ -106,16 +130,14 @@ public final class RegexTemplateTokens {
   public Replacer replacer(
       RegexTemplateTokens after, boolean firstOnly, boolean multiline,
       List<Pattern> patternsToIgnore) {
-    // TODO(malcon): Remove reconstructing pattern once RE2J doesn't synchronize on matching.
-    return new Replacer(Pattern.compile(before.pattern(), before.flags()), after, null, firstOnly,
-                        multiline, patternsToIgnore, location);
+    return new Replacer(before, after, null, firstOnly, multiline, patternsToIgnore, location);
   }
 
   public Replacer callbackReplacer(
       RegexTemplateTokens after, AlterAfterTemplate callback, boolean firstOnly,
       boolean multiline,
       @Nullable List<Pattern> patternsToIgnore) {
-    return new Replacer(Pattern.compile(before.pattern()), after, callback, firstOnly, multiline,
+    return new Replacer(PatternCache.compile(before.pattern()), after, callback, firstOnly, multiline,
                         patternsToIgnore, location);
   }
 
@@ -135,6 +157,16 @@ public final class RegexTemplateTokens {
     @Nullable
     private final AlterAfterTemplate callback;
 
+    /** A literal that any match of the before regex contains, used to skip lines quickly. */
+    @Nullable
+    private final String requiredLiteral;
+
+    /**
+     * If not null, both before and after are literals and the replace is done without the regex
+     * engine, replacing {@code requiredLiteral} with this string.
+     */
+    @Nullable
+    private final String literalAfter;
 
     private Replacer(Pattern before, RegexTemplateTokens after,
         @Nullable AlterAfterTemplate callback,
@@ -155,31 +187,66 @@ public final class RegexTemplateTokens {
       this.callback = callback;
       this.patternsToIgnore = patternsToIgnore;
       this.location = location;
+      this.requiredLiteral = requiredLiteral();
+      this.literalAfter = requiredLiteral != null && callback == null && !matchExactly
+          && isLiteral() && after.isLiteral()
+          ? after.literalValue()
+          : null;
     }
 
     public String replace(String content) {
-      List<String> originalRanges = multiline
-          ? ImmutableList.of(content)
-          : Splitter.on('\n').splitToList(content);
+      String replaced = replaceIfChanged(content);
+      return replaced == null ? content : replaced;
+    }
 
-      List<String> newRanges = new ArrayList<>(originalRanges.size());
-      for (String line : originalRanges) {
-        newRanges.add(replaceLine(line));
+    /**
+     * Same as {@link #replace} but returns null if the content doesn't change. Only the lines
+     * where the before template matches are compared, so this is cheaper than comparing the
+     * content with the result of {@link #replace}.
+     */
+    @Nullable
+    public String replaceIfChanged(String content) {
+      // String.indexOf is an intrinsic, way cheaper than splitting the content and matching the
+      // regex line by line.
+      if (requiredLiteral != null && !content.contains(requiredLiteral)) {
+        return null;
       }
-      return Joiner.on('\n').join(newRanges);
+      if (multiline) {
+        return replaceLine(content);
+      }
+      List<String> originalRanges = Splitter.on('\n').splitToList(content);
+      List<String> newRanges = null;
+      for (int i = 0; i < originalRanges.size(); i++) {
+        String newLine = replaceLine(originalRanges.get(i));
+        if (newLine != null) {
+          if (newRanges == null) {
+            newRanges = new ArrayList<>(originalRanges);
+          }
+          newRanges.set(i, newLine);
+        }
+      }
+      return newRanges == null ? null : Joiner.on('\n').join(newRanges);
     }
 
+    /** Returns the replaced line or null if it doesn't change. */
+    @Nullable
     private String replaceLine(String line) {
+      if (requiredLiteral != null && !line.contains(requiredLiteral)) {
+        return null;
+      }
       if (patternsToIgnore != null) {
         for (Pattern patternToIgnore : patternsToIgnore) {
           if (patternToIgnore.matches(line)) {
-            return line;
+            return null;
           }
         }
       }
+      if (literalAfter != null) {
+        return replaceLiteral(line);
+      }
 
       Matcher matcher = before.matcher(line);
-      StringBuilder sb = new StringBuilder(line.length());
+      StringBuilder sb = null;
       while (matcher.find()) {
         for (Collection<Integer> groupIndexes : repeatedGroups.asMap().values()) {
           // Check that all the references of the repeated group match the same string
@@ -187,7 +254,7 @@ public final class RegexTemplateTokens {
           String value = matcher.group(iterator.next());
           while (iterator.hasNext()) {
             if (!value.equals(matcher.group(iterator.next()))) {
-              return line;
+              return null;
             }
           }
         }
@@ -203,13 +270,41 @@ public final class RegexTemplateTokens {
           replaceTemplate = afterReplaceTemplate;
         }
 
+        if (sb == null) {
+          sb = new StringBuilder(line.length());
+        }
         matcher.appendReplacement(sb, replaceTemplate);
         if (firstOnly) {
           break;
         }
       }
+      if (sb == null) {
+        return null;
+      }
       matcher.appendTail(sb);
-      return sb.toString();
+      String result = sb.toString();
+      // The replacement might be the same text that matched
+      return result.equals(line) ? null : result;
+    }
+
+    /** Same as the regex replace when both before and after are literals. */
+    @Nullable
+    private String replaceLiteral(String line) {
+      int index = line.indexOf(requiredLiteral);
+      if (index == -1 || requiredLiteral.equals(literalAfter)) {
+        return null;
+      }
+      StringBuilder sb = new StringBuilder(line.length());
+      int start = 0;
+      do {
+        sb.append(line, start, index).append(literalAfter);
+        start = index + requiredLiteral.length();
+        if (firstOnly) {
+          break;
+        }
+        index = line.indexOf(requiredLiteral, start);
+      } while (index != -1);
+      return sb.append(line, start, line.length()).toString();
     }
 
     @Override
@@ -320,7 +415,7 @@ public final class RegexTemplateTokens {
     if (matchExactly) {
       fullPattern.append("$");
     }
-    return Pattern.compile(fullPattern.toString(), Pattern.MULTILINE);
+    return PatternCache.compile(fullPattern.toString(), Pattern.MULTILINE);
   }
 
   /**
@@ -88,6 +88,14 @@ public class RecordsProcessCallDestination implements Destination<Revision> {
 
   public boolean failOnEmptyChange = false;
 
+  /**
+   * Whether the writers support {@link Writer#deferPublishing()}. The changes of each call to
+   * {@link Writer#publishDeferred(Console)} are recorded in {@link #published}.
+   */
+  public boolean supportsDeferredPublishing = false;
+
+  public final List<ImmutableList<ProcessedChange>> published = new ArrayList<>();
+
   public DummyEndpoint getEndpoint() {
     return endpoint;
   }
@@ -104,6 +112,8 @@ public class RecordsProcessCallDestination implements Destination<Revision> {
     @Nullable
     private final String contextReference;
     private final boolean dryRun;
+    private boolean deferred;
+    private final List<ProcessedChange> pendingPublish = new ArrayList<>();
 
     protected WriterImpl(boolean dryRun) {
       this.dryRun = dryRun;
@@ -158,6 +168,9 @@ public class RecordsProcessCallDestination implements Destination<Revision> {
 
         @Override
         public void copyDestinationFiles(Glob glob) throws RepoException, ValidationException {
+          if (processed.isEmpty()) {
+            return;
+          }
           ProcessedChange processedChange = Iterables.getLast(processed);
           PathMatcher matcher = glob.relativeTo(Paths.get(""));
           for (Entry<String, String> e : processedChange.workdir.entrySet()) {
@@ -165,7 +178,7 @@ public class RecordsProcessCallDestination implements Destination<Revision> {
             if (matcher.matches(p)) {
               try {
                 Files.createDirectories(workdir.resolve(p).getParent());
-                Files.writeString(p, e.getValue());
+                Files.writeString(workdir.resolve(p), e.getValue());
               } catch (IOException ex) {
                 throw new RepoException("Copy destination files failed", ex);
               }
@@ -229,6 +242,9 @@ public class RecordsProcessCallDestination implements Destination<Revision> {
               destinationFiles,
               dryRun);
       processed.add(change);
+      if (deferred) {
+        pendingPublish.add(change);
+      }
       return ImmutableList.of(
           new DestinationEffect(
               Type.CREATED,
@@ -238,6 +254,27 @@ public class RecordsProcessCallDestination implements Destination<Revision> {
               programmedErrors.isEmpty() ? ImmutableList.of() : programmedErrors.removeFirst()));
     }
 
+    @Override
+    public boolean deferPublishing() {
+      deferred = supportsDeferredPublishing;
+      return deferred;
+    }
+
+    @Override
+    public ImmutableList<DestinationEffect> publishDeferred(Console console) {
+      if (pendingPublish.isEmpty()) {
+        return ImmutableList.of();
+      }
+      published.add(ImmutableList.copyOf(pendingPublish));
+      pendingPublish.clear();
+      return ImmutableList.of(
+          new DestinationEffect(
+              Type.CREATED,
+              "Changes published",
+              ImmutableList.of(),
+              new DestinationRef("destination/" + processed.size(), "commit", /*url=*/ null)));
+    }
+
     @Override
     public void visitChangesWithAnyLabel(Revision start, ImmutableCollection<String> labels,
         ChangesLabelVisitor visitor) throws RepoException, ValidationException {
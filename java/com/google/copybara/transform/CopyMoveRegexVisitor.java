@@ -90,6 +90,10 @@ final class CopyMoveRegexVisitor extends SimpleFileVisitor<Path> {
     return FileVisitResult.CONTINUE;
   }
 
+  /**
+   * Copies or moves the matching files under {@code root}. The files copied or moved are added to
+   * {@code sources} and the files created or replaced are added to {@code destinations}.
+   */
   public static boolean run(
       Path root,
       RegexTemplateTokens before,
@@ -97,7 +101,9 @@ final class CopyMoveRegexVisitor extends SimpleFileVisitor<Path> {
       PathMatcher pathMatcher,
       Path workDir,
       boolean overwrite,
-      boolean isCopy)
+      boolean isCopy,
+      List<Path> sources,
+      List<Path> destinations)
       throws IOException {
     CopyMoveRegexVisitor visitor =
         new CopyMoveRegexVisitor(before, after, pathMatcher, workDir, overwrite, isCopy);
@@ -108,6 +114,10 @@ final class CopyMoveRegexVisitor extends SimpleFileVisitor<Path> {
     boolean someActionSucceeded = false;
     for (Action action : visitor.actionsToTake) {
       someActionSucceeded |= action.run();
+      if (action instanceof CopyOrMoveAction) {
+        sources.add(((CopyOrMoveAction) action).file);
+        destinations.add(((CopyOrMoveAction) action).dest);
+      }
     }
     return someActionSucceeded;
   }
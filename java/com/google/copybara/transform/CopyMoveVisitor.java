@@ -26,6 +26,8 @@ import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
 import javax.annotation.Nullable;
 
 /**
@@ -38,6 +40,8 @@ final class CopyMoveVisitor extends SimpleFileVisitor<Path> {
   private final PathMatcher pathMatcher;
   private final boolean isCopy;
   private final CopyOption[] moveMode;
+  private final List<Path> sources = new ArrayList<>();
+  private final List<Path> destinations = new ArrayList<>();
 
   CopyMoveVisitor(Path before, Path after, @Nullable PathMatcher pathMatcher, boolean overwrite, boolean isCopy) {
     this.before = before;
@@ -69,7 +73,19 @@ final class CopyMoveVisitor extends SimpleFileVisitor<Path> {
       } else {
         Files.move(source, dest, moveMode);
       }
+      sources.add(source);
+      destinations.add(dest);
     }
     return FileVisitResult.CONTINUE;
   }
+
+  /** Files that were copied or moved. */
+  List<Path> getSources() {
+    return sources;
+  }
+
+  /** Files created or replaced by the copy or move. */
+  List<Path> getDestinations() {
+    return destinations;
+  }
 }
@@ -44,6 +44,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -163,6 +164,7 @@ public class CopyOrMove implements Transformation {
       throws IOException, ValidationException {
     Path before = work.getCheckoutDir().resolve(this.before.toString()).normalize();
       if (!Files.exists(before)) {
+        work.getTreeState().notifyNoChange();
         return TransformationStatus.noop(
           String.format("Error moving '%s'. It doesn't exist in the workdir", this.before));
       }
@@ -193,12 +195,18 @@ public class CopyOrMove implements Transformation {
         // Simple move of all the contents of a directory
         if (beforeIsDir && !isCopy && paths.equals(Glob.ALL_FILES)) {
           moveAllFilesInDir(before, after, work.getCheckoutDir());
+          work.getTreeState().notifyDelete(ImmutableList.of(before));
+          work.getTreeState().notifyAdd(ImmutableList.of(after));
           return TransformationStatus.success();
         }
 
-        Files.walkFileTree(before,
-            new CopyMoveVisitor(before, after, beforeIsDir ? paths.relativeTo(before) : null,
-                overwrite, isCopy));
+        CopyMoveVisitor visitor = new CopyMoveVisitor(before, after,
+            beforeIsDir ? paths.relativeTo(before) : null, overwrite, isCopy);
+        Files.walkFileTree(before, visitor);
+        if (!isCopy) {
+          work.getTreeState().notifyDelete(visitor.getSources());
+        }
+        work.getTreeState().notifyAdd(visitor.getDestinations());
 
         // Delete 'before' folder if we moved all the files. We don't traverse to check emptyness
         // recursively but it should be good enough for now.
@@ -218,10 +226,13 @@ public class CopyOrMove implements Transformation {
     // Optimize by only visiting files within rootPath
     Path rootPath = work.getCheckoutDir().resolve(getRoot(before)).normalize();
     if (!Files.isDirectory(rootPath)) {
+      work.getTreeState().notifyNoChange();
       return TransformationStatus.noop(
           "Transformation '" + this + "' was a no-op because it didn't match any file");
     }
     try {
+      List<Path> sources = new ArrayList<>();
+      List<Path> destinations = new ArrayList<>();
       boolean atLeastOneFileMatched =
           CopyMoveRegexVisitor.run(
               rootPath,
@@ -230,7 +241,13 @@ public class CopyOrMove implements Transformation {
               paths.relativeTo(rootPath),
               work.getCheckoutDir(),
               overwrite,
-              isCopy);
+              isCopy,
+              sources,
+              destinations);
+      if (!isCopy) {
+        work.getTreeState().notifyDelete(sources);
+      }
+      work.getTreeState().notifyAdd(destinations);
       if (!atLeastOneFileMatched) {
         return TransformationStatus.noop(
             "Transformation '" + this + "' was a no-op because it didn't match any file");
@@ -21,13 +21,14 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.Iterables;
 import com.google.common.flogger.FluentLogger;
+import com.google.copybara.LocalParallelizer;
 import com.google.copybara.LocalParallelizer.TransformFunc;
 import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.TransformationStatus;
-import com.google.copybara.WorkflowOptions;
 import com.google.copybara.exception.NonReversibleValidationException;
 import com.google.copybara.exception.ValidationException;
+import com.google.copybara.templatetoken.PatternCache;
 import com.google.copybara.treestate.TreeState.FileState;
 import com.google.copybara.util.Glob;
 import com.google.re2j.Matcher;
@@ -49,7 +50,7 @@ public class FilterReplace implements Transformation, ReversibleFunction<String,
 
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
-  private final WorkflowOptions workflowOptions;
+  private final LocalParallelizer parallelizer;
   private final Pattern before;
   @Nullable private final Pattern after;
   private final int group;
@@ -58,10 +59,10 @@ public class FilterReplace implements Transformation, ReversibleFunction<String,
   private final Glob glob;
   private final Location location;
 
-  public FilterReplace(WorkflowOptions workflowOptions, Pattern before, @Nullable Pattern after,
+  public FilterReplace(LocalParallelizer parallelizer, Pattern before, @Nullable Pattern after,
       int group, int reverseGroup,
       ReversibleFunction<String, String> mapping, Glob glob, Location location) {
-    this.workflowOptions = workflowOptions;
+    this.parallelizer = parallelizer;
     this.before = before;
     this.after = after;
     this.group = group;
@@ -78,7 +79,7 @@ public class FilterReplace implements Transformation, ReversibleFunction<String,
 
     Iterable<FileState> files = work.getTreeState().find(glob.relativeTo(checkoutDir));
     BatchReplace batchReplace = new BatchReplace();
-    workflowOptions.parallelizer().run(files, batchReplace);
+    parallelizer.run(files, batchReplace);
     List<FileState> changed = batchReplace.getChanged();
     boolean matchedFile = batchReplace.matchedFile;
     logger.atInfo().log("Applied %s to %d files. %d changed.",
@@ -103,7 +104,7 @@ public class FilterReplace implements Transformation, ReversibleFunction<String,
       throw new NonReversibleValidationException("No 'after' defined");
     }
 
-    return new FilterReplace(workflowOptions, after, before, reverseGroup, group, mapping.reverseMapping(),
+    return new FilterReplace(parallelizer, after, before, reverseGroup, group, mapping.reverseMapping(),
         glob, location);
   }
 
@@ -137,6 +138,10 @@ public class FilterReplace implements Transformation, ReversibleFunction<String,
       return changed;
     }
 
+    @Override
+    public long weight(FileState file) {
+      return LocalParallelizer.fileWeight(file);
+    }
 
     @Override
     public Boolean run(Iterable<FileState> elements) throws IOException {
@@ -169,7 +174,7 @@ public class FilterReplace implements Transformation, ReversibleFunction<String,
   }
 
   private String replaceString(String originalContent) {
-    Pattern pattern = Pattern.compile(before.pattern());
+    Pattern pattern = PatternCache.compile(before.pattern());
     Matcher matcher = pattern.matcher(originalContent);
     boolean anyReplace = false;
     StringBuilder result = new StringBuilder(originalContent.length());
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import com.google.common.collect.ImmutableList;
+import com.google.copybara.TransformWork;
+import com.google.copybara.Transformation;
+import com.google.copybara.TransformationStatus;
+import com.google.copybara.exception.RepoException;
+import com.google.copybara.exception.ValidationException;
+import com.google.copybara.transform.ReplaceBatch.FileReplacer;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link Sequence} whose leading content transformations (core.replace) are applied file by
+ * file, by {@link FileTransformer}s, before the rest of the sequence runs on the whole tree.
+ *
+ * <p>Content transformations only read and write the files that match their paths, so they can be
+ * applied to a file as soon as it is ready in the checkout directory, while other files are still
+ * being prepared. The first transformation that is not a content transformation (for example
+ * core.move) acts as a barrier: it and everything after it run in {@link #transform}, once all the
+ * files have been processed.
+ */
+public final class PipelinedSequence {
+
+  private final Sequence sequence;
+  private final ImmutableList<Transformation> transformations;
+  private final ImmutableList<ReplaceBatch> prefix;
+  private final List<FileTransformer> fileTransformers = new ArrayList<>();
+
+  PipelinedSequence(Sequence sequence, ImmutableList<Transformation> transformations,
+      ImmutableList<ReplaceBatch> prefix) {
+    this.sequence = sequence;
+    this.transformations = transformations;
+    this.prefix = prefix;
+  }
+
+  /**
+   * Creates a {@link FileTransformer} for files in {@code checkoutDir}. Each thread applying the
+   * transformations needs its own instance.
+   */
+  public synchronized FileTransformer newFileTransformer(Path checkoutDir) {
+    FileTransformer fileTransformer = new FileTransformer(checkoutDir);
+    fileTransformers.add(fileTransformer);
+    return fileTransformer;
+  }
+
+  /**
+   * Runs the rest of the sequence. Must be called after all the files of the checkout directory
+   * went through a {@link FileTransformer}.
+   */
+  public TransformationStatus transform(TransformWork work)
+      throws IOException, ValidationException, RepoException {
+    ImmutableList.Builder<TransformationStatus> statuses = ImmutableList.builder();
+    synchronized (this) {
+      for (int i = 0; i < prefix.size(); i++) {
+        ReplaceBatch batch = prefix.get(i);
+        batch.logRun(work.getConsole());
+        boolean[] changed = new boolean[batch.size()];
+        boolean matchedFile = false;
+        for (FileTransformer fileTransformer : fileTransformers) {
+          FileReplacer replacer = fileTransformer.replacers.get(i);
+          matchedFile |= replacer.matchedFile();
+          for (int j = 0; j < changed.length; j++) {
+            changed[j] |= replacer.isChanged(j);
+          }
+        }
+        statuses.addAll(batch.statuses(changed, matchedFile));
+      }
+    }
+    return sequence.transform(work, transformations, prefix.size(), statuses.build());
+  }
+
+  @Override
+  public String toString() {
+    return "PipelinedSequence" + prefix;
+  }
+
+  /** Applies the content transformations to single files. Instances are not thread-safe. */
+  public final class FileTransformer {
+
+    private final List<PathMatcher> matchers = new ArrayList<>();
+    private final List<FileReplacer> replacers = new ArrayList<>();
+
+    private FileTransformer(Path checkoutDir) {
+      for (ReplaceBatch batch : prefix) {
+        matchers.add(batch.getPaths().relativeTo(checkoutDir));
+        replacers.add(batch.new FileReplacer());
+      }
+    }
+
+    /**
+     * Applies the content transformations to {@code file}, a regular file of {@code size} bytes in
+     * the checkout directory.
+     */
+    public void transform(Path file, long size) throws IOException, ValidationException {
+      for (int i = 0; i < replacers.size(); i++) {
+        if (matchers.get(i).matches(file) && replacers.get(i).replace(file, size)) {
+          size = Files.size(file);
+        }
+      }
+    }
+  }
+}
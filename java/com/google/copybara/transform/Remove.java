@@ -28,6 +28,9 @@ import com.google.copybara.exception.ValidationException;
 import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.Glob;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import net.starlark.java.syntax.Location;
 
 /**
@@ -55,8 +58,10 @@ public class Remove implements Transformation {
             + " transformations like core.copy(). Please use origin_files exclude for"
             + " filtering out files.");
 
+    List<Path> deleted = new ArrayList<>();
     int numDeletes = FileUtil.deleteFilesRecursively(work.getCheckoutDir(),
-        glob.relativeTo(work.getCheckoutDir()));
+        glob.relativeTo(work.getCheckoutDir()), deleted::add);
+    work.getTreeState().notifyDelete(deleted);
     logger.atInfo().log("Deleted %d files for glob: %s", numDeletes, glob);
     if (numDeletes  == 0) {
       return TransformationStatus.noop(glob + " didn't delete any file");
@@ -23,29 +23,27 @@ import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
-import com.google.common.flogger.FluentLogger;
 import com.google.copybara.LocalParallelizer;
 import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.TransformationStatus;
-import com.google.copybara.WorkflowOptions;
 import com.google.copybara.exception.NonReversibleValidationException;
 import com.google.copybara.exception.ValidationException;
+import com.google.copybara.templatetoken.PatternCache;
 import com.google.copybara.templatetoken.RegexTemplateTokens;
 import com.google.copybara.templatetoken.RegexTemplateTokens.Replacer;
-import com.google.copybara.treestate.TreeState.FileState;
 import com.google.copybara.util.Glob;
+import com.google.copybara.util.console.Console;
 import com.google.re2j.Pattern;
 import com.google.re2j.PatternSyntaxException;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.function.Supplier;
+import javax.annotation.Nullable;
 import net.starlark.java.eval.EvalException;
 import net.starlark.java.eval.Starlark;
 import net.starlark.java.syntax.Location;
@@ -72,8 +70,6 @@ import net.starlark.java.syntax.Location;
  */
 public final class Replace implements Transformation {
 
-  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
-
   private final RegexTemplateTokens before;
   private final RegexTemplateTokens after;
   private final ImmutableMap<String, Pattern> regexGroups;
@@ -82,7 +78,8 @@ public final class Replace implements Transformation {
   private final boolean repeatedGroups;
   private final Glob paths;
   private final ImmutableList<Pattern> patternsToIgnore;
-  private final WorkflowOptions workflowOptions;
+  private final LocalParallelizer parallelizer;
+  private final Path tempDir;
   private final Location location;
 
   private Replace(RegexTemplateTokens before, RegexTemplateTokens after,
@@ -90,7 +87,7 @@ public final class Replace implements Transformation {
       boolean repeatedGroups,
       Glob paths,
       List<Pattern> patternsToIgnore,
-      WorkflowOptions workflowOptions, Location location) {
+      LocalParallelizer parallelizer, Path tempDir, Location location) {
     this.before = checkNotNull(before);
     this.after = checkNotNull(after);
     this.regexGroups = ImmutableMap.copyOf(regexGroups);
@@ -99,7 +96,8 @@ public final class Replace implements Transformation {
     this.repeatedGroups = repeatedGroups;
     this.paths = checkNotNull(paths);
     this.patternsToIgnore = ImmutableList.copyOf(patternsToIgnore);
-    this.workflowOptions = checkNotNull(workflowOptions);
+    this.parallelizer = checkNotNull(parallelizer);
+    this.tempDir = checkNotNull(tempDir);
     this.location = checkNotNull(location);
   }
 
@@ -120,31 +118,56 @@ public final class Replace implements Transformation {
   @Override
   public TransformationStatus transform(TransformWork work)
       throws IOException, ValidationException {
+    return Iterables.getOnlyElement(toBatch().transformEach(work));
+  }
 
-    work.getConsole().verboseFmt("Running Replace %s", this);
+  /** A batch that only contains this replace. */
+  ReplaceBatch toBatch() {
+    return new ReplaceBatch(ImmutableList.of(this), parallelizer);
+  }
+
+  void logRun(Console console) {
+    console.verboseFmt("Running Replace %s", this);
     if (before.getBefore().matches("") && !firstOnly) {
-      work.getConsole().warnFmt("Replace %s matches the empty String, this is likely to cause"
+      console.warnFmt("Replace %s matches the empty String, this is likely to cause"
           + " unintended behavior, unless it is a no-op.", this);
     }
-    Path checkoutDir = work.getCheckoutDir();
+  }
 
-    Iterable<FileState> files = work.getTreeState().find(
-        paths.relativeTo(checkoutDir));
-    BatchReplace batchReplace = new BatchReplace(this::createReplacer,
-        before.getBefore().toString());
-    workflowOptions.parallelizer().run(files, batchReplace);
-    List<FileState> changed = batchReplace.getChanged();
-    boolean matchedFile = batchReplace.isMatchedFile();
-    logger.atInfo().log( "Applied %s to %d files. %d changed.",
-        this, Iterables.size(files), changed.size());
+  String noopMessage(boolean matchedFile) {
+    return "Transformation '" + toString() + "' was a no-op because it didn't "
+        + (matchedFile ? "change any of the matching files" : "match any file");
+  }
 
-    work.getTreeState().notifyModify(changed);
-    if (changed.isEmpty()) {
-      return TransformationStatus.noop(
-          "Transformation '" + toString() + "' was a no-op because it didn't "
-              + (matchedFile ? "change any of the matching files" : "match any file"));
+  /**
+   * Fails if {@code replacer} replaces the empty string in a big file, since that is almost never
+   * what the user wants.
+   */
+  void checkContentSize(Replacer replacer, long contentLength) throws ValidationException {
+    if (!replacer.isFirstOnly() && before.isEmpty() && contentLength > 10_000) {
+      throw new ValidationException(
+          "Error trying to replace empty string with text on a big file, this usually"
+              + " happens if you use the transform"
+              + " core.replace(before = '', after = 'some text') or, more commonly, when"
+              + " a you have a transform like core.replace(before = 'some text', after = '')"
+              + " and is reversed in another workflow. The effect of this transform is not"
+              + " what you want, as it will replace every single character with 'some text'."
+              + " In the case of the reverse, the fix is to either wrap the core.replace in:"
+              + " core.transform([core.replace(...)], reversal =[]) so that it doesn't do"
+              + " anything on the reversal or, even better, to use a reversible scrubber like"
+              + " core.replace(before = 'confidential text', after = 'some text that is safe"
+              + " to be public'): " + replacer.getLocation());
     }
-    return TransformationStatus.success();
+  }
+
+  @Override
+  public boolean canJoin(Transformation transformation) {
+    return ReplaceBatch.canJoin(paths, transformation);
+  }
+
+  @Override
+  public Transformation join(Transformation next) {
+    return ReplaceBatch.join(parallelizer, this, next);
   }
 
   @Override
@@ -167,13 +190,13 @@ public final class Replace implements Transformation {
     }
     //TODO remove repeatedGroups boolean?
     return new Replace(after, before, regexGroups, firstOnly, multiline, repeatedGroups,
-        paths, patternsToIgnore, workflowOptions, location);
+        paths, patternsToIgnore, parallelizer, tempDir, location);
   }
 
   public static Replace create(Location location, String before, String after,
       Map<String, String> regexGroups, Glob paths, boolean firstOnly, boolean multiline,
       boolean repeatedGroups, List<String> patternsToIgnore,
-      WorkflowOptions workflowOptions)
+      LocalParallelizer parallelizer, Path tempDir)
       throws EvalException {
     Map<String, Pattern> parsedGroups = parsePatterns(regexGroups);
 
@@ -187,7 +210,7 @@ public final class Replace implements Transformation {
     List<Pattern> parsedIgnorePatterns = new ArrayList<>();
     for (String toIgnore : patternsToIgnore) {
       try {
-        parsedIgnorePatterns.add(Pattern.compile(toIgnore));
+        parsedIgnorePatterns.add(PatternCache.compile(toIgnore));
       } catch (PatternSyntaxException e) {
         throw Starlark.errorf("'patterns_to_ignore' includes invalid regex: %s", toIgnore);
       }
@@ -200,7 +223,7 @@ public final class Replace implements Transformation {
 
     return new Replace(
         beforeTokens, afterTokens, parsedGroups, firstOnly, multiline, repeatedGroups, paths,
-        parsedIgnorePatterns, workflowOptions, location);
+        parsedIgnorePatterns, parallelizer, tempDir, location);
   }
 
   public static Map<String, Pattern> parsePatterns(Map<String, String> regexGroups)
@@ -208,7 +231,7 @@ public final class Replace implements Transformation {
     Map<String, Pattern> parsedGroups = new HashMap<>();
     for (Entry<String, String> group : regexGroups.entrySet()) {
       try {
-        parsedGroups.put(group.getKey(), Pattern.compile(group.getValue()));
+        parsedGroups.put(group.getKey(), PatternCache.compile(group.getValue()));
       } catch (PatternSyntaxException e) {
         throw Starlark.errorf(
             "'regex_groups' includes invalid regex for key %s: %s",
@@ -218,89 +241,37 @@ public final class Replace implements Transformation {
     return parsedGroups;
   }
 
-  private final static class BatchReplace
-      implements LocalParallelizer.TransformFunc<FileState, Boolean> {
-
-
-    private final Supplier<Replacer> replacerSupplier;
-
-    private final List<FileState> changed = new ArrayList<>();
-    private boolean matchedFile = false;
-    private final boolean emptyBefore;
-
-    BatchReplace(Supplier<Replacer> replacerSupplier, String before) {
-      this.replacerSupplier = checkNotNull(replacerSupplier);
-      emptyBefore = before.equals("");
-    }
-
-    public List<FileState> getChanged() {
-      return changed;
-    }
-
-    boolean isMatchedFile() {
-      return matchedFile;
-    }
+  public Replacer createReplacer() {
+    return before.replacer(after, firstOnly, multiline, patternsToIgnore);
+  }
 
-    @Override
-    public Boolean run(Iterable<FileState> elements) throws IOException, ValidationException {
-      Replacer replacer = replacerSupplier.get();
-      List<FileState> changed = new ArrayList<>();
-      boolean matchedFile = false;
-      for (FileState file : elements) {
-        if (Files.isSymbolicLink(file.getPath())) {
-          continue;
-        }
-        matchedFile = true;
-        String originalFileContent = null;
-        try {
-          originalFileContent = new String(Files.readAllBytes(file.getPath()), UTF_8);
-        } catch (NegativeArraySizeException e) {
-          throw new ValidationException(String.format(
-              "Cannot read file %s because it is too big for core.replace(). You can exclude"
-                  + " running for this file by adding core.replace(..., paths = glob(['**'],"
-                  + " exclude = ['big/file/path'])). another option, if the file is not needed,"
-                  + " is to exclude it in origin_files.",
-              file));
-        }
+  public Glob getPaths() {
+    return paths;
+  }
 
-        if (!replacer.isFirstOnly() && emptyBefore && originalFileContent.length() > 10_000) {
-          throw new ValidationException(
-              "Error trying to replace empty string with text on a big file, this usually"
-                  + " happens if you use the transform"
-                  + " core.replace(before = '', after = 'some text') or, more commonly, when"
-                  + " a you have a transform like core.replace(before = 'some text', after = '')"
-                  + " and is reversed in another workflow. The effect of this transform is not"
-                  + " what you want, as it will replace every single character with 'some text'."
-                  + " In the case of the reverse, the fix is to either wrap the core.replace in:"
-                  + " core.transform([core.replace(...)], reversal =[]) so that it doesn't do"
-                  + " anything on the reversal or, even better, to use a reversible scrubber like"
-                  + " core.replace(before = 'confidential text', after = 'some text that is safe"
-                  + " to be public'): " + replacer.getLocation());
-        }
-        String transformed = replacer.replace(originalFileContent);
-        if (!originalFileContent.equals(transformed)) {
-          synchronized (this) {
-            changed.add(file);
-          }
-          Files.write(file.getPath(), transformed.getBytes(UTF_8));
-        }
-      }
-      synchronized (this) {
-        this.matchedFile |= matchedFile;
-        this.changed.addAll(changed);
-      }
-      // We cannot return null here.
-      return true;
-    }
+  /** Directory for the temporary files, outside of the checkout directory. */
+  Path getTempDir() {
+    return tempDir;
+  }
 
+  Pattern getBeforePattern() {
+    return before.getBefore();
   }
 
-  public Replacer createReplacer() {
-    return before.replacer(after, firstOnly, multiline, patternsToIgnore);
+  boolean isMultiline() {
+    return multiline;
   }
 
-  public Glob getPaths() {
-    return paths;
+  /**
+   * Returns the UTF-8 bytes of the before template if it is a literal, or null if it contains
+   * regex groups.
+   */
+  @Nullable
+  byte[] getLiteralBefore() {
+    if (!before.isLiteral()) {
+      return null;
+    }
+    return before.isEmpty() ? new byte[0] : before.getTokens().get(0).getValue().getBytes(UTF_8);
   }
 
   @Override
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.flogger.FluentLogger;
+import com.google.copybara.LocalParallelizer;
+import com.google.copybara.TransformWork;
+import com.google.copybara.Transformation;
+import com.google.copybara.TransformationStatus;
+import com.google.copybara.exception.NonReversibleValidationException;
+import com.google.copybara.exception.ValidationException;
+import com.google.copybara.templatetoken.RegexTemplateTokens.Replacer;
+import com.google.copybara.treestate.TreeState.FileState;
+import com.google.copybara.util.Glob;
+import com.google.copybara.util.console.Console;
+import com.google.re2j.Pattern;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+import net.starlark.java.syntax.Location;
+
+/**
+ * A group of consecutive {@link Replace} transformations for the same paths that is applied in a
+ * single pass: every file is read and written at most once and the replaces are applied in order
+ * to its content in memory.
+ *
+ * <p>Replaces whose {@code before} pattern is not found anywhere in the file content are skipped
+ * without splitting the content in lines. Big files are streamed line by line instead of being
+ * read in memory.
+ */
+final class ReplaceBatch implements Transformation {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  /**
+   * Files bigger than this are processed line by line with {@link StreamingReplace} instead of
+   * being loaded in memory, as long as all the replaces are line-based.
+   */
+  private static final long STREAMING_THRESHOLD = 32 * 1024 * 1024;
+
+  private final ImmutableList<Replace> replaces;
+  private final Glob paths;
+  private final LocalParallelizer parallelizer;
+
+  ReplaceBatch(ImmutableList<Replace> replaces, LocalParallelizer parallelizer) {
+    checkArgument(!replaces.isEmpty(), "At least one replace is required");
+    this.replaces = replaces;
+    this.paths = replaces.get(0).getPaths();
+    this.parallelizer = checkNotNull(parallelizer);
+  }
+
+  static ReplaceBatch join(LocalParallelizer parallelizer, Transformation current,
+      Transformation next) {
+    return new ReplaceBatch(
+        ImmutableList.<Replace>builder()
+            .addAll(replaces(current))
+            .addAll(replaces(next))
+            .build(),
+        parallelizer);
+  }
+
+  static boolean canJoin(Glob paths, Transformation transformation) {
+    if (transformation instanceof Replace) {
+      return paths.equals(((Replace) transformation).getPaths());
+    }
+    return transformation instanceof ReplaceBatch
+        && paths.equals(((ReplaceBatch) transformation).paths);
+  }
+
+  private static ImmutableList<Replace> replaces(Transformation transformation) {
+    return transformation instanceof ReplaceBatch
+        ? ((ReplaceBatch) transformation).replaces
+        : ImmutableList.of((Replace) transformation);
+  }
+
+  /**
+   * Returns a pattern that finds a match in the whole content of a file if {@code replace} could
+   * change it, or null if the replace needs to be always run.
+   */
+  @Nullable
+  private static Pattern createFilter(Replace replace) {
+    Pattern before = replace.getBeforePattern();
+    // Line-based replaces are matched against each line. Text anchors would behave differently
+    // when matching the whole file.
+    if (!replace.isMultiline()
+        && (before.pattern().contains("\\A") || before.pattern().contains("\\z"))) {
+      return null;
+    }
+    return before;
+  }
+
+  @Override
+  public TransformationStatus transform(TransformWork work)
+      throws IOException, ValidationException {
+    for (TransformationStatus status : transformEach(work)) {
+      if (status.isNoop()) {
+        return status;
+      }
+    }
+    return TransformationStatus.success();
+  }
+
+  /**
+   * Applies all the replaces and returns the status of each of them, in the same order, as if they
+   * were run one after the other.
+   */
+  ImmutableList<TransformationStatus> transformEach(TransformWork work)
+      throws IOException, ValidationException {
+    logRun(work.getConsole());
+    Iterable<FileState> files = work.getTreeState().find(paths.relativeTo(work.getCheckoutDir()));
+    BatchReplace batchReplace = new BatchReplace();
+    parallelizer.run(files, batchReplace);
+    List<FileState> changed = batchReplace.changed;
+    logger.atInfo().log("Applied %s to %d files. %d changed.",
+        replaces.size() == 1 ? replaces.get(0) : describe(), Iterables.size(files),
+        changed.size());
+
+    work.getTreeState().notifyModify(changed);
+    return statuses(batchReplace.replaceChanged, batchReplace.matchedFile);
+  }
+
+  /** Returns the status of each replace given whether it changed any file. */
+  ImmutableList<TransformationStatus> statuses(boolean[] replaceChanged, boolean matchedFile) {
+    ImmutableList.Builder<TransformationStatus> result = ImmutableList.builder();
+    for (int i = 0; i < replaces.size(); i++) {
+      result.add(replaceChanged[i]
+          ? TransformationStatus.success()
+          : TransformationStatus.noop(replaces.get(i).noopMessage(matchedFile)));
+    }
+    return result.build();
+  }
+
+  /** Logs that the replaces are going to be run. */
+  void logRun(Console console) {
+    for (Replace replace : replaces) {
+      replace.logRun(console);
+    }
+  }
+
+  int size() {
+    return replaces.size();
+  }
+
+  Glob getPaths() {
+    return paths;
+  }
+
+  @Override
+  public Transformation reverse() throws NonReversibleValidationException {
+    throw new IllegalStateException("Reverse should never be called for join transformations");
+  }
+
+  @Override
+  public String describe() {
+    return "replace batch of " + replaces.size() + " replace transformations";
+  }
+
+  @Override
+  public Location location() {
+    return replaces.get(0).location();
+  }
+
+  @Override
+  public boolean canJoin(Transformation transformation) {
+    return canJoin(paths, transformation);
+  }
+
+  @Override
+  public Transformation join(Transformation next) {
+    return join(parallelizer, this, next);
+  }
+
+  @Override
+  public String toString() {
+    return "ReplaceBatch" + replaces;
+  }
+
+  private final class BatchReplace implements LocalParallelizer.TransformFunc<FileState, Boolean> {
+
+    private final List<FileState> changed = new ArrayList<>();
+    private final boolean[] replaceChanged = new boolean[replaces.size()];
+    private boolean matchedFile = false;
+
+    @Override
+    public long weight(FileState file) {
+      return LocalParallelizer.fileWeight(file);
+    }
+
+    @Override
+    public Boolean run(Iterable<FileState> elements) throws IOException, ValidationException {
+      FileReplacer fileReplacer = new FileReplacer();
+      List<FileState> changed = new ArrayList<>();
+      for (FileState file : elements) {
+        if (fileReplacer.replace(file.getPath(), file.getSize())) {
+          changed.add(file);
+        }
+      }
+      synchronized (this) {
+        this.matchedFile |= fileReplacer.matchedFile();
+        this.changed.addAll(changed);
+        for (int i = 0; i < replaceChanged.length; i++) {
+          this.replaceChanged[i] |= fileReplacer.isChanged(i);
+        }
+      }
+      // We cannot return null here.
+      return true;
+    }
+  }
+
+  /**
+   * Applies all the replaces of the batch to files, one at a time. Instances are not thread-safe.
+   */
+  final class FileReplacer {
+
+    private final List<Replacer> replacers = new ArrayList<>(replaces.size());
+    private final List<Pattern> filters = new ArrayList<>(replaces.size());
+    private final List<byte[]> literals = new ArrayList<>(replaces.size());
+    private final boolean lineBased;
+    private final boolean[] replaceChanged = new boolean[replaces.size()];
+    private boolean matchedFile = false;
+    @Nullable private StreamingReplace streamingReplace;
+
+    FileReplacer() {
+      boolean lineBased = true;
+      for (Replace replace : replaces) {
+        replacers.add(replace.createReplacer());
+        filters.add(createFilter(replace));
+        literals.add(replace.getLiteralBefore());
+        lineBased &= !replace.isMultiline();
+      }
+      this.lineBased = lineBased;
+    }
+
+    /**
+     * Applies the replaces to {@code file}, of {@code size} bytes, and returns true if the file was
+     * modified.
+     */
+    boolean replace(Path file, long size) throws IOException, ValidationException {
+      if (Files.isSymbolicLink(file)) {
+        return false;
+      }
+      matchedFile = true;
+      if (lineBased && size > STREAMING_THRESHOLD) {
+        for (int i = 0; i < replacers.size(); i++) {
+          replaces.get(i).checkContentSize(replacers.get(i), size);
+        }
+        if (streamingReplace == null) {
+          streamingReplace =
+              new StreamingReplace(replacers, literals, replaces.get(0).getTempDir());
+        }
+        return streamingReplace.replace(file);
+      }
+      String content;
+      try {
+        content = new String(Files.readAllBytes(file), UTF_8);
+      } catch (NegativeArraySizeException e) {
+        throw new ValidationException(String.format(
+            "Cannot read file %s because it is too big for core.replace(). You can exclude"
+                + " running for this file by adding core.replace(..., paths = glob(['**'],"
+                + " exclude = ['big/file/path'])). another option, if the file is not needed,"
+                + " is to exclude it in origin_files.",
+            file));
+      }
+      boolean fileChanged = false;
+      for (int i = 0; i < replacers.size(); i++) {
+        Pattern filter = filters.get(i);
+        // Cheaper than splitting the file in lines when the pattern is not found
+        if (filter != null && !filter.matcher(content).find()) {
+          continue;
+        }
+        Replacer replacer = replacers.get(i);
+        replaces.get(i).checkContentSize(replacer, content.length());
+        String transformed = replacer.replaceIfChanged(content);
+        if (transformed != null) {
+          replaceChanged[i] = true;
+          fileChanged = true;
+          content = transformed;
+        }
+      }
+      if (fileChanged) {
+        Files.write(file, content.getBytes(UTF_8));
+      }
+      return fileChanged;
+    }
+
+    /** Whether the replace at position {@code index} modified any file. */
+    boolean isChanged(int index) {
+      return replaceChanged[index]
+          || (streamingReplace != null && streamingReplace.isChanged(index));
+    }
+
+    /** Whether any file, excluding symlinks, was passed to {@link #replace}. */
+    boolean matchedFile() {
+      return matchedFile;
+    }
+  }
+}
@@ -35,6 +35,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Function;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 import net.starlark.java.eval.EvalException;
 import net.starlark.java.eval.StarlarkThread;
 
@@ -65,11 +66,50 @@ public class Sequence implements Transformation {
   @Override
   public TransformationStatus transform(TransformWork work)
       throws IOException, ValidationException, RepoException {
+    return transform(work, getTransformations(), 0, ImmutableList.of());
+  }
 
-    List<Transformation> transformationList = getTransformations();
+  /**
+   * Returns the leading content transformations of the sequence split so that they can be applied
+   * file by file while the checkout directory is being prepared, or null if the sequence doesn't
+   * start with one.
+   */
+  @Nullable
+  public PipelinedSequence pipelined() {
+    ImmutableList<Transformation> transformationList = getTransformations();
+    ImmutableList.Builder<ReplaceBatch> prefix = ImmutableList.builder();
+    // The prefix is applied to each file in one go, so it can't stop at a no-op in between
+    int limit = stopsAtFirstNoop() ? Math.min(1, transformationList.size())
+        : transformationList.size();
+    int i = 0;
+    for (; i < limit; i++) {
+      Transformation transformation = transformationList.get(i);
+      if (transformation instanceof ReplaceBatch) {
+        prefix.add((ReplaceBatch) transformation);
+      } else if (transformation instanceof Replace) {
+        prefix.add(((Replace) transformation).toBatch());
+      } else {
+        break;
+      }
+    }
+    return i == 0 ? null : new PipelinedSequence(this, transformationList, prefix.build());
+  }
 
+  /**
+   * Runs the transformations from {@code start}, treating {@code previousStatuses} as the
+   * statuses of the transformations that were already applied.
+   */
+  TransformationStatus transform(TransformWork work, List<Transformation> transformationList,
+      int start, List<TransformationStatus> previousStatuses)
+      throws IOException, ValidationException, RepoException {
     boolean someTransformWasSuccess = false;
-    for (int i = 0; i < transformationList.size(); i++) {
+    for (TransformationStatus status : previousStatuses) {
+      if (status.isNoop() && handleNoop(work, status)) {
+        return status;
+      }
+      someTransformWasSuccess |= status.isSuccess();
+    }
+    for (int i = start; i < transformationList.size(); i++) {
       // Only check the cache in between consecutive Transforms
       if (i != 0) {
         work.validateTreeStateCache();
@@ -77,23 +117,13 @@ public class Sequence implements Transformation {
 
       Transformation transformation = transformationList.get(i);
       work.getConsole().progress(getTransformMessage(transformation, i, transformationList.size()));
-      TransformationStatus status = runOneTransform(work, transformation);
-
-      if (status.isNoop()) {
-        if (noopBehavior == NoopBehavior.FAIL_IF_ANY_NOOP) {
-          status.throwException(work.getConsole(), workflowOptions.ignoreNoop);
-        } else if (noopBehavior == NoopBehavior.NOOP_IF_ANY_NOOP) {
-          if (workflowOptions.ignoreNoop) {
-            status.warn(work.getConsole());
-          } else {
-            return status;
-          }
-        } else if (work.getConsole().isVerbose()) {
-          status.warn(work.getConsole());
+      // A joined transformation reports one status per transformation that it replaces
+      for (TransformationStatus status : runOneTransform(work, transformation)) {
+        if (status.isNoop() && handleNoop(work, status)) {
+          return status;
         }
+        someTransformWasSuccess |= status.isSuccess();
       }
-
-      someTransformWasSuccess |= status.isSuccess();
     }
 
     if (noopBehavior == NoopBehavior.NOOP_IF_ALL_NOOP && !someTransformWasSuccess) {
@@ -104,6 +134,26 @@ public class Sequence implements Transformation {
     return TransformationStatus.success();
   }
 
+  /**
+   * Warns or fails for a no-op status of a wrapped transformation. Returns true if the sequence
+   * should stop and return it.
+   */
+  private boolean handleNoop(TransformWork work, TransformationStatus status)
+      throws ValidationException {
+    if (noopBehavior == NoopBehavior.FAIL_IF_ANY_NOOP) {
+      status.throwException(work.getConsole(), workflowOptions.ignoreNoop);
+    } else if (noopBehavior == NoopBehavior.NOOP_IF_ANY_NOOP) {
+      if (workflowOptions.ignoreNoop) {
+        status.warn(work.getConsole());
+      } else {
+        return true;
+      }
+    } else if (work.getConsole().isVerbose()) {
+      status.warn(work.getConsole());
+    }
+    return false;
+  }
+
   private String getTransformMessage(
       Transformation transform, int currentTransformIndex, int transformListSize) {
       String transformMsg = transform.describe();
@@ -115,8 +165,16 @@ public class Sequence implements Transformation {
       return transformMsg;
   }
 
+  /**
+   * Returns true if a no-op of a wrapped transformation stops the sequence. Transformations that
+   * are applied together can't stop in between, so they are not joined in that case.
+   */
+  private boolean stopsAtFirstNoop() {
+    return noopBehavior == NoopBehavior.NOOP_IF_ANY_NOOP && !workflowOptions.ignoreNoop;
+  }
+
   private ImmutableList<Transformation> getTransformations() {
-    if (!workflowOptions.joinTransformations()) {
+    if (!workflowOptions.joinTransformations() || stopsAtFirstNoop()) {
       return sequence;
     }
     List<Transformation> result = new ArrayList<>(sequence.size());
@@ -137,10 +195,13 @@ public class Sequence implements Transformation {
     return ImmutableList.copyOf(result);
   }
 
-  private TransformationStatus runOneTransform(TransformWork work, Transformation transform)
-      throws IOException, ValidationException, RepoException {
+  private ImmutableList<TransformationStatus> runOneTransform(TransformWork work,
+      Transformation transform) throws IOException, ValidationException, RepoException {
     try (ProfilerTask ignored = profiler.start(transform.describe().replace('/', ' '))) {
-      return transform.transform(work);
+      if (transform instanceof ReplaceBatch) {
+        return ((ReplaceBatch) transform).transformEach(work);
+      }
+      return ImmutableList.of(transform.transform(work));
     }
   }
 
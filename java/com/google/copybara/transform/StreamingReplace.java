@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.copybara.templatetoken.RegexTemplateTokens.Replacer;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Applies line-based {@link Replacer}s to a file reading it in chunks, so that the memory used
+ * depends on the length of the longest line instead of the size of the file.
+ *
+ * <p>Lines are only decoded if one of the replacers could match them: for replacers whose before
+ * template is a literal, the UTF-8 bytes of the literal are searched in the line first. The file
+ * is only written if a line changes. Unchanged lines are copied byte by byte.
+ */
+final class StreamingReplace {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final ImmutableList<Replacer> replacers;
+  private final List<byte[]> literals;
+  private final boolean[] changed;
+  private final Path tempDir;
+
+  // Current line, without the line separator.
+  private byte[] line = new byte[1024];
+  private int lineLength;
+
+  /**
+   * @param replacers line-based replacers to apply in order to each line
+   * @param literals for each replacer, the UTF-8 bytes of its before template if it is a literal,
+   *     null otherwise
+   * @param tempDir directory where the replaced content is written before copying it to the file.
+   *     It must be outside of the checkout directory, so that a file left behind if Copybara is
+   *     interrupted cannot end up in the destination.
+   */
+  StreamingReplace(List<Replacer> replacers, List<byte[]> literals, Path tempDir) {
+    checkArgument(replacers.size() == literals.size(),
+        "Expected one literal per replacer: %s, %s", replacers, literals);
+    this.replacers = ImmutableList.copyOf(replacers);
+    this.literals = literals;
+    this.changed = new boolean[replacers.size()];
+    this.tempDir = checkNotNull(tempDir);
+  }
+
+  /**
+   * Returns true if the replacer at position {@code index} changed some line in any of the files
+   * processed so far.
+   */
+  boolean isChanged(int index) {
+    return changed[index];
+  }
+
+  /**
+   * Applies the replacers to every line of {@code file} and returns true if the file was modified.
+   */
+  boolean replace(Path file) throws IOException {
+    Path temp = null;
+    OutputStream out = null;
+    // Offset in the file of the first byte of the current line
+    long lineStart = 0;
+    lineLength = 0;
+    try {
+      try (InputStream in = Files.newInputStream(file)) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          int start = 0;
+          for (int i = 0; i < read; i++) {
+            if (buffer[i] != '\n') {
+              continue;
+            }
+            appendToLine(buffer, start, i - start);
+            if (out == null) {
+              String replaced = replaceLine();
+              if (replaced != null) {
+                temp = createTempFile();
+                out = startOutput(file, temp, lineStart);
+                writeLine(out, replaced);
+              }
+            } else {
+              writeLine(out, replaceLine());
+            }
+            if (out != null) {
+              out.write('\n');
+            }
+            lineStart += lineLength + 1;
+            lineLength = 0;
+            start = i + 1;
+          }
+          appendToLine(buffer, start, read - start);
+        }
+      }
+      // Last line, that doesn't end with a line separator.
+      String replaced = replaceLine();
+      if (out == null && replaced != null) {
+        temp = createTempFile();
+        out = startOutput(file, temp, lineStart);
+      }
+      if (out == null) {
+        return false;
+      }
+      writeLine(out, replaced);
+      out.close();
+      out = null;
+      // Copy the content instead of moving the file so that we keep its permissions.
+      try (OutputStream fileOut = Files.newOutputStream(file)) {
+        Files.copy(temp, fileOut);
+      }
+      return true;
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+      if (temp != null) {
+        Files.deleteIfExists(temp);
+      }
+    }
+  }
+
+  private Path createTempFile() throws IOException {
+    Files.createDirectories(tempDir);
+    return Files.createTempFile(tempDir, "copybara-replace", ".tmp");
+  }
+
+  private void appendToLine(byte[] buffer, int start, int length) {
+    if (lineLength + length > line.length) {
+      line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+    }
+    System.arraycopy(buffer, start, line, lineLength, length);
+    lineLength += length;
+  }
+
+  /**
+   * Creates the output file and copies the first {@code length} bytes of {@code file} to it.
+   */
+  private static OutputStream startOutput(Path file, Path temp, long length) throws IOException {
+    try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+        FileChannel destination = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+      long position = 0;
+      while (position < length) {
+        position += source.transferTo(position, length - position, destination);
+      }
+    }
+    return new BufferedOutputStream(
+        Files.newOutputStream(temp, StandardOpenOption.APPEND), BUFFER_SIZE);
+  }
+
+  /**
+   * Writes the replaced line or, if it is null, the current line as it is.
+   */
+  private void writeLine(OutputStream out, @Nullable String replaced) throws IOException {
+    if (replaced == null) {
+      out.write(line, 0, lineLength);
+    } else {
+      out.write(replaced.getBytes(UTF_8));
+    }
+  }
+
+  /**
+   * Applies the replacers to the current line and returns the result or null if it doesn't change.
+   */
+  @Nullable
+  private String replaceLine() {
+    String content = null;
+    boolean lineChanged = false;
+    for (int i = 0; i < replacers.size(); i++) {
+      byte[] literal = literals.get(i);
+      // Once the line has been modified the raw bytes are stale, so we cannot prefilter anymore.
+      if (literal != null && !lineChanged && indexOf(line, lineLength, literal) == -1) {
+        continue;
+      }
+      if (content == null) {
+        content = new String(line, 0, lineLength, UTF_8);
+      }
+      String transformed = replacers.get(i).replaceIfChanged(content);
+      if (transformed != null) {
+        changed[i] = true;
+        lineChanged = true;
+        content = transformed;
+      }
+    }
+    return lineChanged ? content : null;
+  }
+
+  private static int indexOf(byte[] buffer, int length, byte[] pattern) {
+    if (pattern.length == 0) {
+      return 0;
+    }
+    outer:
+    for (int i = 0; i <= length - pattern.length; i++) {
+      for (int j = 0; j < pattern.length; j++) {
+        if (buffer[i + j] != pattern[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+}
@@ -34,6 +34,7 @@ import com.google.copybara.Transformation;
 import com.google.copybara.TransformationStatus;
 import com.google.copybara.exception.NonReversibleValidationException;
 import com.google.copybara.exception.ValidationException;
+import com.google.copybara.templatetoken.PatternCache;
 import com.google.copybara.treestate.TreeState.FileState;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Console;
@@ -95,7 +96,7 @@ public class TodoReplace implements Transformation {
   }
 
   private Pattern createPattern(ImmutableList<String> todoTags) {
-    return Pattern.compile("((?:"
+    return PatternCache.compile("((?:"
         + Joiner.on("|").join(todoTags.stream().map(Pattern::quote).collect(Collectors.toList()))
         + ") ?)\\((.*?)\\)");
   }
@@ -114,14 +115,12 @@ public class TodoReplace implements Transformation {
   private Set<FileState> run(Iterable<FileState> files, Console console)
       throws IOException, ValidationException {
     Set<FileState> modifiedFiles = new HashSet<>();
-    // TODO(malcon): Remove reconstructing pattern once RE2J doesn't synchronize on matching.
-    Pattern batchPattern = Pattern.compile(pattern.pattern(), pattern.flags());
     for (FileState file : files) {
       if (Files.isSymbolicLink(file.getPath())) {
         continue;
       }
       String content = new String(Files.readAllBytes(file.getPath()), UTF_8);
-      Matcher matcher = batchPattern.matcher(content);
+      Matcher matcher = pattern.matcher(content);
       StringBuffer sb = new StringBuffer();
       boolean modified = false;
       while (matcher.find()) {
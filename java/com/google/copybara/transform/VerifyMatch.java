@@ -27,6 +27,7 @@ import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.TransformationStatus;
 import com.google.copybara.exception.ValidationException;
+import com.google.copybara.templatetoken.PatternCache;
 import com.google.copybara.treestate.TreeState.FileState;
 import com.google.copybara.util.Glob;
 import com.google.re2j.Matcher;
@@ -107,18 +108,21 @@ public final class VerifyMatch implements Transformation {
       this.checkoutDir = checkNotNull(checkoutDir);
     }
 
+    @Override
+    public long weight(FileState file) {
+      return LocalParallelizer.fileWeight(file);
+    }
+
     @Override
     public List<String> run(Iterable<FileState> files)
         throws IOException, ValidationException {
       List<String> errors = new ArrayList<>();
-      // TODO(malcon): Remove reconstructing pattern once RE2J doesn't synchronize on matching.
-      Pattern batchPattern = Pattern.compile(pattern.pattern(), pattern.flags());
       for (FileState file : files) {
         if (Files.isSymbolicLink(file.getPath())) {
           continue;
         }
         String originalFileContent = new String(Files.readAllBytes(file.getPath()), UTF_8);
-        Matcher matcher = batchPattern.matcher(originalFileContent);
+        Matcher matcher = pattern.matcher(originalFileContent);
         if (verifyNoMatch == matcher.find()) {
           String error = checkoutDir.relativize(file.getPath()).toString();
           if (verifyNoMatch) {
@@ -154,7 +158,7 @@ public final class VerifyMatch implements Transformation {
       throws EvalException {
     Pattern parsed;
     try {
-      parsed = Pattern.compile(regEx, Pattern.MULTILINE);
+      parsed = PatternCache.compile(regEx, Pattern.MULTILINE);
     } catch (PatternSyntaxException ex) {
       throw Starlark.errorf("Regex '%s' is invalid: %s", regEx, ex.getMessage());
     }
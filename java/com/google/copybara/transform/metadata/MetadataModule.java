@@ -25,6 +25,7 @@ import com.google.copybara.Transformation;
 import com.google.copybara.config.SkylarkUtil;
 import com.google.copybara.doc.annotations.DocDefault;
 import com.google.copybara.doc.annotations.Example;
+import com.google.copybara.templatetoken.PatternCache;
 import com.google.re2j.Pattern;
 import com.google.re2j.PatternSyntaxException;
 import java.util.Map;
@@ -809,7 +810,7 @@ public class MetadataModule implements StarlarkValue {
       throws EvalException {
       Pattern pattern;
       try {
-        pattern = Pattern.compile(regex, Pattern.MULTILINE);
+        pattern = PatternCache.compile(regex, Pattern.MULTILINE);
       } catch (PatternSyntaxException e) {
       throw Starlark.errorf("Invalid regex expression: %s", e.getMessage());
       }
@@ -851,7 +852,7 @@ public class MetadataModule implements StarlarkValue {
       throws EvalException {
     Pattern pattern;
     try {
-      pattern = Pattern.compile(regex, Pattern.MULTILINE);
+      pattern = PatternCache.compile(regex, Pattern.MULTILINE);
     } catch (PatternSyntaxException e) {
       throw Starlark.errorf("Invalid regex expression: %s", e.getMessage());
     }
@@ -943,13 +944,13 @@ public class MetadataModule implements StarlarkValue {
     Pattern beforePattern;
     Pattern afterPattern = null;
     try {
-      beforePattern = Pattern.compile(groupsMap.get("before_ref"));
+      beforePattern = PatternCache.compile(groupsMap.get("before_ref"));
     } catch (java.util.regex.PatternSyntaxException exception) {
       throw Starlark.errorf("Invalid before_ref regex '%s'.", groupsMap.get("before_ref"));
     }
     if (groupsMap.containsKey("after_ref")) {
       try {
-        afterPattern = Pattern.compile(groupsMap.get("after_ref"));
+        afterPattern = PatternCache.compile(groupsMap.get("after_ref"));
       } catch (java.util.regex.PatternSyntaxException exception) {
         throw Starlark.errorf("Invalid after_ref regex '%s'.", groupsMap.get("after_ref"));
       }
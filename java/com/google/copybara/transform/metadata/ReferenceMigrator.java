@@ -53,6 +53,7 @@ public class ReferenceMigrator implements Transformation {
 
 
   static final int MAX_CHANGES_TO_VISIT = 5000;
+  private static final Pattern FIRST_GROUP = Pattern.compile("[$]1");
 
   private final RegexTemplateTokens before;
   private final RegexTemplateTokens after;
@@ -106,7 +107,7 @@ public class ReferenceMigrator implements Transformation {
             if (destinationRef != null) {
               // This will not work for the case where the template was "foo\\$1", if this is an
               // issue, a non-naive implementation might be required.
-              return Pattern.compile("[$]1").matcher(template).replaceAll(destinationRef);
+              return FIRST_GROUP.matcher(template).replaceAll(destinationRef);
             } else {
               return groupValues.get(0);
             }
@@ -22,16 +22,24 @@ import com.google.common.base.Preconditions;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import javax.annotation.Nullable;
 
 /**
  * An object that allows to do potentially cached filesystem lookups.
@@ -41,22 +49,70 @@ import java.util.Map;
  */
 public class TreeState {
 
+  private static final HashFunction CONTENT_HASH = Hashing.murmur3_128();
+
   /**
    * An object that contains a path found in the {@link TreeState}.
    *
-   * <p>Wrapped so that we can include things like the hash of the file in the future.
+   * <p>Besides the path, it keeps the size and last modified time of the file as seen when the
+   * file was found, and a hash of the content that is only computed if requested. The state is
+   * reset when the file is notified as modified.
    */
   public static class FileState {
     private final Path path;
+    @Nullable private BasicFileAttributes attributes;
+    @Nullable private HashCode hash;
 
     FileState(Path path) {
+      this(path, /*attributes=*/ null);
+    }
+
+    FileState(Path path, @Nullable BasicFileAttributes attributes) {
       this.path = Preconditions.checkNotNull(path);
+      this.attributes = attributes;
     }
 
     public Path getPath() {
       return path;
     }
 
+    /** Size of the file in bytes. For symlinks, the size of the link itself. */
+    public long getSize() throws IOException {
+      return attributes().size();
+    }
+
+    public FileTime getLastModifiedTime() throws IOException {
+      return attributes().lastModifiedTime();
+    }
+
+    /**
+     * A hash of the content of the file, computed the first time it is requested. For symlinks it
+     * is the hash of the link target. Not meant to be cryptographically secure, only for detecting
+     * changes.
+     */
+    public synchronized HashCode getHash() throws IOException {
+      if (hash == null) {
+        hash = Files.isSymbolicLink(path)
+            ? CONTENT_HASH.hashUnencodedChars(Files.readSymbolicLink(path).toString())
+            : MoreFiles.asByteSource(path).hash(CONTENT_HASH);
+      }
+      return hash;
+    }
+
+    private synchronized BasicFileAttributes attributes() throws IOException {
+      if (attributes == null) {
+        attributes = Files.readAttributes(path, BasicFileAttributes.class,
+            LinkOption.NOFOLLOW_LINKS);
+      }
+      return attributes;
+    }
+
+    /** Forget the attributes and hash, since the file was modified. */
+    private synchronized void invalidate() {
+      attributes = null;
+      hash = null;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (this == o) {
@@ -103,20 +159,20 @@ public class TreeState {
   /** Find a a set of files in the checkout dir, using a {@link PathMatcher}. */
   public Iterable<FileState> find(PathMatcher pathMatcher) throws IOException {
     if (!isCached) {
-      files = readFileSystem();
+      files = readFileSystem(checkoutDir);
       isCached = true;
     }
     return cachedMatches.getUnchecked(pathMatcher);
   }
 
-  private Map<Path, FileState> readFileSystem() throws IOException {
+  private static Map<Path, FileState> readFileSystem(Path root) throws IOException {
     Map<Path, FileState> result = new HashMap<>();
     Files.walkFileTree(
-        checkoutDir,
+        root,
         new SimpleFileVisitor<Path>() {
           @Override
           public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-            result.put(file, new FileState(file));
+            result.put(file, new FileState(file, attrs));
             return FileVisitResult.CONTINUE;
           }
         });
@@ -127,18 +183,55 @@ public class TreeState {
   public void notifyModify(Iterable<FileState> paths) {
     notified = true;
     for (FileState path : paths) {
-      files.put(path.getPath(), path);
+      path.invalidate();
+      FileState existing = files.get(path.getPath());
+      if (existing == null) {
+        files.put(path.getPath(), path);
+        cachedMatches.invalidateAll();
+      } else {
+        existing.invalidate();
+      }
     }
   }
 
-  /** Not implemented for now. */
-  public void notifyAdd(Iterable<FileState> path) {
-    throw new UnsupportedOperationException("Not supported. Don't notify!");
+  /**
+   * Notify the {@link TreeState} that {@code paths} have been added, or replaced. If a path is a
+   * directory, all the files inside it are added.
+   */
+  public void notifyAdd(Iterable<Path> paths) throws IOException {
+    notified = true;
+    if (!isCached) {
+      return;
+    }
+    for (Path path : paths) {
+      if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+        files.putAll(readFileSystem(path));
+      } else if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+        files.put(path, new FileState(path));
+      }
+    }
+    cachedMatches.invalidateAll();
   }
 
-  /** Not implemented for now. */
-  public void notifyDelete(Iterable<FileState> path) {
-    throw new UnsupportedOperationException("Not supported. Don't notify!");
+  /**
+   * Notify the {@link TreeState} that {@code paths} have been deleted. If a path was a directory,
+   * all the files inside it are removed.
+   */
+  public void notifyDelete(Iterable<Path> paths) {
+    notified = true;
+    if (!isCached) {
+      return;
+    }
+    for (Path path : paths) {
+      if (files.remove(path) == null) {
+        for (Iterator<Path> it = files.keySet().iterator(); it.hasNext(); ) {
+          if (it.next().startsWith(path)) {
+            it.remove();
+          }
+        }
+      }
+    }
+    cachedMatches.invalidateAll();
   }
 
   public void notifyNoChange() {
@@ -17,9 +17,13 @@
 package com.google.copybara.treestate;
 
 import com.google.copybara.treestate.TreeState.FileState;
+import com.google.copybara.util.GlobPathMatcher;
+import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 /**
@@ -34,9 +38,21 @@ public final class TreeStateUtil {
    * Filter a collection of {@link FileState}s using a {@link PathMatcher}
    */
   static List<FileState> filter(PathMatcher pathMatcher, Collection<FileState> files) {
-    return files.stream().filter(
-        fileState -> pathMatcher.matches(fileState.getPath()))
-        .collect(Collectors.toList());
+    if (!(pathMatcher instanceof GlobPathMatcher)) {
+      return files.stream().filter(
+          fileState -> pathMatcher.matches(fileState.getPath()))
+          .collect(Collectors.toList());
+    }
+    // Files in directories that cannot contain matches are skipped without matching them
+    GlobPathMatcher globMatcher = (GlobPathMatcher) pathMatcher;
+    Map<Path, Boolean> mayMatchUnder = new HashMap<>();
+    return files.stream().filter(fileState -> {
+      Path parent = fileState.getPath().getParent();
+      if (parent != null && !mayMatchUnder.computeIfAbsent(parent, globMatcher::mayMatchUnder)) {
+        return false;
+      }
+      return globMatcher.matches(fileState.getPath());
+    }).collect(Collectors.toList());
   }
 
 }
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * In-process three-way merge of text files, equivalent to {@code diff3 -m} for the merges that
+ * don't have conflicts.
+ *
+ * <p>Only merges where each region of the baseline was changed by at most one side are resolved.
+ * Changes from both sides that overlap or touch each other (even if they are identical) are
+ * reported by diff3 as conflicts, so in that case, and for binary files or files with too many
+ * differences, {@link #merge} returns null and the caller should use the external tool.
+ *
+ * <p>A change next to lines equal to its own can be placed in several positions (for example
+ * deleting one line of a run of equal lines), and diff3 might choose a different one than this
+ * class. Changes are considered to touch if any of their possible positions do, so the result is
+ * the same regardless of the position chosen.
+ */
+final class Diff3 {
+
+  /** Maximum number of changed lines between the baseline and a side that are diffed. */
+  static final int MAX_EDIT_DISTANCE = 1000;
+
+  private Diff3() {}
+
+  /**
+   * Merges the changes from {@code baseline} to {@code rhs} into {@code lhs}.
+   *
+   * @return the merged content, or null if the files cannot be merged in-process
+   */
+  @Nullable
+  static byte[] merge(byte[] lhs, byte[] baseline, byte[] rhs) {
+    if (isBinary(lhs) || isBinary(baseline) || isBinary(rhs)) {
+      return null;
+    }
+    // Lines are compared as ISO-8859-1 strings, which maps bytes to chars one to one, so that any
+    // encoding is preserved as is.
+    Map<String, Integer> ids = new HashMap<>();
+    List<String> baseLines = lines(baseline);
+    int[] base = toIds(baseLines, ids);
+    List<String> lhsLines = lines(lhs);
+    List<String> rhsLines = lines(rhs);
+    int[] lhsIds = toIds(lhsLines, ids);
+    int[] rhsIds = toIds(rhsLines, ids);
+    byte[] merged = merge(baseLines, lhsLines, rhsLines,
+        diff(base, lhsIds, /*reverse=*/ false), diff(base, rhsIds, /*reverse=*/ false));
+    if (merged == null) {
+      return null;
+    }
+    // Lines can be aligned in different ways when there are repeated lines. Check that the
+    // alignment that prefers later lines gives the same result.
+    byte[] reverse = merge(baseLines, lhsLines, rhsLines,
+        diff(base, lhsIds, /*reverse=*/ true), diff(base, rhsIds, /*reverse=*/ true));
+    return Arrays.equals(merged, reverse) ? merged : null;
+  }
+
+  @Nullable
+  private static byte[] merge(List<String> baseLines, List<String> lhsLines,
+      List<String> rhsLines, @Nullable List<Hunk> lhsHunks, @Nullable List<Hunk> rhsHunks) {
+    if (lhsHunks == null || rhsHunks == null) {
+      return null;
+    }
+    int first = 0;
+    for (Hunk lhsHunk : lhsHunks) {
+      // Hunks are sorted by their lowest possible position
+      while (first < rhsHunks.size() && rhsHunks.get(first).high < lhsHunk.low) {
+        first++;
+      }
+      for (int r = first; r < rhsHunks.size() && rhsHunks.get(r).low <= lhsHunk.high; r++) {
+        if (lhsHunk.touches(rhsHunks.get(r))) {
+          return null;
+        }
+      }
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int pos = 0;
+    int l = 0;
+    int r = 0;
+    while (l < lhsHunks.size() || r < rhsHunks.size()) {
+      Hunk next;
+      List<String> side;
+      if (r == rhsHunks.size()
+          || (l < lhsHunks.size() && lhsHunks.get(l).baseStart < rhsHunks.get(r).baseStart)) {
+        next = lhsHunks.get(l++);
+        side = lhsLines;
+      } else {
+        next = rhsHunks.get(r++);
+        side = rhsLines;
+      }
+      write(out, baseLines, pos, next.baseStart);
+      write(out, side, next.sideStart, next.sideEnd);
+      pos = next.baseEnd;
+    }
+    write(out, baseLines, pos, baseLines.size());
+    return out.toByteArray();
+  }
+
+  /**
+   * Returns the changes from {@code a} to {@code b}, or null if there are more than {@link
+   * #MAX_EDIT_DISTANCE}.
+   */
+  @Nullable
+  static List<Hunk> diff(int[] a, int[] b, boolean reverse) {
+    // Common prefix and suffix are cheap to skip and very common
+    int start = 0;
+    while (start < a.length && start < b.length && a[start] == b[start]) {
+      start++;
+    }
+    int aEnd = a.length;
+    int bEnd = b.length;
+    while (aEnd > start && bEnd > start && a[aEnd - 1] == b[bEnd - 1]) {
+      aEnd--;
+      bEnd--;
+    }
+    boolean[] deleted = new boolean[aEnd - start];
+    boolean[] inserted = new boolean[bEnd - start];
+    if (reverse) {
+      int[] reversedA = reverse(a, start, aEnd);
+      int[] reversedB = reverse(b, start, bEnd);
+      if (!myers(reversedA, reversedB, 0, reversedA.length, reversedB.length, deleted, inserted)) {
+        return null;
+      }
+      reverse(deleted);
+      reverse(inserted);
+    } else if (!myers(a, b, start, aEnd, bEnd, deleted, inserted)) {
+      return null;
+    }
+
+    List<Hunk> hunks = new ArrayList<>();
+    int i = 0;
+    int j = 0;
+    while (i < deleted.length || j < inserted.length) {
+      if (i < deleted.length && j < inserted.length && !deleted[i] && !inserted[j]) {
+        i++;
+        j++;
+        continue;
+      }
+      int hunkI = i;
+      int hunkJ = j;
+      while ((i < deleted.length && deleted[i]) || (j < inserted.length && inserted[j])) {
+        while (i < deleted.length && deleted[i]) {
+          i++;
+        }
+        while (j < inserted.length && inserted[j]) {
+          j++;
+        }
+      }
+      hunks.add(new Hunk(start + hunkI, start + i, start + hunkJ, start + j));
+    }
+    for (int h = 0; h < hunks.size(); h++) {
+      computeSlideRange(a, b, hunks, h);
+    }
+    // A hunk that can slide up to its neighbor could also be diffed as a single change covering
+    // both, so it can cover anything that the neighbor can.
+    for (int h = 1; h < hunks.size(); h++) {
+      if (hunks.get(h).low <= hunks.get(h - 1).baseEnd) {
+        hunks.get(h).low = hunks.get(h - 1).low;
+      }
+    }
+    for (int h = hunks.size() - 2; h >= 0; h--) {
+      if (hunks.get(h).high >= hunks.get(h + 1).baseStart) {
+        hunks.get(h).high = hunks.get(h + 1).high;
+      }
+    }
+    return hunks;
+  }
+
+  /**
+   * Computes the lowest and highest baseline lines that {@code hunks.get(h)} could cover in an
+   * equivalent diff, by sliding it over the common lines around it.
+   */
+  private static void computeSlideRange(int[] a, int[] b, List<Hunk> hunks, int h) {
+    Hunk hunk = hunks.get(h);
+    int prevBase = h == 0 ? 0 : hunks.get(h - 1).baseEnd;
+    int prevSide = h == 0 ? 0 : hunks.get(h - 1).sideEnd;
+    boolean deletes = hunk.baseEnd > hunk.baseStart;
+    boolean inserts = hunk.sideEnd > hunk.sideStart;
+    int up = 0;
+    while (hunk.baseStart - up > prevBase && hunk.sideStart - up > prevSide
+        && (!deletes || a[hunk.baseEnd - 1 - up] == a[hunk.baseStart - 1 - up])
+        && (!inserts || b[hunk.sideEnd - 1 - up] == b[hunk.sideStart - 1 - up])) {
+      up++;
+    }
+    int nextBase = h == hunks.size() - 1 ? a.length : hunks.get(h + 1).baseStart;
+    int nextSide = h == hunks.size() - 1 ? b.length : hunks.get(h + 1).sideStart;
+    int down = 0;
+    while (hunk.baseEnd + down < nextBase && hunk.sideEnd + down < nextSide
+        && (!deletes || a[hunk.baseStart + down] == a[hunk.baseEnd + down])
+        && (!inserts || b[hunk.sideStart + down] == b[hunk.sideEnd + down])) {
+      down++;
+    }
+    hunk.low = hunk.baseStart - up;
+    hunk.high = hunk.baseEnd + down;
+  }
+
+  /**
+   * Myers' O(ND) shortest edit script between {@code a[start, aEnd)} and {@code b[start, bEnd)}.
+   * Marks the lines that are not part of the common subsequence in {@code deleted} and {@code
+   * inserted}.
+   *
+   * @return false if the edit distance is greater than {@link #MAX_EDIT_DISTANCE}
+   */
+  private static boolean myers(int[] a, int[] b, int start, int aEnd, int bEnd,
+      boolean[] deleted, boolean[] inserted) {
+    int n = aEnd - start;
+    int m = bEnd - start;
+    int max = Math.min(n + m, MAX_EDIT_DISTANCE);
+    int offset = max + 1;
+    // v[offset + k] is the furthest x reached in diagonal k
+    int[] v = new int[2 * max + 3];
+    // trace.get(d - 1) is v[-(d - 1), d - 1] before step d, needed for backtracking
+    List<int[]> trace = new ArrayList<>();
+    for (int d = 0; d <= max; d++) {
+      if (d > 0) {
+        trace.add(Arrays.copyOfRange(v, offset - d + 1, offset + d));
+      }
+      for (int k = -d; k <= d; k += 2) {
+        int x = k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])
+            ? v[offset + k + 1]
+            : v[offset + k - 1] + 1;
+        int y = x - k;
+        while (x < n && y < m && a[start + x] == b[start + y]) {
+          x++;
+          y++;
+        }
+        v[offset + k] = x;
+        if (x >= n && y >= m) {
+          backtrack(trace, d, n, m, deleted, inserted);
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static void backtrack(List<int[]> trace, int edits, int x, int y, boolean[] deleted,
+      boolean[] inserted) {
+    for (int d = edits; d > 0; d--) {
+      int[] previous = trace.get(d - 1);
+      // previous[i] is v[i - (d - 1)]
+      int k = x - y;
+      int prevK = k == -d || (k != d && previous[k - 1 + d - 1] < previous[k + 1 + d - 1])
+          ? k + 1
+          : k - 1;
+      int prevX = previous[prevK + d - 1];
+      int prevY = prevX - prevK;
+      // From (prevX, prevY) there is one edit and then common lines up to (x, y)
+      if (prevK == k + 1) {
+        inserted[prevY] = true;
+      } else {
+        deleted[prevX] = true;
+      }
+      x = prevX;
+      y = prevY;
+    }
+  }
+
+  private static int[] reverse(int[] array, int from, int to) {
+    int[] result = new int[to - from];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = array[to - 1 - i];
+    }
+    return result;
+  }
+
+  private static void reverse(boolean[] array) {
+    for (int i = 0, j = array.length - 1; i < j; i++, j--) {
+      boolean tmp = array[i];
+      array[i] = array[j];
+      array[j] = tmp;
+    }
+  }
+
+  private static boolean isBinary(byte[] content) {
+    for (byte b : content) {
+      if (b == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Splits {@code content} in lines, keeping the line terminators. */
+  private static List<String> lines(byte[] content) {
+    String text = new String(content, ISO_8859_1);
+    List<String> lines = new ArrayList<>();
+    int lineStart = 0;
+    for (int i = 0; i < text.length(); i++) {
+      if (text.charAt(i) == '\n') {
+        lines.add(text.substring(lineStart, i + 1));
+        lineStart = i + 1;
+      }
+    }
+    if (lineStart < text.length()) {
+      lines.add(text.substring(lineStart));
+    }
+    return lines;
+  }
+
+  private static int[] toIds(List<String> lines, Map<String, Integer> ids) {
+    int[] result = new int[lines.size()];
+    for (int i = 0; i < result.length; i++) {
+      Integer id = ids.get(lines.get(i));
+      if (id == null) {
+        id = ids.size();
+        ids.put(lines.get(i), id);
+      }
+      result[i] = id;
+    }
+    return result;
+  }
+
+  private static void write(ByteArrayOutputStream out, List<String> lines, int from, int to) {
+    for (int i = from; i < to; i++) {
+      byte[] bytes = lines.get(i).getBytes(ISO_8859_1);
+      out.write(bytes, 0, bytes.length);
+    }
+  }
+
+  /** Lines {@code [baseStart, baseEnd)} of the baseline replaced by the side's lines. */
+  static final class Hunk {
+
+    final int baseStart;
+    final int baseEnd;
+    final int sideStart;
+    final int sideEnd;
+    // Lowest and highest baseline lines that the hunk could cover in an equivalent diff
+    int low;
+    int high;
+
+    Hunk(int baseStart, int baseEnd, int sideStart, int sideEnd) {
+      this.baseStart = baseStart;
+      this.baseEnd = baseEnd;
+      this.sideStart = sideStart;
+      this.sideEnd = sideEnd;
+      this.low = baseStart;
+      this.high = baseEnd;
+    }
+
+    /** Whether the two changes could overlap or be adjacent in the baseline. */
+    boolean touches(Hunk other) {
+      return low <= other.high && other.low <= high;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("[%d, %d) -> [%d, %d)", baseStart, baseEnd, sideStart, sideEnd);
+    }
+  }
+}
@@ -21,7 +21,6 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.flogger.FluentLogger;
 import com.google.common.hash.Hashing;
@@ -37,7 +36,6 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
-import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.LinkedHashSet;
@@ -45,6 +43,7 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 /**
@@ -127,8 +126,33 @@ public final class FileUtil {
   public static void copyFilesRecursively(Path from, Path to,
       CopySymlinkStrategy symlinkStrategy, Glob glob, Optional<CopyVisitorValidator> validator)
       throws IOException {
+    copyFilesRecursively(from, to, symlinkStrategy, glob, validator, CopyMode.COPY,
+        /*threads=*/ 1);
+  }
+
+  /**
+   * Same as {@link #copyFilesRecursively(Path, Path, CopySymlinkStrategy, Glob)}, but the
+   * content of the files is copied by {@code threads} threads using {@code mode}.
+   *
+   * @return the number of files and bytes that were copied and linked
+   */
+  public static CopyStats copyFilesRecursively(Path from, Path to,
+      CopySymlinkStrategy symlinkStrategy, Glob glob, CopyMode mode, int threads)
+      throws IOException {
+    return copyFilesRecursively(from, to, symlinkStrategy, glob, Optional.empty(), mode, threads);
+  }
+
+  private static CopyStats copyFilesRecursively(Path from, Path to,
+      CopySymlinkStrategy symlinkStrategy, Glob glob, Optional<CopyVisitorValidator> validator,
+      CopyMode mode, int threads)
+      throws IOException {
     checkArgument(Files.isDirectory(from), "%s (from) is not a directory", from);
     checkArgument(Files.isDirectory(to), "%s (to) is not a directory", to);
+    checkArgument(threads > 0, "threads should be positive: %s", threads);
+
+    // The directories and symlinks are created while visiting the tree, and the content of the
+    // regular files is copied afterwards, so that it can be done in parallel.
+    ParallelFileCopier copier = new ParallelFileCopier(from, to, mode, threads);
 
     // Optimization to skip folders that will be skipped. This works well for huge file trees
     // where we have a very specific Glob ( foo/bar/**).
@@ -145,8 +169,22 @@ public final class FileUtil {
               // absolute symlink materialization (We create a new CopyVisitor with the
               // resolved symlink as origin.
               glob.relativeTo(to.normalize()),
-              validator));
+              validator, copier));
     }
+    return copier.copy();
+  }
+
+  /**
+   * Copies a single {@code file} under {@code from} to the same relative path under {@code to},
+   * handling symlinks like {@link #copyFilesRecursively(Path, Path, CopySymlinkStrategy)}.
+   */
+  public static void copyFile(Path from, Path file, Path to, CopySymlinkStrategy symlinkStrategy)
+      throws IOException {
+    ParallelFileCopier copier = new ParallelFileCopier(from, to, CopyMode.COPY, /*threads=*/ 1);
+    new CopyVisitor(from, to, symlinkStrategy, Glob.ALL_FILES.relativeTo(from.normalize()),
+        Glob.ALL_FILES.relativeTo(to.normalize()), Optional.empty(), copier)
+        .visitFile(file, /*attrs=*/ null);
+    copier.copy();
   }
 
   /**
@@ -185,6 +223,15 @@ public final class FileUtil {
    */
   public static int deleteFilesRecursively(Path path, PathMatcher pathMatcher)
       throws IOException {
+    return deleteFilesRecursively(path, pathMatcher, file -> {});
+  }
+
+  /**
+   * Same as {@link #deleteFilesRecursively(Path, PathMatcher)} but calls {@code onDelete} with
+   * each deleted file.
+   */
+  public static int deleteFilesRecursively(Path path, PathMatcher pathMatcher,
+      Consumer<Path> onDelete) throws IOException {
     AtomicInteger counter = new AtomicInteger();
     // Normalize so that the patchMatcher works
     Files.walkFileTree(path.normalize(), new SimpleFileVisitor<Path>() {
@@ -194,6 +241,7 @@ public final class FileUtil {
         if (pathMatcher.matches(file)) {
           Files.delete(file);
           counter.incrementAndGet();
+          onDelete.accept(file);
         }
         return FileVisitResult.CONTINUE;
       }
@@ -263,6 +311,69 @@ public final class FileUtil {
     IGNORE_INVALID_SYMLINKS,
   }
 
+  /**
+   * How to copy the content of regular files
+   */
+  public enum CopyMode {
+    /**
+     * Copy the content of the files.
+     */
+    COPY,
+    /**
+     * Clone the files with reflinks, so that the copies share the data with the original files
+     * until one of them is modified (copy-on-write). If the filesystem doesn't support reflinks,
+     * the files are copied. Safe for copies that are going to be modified.
+     */
+    CLONE,
+    /**
+     * Hardlink the files when possible, and copy them otherwise (e.g. a different filesystem).
+     * Hardlinks share the content with the original files, so this should only be used for
+     * copies that are not going to be modified in place.
+     */
+    LINK,
+  }
+
+  /**
+   * Number of files and bytes copied by {@link #copyFilesRecursively}. Linked files are the ones
+   * that share their content with the original file, either hardlinked or cloned.
+   */
+  public static final class CopyStats {
+
+    private final int copiedFiles;
+    private final long copiedBytes;
+    private final int linkedFiles;
+    private final long linkedBytes;
+
+    CopyStats(int copiedFiles, long copiedBytes, int linkedFiles, long linkedBytes) {
+      this.copiedFiles = copiedFiles;
+      this.copiedBytes = copiedBytes;
+      this.linkedFiles = linkedFiles;
+      this.linkedBytes = linkedBytes;
+    }
+
+    public int getCopiedFiles() {
+      return copiedFiles;
+    }
+
+    public long getCopiedBytes() {
+      return copiedBytes;
+    }
+
+    public int getLinkedFiles() {
+      return linkedFiles;
+    }
+
+    public long getLinkedBytes() {
+      return linkedBytes;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("copied %d files (%d bytes), linked %d files (%d bytes)",
+          copiedFiles, copiedBytes, linkedFiles, linkedBytes);
+    }
+  }
+
   /**
    * A visitor that copies files recursively. If symlinks are found, and are relative to 'from'
    * they symlink is maintained, unless forceCopySymlinks is set.
@@ -273,21 +384,32 @@ public final class FileUtil {
     private final Path from;
     private final CopySymlinkStrategy symlinkStrategy;
     private final PathMatcher originPathMatcher;
-    private final PathMatcher destPathMatcher;
+    private final GlobPathMatcher destPathMatcher;
     private final Optional<CopyVisitorValidator> additonalValidator;
+    private final ParallelFileCopier copier;
 
     CopyVisitor(Path from,
         Path to,
         CopySymlinkStrategy symlinkStrategy,
         PathMatcher originPathMatcher,
-        PathMatcher destPathMatcher,
-        Optional<CopyVisitorValidator> additionalValidator) {
+        GlobPathMatcher destPathMatcher,
+        Optional<CopyVisitorValidator> additionalValidator,
+        ParallelFileCopier copier) {
       this.to = to;
       this.from = from;
       this.symlinkStrategy = symlinkStrategy;
       this.originPathMatcher = originPathMatcher;
       this.destPathMatcher = destPathMatcher;
       this.additonalValidator = additionalValidator;
+      this.copier = copier;
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+      Path destDir = to.resolve(from.relativize(dir).toString()).normalize();
+      return destPathMatcher.mayMatchUnder(destDir)
+          ? FileVisitResult.CONTINUE
+          : FileVisitResult.SKIP_SUBTREE;
     }
 
     @Override
@@ -332,7 +454,7 @@ public final class FileUtil {
             Files.walkFileTree(resolvedSymlink.regularFile,
                 new CopyVisitor(resolvedSymlink.regularFile, destFile,
                     CopySymlinkStrategy.MATERIALIZE_ALL, originPathMatcher, destPathMatcher,
-                    additonalValidator));
+                    additonalValidator, copier));
             return FileVisitResult.CONTINUE;
           }
         } else {
@@ -340,12 +462,7 @@ public final class FileUtil {
           return FileVisitResult.CONTINUE;
         }
       }
-      Files.copy(file, destFile, StandardCopyOption.COPY_ATTRIBUTES);
-      // Make writable any symlink that we materialize. This is safe since we have already
-      // done a copy of the file. And it is probable that we will want to modify it.
-      if (symlink) {
-        addPermissions(destFile, ImmutableSet.of(PosixFilePermission.OWNER_WRITE));
-      }
+      copier.add(file, destFile, /*materializedSymlink=*/ symlink);
       return FileVisitResult.CONTINUE;
     }
   }
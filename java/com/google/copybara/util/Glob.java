@@ -25,6 +25,8 @@ import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.util.ArrayList;
@@ -56,6 +58,8 @@ public class Glob implements StarlarkValue, HasBinary {
   private final ImmutableList<GlobAtom> include;
   private final ImmutableList<Glob> globInclude;
   @Nullable private final Glob exclude;
+  // Compiled on demand
+  @Nullable private volatile GlobAutomaton automaton;
 
   Glob(Iterable<GlobAtom> include, Iterable<Glob> globInclude, @Nullable Glob exclude) {
     this.include = ImmutableList.copyOf(Preconditions.checkNotNull(include));
@@ -138,25 +142,67 @@ public class Glob implements StarlarkValue, HasBinary {
     return false;
   }
 
-  public PathMatcher relativeTo(Path path) {
+  /**
+   * Returns a {@link PathMatcher} that matches the files under {@code path} that this glob
+   * matches.
+   *
+   * <p>In the default filesystem all the atoms are matched at once by an automaton that is
+   * compiled the first time it is needed, and reused for every {@code path}. Other filesystems
+   * use their {@code glob:} matchers.
+   */
+  public GlobPathMatcher relativeTo(Path path) {
+    FileSystem fs = path.getFileSystem();
+    if (fs.equals(FileSystems.getDefault()) && fs.getSeparator().equals("/")) {
+      return new GlobPathMatcher(this, path, /*fallback=*/ null);
+    }
+    return new GlobPathMatcher(this, path, fileSystemMatcher(path));
+  }
+
+  /** The automaton that matches the paths relative to the root. */
+  GlobAutomaton automaton() {
+    GlobAutomaton result = automaton;
+    if (result == null) {
+      GlobAutomaton.Builder builder = new GlobAutomaton.Builder();
+      result = builder.build(addTo(builder));
+      automaton = result;
+    }
+    return result;
+  }
+
+  private GlobAutomaton.Expression addTo(GlobAutomaton.Builder builder) {
+    int[] atoms = new int[include.size()];
+    for (int i = 0; i < atoms.length; i++) {
+      atoms[i] = builder.addAtom(include.get(i).toString());
+    }
+    ImmutableList.Builder<GlobAutomaton.Expression> includes = ImmutableList.builder();
+    for (Glob g : globInclude) {
+      includes.add(g.addTo(builder));
+    }
+    return new GlobAutomaton.Expression(atoms, includes.build(),
+        exclude == null ? null : exclude.addTo(builder));
+  }
+
+  private PathMatcher fileSystemMatcher(Path path) {
     ImmutableList.Builder<PathMatcher> includeList = ImmutableList.builder();
     for (GlobAtom path1 : include) {
       includeList.add(path1.matcher(path));
     }
     for (Glob g : globInclude) {
-      includeList.add(g.relativeTo(path));
+      includeList.add(g.fileSystemMatcher(path));
     }
-    PathMatcher excludeMatcher =
-        (exclude == null) ? FileUtil.anyPathMatcher(ImmutableList.of()) : exclude.relativeTo(path);
-    return new GlobPathMatcher(FileUtil.anyPathMatcher(includeList.build()), excludeMatcher);
+    PathMatcher excludeMatcher = (exclude == null)
+        ? FileUtil.anyPathMatcher(ImmutableList.of())
+        : exclude.fileSystemMatcher(path);
+    return new IncludeExcludePathMatcher(
+        FileUtil.anyPathMatcher(includeList.build()), excludeMatcher);
   }
 
-  private class GlobPathMatcher implements PathMatcher {
+  private class IncludeExcludePathMatcher implements PathMatcher {
 
     private final PathMatcher includeMatcher;
     private final PathMatcher excludeMatcher;
 
-    GlobPathMatcher(PathMatcher includeMatcher, PathMatcher excludeMatcher) {
+    IncludeExcludePathMatcher(PathMatcher includeMatcher, PathMatcher excludeMatcher) {
       this.includeMatcher = includeMatcher;
       this.excludeMatcher = excludeMatcher;
     }
@@ -170,24 +216,6 @@ public class Glob implements StarlarkValue, HasBinary {
     public String toString() {
       return Glob.this.toString();
     }
-
-    @Override
-    public boolean equals(Object o) {
-      if (this == o) {
-        return true;
-      }
-      if (!(o instanceof GlobPathMatcher)) {
-        return false;
-      }
-      GlobPathMatcher that = (GlobPathMatcher) o;
-      return Objects.equals(this.includeMatcher, that.includeMatcher)
-          && Objects.equals(this.excludeMatcher, that.excludeMatcher);
-    }
-
-    @Override
-    public int hashCode() {
-      return Objects.hash(includeMatcher, excludeMatcher);
-    }
   }
 
   /**
@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * Matches relative paths against all the atoms of a {@link Glob}, includes and excludes, in a
+ * single pass over the path.
+ *
+ * <p>Each atom is translated to an NFA with the semantics of the JDK {@code glob:} syntax, except
+ * that {@code **} also matches line terminators. The NFA states of all the atoms are tracked
+ * together in a DFA that is built lazily, so each character of the path is usually a table
+ * lookup. The atoms that accept at the end of the path are then combined following the structure
+ * of the {@link Glob}.
+ *
+ * <p>Since the DFA is finite, it can also tell whether some or all the paths under a directory
+ * match, by looking at the states reachable after reading the directory. This lets the callers
+ * skip whole subtrees.
+ *
+ * <p>This class is thread-safe. The DFA states are created concurrently and cached with benign
+ * races.
+ */
+final class GlobAutomaton {
+
+  // Bounds the memory used by the DFA. Once reached, new states are still computed but not cached.
+  private static final int MAX_CACHED_STATES = 10_000;
+  // Bounds the states explored for a subtree query. Once reached, the answer is the conservative
+  // one.
+  private static final int MAX_EXPLORED_STATES = 1_000;
+
+  private final CharSet[] nfaChars;
+  private final int[] nfaNext;
+  private final int[][] nfaEpsilon;
+  private final int[] nfaAcceptedAtom;
+  private final int atoms;
+  private final Expression expression;
+
+  // Characters are grouped in classes of characters that all the CharSets handle the same way.
+  // Class i contains the characters in [classBounds[i - 1], classBounds[i]).
+  private final int[] classBounds;
+
+  private final ConcurrentHashMap<State, State> states = new ConcurrentHashMap<>();
+  private final State start;
+  private final State dead;
+
+  private GlobAutomaton(Builder builder, Expression expression) {
+    int size = builder.chars.size();
+    this.nfaChars = builder.chars.toArray(new CharSet[0]);
+    this.nfaNext = new int[size];
+    this.nfaEpsilon = new int[size][];
+    this.nfaAcceptedAtom = new int[size];
+    for (int i = 0; i < size; i++) {
+      nfaNext[i] = builder.next.get(i);
+      nfaEpsilon[i] = builder.epsilon.get(i).stream().mapToInt(Integer::intValue).toArray();
+      nfaAcceptedAtom[i] = builder.acceptedAtom.get(i);
+    }
+    this.atoms = builder.atomStarts.size();
+    this.expression = checkNotNull(expression);
+
+    TreeSet<Integer> bounds = new TreeSet<>();
+    for (CharSet chars : nfaChars) {
+      if (chars != null) {
+        chars.addBounds(bounds);
+      }
+    }
+    bounds.remove(0);
+    bounds.removeIf(bound -> bound > Character.MAX_CODE_POINT);
+    this.classBounds = bounds.stream().mapToInt(Integer::intValue).toArray();
+
+    this.dead = intern(new int[0]);
+    this.start = intern(closure(builder.atomStarts.stream().mapToInt(Integer::intValue).toArray()));
+  }
+
+  /** Returns true if the relative {@code path} matches the glob. */
+  boolean matches(String path) {
+    State state = run(start, path);
+    return state.matches;
+  }
+
+  /**
+   * Returns false if no path under the relative directory {@code dir} can match the glob. An
+   * empty {@code dir} is the root.
+   */
+  boolean mayMatchUnder(String dir) {
+    State state = dir.isEmpty() ? start : run(start, dir + "/");
+    if (state.mayMatchBelow == null) {
+      state.mayMatchBelow = exploreBelow(state, /*lookForMatch=*/ true);
+    }
+    return state.mayMatchBelow;
+  }
+
+  /**
+   * Returns true if all the paths under the relative directory {@code dir} match the glob. An
+   * empty {@code dir} is the root.
+   */
+  boolean matchesAllUnder(String dir) {
+    State state = dir.isEmpty() ? start : run(start, dir + "/");
+    if (state.matchesAllBelow == null) {
+      state.matchesAllBelow = !exploreBelow(state, /*lookForMatch=*/ false);
+    }
+    return state.matchesAllBelow;
+  }
+
+  private State run(State state, String path) {
+    for (int i = 0; i < path.length() && state != dead; ) {
+      int c = path.codePointAt(i);
+      state = step(state, c);
+      i += Character.charCount(c);
+    }
+    return state;
+  }
+
+  /**
+   * Returns whether a state that matches ({@code lookForMatch}) or doesn't match the glob is
+   * reachable from {@code from} after reading at least one character. If too many states need to
+   * be explored, it returns true, which is the conservative answer for both queries.
+   */
+  private boolean exploreBelow(State from, boolean lookForMatch) {
+    Set<State> visited = new HashSet<>();
+    Deque<State> pending = new ArrayDeque<>();
+    pending.add(from);
+    while (!pending.isEmpty()) {
+      State state = pending.poll();
+      for (int charClass = 0; charClass <= classBounds.length; charClass++) {
+        State next = step(state, charClass == 0 ? 0 : classBounds[charClass - 1]);
+        if (next.matches == lookForMatch) {
+          return true;
+        }
+        if (next != dead && visited.add(next)) {
+          if (visited.size() > MAX_EXPLORED_STATES) {
+            return true;
+          }
+          pending.add(next);
+        }
+      }
+    }
+    return false;
+  }
+
+  private State step(State state, int c) {
+    int charClass = charClass(c);
+    State next = state.next[charClass];
+    if (next != null) {
+      return next;
+    }
+    List<Integer> targets = new ArrayList<>();
+    for (int nfaState : state.nfaStates) {
+      CharSet chars = nfaChars[nfaState];
+      if (chars != null && chars.contains(c)) {
+        targets.add(nfaNext[nfaState]);
+      }
+    }
+    next = intern(closure(targets.stream().mapToInt(Integer::intValue).toArray()));
+    if (next.cached) {
+      state.next[charClass] = next;
+    }
+    return next;
+  }
+
+  private int charClass(int c) {
+    int index = Arrays.binarySearch(classBounds, c);
+    return index >= 0 ? index + 1 : -index - 1;
+  }
+
+  /** The sorted set of states reachable from {@code nfaStates} by epsilon transitions. */
+  private int[] closure(int[] nfaStates) {
+    BitSet result = new BitSet(nfaChars.length);
+    Deque<Integer> pending = new ArrayDeque<>();
+    for (int nfaState : nfaStates) {
+      if (!result.get(nfaState)) {
+        result.set(nfaState);
+        pending.add(nfaState);
+      }
+    }
+    while (!pending.isEmpty()) {
+      for (int target : nfaEpsilon[pending.poll()]) {
+        if (!result.get(target)) {
+          result.set(target);
+          pending.add(target);
+        }
+      }
+    }
+    return result.stream().toArray();
+  }
+
+  private State intern(int[] nfaStates) {
+    if (nfaStates.length == 0 && dead != null) {
+      return dead;
+    }
+    BitSet accepted = new BitSet(atoms);
+    for (int nfaState : nfaStates) {
+      if (nfaAcceptedAtom[nfaState] >= 0) {
+        accepted.set(nfaAcceptedAtom[nfaState]);
+      }
+    }
+    State candidate = new State(nfaStates, expression.matches(accepted), classBounds.length + 1);
+    if (states.size() >= MAX_CACHED_STATES) {
+      State existing = states.get(candidate);
+      return existing != null ? existing : candidate;
+    }
+    candidate.cached = true;
+    State existing = states.putIfAbsent(candidate, candidate);
+    return existing != null ? existing : candidate;
+  }
+
+  /** A state of the DFA: the set of NFA states that are active. */
+  private static final class State {
+
+    private final int[] nfaStates;
+    private final boolean matches;
+    // Transitions for each character class, computed on demand
+    private final State[] next;
+    // Only cached states are linked from other states
+    private boolean cached;
+    @Nullable private Boolean mayMatchBelow;
+    @Nullable private Boolean matchesAllBelow;
+
+    private State(int[] nfaStates, boolean matches, int charClasses) {
+      this.nfaStates = nfaStates;
+      this.matches = matches;
+      this.next = new State[charClasses];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof State && Arrays.equals(nfaStates, ((State) o).nfaStates);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(nfaStates);
+    }
+  }
+
+  /** Combines the atoms that accept a path the same way as the {@link Glob} does. */
+  static final class Expression {
+
+    private final int[] atoms;
+    private final ImmutableList<Expression> includes;
+    @Nullable private final Expression exclude;
+
+    Expression(int[] atoms, ImmutableList<Expression> includes, @Nullable Expression exclude) {
+      this.atoms = checkNotNull(atoms);
+      this.includes = checkNotNull(includes);
+      this.exclude = exclude;
+    }
+
+    private boolean matches(BitSet accepted) {
+      return included(accepted) && (exclude == null || !exclude.matches(accepted));
+    }
+
+    private boolean included(BitSet accepted) {
+      for (int atom : atoms) {
+        if (accepted.get(atom)) {
+          return true;
+        }
+      }
+      for (Expression include : includes) {
+        if (include.matches(accepted)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /** Builds the NFA of the atoms of a glob. */
+  static final class Builder {
+
+    private final List<CharSet> chars = new ArrayList<>();
+    private final List<Integer> next = new ArrayList<>();
+    private final List<List<Integer>> epsilon = new ArrayList<>();
+    private final List<Integer> acceptedAtom = new ArrayList<>();
+    private final List<Integer> atomStarts = new ArrayList<>();
+
+    /**
+     * Adds the NFA for {@code pattern}, which needs to be a valid JDK glob, and returns its atom
+     * number for {@link Expression}.
+     */
+    int addAtom(String pattern) {
+      int atom = atomStarts.size();
+      int state = newState();
+      atomStarts.add(state);
+
+      int[] glob = pattern.codePoints().toArray();
+      int groupStart = -1;
+      int groupEnd = -1;
+      int i = 0;
+      while (i < glob.length) {
+        int c = glob[i++];
+        switch (c) {
+          case '\\':
+            checkArgument(i < glob.length, "No character to escape in %s", pattern);
+            state = addChar(state, CharSet.literal(glob[i++]));
+            break;
+          case '[':
+            boolean negated = i < glob.length && glob[i] == '!';
+            if (negated) {
+              i++;
+            }
+            List<Integer> ranges = new ArrayList<>();
+            i = parseClass(glob, i, negated, pattern, ranges);
+            state = addChar(state, new CharSet(ranges.stream().mapToInt(Integer::intValue).toArray(),
+                negated, /*slash=*/ false));
+            break;
+          case '{':
+            checkArgument(groupStart == -1, "Cannot nest groups in %s", pattern);
+            groupStart = state;
+            groupEnd = newState();
+            state = newState();
+            epsilon.get(groupStart).add(state);
+            break;
+          case ',':
+            if (groupStart == -1) {
+              state = addChar(state, CharSet.literal(c));
+            } else {
+              epsilon.get(state).add(groupEnd);
+              state = newState();
+              epsilon.get(groupStart).add(state);
+            }
+            break;
+          case '}':
+            if (groupStart == -1) {
+              state = addChar(state, CharSet.literal(c));
+            } else {
+              epsilon.get(state).add(groupEnd);
+              state = groupEnd;
+              groupStart = -1;
+            }
+            break;
+          case '*':
+            if (i < glob.length && glob[i] == '*') {
+              i++;
+              state = addRepetition(state, CharSet.ANY);
+            } else {
+              state = addRepetition(state, CharSet.ANY_IN_SEGMENT);
+            }
+            break;
+          case '?':
+            state = addChar(state, CharSet.ANY_IN_SEGMENT);
+            break;
+          default:
+            state = addChar(state, CharSet.literal(c));
+        }
+      }
+      checkArgument(groupStart == -1, "Missing '}' in %s", pattern);
+      acceptedAtom.set(state, atom);
+      return atom;
+    }
+
+    /**
+     * Parses a character class like the JDK does, starting after the '[' and the '!' if the class
+     * is {@code negated}. The characters are added to {@code ranges} as inclusive ranges, and it
+     * returns the index after the closing ']'.
+     */
+    private static int parseClass(int[] glob, int i, boolean negated, String pattern,
+        List<Integer> ranges) {
+      if (!negated && i < glob.length && glob[i] == '^') {
+        // Unlike in regexes, a leading '^' is a literal
+        addRange(ranges, '^', '^');
+        i++;
+      } else if (i < glob.length && glob[i] == '-') {
+        addRange(ranges, '-', '-');
+        i++;
+      }
+      int last = -1;
+      while (i < glob.length) {
+        int c = glob[i++];
+        if (c == ']') {
+          return i;
+        }
+        checkArgument(c != '/', "Explicit 'name separator' in class in %s", pattern);
+        if (c != '-') {
+          addRange(ranges, c, c);
+          last = c;
+          continue;
+        }
+        checkArgument(last != -1, "Invalid range in %s", pattern);
+        checkArgument(i < glob.length, "Missing ']' in %s", pattern);
+        int end = glob[i++];
+        if (end == ']') {
+          // A trailing '-' is a literal
+          addRange(ranges, '-', '-');
+          return i;
+        }
+        checkArgument(end >= last, "Invalid range in %s", pattern);
+        // Extend the single character range of the start
+        ranges.set(ranges.size() - 1, end);
+        last = -1;
+      }
+      throw new IllegalArgumentException("Missing ']' in " + pattern);
+    }
+
+    private static void addRange(List<Integer> ranges, int from, int to) {
+      ranges.add(from);
+      ranges.add(to);
+    }
+
+    private int addChar(int state, CharSet charSet) {
+      int target = newState();
+      chars.set(state, charSet);
+      next.set(state, target);
+      return target;
+    }
+
+    private int addRepetition(int state, CharSet charSet) {
+      int loop = newState();
+      int target = newState();
+      epsilon.get(state).add(loop);
+      chars.set(loop, charSet);
+      next.set(loop, loop);
+      epsilon.get(loop).add(target);
+      return target;
+    }
+
+    private int newState() {
+      chars.add(null);
+      next.add(-1);
+      epsilon.add(new ArrayList<>());
+      acceptedAtom.add(-1);
+      return chars.size() - 1;
+    }
+
+    GlobAutomaton build(Expression expression) {
+      return new GlobAutomaton(this, expression);
+    }
+  }
+
+  /** A set of characters, as inclusive ranges of code points. */
+  private static final class CharSet {
+
+    // Any character but the separator, like '*' and '?'
+    private static final CharSet ANY_IN_SEGMENT =
+        new CharSet(new int[0], /*negated=*/ true, /*slash=*/ false);
+    // Any character, like '**'
+    private static final CharSet ANY = new CharSet(new int[0], /*negated=*/ true, /*slash=*/ true);
+
+    private final int[] ranges;
+    private final boolean negated;
+    private final boolean slash;
+
+    private CharSet(int[] ranges, boolean negated, boolean slash) {
+      this.ranges = ranges;
+      this.negated = negated;
+      this.slash = slash;
+    }
+
+    private static CharSet literal(int c) {
+      return new CharSet(new int[] {c, c}, /*negated=*/ false, /*slash=*/ true);
+    }
+
+    private boolean contains(int c) {
+      if (c == '/' && !slash) {
+        return false;
+      }
+      for (int i = 0; i < ranges.length; i += 2) {
+        if (c >= ranges[i] && c <= ranges[i + 1]) {
+          return !negated;
+        }
+      }
+      return negated;
+    }
+
+    private void addBounds(Set<Integer> bounds) {
+      for (int i = 0; i < ranges.length; i += 2) {
+        bounds.add(ranges[i]);
+        bounds.add(ranges[i + 1] + 1);
+      }
+      bounds.add((int) '/');
+      bounds.add('/' + 1);
+    }
+  }
+}
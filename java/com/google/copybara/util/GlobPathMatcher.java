@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.Objects;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link PathMatcher} for a {@link Glob} relative to a root directory.
+ *
+ * <p>Besides matching files, it can tell whether a directory can contain matching files, so that
+ * file tree walks can skip whole subtrees.
+ */
+public final class GlobPathMatcher implements PathMatcher {
+
+  private final Glob glob;
+  private final Path root;
+  private final String prefix;
+  // Only used if the automaton doesn't support the filesystem of the root
+  @Nullable private final PathMatcher fallback;
+
+  GlobPathMatcher(Glob glob, Path root, @Nullable PathMatcher fallback) {
+    this.glob = checkNotNull(glob);
+    this.root = root.normalize();
+    String separator = root.getFileSystem().getSeparator();
+    String rootString = this.root.toString();
+    this.prefix = rootString.endsWith(separator) ? rootString : rootString + separator;
+    this.fallback = fallback;
+  }
+
+  @Override
+  public boolean matches(Path path) {
+    if (fallback != null) {
+      return fallback.matches(path);
+    }
+    String relative = relative(path);
+    return relative != null && !relative.isEmpty() && glob.automaton().matches(relative);
+  }
+
+  /**
+   * Returns false if no file under {@code dir} can match. Returns true if some file can match, or
+   * if it cannot be known.
+   */
+  public boolean mayMatchUnder(Path dir) {
+    if (fallback != null) {
+      return true;
+    }
+    String relative = relative(dir);
+    return relative == null || glob.automaton().mayMatchUnder(relative);
+  }
+
+  /**
+   * Returns true if all the files under {@code dir} match. Returns false if some file doesn't
+   * match, or if it cannot be known.
+   */
+  public boolean matchesAllUnder(Path dir) {
+    if (fallback != null) {
+      return false;
+    }
+    String relative = relative(dir);
+    return relative != null && glob.automaton().matchesAllUnder(relative);
+  }
+
+  /**
+   * Returns the path relative to the root, the empty string for the root, or null if the path is
+   * not under the root.
+   *
+   * <p>Like the JDK matchers, this uses the string of the path as it is, without normalizing it.
+   */
+  @Nullable
+  private String relative(Path path) {
+    String string = path.toString();
+    if (string.startsWith(prefix)) {
+      return string.substring(prefix.length());
+    }
+    return string.equals(root.toString()) ? "" : null;
+  }
+
+  @Override
+  public String toString() {
+    return glob.toString();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof GlobPathMatcher)) {
+      return false;
+    }
+    GlobPathMatcher that = (GlobPathMatcher) o;
+    return glob.equals(that.glob) && root.equals(that.root);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(glob, root);
+  }
+}
@@ -16,6 +16,10 @@
 
 package com.google.copybara.util;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.copybara.util.console.Console;
 import com.google.copybara.shell.CommandException;
 import java.io.IOException;
@@ -24,7 +28,17 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A tool that assists with Merge Imports
@@ -37,11 +51,27 @@ public final class MergeImportTool {
 
   private final Console console;
   private final CommandLineDiffUtil commandLineDiffUtil;
+  private final boolean inProcessMerge;
+  private final int threads;
 
   // TODO refactor to accept a diffing tool
   public MergeImportTool(Console console, CommandLineDiffUtil commandLineDiffUtil) {
+    this(console, commandLineDiffUtil, /*inProcessMerge=*/ false, /*threads=*/ 1);
+  }
+
+  /**
+   * @param inProcessMerge if true, files that don't need a real merge (because at most one side
+   *     changed them) are resolved without the diffing tool, and files without conflicts are
+   *     merged in-process with a diff3 equivalent. The diffing tool is used for the rest.
+   * @param threads number of files merged in parallel
+   */
+  public MergeImportTool(Console console, CommandLineDiffUtil commandLineDiffUtil,
+      boolean inProcessMerge, int threads) {
+    checkArgument(threads > 0, "threads should be positive: %s", threads);
     this.console = console;
     this.commandLineDiffUtil = commandLineDiffUtil;
+    this.inProcessMerge = inProcessMerge;
+    this.threads = threads;
   }
 
   /**
@@ -62,7 +92,8 @@ public final class MergeImportTool {
       Path originWorkdir, Path destinationWorkdir, Path baselineWorkdir, Path diffToolWorkdir)
       throws IOException {
     HashSet<Path> visitedSet = new HashSet<>();
-    HashSet<Path> mergeErrorPaths = new HashSet<>();
+    Set<Path> mergeErrorPaths = ConcurrentHashMap.newKeySet();
+    List<Path> filesToMerge = new ArrayList<>();
 
     SimpleFileVisitor<Path> originWorkdirFileVisitor =
         new SimpleFileVisitor<Path>() {
@@ -75,27 +106,14 @@ public final class MergeImportTool {
             Path relativeFile = originWorkdir.relativize(file);
             Path baselineFile = baselineWorkdir.resolve(relativeFile);
             Path destinationFile = destinationWorkdir.resolve(relativeFile);
-            CommandOutputWithStatus output;
             if (!Files.exists(destinationFile) || !Files.exists(baselineFile)) {
               return FileVisitResult.CONTINUE;
             }
-            try {
-              output =
-                  commandLineDiffUtil.diff(file, destinationFile, baselineFile, diffToolWorkdir);
-              visitedSet.add(relativeFile);
-              if (output.getTerminationStatus().getExitCode() == 1) {
-                mergeErrorPaths.add(file);
-              }
-            } catch (CommandException e) {
-              throw new IOException(
-                  String.format("Could not execute diff tool %s", commandLineDiffUtil.diffBin), e);
-            }
-            Files.write(file, output.getStdoutBytes());
-
+            visitedSet.add(relativeFile);
+            filesToMerge.add(relativeFile);
             return FileVisitResult.CONTINUE;
           }
         };
-
     SimpleFileVisitor<Path> destinationWorkdirFileVisitor =
         new SimpleFileVisitor<Path>() {
           @Override
@@ -124,10 +142,98 @@ public final class MergeImportTool {
         };
 
     Files.walkFileTree(originWorkdir, originWorkdirFileVisitor);
+    mergeFiles(filesToMerge, originWorkdir, destinationWorkdir, baselineWorkdir, diffToolWorkdir,
+        mergeErrorPaths);
     Files.walkFileTree(destinationWorkdir, destinationWorkdirFileVisitor);
     if (!mergeErrorPaths.isEmpty()) {
       mergeErrorPaths.forEach(
           path -> console.warn(String.format("Merge error for path %s", path.toString())));
     }
   }
+
+  private void mergeFiles(List<Path> files, Path originWorkdir, Path destinationWorkdir,
+      Path baselineWorkdir, Path diffToolWorkdir, Set<Path> mergeErrorPaths) throws IOException {
+    MergeStats stats = new MergeStats();
+    if (threads == 1) {
+      for (Path file : files) {
+        mergeFile(originWorkdir.resolve(file), destinationWorkdir.resolve(file),
+            baselineWorkdir.resolve(file), diffToolWorkdir, mergeErrorPaths, stats);
+      }
+    } else {
+      ExecutorService executor = Executors.newFixedThreadPool(threads,
+          new ThreadFactoryBuilder().setNameFormat("merge-import-%d").setDaemon(true).build());
+      try {
+        List<Future<?>> results = new ArrayList<>(files.size());
+        for (Path file : files) {
+          results.add(executor.submit(() -> {
+            mergeFile(originWorkdir.resolve(file), destinationWorkdir.resolve(file),
+                baselineWorkdir.resolve(file), diffToolWorkdir, mergeErrorPaths, stats);
+            return null;
+          }));
+        }
+        for (Future<?> result : results) {
+          result.get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while merging files", e);
+      } catch (ExecutionException e) {
+        Throwables.propagateIfPossible(e.getCause(), IOException.class);
+        throw new IllegalStateException("Unexpected error merging files", e.getCause());
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+    if (inProcessMerge) {
+      console.verboseFmt("Merge import: %d unchanged, %d taken from one side, %d merged in-process,"
+              + " %d merged with %s", stats.unchanged.get(), stats.oneSide.get(),
+          stats.inProcess.get(), stats.diffTool.get(), commandLineDiffUtil.diffBin);
+    }
+  }
+
+  private void mergeFile(Path file, Path destinationFile, Path baselineFile,
+      Path diffToolWorkdir, Set<Path> mergeErrorPaths, MergeStats stats) throws IOException {
+    if (inProcessMerge) {
+      byte[] origin = Files.readAllBytes(file);
+      byte[] destination = Files.readAllBytes(destinationFile);
+      byte[] baseline = Files.readAllBytes(baselineFile);
+      if (Arrays.equals(origin, destination) || Arrays.equals(destination, baseline)) {
+        // Nothing to bring from the destination
+        stats.unchanged.incrementAndGet();
+        return;
+      }
+      if (Arrays.equals(origin, baseline)) {
+        // Only the destination changed the file
+        Files.write(file, destination);
+        stats.oneSide.incrementAndGet();
+        return;
+      }
+      byte[] merged = Diff3.merge(origin, baseline, destination);
+      if (merged != null) {
+        Files.write(file, merged);
+        stats.inProcess.incrementAndGet();
+        return;
+      }
+    }
+    CommandOutputWithStatus output;
+    try {
+      output = commandLineDiffUtil.diff(file, destinationFile, baselineFile, diffToolWorkdir);
+      if (output.getTerminationStatus().getExitCode() == 1) {
+        mergeErrorPaths.add(file);
+      }
+    } catch (CommandException e) {
+      throw new IOException(
+          String.format("Could not execute diff tool %s", commandLineDiffUtil.diffBin), e);
+    }
+    Files.write(file, output.getStdoutBytes());
+    stats.diffTool.incrementAndGet();
+  }
+
+  private static final class MergeStats {
+
+    private final AtomicInteger unchanged = new AtomicInteger();
+    private final AtomicInteger oneSide = new AtomicInteger();
+    private final AtomicInteger inProcess = new AtomicInteger();
+    private final AtomicInteger diffTool = new AtomicInteger();
+  }
 }
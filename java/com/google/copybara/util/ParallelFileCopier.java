@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.copybara.shell.Command;
+import com.google.copybara.shell.CommandException;
+import com.google.copybara.util.FileUtil.CopyMode;
+import com.google.copybara.util.FileUtil.CopyStats;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies the content of the regular files found by {@link FileUtil}'s copy visitor, in parallel
+ * and using the {@link CopyMode} requested.
+ *
+ * <p>Java doesn't have an API for reflinks, so files are cloned with {@code cp --reflink=always},
+ * one invocation per batch of files. Whether the filesystem supports it is checked once per
+ * filesystem with a temporary file, and the result is reused for the rest of the process.
+ */
+final class ParallelFileCopier {
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final int BATCH_SIZE = 256;
+
+  // Whether cloning files works in each FileStore
+  private static final ConcurrentMap<String, Boolean> CLONE_SUPPORTED = new ConcurrentHashMap<>();
+
+  private final Path from;
+  private final Path to;
+  private final CopyMode mode;
+  private final int threads;
+  private final List<FileCopy> files = new ArrayList<>();
+
+  private final AtomicInteger copiedFiles = new AtomicInteger();
+  private final AtomicLong copiedBytes = new AtomicLong();
+  private final AtomicInteger linkedFiles = new AtomicInteger();
+  private final AtomicLong linkedBytes = new AtomicLong();
+
+  /**
+   * @param from root of the files copied. Files cloned need to be in the same relative path under
+   *     {@code from} and {@code to}.
+   * @param to root of the copy
+   */
+  ParallelFileCopier(Path from, Path to, CopyMode mode, int threads) {
+    this.from = checkNotNull(from);
+    this.to = checkNotNull(to);
+    this.mode = checkNotNull(mode);
+    this.threads = threads;
+  }
+
+  /**
+   * Adds a file to copy. The parent directory of {@code destFile} needs to exist.
+   *
+   * @param materializedSymlink if {@code file} is a symlink that is copied as a regular file
+   */
+  void add(Path file, Path destFile, boolean materializedSymlink) {
+    files.add(new FileCopy(file, destFile, materializedSymlink));
+  }
+
+  /** Copies all the files added. */
+  CopyStats copy() throws IOException {
+    CopyMode effectiveMode = mode;
+    if (mode == CopyMode.CLONE && !files.isEmpty() && !cloneSupported()) {
+      effectiveMode = CopyMode.COPY;
+    }
+    List<List<FileCopy>> batches = Lists.partition(files, BATCH_SIZE);
+    if (threads == 1 || batches.size() <= 1) {
+      for (List<FileCopy> batch : batches) {
+        copyBatch(batch, effectiveMode);
+      }
+    } else {
+      runInParallel(batches, effectiveMode);
+    }
+    return new CopyStats(copiedFiles.get(), copiedBytes.get(), linkedFiles.get(),
+        linkedBytes.get());
+  }
+
+  private void runInParallel(List<List<FileCopy>> batches, CopyMode effectiveMode)
+      throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("copy-files-%d").setDaemon(true).build());
+    try {
+      List<Future<?>> results = new ArrayList<>(batches.size());
+      for (List<FileCopy> batch : batches) {
+        results.add(executor.submit(() -> {
+          copyBatch(batch, effectiveMode);
+          return null;
+        }));
+      }
+      for (Future<?> result : results) {
+        result.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while copying files", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IllegalStateException("Unexpected error copying files", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void copyBatch(List<FileCopy> batch, CopyMode effectiveMode) throws IOException {
+    switch (effectiveMode) {
+      case COPY:
+        for (FileCopy file : batch) {
+          copy(file);
+        }
+        break;
+      case LINK:
+        for (FileCopy file : batch) {
+          link(file);
+        }
+        break;
+      case CLONE:
+        List<FileCopy> toClone = new ArrayList<>();
+        for (FileCopy file : batch) {
+          if (canClone(file)) {
+            toClone.add(file);
+          } else {
+            copy(file);
+          }
+        }
+        clone(toClone);
+        break;
+    }
+  }
+
+  private void copy(FileCopy file) throws IOException {
+    Files.copy(file.source, file.dest, StandardCopyOption.COPY_ATTRIBUTES);
+    // Make writable any symlink that we materialize. This is safe since we have already
+    // done a copy of the file. And it is probable that we will want to modify it.
+    if (file.materializedSymlink) {
+      FileUtil.addPermissions(file.dest, ImmutableSet.of(PosixFilePermission.OWNER_WRITE));
+    }
+    copiedFiles.incrementAndGet();
+    copiedBytes.addAndGet(Files.size(file.dest));
+  }
+
+  private void link(FileCopy file) throws IOException {
+    // Materialized symlinks are made writable, and that would change the original file.
+    if (file.materializedSymlink) {
+      copy(file);
+      return;
+    }
+    try {
+      Files.createLink(file.dest, file.source);
+    } catch (FileAlreadyExistsException e) {
+      throw e;
+    } catch (FileSystemException | UnsupportedOperationException e) {
+      // For example different filesystems, or the maximum number of links was reached.
+      logger.atFine().withCause(e).log("Cannot link %s. Copying it instead", file.source);
+      copy(file);
+      return;
+    }
+    linkedFiles.incrementAndGet();
+    linkedBytes.addAndGet(Files.size(file.dest));
+  }
+
+  /**
+   * Clones {@code batch} with a single {@code cp} invocation. If it fails, the files are copied
+   * instead.
+   */
+  private void clone(List<FileCopy> batch) throws IOException {
+    if (batch.isEmpty()) {
+      return;
+    }
+    for (FileCopy file : batch) {
+      // cp would overwrite it
+      if (Files.exists(file.dest, LinkOption.NOFOLLOW_LINKS)) {
+        throw new FileAlreadyExistsException(file.dest.toString());
+      }
+    }
+    List<String> args = new ArrayList<>();
+    args.add("--parents");
+    args.add("--target-directory=" + to.toAbsolutePath());
+    args.add("--");
+    for (FileCopy file : batch) {
+      args.add(from.relativize(file.source).toString());
+    }
+    if (cp(from, args)) {
+      for (FileCopy file : batch) {
+        linkedFiles.incrementAndGet();
+        linkedBytes.addAndGet(Files.size(file.dest));
+      }
+      return;
+    }
+    for (FileCopy file : batch) {
+      // cp might have left partial files
+      Files.deleteIfExists(file.dest);
+      copy(file);
+    }
+  }
+
+  private boolean cloneSupported() throws IOException {
+    // cp can only be used in the local filesystem (For example, not in tests using Jimfs)
+    if (!to.getFileSystem().equals(FileSystems.getDefault())
+        || !from.getFileSystem().equals(FileSystems.getDefault())) {
+      return false;
+    }
+    FileStore store = Files.getFileStore(to);
+    // Reflinks cannot cross filesystems
+    if (!Files.getFileStore(from).equals(store)) {
+      return false;
+    }
+    Boolean supported = CLONE_SUPPORTED.get(store.toString());
+    if (supported == null) {
+      Path probe = Files.createTempFile(to, "clone", ".tmp");
+      Path probeClone = probe.resolveSibling(probe.getFileName() + ".clone");
+      try {
+        Files.write(probe, new byte[] {1});
+        supported = cp(to, ImmutableList.of(
+            probe.getFileName().toString(), probeClone.getFileName().toString()));
+      } finally {
+        Files.deleteIfExists(probe);
+        Files.deleteIfExists(probeClone);
+      }
+      CLONE_SUPPORTED.put(store.toString(), supported);
+      if (!supported) {
+        logger.atInfo().log("Filesystem %s doesn't support cloning files. Copying them instead.",
+            store);
+      }
+    }
+    return supported;
+  }
+
+  /**
+   * Only regular files that are in the same relative path in both roots can be cloned in batch.
+   */
+  private boolean canClone(FileCopy file) {
+    return !file.materializedSymlink
+        && from.relativize(file.source).toString().equals(to.relativize(file.dest).toString());
+  }
+
+  /** Runs {@code cp --reflink=always} in {@code workdir} and returns whether it succeeded. */
+  private static boolean cp(Path workdir, List<String> cpArgs) {
+    List<String> args = new ArrayList<>();
+    args.add("cp");
+    args.add("--reflink=always");
+    args.add("--preserve=mode,timestamps");
+    args.addAll(cpArgs);
+    try {
+      new CommandRunner(new Command(args.toArray(new String[0]), /*environmentVariables=*/ null,
+          workdir.toFile()))
+          .withVerbose(false)
+          .execute();
+      return true;
+    } catch (CommandException e) {
+      logger.atFine().withCause(e).log("Cannot clone files in %s", workdir);
+      return false;
+    }
+  }
+
+  private static final class FileCopy {
+
+    private final Path source;
+    private final Path dest;
+    private final boolean materializedSymlink;
+
+    private FileCopy(Path source, Path dest, boolean materializedSymlink) {
+      this.source = source;
+      this.dest = dest;
+      this.materializedSymlink = materializedSymlink;
+    }
+  }
+}
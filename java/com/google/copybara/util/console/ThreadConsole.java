@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util.console;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.util.function.Predicate;
+import javax.annotation.Nullable;
+
+/**
+ * A console that writes to the console set for the current thread, or to a default console.
+ *
+ * <p>The console is not inherited by the threads started by a thread: the workers of a thread pool
+ * shared by several tasks would keep the console of the task that created them. Threads without a
+ * console set write to the default console.
+ */
+public class ThreadConsole implements Console {
+
+  private final Console defaultConsole;
+  private final ThreadLocal<Console> current = new ThreadLocal<>();
+
+  public ThreadConsole(Console defaultConsole) {
+    this.defaultConsole = Preconditions.checkNotNull(defaultConsole);
+  }
+
+  /** Makes the current thread write to {@code console}. */
+  public void setForCurrentThread(Console console) {
+    current.set(Preconditions.checkNotNull(console));
+  }
+
+  /** Makes the current thread write to the default console again. */
+  public void resetForCurrentThread() {
+    current.remove();
+  }
+
+  private Console delegate() {
+    Console console = current.get();
+    return console != null ? console : defaultConsole;
+  }
+
+  @Override
+  public void startupMessage(String version) {
+    delegate().startupMessage(version);
+  }
+
+  @Override
+  public void error(String message) {
+    delegate().error(message);
+  }
+
+  @Override
+  public void warn(String message) {
+    delegate().warn(message);
+  }
+
+  @Override
+  public boolean isVerbose() {
+    return delegate().isVerbose();
+  }
+
+  @Override
+  public void info(String message) {
+    delegate().info(message);
+  }
+
+  @Override
+  public void progress(String message) {
+    delegate().progress(message);
+  }
+
+  @Override
+  public void verbose(String message) {
+    delegate().verbose(message);
+  }
+
+  @Override
+  public boolean promptConfirmation(String message) {
+    return delegate().promptConfirmation(message);
+  }
+
+  @Override
+  public String ask(String msg, @Nullable String defaultAnswer, Predicate<String> validator)
+      throws IOException {
+    return delegate().ask(msg, defaultAnswer, validator);
+  }
+
+  @Override
+  public String colorize(AnsiColor ansiColor, String message) {
+    return delegate().colorize(ansiColor, message);
+  }
+
+  @Override
+  public void close() {
+    defaultConsole.close();
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.copybara.LocalParallelizer.TransformFunc;
+import com.google.copybara.exception.ValidationException;
+import com.google.copybara.profiler.Profiler;
+import com.google.copybara.profiler.RecordingListener;
+import com.google.copybara.profiler.Task;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LocalParallelizerTest {
+
+  private static final ImmutableList<Integer> ELEMENTS =
+      IntStream.range(0, 1000).boxed().collect(ImmutableList.toImmutableList());
+
+  @Test
+  public void testBatchesKeepOrder() throws Exception {
+    List<List<Integer>> batches =
+        new LocalParallelizer(4, /*minSize=*/ 1).run(ELEMENTS, ImmutableList::copyOf);
+
+    assertThat(batches.size()).isGreaterThan(1);
+    assertThat(Iterables.concat(batches)).containsExactlyElementsIn(ELEMENTS).inOrder();
+  }
+
+  @Test
+  public void testSmallListIsNotSplit() throws Exception {
+    List<List<Integer>> batches =
+        new LocalParallelizer(4, /*minSize=*/ 2000).run(ELEMENTS, ImmutableList::copyOf);
+
+    assertThat(batches).containsExactly(ELEMENTS);
+  }
+
+  @Test
+  public void testHeavyElementGetsItsOwnBatch() throws Exception {
+    List<List<Integer>> batches = new LocalParallelizer(4, /*minSize=*/ 1).run(ELEMENTS,
+        new TransformFunc<Integer, List<Integer>>() {
+          @Override
+          public List<Integer> run(Iterable<Integer> elements) {
+            return ImmutableList.copyOf(elements);
+          }
+
+          @Override
+          public long weight(Integer element) {
+            return element == 500 ? 1_000_000 : 1;
+          }
+        });
+
+    assertThat(batches).contains(ImmutableList.of(500));
+    assertThat(Iterables.concat(batches)).containsExactlyElementsIn(ELEMENTS).inOrder();
+  }
+
+  @Test
+  public void testExceptionsArePropagated() {
+    LocalParallelizer parallelizer = new LocalParallelizer(4, /*minSize=*/ 1);
+
+    IOException io = assertThrows(IOException.class, () -> parallelizer.run(ELEMENTS,
+        elements -> {
+          if (Iterables.contains(elements, 42)) {
+            throw new IOException("io failure");
+          }
+          return true;
+        }));
+    assertThat(io).hasMessageThat().isEqualTo("io failure");
+
+    ValidationException validation = assertThrows(ValidationException.class,
+        () -> parallelizer.run(ELEMENTS, elements -> {
+          throw new ValidationException("validation failure");
+        }));
+    assertThat(validation).hasMessageThat().isEqualTo("validation failure");
+  }
+
+  @Test
+  public void testBatchTimesArePublished() throws Exception {
+    Profiler profiler = new Profiler(Ticker.systemTicker());
+    RecordingListener listener = new RecordingListener();
+    profiler.init(ImmutableList.of(listener));
+
+    List<List<Integer>> batches = new LocalParallelizer(4, /*minSize=*/ 1)
+        .withProfiler(profiler)
+        .run(ELEMENTS, ImmutableList::copyOf);
+    profiler.stop();
+
+    List<String> tasks = new ArrayList<>();
+    for (Task task : listener.getCompletedTasks()) {
+      tasks.add(task.getDescription());
+    }
+    assertThat(tasks).hasSize(batches.size() + 1);
+    assertThat(tasks).containsAtLeastElementsIn(batches.stream()
+        .map(b -> String.format("//copybara/batch_%d_elements_%d_weight", b.size(), b.size()))
+        .collect(Collectors.toList()));
+  }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.copybara.testing.git.GitTestUtil.writeFile;
+import static com.google.copybara.util.CommandRunner.DEFAULT_TIMEOUT;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import com.google.copybara.config.Config;
+import com.google.copybara.config.ConfigValidator;
+import com.google.copybara.config.Migration;
+import com.google.copybara.exception.RepoException;
+import com.google.copybara.exception.ValidationException;
+import com.google.copybara.git.GitEnvironment;
+import com.google.copybara.git.GitRepository;
+import com.google.copybara.revision.Revision;
+import com.google.copybara.testing.OptionsBuilder;
+import com.google.copybara.testing.RecordsProcessCallDestination;
+import com.google.copybara.testing.SkylarkTestExecutor;
+import com.google.copybara.testing.git.GitTestUtil;
+import com.google.copybara.util.ExitCode;
+import com.google.copybara.util.console.Console;
+import com.google.copybara.util.console.Message.MessageType;
+import com.google.copybara.util.console.testing.TestingConsole;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MigrateAllCmdTest {
+
+  private SkylarkTestExecutor skylark;
+  private TestingConsole console;
+  private OptionsBuilder optionsBuilder;
+  private RecordsProcessCallDestination destination;
+  private Path temp;
+  private String url;
+  private String primaryBranch;
+  private final List<String> ran = Collections.synchronizedList(new ArrayList<>());
+
+  @Before
+  public void setUp() throws Exception {
+    console = new TestingConsole();
+    temp = Files.createTempDirectory("temp");
+    optionsBuilder = new OptionsBuilder();
+    optionsBuilder.setConsole(console).setOutputRootToTmpDir();
+    optionsBuilder.setForce(true);
+    optionsBuilder.setEnvironment(GitTestUtil.getGitEnv().getEnvironment());
+    optionsBuilder.setHomeDir(Files.createTempDirectory("home").toString());
+    Path remote = Files.createTempDirectory("remote");
+    GitRepository repo =
+        GitRepository.newRepo(
+            /*verbose*/ true, remote, new GitEnvironment(optionsBuilder.general.getEnvironment()))
+            .init();
+    primaryBranch = repo.getPrimaryBranch();
+    url = "file://" + remote.toFile().getAbsolutePath();
+    writeFile(remote, "test.txt", "some content");
+    repo.add().files("test.txt").run();
+    git(repo, remote, "commit", "-m", "first file");
+
+    destination = new RecordsProcessCallDestination();
+    optionsBuilder.testingOptions.destination = destination;
+    skylark = new SkylarkTestExecutor(optionsBuilder);
+  }
+
+  @Test
+  public void runsAllMigrations() throws Exception {
+    ExitCode exitCode = getMigrateAllCmd(workflow("one") + workflow("two"))
+        .run(new CommandEnv(temp,
+            optionsBuilder.build(),
+            ImmutableList.of(temp.resolve("copy.bara.sky").toString())));
+
+    assertThat(exitCode).isEqualTo(ExitCode.SUCCESS);
+    assertThat(ran).containsExactly("one", "two").inOrder();
+    assertThat(destination.processed).hasSize(2);
+    assertThat(Files.isDirectory(temp.resolve("migration_0"))).isTrue();
+    assertThat(Files.isDirectory(temp.resolve("migration_1"))).isTrue();
+    console.assertThat()
+        .onceInLog(MessageType.PROGRESS, "\\[one\\] Running migration in .*migration_0")
+        .onceInLog(MessageType.PROGRESS, "\\[two\\] Running migration in .*migration_1")
+        .onceInLog(MessageType.INFO, "  one: SUCCESS")
+        .onceInLog(MessageType.INFO, "  two: SUCCESS");
+  }
+
+  @Test
+  public void runsSelectedMigrations() throws Exception {
+    ExitCode exitCode = getMigrateAllCmd(workflow("one") + workflow("two"))
+        .run(new CommandEnv(temp,
+            optionsBuilder.build(),
+            ImmutableList.of(temp.resolve("copy.bara.sky").toString(), "two")));
+
+    assertThat(exitCode).isEqualTo(ExitCode.SUCCESS);
+    assertThat(ran).containsExactly("two");
+  }
+
+  @Test
+  public void unknownMigration() {
+    assertThrows(ValidationException.class, () -> getMigrateAllCmd(workflow("one"))
+        .run(new CommandEnv(temp,
+            optionsBuilder.build(),
+            ImmutableList.of(temp.resolve("copy.bara.sky").toString(), "one", "missing"))));
+    assertThat(ran).isEmpty();
+  }
+
+  @Test
+  public void migrationsWithSameDestinationAreGrouped() throws Exception {
+    Config config = skylark.loadConfig(workflow("one") + workflow("two"));
+    Migration one = config.getMigration("one");
+    Migration two = config.getMigration("two");
+
+    assertThat(MigrateAllCmd.destinationKey(one)).isEqualTo(MigrateAllCmd.destinationKey(two));
+  }
+
+  @Test
+  public void destinationKeyIsTheNormalizedUrl() throws Exception {
+    Config config = skylark.loadConfig(
+        workflow("one", "'https://Example.com/foo.git'", "'main'")
+            + workflow("two", "'https://example.com/foo/'", "'main'")
+            + workflow("three", "'https://example.com/foo'", "'other'")
+            + workflow("four", "'https://example.com/Foo'", "'main'"));
+    String one = MigrateAllCmd.destinationKey(config.getMigration("one"));
+
+    assertThat(MigrateAllCmd.destinationKey(config.getMigration("two"))).isEqualTo(one);
+    // Other references share the cached repository
+    assertThat(MigrateAllCmd.destinationKey(config.getMigration("three"))).isEqualTo(one);
+    // The path might be case sensitive
+    assertThat(MigrateAllCmd.destinationKey(config.getMigration("four"))).isNotEqualTo(one);
+  }
+
+  @Test
+  public void migrationsWithSameOriginRunConcurrently() throws Exception {
+    optionsBuilder.workflowOptions.migrateAllJobs = 2;
+    optionsBuilder.gitDestination.committerName = "Foo";
+    optionsBuilder.gitDestination.committerEmail = "foo@foo.com";
+    List<GitRepository> destinations = new ArrayList<>();
+    String config = workflowsWithGitDestinations(destinations, "one", "two");
+    // Neither migration can start until both are running
+    CyclicBarrier bothRunning = new CyclicBarrier(2);
+
+    ExitCode exitCode = getMigrateAllCmd(config, migration -> {
+      ran.add(migration.getName());
+      try {
+        bothRunning.await(1, TimeUnit.MINUTES);
+      } catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+        throw new AssertionError("Migrations are not running concurrently", e);
+      }
+    }).run(new CommandEnv(temp,
+        optionsBuilder.build(),
+        ImmutableList.of(temp.resolve("copy.bara.sky").toString())));
+
+    assertThat(exitCode).isEqualTo(ExitCode.SUCCESS);
+    assertThat(ran).containsExactly("one", "two");
+    for (GitRepository dest : destinations) {
+      assertThat(dest.simpleCommand("show", primaryBranch + ":test.txt").getStdout())
+          .isEqualTo("some content");
+    }
+  }
+
+  @Test
+  public void migrationsRunSequentiallyWithLocalDestinationRepo() throws Exception {
+    optionsBuilder.workflowOptions.migrateAllJobs = 2;
+    optionsBuilder.gitDestination.localRepoPath =
+        Files.createTempDirectory("local").toString();
+    String config = workflowsWithGitDestinations(new ArrayList<>(), "one", "two");
+    AtomicInteger running = new AtomicInteger();
+    AtomicBoolean overlapped = new AtomicBoolean();
+
+    getMigrateAllCmd(config, migration -> {
+      ran.add(migration.getName());
+      if (running.incrementAndGet() > 1) {
+        overlapped.set(true);
+      }
+      try {
+        Thread.sleep(500);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+      running.decrementAndGet();
+    }).run(new CommandEnv(temp,
+        optionsBuilder.build(),
+        ImmutableList.of(temp.resolve("copy.bara.sky").toString())));
+
+    assertThat(ran).containsExactly("one", "two").inOrder();
+    assertThat(overlapped.get()).isFalse();
+  }
+
+  @Test
+  public void combinedExitCode() {
+    assertThat(MigrateAllCmd.combinedExitCode(
+        ImmutableList.of(ExitCode.SUCCESS, ExitCode.NO_OP))).isEqualTo(ExitCode.SUCCESS);
+    assertThat(MigrateAllCmd.combinedExitCode(
+        ImmutableList.of(ExitCode.NO_OP, ExitCode.NO_OP))).isEqualTo(ExitCode.NO_OP);
+    assertThat(MigrateAllCmd.combinedExitCode(
+        ImmutableList.of(ExitCode.SUCCESS, ExitCode.REPOSITORY_ERROR,
+            ExitCode.CONFIGURATION_ERROR))).isEqualTo(ExitCode.REPOSITORY_ERROR);
+  }
+
+  private static String git(GitRepository repo, Path dir, String... params)
+      throws RepoException {
+    return repo.git(dir, params).getStdout();
+  }
+
+  private String workflow(String name) {
+    return workflow(name, "testing.destination()");
+  }
+
+  private String workflow(String name, String destinationUrl, String push) {
+    return workflow(name, "git.destination(\n"
+        + "         url = " + destinationUrl + ",\n"
+        + "         push = " + push + ",\n"
+        + "    )");
+  }
+
+  private String workflow(String name, String destination) {
+    return
+        "core.workflow(\n"
+            + "    name = '" + name + "',\n"
+            + "    origin = git.origin(\n"
+            + "         url = '" + url + "',\n"
+            + "         ref = '" + primaryBranch + "',\n"
+            + "    ),\n"
+            + "    destination = " + destination + ",\n"
+            + "    authoring = authoring.pass_thru('example <example@example.com>'),\n"
+            + ")\n";
+  }
+
+  /** Returns workflows that write to a new bare repository each, added to {@code repos}. */
+  private String workflowsWithGitDestinations(List<GitRepository> repos, String... names)
+      throws Exception {
+    StringBuilder config = new StringBuilder();
+    for (String name : names) {
+      GitRepository dest = GitRepository.newBareRepo(Files.createTempDirectory(name),
+          GitTestUtil.getGitEnv(), /*verbose=*/ true, DEFAULT_TIMEOUT, /*noVerify=*/ false)
+          .init();
+      repos.add(dest);
+      config.append(workflow(name, "'file://" + dest.getGitDir() + "'", "'" + primaryBranch + "'"));
+    }
+    return config.toString();
+  }
+
+  private MigrateAllCmd getMigrateAllCmd(String configInfo) {
+    return getMigrateAllCmd(configInfo, migration -> ran.add(migration.getName()));
+  }
+
+  private MigrateAllCmd getMigrateAllCmd(String configInfo, Consumer<Migration> onRun) {
+    ModuleSet moduleSet = skylark.createModuleSet();
+    return
+        new MigrateAllCmd(
+            new ConfigValidator() {},
+            onRun,
+            (configPath, sourceRef) ->
+                new ConfigLoader(
+                    moduleSet,
+                    skylark.createConfigFile("copy.bara.sky", configInfo),
+                    optionsBuilder.general.getStarlarkMode()) {
+                  @Override
+                  protected Config doLoadForRevision(Console console, Revision revision)
+                      throws ValidationException {
+                    try {
+                      return skylark.loadConfig(configPath);
+                    } catch (IOException e) {
+                      throw new AssertionError("Should not fail", e);
+                    }
+                  }
+                });
+  }
+}
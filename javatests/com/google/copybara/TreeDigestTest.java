@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import com.google.copybara.util.AbsoluteSymlinksNotAllowed;
+import com.google.copybara.util.Glob;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TreeDigestTest {
+
+  @Rule public final TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private final LocalParallelizer parallelizer = new LocalParallelizer(4, /*minSize=*/ 1);
+  private Path left;
+  private Path right;
+
+  @Before
+  public void setup() throws IOException {
+    left = tmpFolder.newFolder("left").toPath();
+    right = tmpFolder.newFolder("right").toPath();
+    for (Path root : ImmutableList.of(left, right)) {
+      write(root, "foo", "foo");
+      write(root, "dir/bar", "bar");
+      Files.createSymbolicLink(root.resolve("link"), Paths.get("foo"));
+    }
+  }
+
+  @Test
+  public void testSameTrees() throws Exception {
+    assertThat(digest(left).differences(digest(right), /*ignore=*/ null)).isEmpty();
+  }
+
+  @Test
+  public void testDifferences() throws Exception {
+    write(right, "dir/bar", "other");
+    write(right, "dir/new", "new");
+    Files.delete(right.resolve("foo"));
+
+    assertThat(digest(left).differences(digest(right), /*ignore=*/ null))
+        .containsExactly("dir/bar", "dir/new", "foo")
+        .inOrder();
+  }
+
+  @Test
+  public void testSymlinkTarget() throws Exception {
+    Files.delete(right.resolve("link"));
+    Files.createSymbolicLink(right.resolve("link"), Paths.get("dir/bar"));
+
+    assertThat(digest(left).differences(digest(right), /*ignore=*/ null))
+        .containsExactly("link");
+  }
+
+  @Test
+  public void testExecutableBit() throws Exception {
+    Files.setPosixFilePermissions(
+        right.resolve("foo"), PosixFilePermissions.fromString("rwx------"));
+
+    assertThat(digest(left).differences(digest(right), /*ignore=*/ null))
+        .containsExactly("foo");
+  }
+
+  @Test
+  public void testIgnoredFiles() throws Exception {
+    write(right, "dir/bar", "other");
+    write(right, "foo", "other");
+
+    assertThat(digest(left).differences(digest(right),
+        Glob.createGlob(ImmutableList.of("dir/**"))))
+        .containsExactly("foo");
+  }
+
+  @Test
+  public void testSymlinkOutsideRootFails() throws Exception {
+    Files.createSymbolicLink(left.resolve("outside"), Paths.get("../right/foo"));
+
+    assertThrows(AbsoluteSymlinksNotAllowed.class, () -> digest(left));
+  }
+
+  private TreeDigest digest(Path root) throws Exception {
+    return TreeDigest.compute(root, parallelizer);
+  }
+
+  private static void write(Path root, String path, String content) throws IOException {
+    Path file = root.resolve(path);
+    Files.createDirectories(file.getParent());
+    Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+  }
+}
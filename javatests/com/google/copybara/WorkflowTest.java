@@ -43,6 +43,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.jimfs.Jimfs;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.copybara.Destination.Writer;
 import com.google.copybara.authoring.Author;
 import com.google.copybara.authoring.AuthorParser;
@@ -99,6 +100,7 @@ import java.time.temporal.TemporalAccessor;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 import javax.annotation.Nullable;
@@ -305,6 +307,43 @@ public class WorkflowTest {
     assertThat(change.getOriginRef().asString()).isEqualTo(expected.asString());
   }
 
+  @Test
+  public void testPipelinedSquash() throws Exception {
+    options.workflowOptions.pipelinedSquash = true;
+    Path originDir = Files.createTempDirectory("origin");
+    Files.write(originDir.resolve("foo.txt"), "aa 1\naa\n".getBytes(UTF_8));
+    Files.write(originDir.resolve("bar.txt"), "no match\n".getBytes(UTF_8));
+    Files.createDirectories(originDir.resolve("excluded"));
+    Files.write(originDir.resolve("excluded/baz.txt"), "aa".getBytes(UTF_8));
+    origin.addChange(/*timestamp=*/ 42, originDir, "change", /*matchesGlob=*/ true);
+    transformations = ImmutableList.of(
+        "core.replace(before = 'aa', after = 'bb')",
+        "core.replace(before = '1', after = '2')",
+        "core.move('foo.txt', 'moved.txt')",
+        "core.replace(before = 'bb', after = 'cc')");
+    extraWorkflowFields = ImmutableList.of("reversible_check = True");
+
+    skylarkWorkflow("default", SQUASH).run(workdir, ImmutableList.of("HEAD"));
+
+    ProcessedChange change = Iterables.getOnlyElement(destination.processed);
+    assertThat(change.numFiles()).isEqualTo(2);
+    assertThat(change.getContent("moved.txt")).isEqualTo("cc 2\ncc\n");
+    assertThat(change.getContent("bar.txt")).isEqualTo("no match\n");
+  }
+
+  @Test
+  public void testPipelinedSquashNoop() throws Exception {
+    options.workflowOptions.pipelinedSquash = true;
+    origin.singleFileChange(/*timestamp=*/ 42, "change", "foo.txt", "aa");
+    transformations = ImmutableList.of(
+        "core.replace(before = 'not found', after = 'bb')",
+        "core.move('foo.txt', 'moved.txt')");
+
+    VoidOperationException e = assertThrows(VoidOperationException.class,
+        () -> skylarkWorkflow("default", SQUASH).run(workdir, ImmutableList.of("HEAD")));
+    assertThat(e).hasMessageThat().contains("was a no-op because it didn't change any");
+  }
+
   @Test
   public void testDisableCheckout() throws Exception {
     transformations = ImmutableList.of();
@@ -876,6 +915,190 @@ public class WorkflowTest {
     assertThat(destination.processed.get(1).getContent("file.txt")).isEqualTo("c");
   }
 
+  @Test
+  public void iterativePipelined() throws Exception {
+    options.workflowOptions.pipelinedIterative = true;
+    origin.singleFileChange(0, "base", "file.txt", "a");
+    origin.singleFileChange(1, "one", "file.txt", "b");
+    origin.singleFileChange(2, "two", "excluded/two", "b");
+    origin.singleFileChange(3, "three", "file.txt", "c");
+    origin.singleFileChange(4, "four", "file.txt", "d");
+    transformations = ImmutableList.of();
+    Workflow<?, ?> workflow = iterativeWorkflow(/*previousRef=*/"0");
+    workflow.run(workdir, ImmutableList.of(HEAD));
+
+    assertThat(destination.processed).hasSize(3);
+    assertThat(destination.processed.get(0).getChangesSummary()).contains("one");
+    assertThat(destination.processed.get(0).getContent("file.txt")).isEqualTo("b");
+    assertThat(destination.processed.get(1).getChangesSummary()).contains("three");
+    assertThat(destination.processed.get(1).getContent("file.txt")).isEqualTo("c");
+    assertThat(destination.processed.get(2).getChangesSummary()).contains("four");
+    assertThat(destination.processed.get(2).getContent("file.txt")).isEqualTo("d");
+  }
+
+  @Test
+  public void iterativePipelinedWithLimit() throws Exception {
+    options.workflowOptions.pipelinedIterative = true;
+    options.workflowOptions.iterativeLimitChanges = 2;
+    for (int timestamp = 0; timestamp < 10; timestamp++) {
+      origin.addSimpleChange(timestamp);
+    }
+    iterativeWorkflow(/*previousRef=*/"0").run(workdir, ImmutableList.of(HEAD));
+
+    assertThat(destination.processed).hasSize(2);
+    assertThat(destination.processed.get(0).getChangesSummary()).isEqualTo("1 change");
+    assertThat(destination.processed.get(1).getChangesSummary()).isEqualTo("2 change");
+  }
+
+  @Test
+  public void iterativePipelinedReadsDestinationAfterPreviousWrite() throws Exception {
+    options.workflowOptions.pipelinedIterative = true;
+    options.workflowOptions.lastRevision = "0";
+    origin.singleFileChange(0, "base", "file.txt", "a");
+    origin.singleFileChange(1, "one", "file.txt", "b");
+    origin.singleFileChange(2, "two", "file.txt", "c");
+    origin.singleFileChange(3, "three", "file.txt", "d");
+    // A slow write, so that the next change is prepared while it is in progress
+    destination.onWrite(
+        result -> Uninterruptibles.sleepUninterruptibly(200, TimeUnit.MILLISECONDS));
+    Config config = loadConfig(""
+        + "def record_previous(ctx):\n"
+        + "    current = ctx.read_path(ctx.new_path('file.txt'))\n"
+        + "    ctx.destination_reader().copy_destination_files(glob = glob(['file.txt']))\n"
+        + "    previous = ctx.read_path(ctx.new_path('file.txt'))\n"
+        + "    ctx.write_path(ctx.new_path('previous.txt'), previous)\n"
+        + "    ctx.write_path(ctx.new_path('file.txt'), current)\n"
+        + "\n"
+        + "core.workflow(\n"
+        + "    name = 'default',\n"
+        + "    origin = testing.origin(),\n"
+        + "    destination = testing.destination(),\n"
+        + "    authoring = " + authoring + ",\n"
+        + "    mode = 'ITERATIVE',\n"
+        + "    transformations = [record_previous],\n"
+        + ")\n");
+    config.getMigration("default").run(workdir, ImmutableList.of(HEAD));
+
+    // Like in the sequential mode, each change sees the previous one in the destination
+    assertThat(destination.processed).hasSize(3);
+    assertThat(destination.processed.get(0).getContent("previous.txt")).isEqualTo("b");
+    assertThat(destination.processed.get(1).getContent("previous.txt")).isEqualTo("b");
+    assertThat(destination.processed.get(2).getContent("previous.txt")).isEqualTo("c");
+  }
+
+  @Test
+  public void iterativePushOnce() throws Exception {
+    options.workflowOptions.iterativePushOnce = true;
+    destination.supportsDeferredPublishing = true;
+    origin.singleFileChange(0, "base", "file.txt", "a");
+    origin.singleFileChange(1, "one", "file.txt", "b");
+    origin.singleFileChange(2, "two", "file.txt", "c");
+    transformations = ImmutableList.of();
+    iterativeWorkflow(/*previousRef=*/"0").run(workdir, ImmutableList.of(HEAD));
+
+    assertThat(destination.processed).hasSize(2);
+    assertThat(destination.published)
+        .containsExactly(ImmutableList.copyOf(destination.processed));
+  }
+
+  @Test
+  public void iterativePushOnce_publishesChangesBeforeFailure() throws Exception {
+    checkPushOnceWithFailure();
+  }
+
+  @Test
+  public void iterativePipelinedPushOnce_publishesChangesBeforeFailure() throws Exception {
+    options.workflowOptions.pipelinedIterative = true;
+    checkPushOnceWithFailure();
+  }
+
+  private void checkPushOnceWithFailure() throws Exception {
+    options.workflowOptions.iterativePushOnce = true;
+    options.workflowOptions.lastRevision = "0";
+    destination.supportsDeferredPublishing = true;
+    origin.singleFileChange(0, "base", "file.txt", "a");
+    origin.singleFileChange(1, "one", "file.txt", "b");
+    origin.singleFileChange(2, "two", "file.txt", "c");
+    origin.singleFileChange(3, "three", "file.txt", "d");
+    origin.singleFileChange(4, "four", "file.txt", "e");
+    Config config = loadConfig(""
+        + "def fail_on_c(ctx):\n"
+        + "    if ctx.read_path(ctx.new_path('file.txt')) == 'c':\n"
+        + "        fail('Cannot migrate c')\n"
+        + "\n"
+        + "core.workflow(\n"
+        + "    name = 'default',\n"
+        + "    origin = testing.origin(),\n"
+        + "    destination = testing.destination(),\n"
+        + "    authoring = " + authoring + ",\n"
+        + "    mode = 'ITERATIVE',\n"
+        + "    transformations = [fail_on_c],\n"
+        + ")\n");
+
+    ValidationException e = assertThrows(ValidationException.class,
+        () -> config.getMigration("default").run(workdir, ImmutableList.of(HEAD)));
+
+    assertThat(e).hasMessageThat().contains("Cannot migrate c");
+    // The change migrated before the failure is published
+    assertThat(destination.processed).hasSize(1);
+    assertThat(destination.processed.get(0).getContent("file.txt")).isEqualTo("b");
+    assertThat(destination.published)
+        .containsExactly(ImmutableList.copyOf(destination.processed));
+  }
+
+  @Test
+  public void iterativeIncrementalCheckout_notSupportedByOrigin() throws Exception {
+    options.workflowOptions.incrementalCheckout = true;
+    origin.singleFileChange(0, "base", "file.txt", "a");
+    origin.singleFileChange(1, "one", "file.txt", "b");
+    origin.singleFileChange(2, "two", "file.txt", "c");
+    transformations = ImmutableList.of();
+    iterativeWorkflow(/*previousRef=*/"0").run(workdir, ImmutableList.of(HEAD));
+
+    assertThat(destination.processed).hasSize(2);
+    assertThat(destination.processed.get(0).getContent("file.txt")).isEqualTo("b");
+    assertThat(destination.processed.get(1).getContent("file.txt")).isEqualTo("c");
+  }
+
+  @Test
+  public void iterativeIncrementalCheckout_gitOriginStartsFromPristineFiles() throws Exception {
+    Path originPath = Files.createTempDirectory("origin");
+    GitRepository remote = GitRepository.newRepo(/*verbose*/ true, originPath, getGitEnv()).init();
+    String primaryBranch = remote.getPrimaryBranch();
+    Files.write(originPath.resolve("same.txt"), "foo".getBytes(UTF_8));
+    Files.write(originPath.resolve("file.txt"), "a".getBytes(UTF_8));
+    remote.add().files("same.txt", "file.txt").run();
+    remote.simpleCommand("commit", "-m", "base");
+    GitRevision base = remote.resolveReference(primaryBranch);
+    for (String content : ImmutableList.of("b", "c")) {
+      Files.write(originPath.resolve("file.txt"), content.getBytes(UTF_8));
+      remote.add().files("file.txt").run();
+      remote.simpleCommand("commit", "-m", "change " + content);
+    }
+
+    options.workflowOptions.incrementalCheckout = true;
+    options.workflowOptions.lastRevision = base.getSha1();
+    options.setWorkdirToRealTempDir();
+    Migration workflow = loadConfig(""
+        + "core.workflow(\n"
+        + "    name = 'default',\n"
+        + String.format("    origin = git.origin(url = 'file://%s', ref = '%s'),\n",
+            originPath, primaryBranch)
+        + "    destination = testing.destination(),\n"
+        + "    authoring = " + authoring + ",\n"
+        + "    mode = 'ITERATIVE',\n"
+        + "    transformations = [core.replace(before = 'foo', after = 'foo bar')],\n"
+        + ")\n").getMigration("default");
+    workflow.run(workdir, ImmutableList.of(primaryBranch));
+
+    assertThat(destination.processed).hasSize(2);
+    assertThat(destination.processed.get(0).getContent("file.txt")).isEqualTo("b");
+    assertThat(destination.processed.get(1).getContent("file.txt")).isEqualTo("c");
+    // The replace modified the file in the first change's checkout, not in the kept origin tree
+    assertThat(destination.processed.get(0).getContent("same.txt")).isEqualTo("foo bar");
+    assertThat(destination.processed.get(1).getContent("same.txt")).isEqualTo("foo bar");
+  }
+
   @Test
   public void iterativeOnlyRunForMatchingOriginFiles() throws Exception {
     checkItereativeOnlyRUnForMatchingOriginFiles("one", "three");
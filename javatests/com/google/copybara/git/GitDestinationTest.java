@@ -45,6 +45,7 @@ import com.google.copybara.authoring.Author;
 import com.google.copybara.checks.CheckerException;
 import com.google.copybara.effect.DestinationEffect;
 import com.google.copybara.effect.DestinationEffect.Type;
+import com.google.copybara.exception.ChangeRejectedException;
 import com.google.copybara.exception.EmptyChangeException;
 import com.google.copybara.exception.RepoException;
 import com.google.copybara.exception.ValidationException;
@@ -68,6 +69,8 @@ import com.google.copybara.util.console.testing.TestingConsole;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
@@ -698,6 +701,133 @@ public class GitDestinationTest {
     assertThat(thrown).hasMessageThat().contains("empty change");
   }
 
+  @Test
+  public void testPlumbing() throws Exception {
+    fetch = primaryBranch;
+    push = primaryBranch;
+    options.gitDestination.plumbing = true;
+    GitTestUtil.writeFile(workdir, "excluded", "excluded content");
+    GitTestUtil.writeFile(workdir, "sub/deleted", "deleted content");
+    GitTestUtil.writeFile(workdir, "sub/same", "same content");
+    repo().withWorkTree(workdir).add().files("excluded", "sub/deleted", "sub/same").run();
+    repo().withWorkTree(workdir).simpleCommand("commit", "-m", "first commit");
+
+    Files.delete(workdir.resolve("excluded"));
+    Files.delete(workdir.resolve("sub/deleted"));
+    GitTestUtil.writeFile(workdir, "sub/script", "#!/bin/bash");
+    Files.setPosixFilePermissions(workdir.resolve("sub/script"),
+        PosixFilePermissions.fromString("rwxr-xr-x"));
+    Files.createSymbolicLink(workdir.resolve("sub/link"), Paths.get("same"));
+    destinationFiles = Glob.createGlob(ImmutableList.of("**"), ImmutableList.of("excluded"));
+    process(newWriter(), new DummyRevision("origin_ref")
+        .withAuthor(new Author("Foo Bar", "foo@bar.com"))
+        .withTimestamp(timeFromEpoch(1414141414)));
+
+    assertThat(git("--git-dir", repoGitDir.toString(), "ls-tree", "-r", "HEAD"))
+        .matches("100644 blob [0-9a-f]{40}\texcluded\n"
+            + "120000 blob [0-9a-f]{40}\tsub/link\n"
+            + "100644 blob [0-9a-f]{40}\tsub/same\n"
+            + "100755 blob [0-9a-f]{40}\tsub/script\n");
+    assertCommitCount(2, "HEAD");
+    assertCommitHasOrigin("HEAD", "origin_ref");
+    assertCommitHasAuthor("HEAD", new Author("Foo Bar", "foo@bar.com"));
+  }
+
+  @Test
+  public void testPlumbing_emptyCommit() throws Exception {
+    fetch = primaryBranch;
+    push = primaryBranch;
+    options.gitDestination.plumbing = true;
+    Files.write(workdir.resolve("test.txt"), "some content".getBytes(UTF_8));
+    DummyRevision ref = new DummyRevision("origin_ref");
+    process(firstCommitWriter(), ref);
+    EmptyChangeException thrown =
+        assertThrows(EmptyChangeException.class, () -> process(newWriter(), ref));
+    assertThat(thrown).hasMessageThat().contains("empty change");
+  }
+
+  @Test
+  public void testDeferredPush() throws Exception {
+    fetch = primaryBranch;
+    push = primaryBranch;
+    Files.write(workdir.resolve("test.txt"), "one".getBytes(UTF_8));
+    process(firstCommitWriter(), new DummyRevision("first"));
+
+    Writer<GitRevision> writer = newWriter();
+    assertThat(writer.deferPublishing()).isTrue();
+    Files.write(workdir.resolve("test.txt"), "two".getBytes(UTF_8));
+    process(writer, new DummyRevision("second"));
+    Files.write(workdir.resolve("test.txt"), "three".getBytes(UTF_8));
+    process(writer, new DummyRevision("third"));
+    assertCommitCount(1, primaryBranch);
+
+    ImmutableList<DestinationEffect> effects = writer.publishDeferred(console);
+    assertThat(effects).hasSize(1);
+    assertThat(effects.get(0).getType()).isEqualTo(Type.CREATED);
+    assertCommitCount(3, primaryBranch);
+    assertCommitHasOrigin(primaryBranch, "third");
+    assertThat(writer.publishDeferred(console)).isEmpty();
+  }
+
+  @Test
+  public void testDeferredPush_declinedChangeIsNotPushed() throws Exception {
+    fetch = primaryBranch;
+    push = primaryBranch;
+    Files.write(workdir.resolve("test.txt"), "one".getBytes(UTF_8));
+    process(firstCommitWriter(), new DummyRevision("first"));
+
+    Writer<GitRevision> writer = newWriter();
+    assertThat(writer.deferPublishing()).isTrue();
+    Files.write(workdir.resolve("test.txt"), "two".getBytes(UTF_8));
+    process(writer, new DummyRevision("second"));
+    console = new TestingConsole().respondNo();
+    Files.write(workdir.resolve("test.txt"), "three".getBytes(UTF_8));
+    assertThrows(ChangeRejectedException.class, () -> processWithBaselineAndConfirmation(
+        writer, destinationFiles, new DummyRevision("third"), /*baseline=*/ null,
+        /*askForConfirmation=*/ true));
+
+    writer.publishDeferred(console);
+    assertCommitCount(2, primaryBranch);
+    assertCommitHasOrigin(primaryBranch, "second");
+    assertThat(repo().simpleCommand("show", primaryBranch + ":test.txt").getStdout())
+        .isEqualTo("two");
+  }
+
+  @Test
+  public void testDeferredPush_writeAfterFailedWriteSkipsItsCommit() throws Exception {
+    fetch = primaryBranch;
+    push = primaryBranch;
+    Files.write(workdir.resolve("test.txt"), "one".getBytes(UTF_8));
+    process(firstCommitWriter(), new DummyRevision("first"));
+
+    Writer<GitRevision> writer = newWriter();
+    assertThat(writer.deferPublishing()).isTrue();
+    Files.write(workdir.resolve("test.txt"), "two".getBytes(UTF_8));
+    process(writer, new DummyRevision("second"));
+    console = new TestingConsole().respondNo();
+    Files.write(workdir.resolve("test.txt"), "three".getBytes(UTF_8));
+    assertThrows(ChangeRejectedException.class, () -> processWithBaselineAndConfirmation(
+        writer, destinationFiles, new DummyRevision("third"), /*baseline=*/ null,
+        /*askForConfirmation=*/ true));
+    Files.write(workdir.resolve("test.txt"), "four".getBytes(UTF_8));
+    process(writer, new DummyRevision("fourth"));
+
+    writer.publishDeferred(console);
+    assertCommitCount(3, primaryBranch);
+    assertCommitHasOrigin(primaryBranch, "fourth");
+    assertCommitHasOrigin(primaryBranch + "~1", "second");
+  }
+
+  @Test
+  public void testDeferredPush_notSupportedWithTags() throws Exception {
+    fetch = primaryBranch;
+    push = primaryBranch;
+    Writer<GitRevision> writer = evalDestinationWithTag(/*tagMsg=*/ null).newWriter(
+        new WriterContext("piper_to_github", "TEST", /*dryRun=*/ false,
+            new DummyRevision("test"), Glob.ALL_FILES.roots()));
+    assertThat(writer.deferPublishing()).isFalse();
+  }
+
   @Test
   public void testExcludes_add() throws Exception {
     fetch = primaryBranch;
@@ -30,6 +30,7 @@ import static com.google.copybara.git.GitHubPrOrigin.GITHUB_PR_USE_MERGE;
 import static com.google.copybara.testing.git.GitTestUtil.getGitEnv;
 import static com.google.copybara.testing.git.GitTestUtil.mockResponse;
 import static com.google.copybara.testing.git.GitTestUtil.mockResponseAndValidateRequest;
+import static com.google.copybara.testing.git.GitTestUtil.mockResponseWithStatus;
 import static com.google.copybara.util.CommandRunner.DEFAULT_TIMEOUT;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertThrows;
@@ -39,7 +40,9 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
 import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
 import com.google.common.collect.HashMultimap;
@@ -49,6 +52,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.copybara.Origin.Baseline;
 import com.google.copybara.Origin.Reader;
 import com.google.copybara.Workflow;
@@ -83,6 +87,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -528,6 +534,69 @@ public class GitHubPrOriginTest {
                 + " following labels: [foo: yes]");
   }
 
+  @Test
+  public void testMetadataRequestsAreConcurrent() throws Exception {
+    MockPullRequest.create(gitUtil).setState("open").setPrNumber(125).mock();
+    // Each request waits until the three of them are in flight
+    CountDownLatch inFlight = new CountDownLatch(3);
+    gitUtil.mockApi(
+        "GET",
+        "https://api.github.com/repos/google/example/issues/125",
+        overlappingResponse(inFlight,
+            "{\"number\": 125, \"labels\": [{\"name\": \"foo: yes\"}]}"));
+    gitUtil.mockApi(
+        "GET",
+        "https://api.github.com/repos/google/example/commits/" + sha + "/status?per_page=100",
+        overlappingResponse(inFlight,
+            "{\"statuses\": [{\"context\": \"foo/one\", \"state\": \"success\"}]}"));
+    gitUtil.mockApi(
+        "GET",
+        "https://api.github.com/repos/google/example/commits/" + sha + "/check-runs",
+        overlappingResponse(inFlight,
+            "{\"check_runs\": [{\"name\": \"foo/one\", \"conclusion\": \"success\"}]}"));
+    options.githubPrOrigin.metadataThreads = 3;
+
+    checkResolve(
+        githubPrOrigin(
+            "url = 'https://github.com/google/example'",
+            "required_labels = ['foo: yes']",
+            "required_status_context_names = ['foo/one']",
+            "required_check_runs = ['foo/one']"),
+        "125",
+        125);
+
+    assertThat(inFlight.getCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testMetadataRequestErrorIsPropagated() throws Exception {
+    MockPullRequest.create(gitUtil).setState("open").setPrNumber(125).mock();
+    gitUtil.mockApi(
+        "GET",
+        "https://api.github.com/repos/google/example/commits/" + sha + "/status?per_page=100",
+        mockResponseWithStatus("", 500));
+    GitHubPrOrigin origin = githubPrOrigin(
+        "url = 'https://github.com/google/example'",
+        "required_status_context_names = ['foo/one']");
+
+    assertThrows(RepoException.class, () -> checkResolve(origin, "125", 125));
+  }
+
+  private static LowLevelHttpRequest overlappingResponse(CountDownLatch inFlight,
+      String content) {
+    LowLevelHttpRequest response = mockResponse(content);
+    return new MockLowLevelHttpRequest() {
+      @Override
+      public LowLevelHttpResponse execute() throws IOException {
+        inFlight.countDown();
+        if (!Uninterruptibles.awaitUninterruptibly(inFlight, 20, TimeUnit.SECONDS)) {
+          throw new IOException("The metadata requests were not done concurrently");
+        }
+        return response.execute();
+      }
+    };
+  }
+
   @Test
   public void testAlreadyClosed_default() throws Exception {
     MockPullRequest.create(gitUtil)
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.copybara.git.GitRepository.newBareRepo;
+import static com.google.copybara.testing.git.GitTestUtil.getGitEnv;
+import static com.google.copybara.util.CommandRunner.DEFAULT_TIMEOUT;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.copybara.authoring.Author;
+import com.google.copybara.exception.RepoException;
+import com.google.copybara.git.GitRepository.GitLogEntry;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class GitLogParserTest {
+
+  private static final String COMMIT_1 = Strings.repeat("1", 40);
+  private static final String COMMIT_2 = Strings.repeat("2", 40);
+  private static final String PARENT_1 = Strings.repeat("a", 40);
+  private static final String PARENT_2 = Strings.repeat("b", 40);
+  private static final String TREE = Strings.repeat("f", 40);
+
+  private GitRepository repository;
+
+  @Before
+  public void setup() throws Exception {
+    repository = newBareRepo(Files.createTempDirectory("gitdir"), getGitEnv(),
+        /*verbose=*/ true, DEFAULT_TIMEOUT, /*noVerify=*/ false);
+  }
+
+  @Test
+  public void testParseAll() throws Exception {
+    String log = "\u0001copybara\u0001"
+        + header(COMMIT_1, PARENT_1 + " " + PARENT_2, "2022-01-31T10:20:30+01:00")
+        + "--\n"
+        + "begin_body\n"
+        + "    first line\r\n"
+        + "    \n"
+        + "    --\n"
+        + "    end_body\n"
+        + "\n"
+        + "end_body\n"
+        + "--\n"
+        + "\0\n"
+        + "foo.txt\0dir/bar.txt\0"
+        + "\0\u0001copybara\u0001"
+        + header(COMMIT_2, "", "2022-01-31T10:20:30-07:30")
+        + "--\n"
+        + "begin_body\n"
+        + "    ünïcödé\n"
+        + "end_body\n"
+        + "--\n";
+
+    ImmutableList<GitLogEntry> entries =
+        new GitLogParser(repository, /*includeBody=*/ true, /*includeStat=*/ true)
+            .parseAll(log.getBytes(UTF_8));
+
+    assertThat(entries).hasSize(2);
+    GitLogEntry first = entries.get(0);
+    assertThat(first.getCommit().getSha1()).isEqualTo(COMMIT_1);
+    assertThat(first.getParents().stream().map(GitRevision::getSha1))
+        .containsExactly(PARENT_1, PARENT_2).inOrder();
+    assertThat(first.getTree()).isEqualTo(TREE);
+    assertThat(first.getAuthor()).isEqualTo(new Author("Fóo Bar", "foo@example.com"));
+    assertThat(first.getCommitter()).isEqualTo(new Author("Committer", "committer@example.com"));
+    assertThat(first.getAuthorDate())
+        .isEqualTo(ZonedDateTime.of(2022, 1, 31, 10, 20, 30, 0, ZoneOffset.ofHours(1)));
+    assertThat(first.getBody()).isEqualTo("first line\n\n--\nend_body\n");
+    assertThat(first.getFiles()).containsExactly("foo.txt", "dir/bar.txt").inOrder();
+
+    GitLogEntry second = entries.get(1);
+    assertThat(second.getCommit().getSha1()).isEqualTo(COMMIT_2);
+    assertThat(second.getParents()).isEmpty();
+    assertThat(second.getAuthorDate())
+        .isEqualTo(ZonedDateTime.of(2022, 1, 31, 10, 20, 30, 0, ZoneOffset.ofHoursMinutes(-7, -30)));
+    assertThat(second.getBody()).isEqualTo("ünïcödé");
+    assertThat(second.getFiles()).isEmpty();
+  }
+
+  @Test
+  public void testParseEmptyLog() throws Exception {
+    assertThat(new GitLogParser(repository, /*includeBody=*/ true, /*includeStat=*/ true)
+        .parseAll(new byte[0])).isEmpty();
+  }
+
+  @Test
+  public void testParseWithoutBodyAndFiles() throws Exception {
+    String log = "\u0001copybara\u0001"
+        + header(COMMIT_1, PARENT_1, "2022-01-31T10:20:30+00:00")
+        + "--\n\n--\n";
+
+    GitLogEntry entry = new GitLogParser(repository, /*includeBody=*/ false,
+        /*includeStat=*/ false).parseAll(log.getBytes(UTF_8)).get(0);
+
+    assertThat(entry.getBody()).isNull();
+    assertThat(entry.getFiles()).isNull();
+    assertThat(entry.getAuthorDate())
+        .isEqualTo(ZonedDateTime.of(2022, 1, 31, 10, 20, 30, 0, ZoneOffset.UTC));
+  }
+
+  @Test
+  public void testParseInvalidDate() throws Exception {
+    String log = "\u0001copybara\u0001"
+        + header(COMMIT_1, PARENT_1, "2022-13-31T10:20:30+00:00")
+        + "--\n\n--\n";
+
+    GitLogEntry entry = new GitLogParser(repository, /*includeBody=*/ false,
+        /*includeStat=*/ false).parseAll(log.getBytes(UTF_8)).get(0);
+
+    assertThat(entry.getAuthorDate()).isEqualTo(ZonedDateTime.ofInstant(Instant.EPOCH,
+        ZoneOffset.UTC));
+  }
+
+  @Test
+  public void testParseInvalidAuthor() throws Exception {
+    String log = "\u0001copybara\u0001"
+        + header(COMMIT_1, PARENT_1, "2022-01-31T10:20:30+00:00").replace("<foo@example.com>", "")
+        + "--\n\n--\n";
+
+    RepoException e = assertThrows(RepoException.class,
+        () -> new GitLogParser(repository, /*includeBody=*/ false, /*includeStat=*/ false)
+            .parseAll(log.getBytes(UTF_8)));
+    assertThat(e).hasMessageThat().contains("Invalid author");
+  }
+
+  private static String header(String commit, String parents, String date) {
+    return "commit=" + commit + "\n"
+        + "parents=" + parents + "\n"
+        + "tree=" + TREE + "\n"
+        + "author=Fóo Bar <foo@example.com>\n"
+        + "author_date=" + date + "\n"
+        + "committer=Committer <committer@example.com>\n"
+        + "committer_date=" + date + "\n";
+  }
+}
@@ -427,6 +427,55 @@ public class GitOriginTest {
     assertThat(Files.exists(testFile)).isFalse();
   }
 
+  @Test
+  public void testCheckoutIncrementally() throws Exception {
+    writeFile(remote, "other.txt", "other");
+    repo.add().files("other.txt").run();
+    git("commit", "-m", "second commit");
+    Path stateDir = Files.createTempDirectory("state");
+    Reader<GitRevision> reader = newReader();
+
+    assertThat(reader.checkoutIncrementally(origin.resolve(defaultBranch), checkoutDir, stateDir))
+        .isTrue();
+    assertThat(new String(Files.readAllBytes(checkoutDir.resolve("test.txt")), UTF_8))
+        .isEqualTo("some content");
+    assertThat(Files.exists(stateDir.resolve("index"))).isTrue();
+
+    // Modifications of the previous checkout are reverted
+    Files.write(checkoutDir.resolve("other.txt"), "modified".getBytes(UTF_8));
+    Files.write(checkoutDir.resolve("untracked.txt"), "untracked".getBytes(UTF_8));
+    writeFile(remote, "test.txt", "new content");
+    git("rm", "other.txt");
+    repo.add().files("test.txt").run();
+    git("commit", "-m", "third commit");
+
+    assertThat(reader.checkoutIncrementally(origin.resolve(defaultBranch), checkoutDir, stateDir))
+        .isTrue();
+    assertThat(new String(Files.readAllBytes(checkoutDir.resolve("test.txt")), UTF_8))
+        .isEqualTo("new content");
+    assertThat(Files.exists(checkoutDir.resolve("other.txt"))).isFalse();
+    // Not part of the origin checkout, so git doesn't delete it
+    assertThat(Files.exists(checkoutDir.resolve("untracked.txt"))).isTrue();
+  }
+
+  @Test
+  public void testCheckoutIncrementally_notSupportedWithPatch() throws Exception {
+    skylark.addConfigFile("some/patch.patch", ""
+        + "diff --git a/foo.txt b/foo.txt\n"
+        + "new file mode 100644\n"
+        + "index 0000000..1f0d200\n"
+        + "--- /dev/null\n"
+        + "+++ b/foo.txt\n"
+        + "@@ -0,0 +1 @@\n"
+        + "+some test\n");
+    moreOriginArgs = "patch = patch.apply(['some/patch.patch'])";
+
+    assertThat(origin().newReader(originFiles, authoring).checkoutIncrementally(
+        origin.resolve(defaultBranch), checkoutDir, Files.createTempDirectory("state")))
+        .isFalse();
+    assertThat(Files.exists(checkoutDir.resolve("test.txt"))).isFalse();
+  }
+
   @Test
   public void testPatch() throws Exception {
     String patch = "diff --git a/foo.txt b/foo.txt\n"
@@ -30,11 +30,15 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertThrows;
 
 import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.copybara.ChangeVisitable.VisitResult;
 import com.google.copybara.authoring.Author;
 import com.google.copybara.exception.CannotResolveRevisionException;
 import com.google.copybara.exception.EmptyChangeException;
@@ -45,12 +49,21 @@ import com.google.copybara.git.GitRepository.GitObjectType;
 import com.google.copybara.git.GitRepository.PushCmd;
 import com.google.copybara.git.GitRepository.StatusFile;
 import com.google.copybara.git.GitRepository.TreeElement;
+import com.google.copybara.profiler.Profiler;
 import com.google.copybara.testing.git.GitTestUtil;
 import com.google.copybara.util.CommandOutput;
+import com.google.copybara.util.Glob;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
@@ -60,6 +73,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import org.junit.Before;
 import org.junit.Test;
@@ -544,6 +562,50 @@ public class GitRepositoryTest {
     assertThat(paged.toString()).isEqualTo(singlePage.toString());
   }
 
+  @Test
+  public void testLogVisit() throws Exception {
+    createGraphOfCommits();
+    ImmutableList<GitLogEntry> singlePage = repository.log(defaultBranch)
+        .includeFiles(true)
+        .includeMergeDiff(true)
+        .firstParent(false)
+        .run();
+    List<GitLogEntry> visited = new ArrayList<>();
+    int count = repository.log(defaultBranch)
+        .includeFiles(true)
+        .includeMergeDiff(true)
+        .firstParent(false)
+        .visit(e -> {
+          visited.add(e);
+          return VisitResult.CONTINUE;
+        }, /*readAhead=*/ 2);
+    assertThat(count).isEqualTo(singlePage.size());
+    assertThat(visited.toString()).isEqualTo(singlePage.toString());
+  }
+
+  @Test
+  public void testLogVisitTerminate() throws Exception {
+    createGraphOfCommits();
+    List<GitLogEntry> visited = new ArrayList<>();
+    int count = repository.log(defaultBranch)
+        .firstParent(false)
+        .visit(e -> {
+          visited.add(e);
+          return visited.size() == 3 ? VisitResult.TERMINATE : VisitResult.CONTINUE;
+        }, /*readAhead=*/ 1);
+    assertThat(count).isEqualTo(3);
+    assertThat(visited.toString())
+        .isEqualTo(repository.log(defaultBranch).firstParent(false).withLimit(3).run().toString());
+  }
+
+  @Test
+  public void testLogVisitInvalidRef() throws Exception {
+    singleFileCommit("first", "foo.txt", "foo");
+    RepoException e = assertThrows(RepoException.class,
+        () -> repository.log("not_a_ref").visit(entry -> VisitResult.CONTINUE, /*readAhead=*/ 10));
+    assertThat(e).hasMessageThat().contains("Cannot find reference 'not_a_ref'");
+  }
+
   private void createGraphOfCommits() throws Exception {
     for (int i = 0; i < 10; i++) {
       singleFileCommit("main_" + i, "foo.txt", "foo_" + i);
@@ -773,6 +835,321 @@ public class GitRepositoryTest {
         "file://" + repository.getGitDir(), rev.getSha1(), false);
   }
 
+  @Test
+  public void testFetchSha1AlreadyInRefCache() throws Exception {
+    List<Iterable<String>> requestedFetches = new ArrayList<>();
+    GitRepository dest = recordingFetchesRepo(requestedFetches);
+    dest.withRefCache(new GitRefCache(dest.getGitDir().resolve(GitRefCache.FILE_NAME),
+        Duration.ZERO, new Profiler(Ticker.systemTicker()), Clock.systemUTC()));
+
+    Files.write(workdir.resolve("foo.txt"), "aaa".getBytes(UTF_8));
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "foo.txt", "-m", "message 1");
+    String sha1 = repository.resolveReference("HEAD").getSha1();
+    String url = "file://" + repository.getGitDir();
+
+    assertThat(dest.fetchSingleRef(url, sha1, false).getSha1()).isEqualTo(sha1);
+    assertThat(requestedFetches).hasSize(1);
+
+    // The SHA-1 is now in the local repository, so no fetch is needed
+    assertThat(dest.fetchSingleRef(url, sha1, false).getSha1()).isEqualTo(sha1);
+    assertThat(requestedFetches).hasSize(1);
+
+    // Unless tags are requested
+    dest.fetchSingleRefWithTags(url, sha1, /*fetchTags=*/ true, false);
+    assertThat(requestedFetches).hasSize(2);
+  }
+
+  @Test
+  public void testFetchRefInRefCache() throws Exception {
+    List<Iterable<String>> requestedFetches = new ArrayList<>();
+    GitRepository dest = recordingFetchesRepo(requestedFetches);
+    Instant now = Instant.now();
+    Path cacheFile = dest.getGitDir().resolve(GitRefCache.FILE_NAME);
+    dest.withRefCache(new GitRefCache(cacheFile, Duration.ofMinutes(10),
+        new Profiler(Ticker.systemTicker()), Clock.fixed(now, ZoneOffset.UTC)));
+
+    Files.write(workdir.resolve("foo.txt"), "aaa".getBytes(UTF_8));
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "foo.txt", "-m", "message 1");
+    String first = repository.resolveReference("HEAD").getSha1();
+    String url = "file://" + repository.getGitDir();
+
+    assertThat(dest.fetchSingleRef(url, defaultBranch, false).getSha1()).isEqualTo(first);
+    assertThat(requestedFetches).hasSize(1);
+
+    Files.write(workdir.resolve("foo.txt"), "bbb".getBytes(UTF_8));
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "foo.txt", "-m", "message 2");
+
+    // Within the TTL the cached SHA-1 is used, even if the remote branch moved
+    GitRevision cached = dest.fetchSingleRef(url, defaultBranch, false);
+    assertThat(cached.getSha1()).isEqualTo(first);
+    assertThat(cached.contextReference()).isEqualTo(defaultBranch);
+    assertThat(requestedFetches).hasSize(1);
+
+    // The cache is persisted, but entries expire after the TTL
+    dest.withRefCache(new GitRefCache(cacheFile, Duration.ofMinutes(10),
+        new Profiler(Ticker.systemTicker()),
+        Clock.fixed(now.plus(Duration.ofMinutes(11)), ZoneOffset.UTC)));
+    assertThat(dest.fetchSingleRef(url, defaultBranch, false).getSha1())
+        .isEqualTo(repository.resolveReference("HEAD").getSha1());
+    assertThat(requestedFetches).hasSize(2);
+  }
+
+  @Test
+  public void testRefCacheMergesEntriesOfOtherProcesses() throws Exception {
+    Path cacheFile = Files.createTempDirectory("ref_cache").resolve(GitRefCache.FILE_NAME);
+    Clock clock = Clock.fixed(Instant.now(), ZoneOffset.UTC);
+    GitRefCache first = new GitRefCache(cacheFile, Duration.ofMinutes(10),
+        new Profiler(Ticker.systemTicker()), clock);
+    GitRefCache second = new GitRefCache(cacheFile, Duration.ofMinutes(10),
+        new Profiler(Ticker.systemTicker()), clock);
+    String sha1 = Strings.repeat("a", 40);
+    String otherSha1 = Strings.repeat("b", 40);
+    // Both read the file before any of them writes to it
+    assertThat(first.get("url", "foo")).isNull();
+    assertThat(second.get("url", "foo")).isNull();
+
+    first.put("url", "foo", sha1);
+    second.put("url", "bar", otherSha1);
+
+    GitRefCache reader = new GitRefCache(cacheFile, Duration.ofMinutes(10),
+        new Profiler(Ticker.systemTicker()), clock);
+    assertThat(reader.get("url", "foo")).isEqualTo(sha1);
+    assertThat(reader.get("url", "bar")).isEqualTo(otherSha1);
+
+    // Invalidated entries are not merged back from the file
+    second.invalidate("url", "foo");
+    second.put("url", "baz", otherSha1);
+    reader = new GitRefCache(cacheFile, Duration.ofMinutes(10),
+        new Profiler(Ticker.systemTicker()), clock);
+    assertThat(reader.get("url", "foo")).isNull();
+    assertThat(reader.get("url", "bar")).isEqualTo(otherSha1);
+    assertThat(reader.get("url", "baz")).isEqualTo(otherSha1);
+  }
+
+  @Test
+  public void testFetchWithCacheMaintenance() throws Exception {
+    singleFileCommit("message", "foo.txt", "aaa");
+    Path cacheDir = Files.createTempDirectory("git_repos");
+    GitCacheMaintenance maintenance = new GitCacheMaintenance(cacheDir, /*maxBytes=*/ 0,
+        new Profiler(Ticker.systemTicker()), Clock.fixed(Instant.EPOCH, ZoneOffset.UTC));
+    GitRepository dest = GitRepository.newBareRepo(cacheDir.resolve("dest"), getGitEnv(),
+        /*verbose=*/true, DEFAULT_TIMEOUT, /*noVerify=*/ false).init();
+    maintenance.markUsed(dest);
+    assertThat(Files.readAllLines(cacheDir.resolve(GitCacheMaintenance.MANIFEST)))
+        .containsExactly("0 -1 dest");
+
+    dest.withCacheMaintenance(maintenance)
+        .fetch("file://" + repository.getGitDir(), /*prune=*/ false, /*force=*/ true,
+            ImmutableList.of("refs/heads/*:refs/heads/*"), /*partialFetch=*/ false);
+
+    assertThat(Files.exists(dest.getGitDir()
+        .resolve("objects/info/commit-graphs/commit-graph-chain"))).isTrue();
+    List<String> manifest = Files.readAllLines(cacheDir.resolve(GitCacheMaintenance.MANIFEST));
+    assertThat(manifest).hasSize(1);
+    assertThat(manifest.get(0)).matches("0 [1-9][0-9]* dest");
+  }
+
+  @Test
+  public void testCacheManifestKeepsConcurrentUpdates() throws Exception {
+    Path cacheDir = Files.createTempDirectory("git_repos");
+    List<String> names = new ArrayList<>();
+    List<Callable<Void>> updates = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      String name = "repo_" + i;
+      names.add(name);
+      GitRepository repo = GitRepository.newBareRepo(cacheDir.resolve(name), getGitEnv(),
+          /*verbose=*/true, DEFAULT_TIMEOUT, /*noVerify=*/ false);
+      // One instance per repository, like separate processes sharing the cache
+      GitCacheMaintenance maintenance = new GitCacheMaintenance(cacheDir, /*maxBytes=*/ 0,
+          new Profiler(Ticker.systemTicker()), Clock.fixed(Instant.EPOCH, ZoneOffset.UTC));
+      updates.add(() -> {
+        maintenance.markUsed(repo);
+        return null;
+      });
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(updates.size());
+    try {
+      for (Future<Void> f : executor.invokeAll(updates)) {
+        f.get();
+      }
+    } finally {
+      MoreExecutors.shutdownAndAwaitTermination(executor, 20, TimeUnit.SECONDS);
+    }
+
+    assertThat(Files.readAllLines(cacheDir.resolve(GitCacheMaintenance.MANIFEST)).stream()
+        .map(l -> l.substring(l.lastIndexOf(' ') + 1)).collect(Collectors.toList()))
+        .containsExactlyElementsIn(names);
+  }
+
+  @Test
+  public void testCacheMaintenanceEvictsUnusedRepos() throws Exception {
+    singleFileCommit("message", "foo.txt", "aaa");
+    String url = "file://" + repository.getGitDir();
+    Path cacheDir = Files.createTempDirectory("git_repos");
+    Instant now = Instant.now();
+    Map<String, Instant> lastUse = ImmutableMap.of(
+        "oldest", now.minus(Duration.ofDays(2)),
+        "old", now.minus(Duration.ofDays(1)),
+        "recent", now.minus(Duration.ofMinutes(5)));
+    for (Map.Entry<String, Instant> e : lastUse.entrySet()) {
+      GitRepository repo = GitRepository.newBareRepo(cacheDir.resolve(e.getKey()), getGitEnv(),
+          /*verbose=*/true, DEFAULT_TIMEOUT, /*noVerify=*/ false).init();
+      new GitCacheMaintenance(cacheDir, /*maxBytes=*/ 0, new Profiler(Ticker.systemTicker()),
+          Clock.fixed(e.getValue(), ZoneOffset.UTC)).markUsed(repo);
+      repo.fetch(url, /*prune=*/ false, /*force=*/ true,
+          ImmutableList.of("refs/heads/*:refs/heads/*"), /*partialFetch=*/ false);
+    }
+
+    // No repository fits in the budget
+    GitRepository current = GitRepository.newBareRepo(cacheDir.resolve("current"), getGitEnv(),
+        /*verbose=*/true, DEFAULT_TIMEOUT, /*noVerify=*/ false).init();
+    GitCacheMaintenance maintenance = new GitCacheMaintenance(cacheDir, /*maxBytes=*/ 1,
+        new Profiler(Ticker.systemTicker()), Clock.fixed(now, ZoneOffset.UTC));
+    maintenance.markUsed(current);
+    current.withCacheMaintenance(maintenance).fetch(url, /*prune=*/ false, /*force=*/ true,
+        ImmutableList.of("refs/heads/*:refs/heads/*"), /*partialFetch=*/ false);
+
+    assertThat(Files.exists(cacheDir.resolve("oldest"))).isFalse();
+    assertThat(Files.exists(cacheDir.resolve("old"))).isFalse();
+    // Used less than an hour ago, so it might be in use by another process
+    assertThat(Files.exists(cacheDir.resolve("recent"))).isTrue();
+    assertThat(Files.exists(cacheDir.resolve("current"))).isTrue();
+    assertThat(Files.readAllLines(cacheDir.resolve(GitCacheMaintenance.MANIFEST)).stream()
+        .map(l -> l.substring(l.lastIndexOf(' ') + 1)).collect(Collectors.toList()))
+        .containsExactly("current", "recent");
+  }
+
+  @Test
+  public void testFetchCoalescedWithOtherProcess() throws Exception {
+    singleFileCommit("first", "foo.txt", "aaa");
+    String first = repository.parseRef("HEAD");
+    String url = "file://" + repository.getGitDir();
+    Path destDir = Files.createTempDirectory("git_repos").resolve("dest");
+    GitCacheLock lock = new GitCacheLock(destDir, Duration.ofMinutes(10), DEFAULT_TIMEOUT,
+        new Profiler(Ticker.systemTicker()), Clock.systemUTC());
+    lock.markInUse();
+    GitRepository dest = GitRepository.newBareRepo(destDir, getGitEnv(),
+        /*verbose=*/true, DEFAULT_TIMEOUT, /*noVerify=*/ false).init().withCacheLock(lock);
+    dest.fetch(url, /*prune=*/ false, /*force=*/ true,
+        ImmutableList.of("refs/heads/*:refs/heads/*"), /*partialFetch=*/ false);
+    singleFileCommit("second", "foo.txt", "bbb");
+
+    // Fetches of this process are not coalesced
+    dest.fetch(url, /*prune=*/ false, /*force=*/ true,
+        ImmutableList.of("refs/heads/*:refs/heads/*"), /*partialFetch=*/ false);
+    String second = dest.parseRef(defaultBranch);
+    assertThat(second).isNotEqualTo(first);
+    singleFileCommit("third", "foo.txt", "ccc");
+
+    // Pretend that the fetches were done by another process
+    Path log = destDir.resolve(GitCacheLock.FETCH_LOG);
+    Files.write(log, Files.readAllLines(log).stream()
+        .map(l -> Splitter.on(' ').limit(3).splitToList(l))
+        .map(f -> f.get(0) + " other_process " + f.get(2))
+        .collect(Collectors.toList()));
+    dest.fetch(url, /*prune=*/ false, /*force=*/ true,
+        ImmutableList.of("refs/heads/*:refs/heads/*"), /*partialFetch=*/ false);
+    assertThat(dest.parseRef(defaultBranch)).isEqualTo(second);
+
+    // A different fetch is not coalesced
+    dest.fetch(url, /*prune=*/ false, /*force=*/ true,
+        ImmutableList.of("refs/heads/*:refs/other/*"), /*partialFetch=*/ false);
+    assertThat(dest.parseRef("refs/other/" + defaultBranch))
+        .isEqualTo(repository.parseRef("HEAD"));
+  }
+
+  @Test
+  public void testCacheLockPreventsDeletion() throws Exception {
+    Path cacheDir = Files.createTempDirectory("git_repos");
+    Path used = cacheDir.resolve("used");
+    GitRepository.newBareRepo(used, getGitEnv(),
+        /*verbose=*/true, DEFAULT_TIMEOUT, /*noVerify=*/ false).init();
+    GitRepository.newBareRepo(cacheDir.resolve("unused"), getGitEnv(),
+        /*verbose=*/true, DEFAULT_TIMEOUT, /*noVerify=*/ false).init();
+    Files.write(cacheDir.resolve("unused").resolve(GitCacheLock.USE_LOCK), new byte[0]);
+
+    // Like markInUse in another process: the lock is not known to GitCacheLock in this one
+    try (FileChannel channel = FileChannel.open(used.resolve(GitCacheLock.USE_LOCK),
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock ignored = channel.lock(0, Long.MAX_VALUE, /*shared=*/ true)) {
+      assertThat(GitCacheLock.deleteIfUnused(used)).isFalse();
+      assertThat(Files.exists(used)).isTrue();
+    }
+    assertThat(GitCacheLock.deleteIfUnused(cacheDir.resolve("unused"))).isTrue();
+    assertThat(Files.exists(cacheDir.resolve("unused"))).isFalse();
+    // Released when the other process exits
+    assertThat(GitCacheLock.deleteIfUnused(used)).isTrue();
+    assertThat(Files.exists(used)).isFalse();
+  }
+
+  @Test
+  public void testCacheLockPreventsDeletionByThisProcess() throws Exception {
+    Path used = Files.createTempDirectory("git_repos").resolve("used");
+    new GitCacheLock(used, Duration.ZERO, DEFAULT_TIMEOUT,
+        new Profiler(Ticker.systemTicker()), Clock.systemUTC()).markInUse();
+
+    assertThat(GitCacheLock.deleteIfUnused(used)).isFalse();
+    assertThat(Files.exists(used)).isTrue();
+  }
+
+  @Test
+  public void testConcurrentCheckoutsFromSameRepository() throws Exception {
+    singleFileCommit("first", "foo.txt", "aaa");
+    String first = repository.parseRef("HEAD");
+    singleFileCommit("second", "foo.txt", "bbb");
+    String second = repository.parseRef("HEAD");
+    GitRepository cached = GitRepository.newBareRepo(
+        Files.createTempDirectory("git_repos").resolve("cached"), getGitEnv(),
+        /*verbose=*/true, DEFAULT_TIMEOUT, /*noVerify=*/ false).init();
+    cached.fetch("file://" + repository.getGitDir(), /*prune=*/ false, /*force=*/ true,
+        ImmutableList.of("refs/heads/*:refs/heads/*"), /*partialFetch=*/ false);
+    String headBefore = new String(Files.readAllBytes(cached.getGitDir().resolve("HEAD")), UTF_8);
+
+    List<Callable<String>> checkouts = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      String ref = i % 2 == 0 ? first : second;
+      checkouts.add(() -> {
+        Path workdir = Files.createTempDirectory("workdir");
+        cached.withWorkTree(workdir).forceCheckoutWithIndex(
+            Files.createTempDirectory("index").resolve("index"), ref, ImmutableSet.of());
+        return ref + " " + new String(Files.readAllBytes(workdir.resolve("foo.txt")), UTF_8);
+      });
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(checkouts.size());
+    List<String> results = new ArrayList<>();
+    try {
+      for (Future<String> f : executor.invokeAll(checkouts)) {
+        results.add(f.get());
+      }
+    } finally {
+      MoreExecutors.shutdownAndAwaitTermination(executor, 20, TimeUnit.SECONDS);
+    }
+
+    assertThat(ImmutableSet.copyOf(results)).containsExactly(first + " aaa", second + " bbb");
+    // The shared index and HEAD are not used
+    assertThat(Files.exists(cached.getGitDir().resolve("index"))).isFalse();
+    assertThat(new String(Files.readAllBytes(cached.getGitDir().resolve("HEAD")), UTF_8))
+        .isEqualTo(headBefore);
+  }
+
+  private static GitRepository recordingFetchesRepo(List<Iterable<String>> requestedFetches)
+      throws Exception {
+    return new GitRepository(Files.createTempDirectory("destDir"), /*workTree=*/null,
+        true, getGitEnv(), DEFAULT_TIMEOUT, /*noVerify=*/ false) {
+
+      @Override
+      public FetchResult fetch(String url, boolean prune, boolean force, Iterable<String> refspecs,
+          boolean partialFetch)
+          throws RepoException, ValidationException {
+        requestedFetches.add(refspecs);
+        return super.fetch(url, prune, force, refspecs, partialFetch);
+      }
+    }.init();
+  }
+
   @Test
   public void testFetchInvalidGitRepo() throws Exception {
     GitRepository dest = GitRepository.newBareRepo(Files.createTempDirectory("destDir"),
@@ -934,6 +1311,34 @@ public class GitRepositoryTest {
         .containsExactly("foo/one\t.test", "foo/two\\t.test");
   }
 
+  @Test
+  public void testCheckoutGlob() throws Exception {
+    Files.createDirectories(workdir.resolve("foo/bar"));
+    Files.write(workdir.resolve("foo/bar/file.txt"), "content".getBytes(UTF_8));
+    Files.write(workdir.resolve("foo/empty.txt"), new byte[]{});
+    Files.write(workdir.resolve("foo/exec.sh"), "#!/bin/sh".getBytes(UTF_8));
+    Files.setPosixFilePermissions(workdir.resolve("foo/exec.sh"),
+        PosixFilePermissions.fromString("rwxr-xr-x"));
+    Files.createSymbolicLink(workdir.resolve("foo/link"), Paths.get("bar/file.txt"));
+    Files.write(workdir.resolve("excluded.txt"), "excluded".getBytes(UTF_8));
+    repository.add().all().run();
+    repository.simpleCommand("commit", "-m", "message");
+
+    Path dest = Files.createTempDirectory("dest");
+    repository.checkout(Glob.createGlob(ImmutableList.of("foo/**")), dest,
+        repository.resolveReference("HEAD"));
+
+    assertThat(Files.readAllBytes(dest.resolve("foo/bar/file.txt")))
+        .isEqualTo("content".getBytes(UTF_8));
+    assertThat(Files.size(dest.resolve("foo/empty.txt"))).isEqualTo(0);
+    assertThat(Files.isExecutable(dest.resolve("foo/exec.sh"))).isTrue();
+    assertThat(Files.isExecutable(dest.resolve("foo/bar/file.txt"))).isFalse();
+    assertThat(Files.isSymbolicLink(dest.resolve("foo/link"))).isTrue();
+    assertThat(Files.readSymbolicLink(dest.resolve("foo/link")).toString())
+        .isEqualTo("bar/file.txt");
+    assertThat(Files.exists(dest.resolve("excluded.txt"))).isFalse();
+  }
+
   @Test
   public void commitWithLargeDescription() throws IOException, RepoException, ValidationException {
     String line = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789\n";
@@ -1135,6 +1540,77 @@ public class GitRepositoryTest {
     assertThat(repository.readFile("refs/heads/" + defaultBranch, "foo.txt")).isEqualTo("Hello");
   }
 
+  @Test
+  public void testObjectSession() throws Exception {
+    singleFileCommit("first", "foo.txt", "Hello");
+    String first = repository.parseRef("HEAD");
+    try (GitObjectSession session = repository.newObjectSession(
+        new Profiler(Ticker.systemTicker()))) {
+      repository.withObjectSession(session);
+      assertThat(repository.parseRef("HEAD")).isEqualTo(first);
+      assertThat(repository.readFile("HEAD", "foo.txt")).isEqualTo("Hello");
+      assertThat(repository.resolveReference(first).getSha1()).isEqualTo(first);
+
+      // References updated by other processes are seen by the session
+      singleFileCommit("second", "foo.txt", "Bye");
+      repository.simpleCommand("pack-refs", "--all");
+      String second = repository.simpleCommand("rev-parse", "HEAD").getStdout().trim();
+      assertThat(repository.parseRef("refs/heads/" + defaultBranch)).isEqualTo(second);
+      assertThat(repository.readFile("HEAD", "foo.txt")).isEqualTo("Bye");
+      assertThat(repository.parseRef("HEAD~1")).isEqualTo(first);
+
+      assertThrows(CannotResolveRevisionException.class, () -> repository.parseRef("missing"));
+      RepoException e = assertThrows(RepoException.class,
+          () -> repository.readFile("HEAD", "missing.txt"));
+      assertThat(e).hasMessageThat().contains("Cannot read file 'missing.txt'");
+
+      GitObjectSession.ObjectInfo info = session.lookup("HEAD:foo.txt");
+      assertThat(info.getType()).isEqualTo(GitObjectType.BLOB);
+      assertThat(info.getSize()).isEqualTo(3);
+      assertThat(info.getContent()).isNull();
+      assertThat(session.lookup("HEAD^{tree}").getType()).isEqualTo(GitObjectType.TREE);
+      assertThat(session.getLookupStats().getCalls()).isGreaterThan(0);
+    }
+  }
+
+  @Test
+  public void testObjectSessionPipelined() throws Exception {
+    singleFileCommit("first", "foo.txt", "Hello");
+    singleFileCommit("second", "foo.txt", "Bye");
+    List<String> revisions = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      revisions.add((i % 2 == 0 ? "HEAD~" : "missing") + i);
+    }
+    revisions.add("HEAD:foo.txt");
+    revisions.add("HEAD~1:foo.txt");
+    try (GitObjectSession session = repository.newObjectSession(
+        new Profiler(Ticker.systemTicker()))) {
+      ImmutableMap<String, GitObjectSession.ObjectInfo> result = session.read(revisions);
+      assertThat(result.keySet()).containsExactly("HEAD~0", "HEAD:foo.txt", "HEAD~1:foo.txt");
+      assertThat(new String(result.get("HEAD:foo.txt").getContent(), UTF_8)).isEqualTo("Bye");
+      assertThat(new String(result.get("HEAD~1:foo.txt").getContent(), UTF_8))
+          .isEqualTo("Hello");
+      assertThat(session.lookup(revisions).keySet())
+          .containsExactly("HEAD~0", "HEAD:foo.txt", "HEAD~1:foo.txt");
+      assertThat(session.getReadStats().getObjects()).isEqualTo(revisions.size());
+    }
+  }
+
+  @Test
+  public void testObjectSessionClosed() throws Exception {
+    singleFileCommit("first", "foo.txt", "Hello");
+    GitObjectSession session = repository.newObjectSession(new Profiler(Ticker.systemTicker()));
+    assertThat(session.lookup("HEAD")).isNotNull();
+    session.close();
+    // Closing twice has no effect
+    session.close();
+    assertThrows(IllegalStateException.class, () -> session.lookup("HEAD"));
+    try (GitObjectSession other = repository.newObjectSession(
+        new Profiler(Ticker.systemTicker()))) {
+      assertThrows(IllegalArgumentException.class, () -> other.lookup("a\nb"));
+    }
+  }
+
   @Test
   public void testEmptyCommitNoBaseline() throws Exception {
     GitRepository bare = GitRepository
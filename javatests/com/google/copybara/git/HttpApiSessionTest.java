@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.copybara.testing.git.GitTestUtil.getGitEnv;
+import static com.google.copybara.util.CommandRunner.DEFAULT_TIMEOUT;
+import static org.junit.Assert.assertThrows;
+
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.common.base.Ticker;
+import com.google.copybara.exception.ValidationException;
+import com.google.copybara.git.GitCredential.UserPassword;
+import com.google.copybara.profiler.Profiler;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class HttpApiSessionTest {
+
+  @Test
+  public void testEndpoint() {
+    assertThat(HttpApiSession.endpoint("repos/google/copybara/pulls/123"))
+        .isEqualTo("repos/google/copybara/pulls/*");
+    assertThat(HttpApiSession.endpoint(
+        "repos/google/copybara/commits/e597746de9c1704e648ddc3ffa0d2096b146d600/status"))
+        .isEqualTo("repos/google/copybara/commits/*/status");
+    assertThat(HttpApiSession.endpoint("repos/google/copybara/pulls?per_page=100&page=2"))
+        .isEqualTo("repos/google/copybara/pulls");
+    assertThat(HttpApiSession.endpoint("/changes/foo~12345/revisions/current/review"))
+        .isEqualTo("/changes/*/revisions/current/review");
+  }
+
+  @Test
+  public void testMissingCredentialsAreCached() throws Exception {
+    List<String> credentialFills = new ArrayList<>();
+    GitRepository repo = new GitRepository(Files.createTempDirectory("test_repo"),
+        /*workTree=*/ null, /*verbose=*/ true, getGitEnv(), DEFAULT_TIMEOUT, /*noVerify=*/ false) {
+      @Override
+      public UserPassword credentialFill(String url) throws ValidationException {
+        credentialFills.add(url);
+        throw new ValidationException("Not found: " + url);
+      }
+    };
+    HttpApiSession session =
+        new HttpApiSession(repo, new MockHttpTransport(), new Profiler(Ticker.systemTicker()));
+
+    for (int i = 0; i < 2; i++) {
+      ValidationException e = assertThrows(ValidationException.class,
+          () -> session.credentialFill("https://example.com"));
+      assertThat(e).hasMessageThat().isEqualTo("Not found: https://example.com");
+    }
+    assertThat(credentialFills).containsExactly("https://example.com");
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git.github.api;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.copybara.git.github.api.GitHubApiCache.Entry;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class GitHubApiCacheTest {
+
+  private Path dir;
+
+  @Before
+  public void setup() throws Exception {
+    dir = Files.createTempDirectory("github_api_cache");
+  }
+
+  @Test
+  public void testStoresRevalidableResponses() throws Exception {
+    GitHubApiCache cache = new GitHubApiCache(dir, 1024 * 1024);
+    cache.miss("foo", new Entry("\"etag\"", null, "<link>", "foo body".getBytes(UTF_8)));
+    cache.miss("bar", new Entry(null, null, null, "bar body".getBytes(UTF_8)));
+
+    Entry foo = new GitHubApiCache(dir, 1024 * 1024).get("foo");
+    assertThat(new String(foo.getBody(), UTF_8)).isEqualTo("foo body");
+    assertThat(foo.getLink()).isEqualTo("<link>");
+    // Without ETag or Last-Modified it cannot be revalidated, so it is not stored
+    assertThat(cache.get("bar")).isNull();
+  }
+
+  @Test
+  public void testHitRatio() throws Exception {
+    GitHubApiCache cache = new GitHubApiCache(dir, 1024 * 1024);
+    assertThat(cache.hitRatio()).isEqualTo(0);
+    cache.miss("foo", new Entry("\"etag\"", null, null, new byte[0]));
+    cache.hit("foo");
+    cache.hit("foo");
+    cache.hit("foo");
+
+    assertThat(cache.hits()).isEqualTo(3);
+    assertThat(cache.misses()).isEqualTo(1);
+    assertThat(cache.hitRatio()).isEqualTo(0.75);
+    assertThat(cache.toString()).isEqualTo("hits=3, misses=1, hit ratio=0.75");
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    GitHubApiCache cache = new GitHubApiCache(dir, 3000);
+    for (int i = 0; i < 3; i++) {
+      cache.miss("key" + i, new Entry("\"etag\"", null, null, new byte[900]));
+      Files.setLastModifiedTime(cache.file("key" + i), FileTime.fromMillis(i * 1000));
+    }
+    // key0 is used again, so key1 is now the least recently used
+    cache.hit("key0");
+
+    cache.miss("key3", new Entry("\"etag\"", null, null, new byte[900]));
+
+    assertThat(cache.get("key0")).isNotNull();
+    assertThat(cache.get("key1")).isNull();
+    assertThat(cache.get("key2")).isNull();
+    assertThat(cache.get("key3")).isNotNull();
+  }
+}
@@ -29,13 +29,20 @@ import com.google.api.client.http.LowLevelHttpResponse;
 import com.google.api.client.testing.http.MockHttpTransport;
 import com.google.api.client.testing.http.MockLowLevelHttpRequest;
 import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.copybara.exception.RepoException;
+import com.google.copybara.exception.ValidationException;
+import com.google.copybara.git.GitCredential.UserPassword;
 import com.google.copybara.git.GitRepository;
+import com.google.copybara.git.HttpApiSession;
+import com.google.copybara.profiler.Profiler;
 import com.google.copybara.util.console.testing.TestingConsole;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -108,6 +115,84 @@ public class GitHubApiTransportImplTest {
     assertThat(headers).containsEntry("authorization", ImmutableList.of("Basic dXNlcjpTRUNSRVQ="));
   }
 
+  @Test
+  public void testCredentialsResolvedOnce() throws Exception {
+    List<String> credentialFills = new ArrayList<>();
+    GitRepository countingRepo = new GitRepository(repo.getGitDir(), /*workTree=*/ null,
+        /*verbose=*/ true, getGitEnv(), DEFAULT_TIMEOUT, /*noVerify=*/ false) {
+      @Override
+      public UserPassword credentialFill(String url) throws RepoException, ValidationException {
+        credentialFills.add(url);
+        return super.credentialFill(url);
+      }
+    };
+    List<Map<String, List<String>>> requestHeaders = new ArrayList<>();
+    httpTransport = new MockHttpTransport() {
+      @Override
+      public LowLevelHttpRequest buildRequest(String method, String url) {
+        return new MockLowLevelHttpRequest() {
+          @Override
+          public LowLevelHttpResponse execute() throws IOException {
+            requestHeaders.add(this.getHeaders());
+            MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+            response.setContent("foo");
+            return response;
+          }
+        };
+      }
+    };
+    HttpApiSession session = new HttpApiSession(countingRepo, httpTransport,
+        new Profiler(Ticker.systemTicker()));
+    transport = new GitHubApiTransportImpl(session, "store", new TestingConsole());
+    transport.get("foo/bar", String.class);
+    transport.get("foo/baz", String.class);
+    new GitHubApiTransportImpl(session, "store", new TestingConsole()).get("foo/bar", String.class);
+
+    // api.github.com is not in the store, so it falls back to github.com. But only the first time.
+    assertThat(credentialFills)
+        .containsExactly("https://api.github.com", "https://github.com").inOrder();
+    assertThat(requestHeaders).hasSize(3);
+    for (Map<String, List<String>> headers : requestHeaders) {
+      assertThat(headers)
+          .containsEntry("authorization", ImmutableList.of("Basic dXNlcjpTRUNSRVQ="));
+    }
+  }
+
+  @Test
+  public void testNotModifiedResponseServedFromCache() throws Exception {
+    List<String> ifNoneMatch = new ArrayList<>();
+    httpTransport = new MockHttpTransport() {
+      @Override
+      public LowLevelHttpRequest buildRequest(String method, String url) {
+        return new MockLowLevelHttpRequest() {
+          @Override
+          public LowLevelHttpResponse execute() throws IOException {
+            List<String> etag = this.getHeaders().get("if-none-match");
+            ifNoneMatch.add(etag == null ? null : Iterables.getOnlyElement(etag));
+            MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+            if (etag != null) {
+              return response.setStatusCode(304);
+            }
+            response.addHeader("ETag", "\"abc\"");
+            response.setContent("\"foo\"");
+            return response;
+          }
+        };
+      }
+    };
+    GitHubApiCache cache = new GitHubApiCache(Files.createTempDirectory("cache"), 1024 * 1024);
+    transport = new GitHubApiTransportImpl(
+        new HttpApiSession(repo, httpTransport, new Profiler(Ticker.systemTicker())), cache,
+        "store", new TestingConsole());
+
+    assertThat((String) transport.get("foo/bar", String.class)).isEqualTo("foo");
+    assertThat((String) transport.get("foo/bar", String.class)).isEqualTo("foo");
+
+    assertThat(ifNoneMatch).containsExactly(null, "\"abc\"").inOrder();
+    assertThat(cache.hits()).isEqualTo(1);
+    assertThat(cache.misses()).isEqualTo(1);
+  }
+
   private void runTestThrowsHttpResponseException(Callable<?> c) throws Exception {
     HttpResponseException ex =
         new HttpResponseException.Builder(STATUS_CODE, ERROR_MESSAGE, new HttpHeaders()).build();
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.templatetoken;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.cache.CacheStats;
+import com.google.re2j.Pattern;
+import com.google.re2j.PatternSyntaxException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PatternCacheTest {
+
+  @Test
+  public void testSameRegexReturnsSameInstance() {
+    CacheStats before = PatternCache.stats();
+    Pattern first = PatternCache.compile("foo[0-9]+bar");
+    Pattern second = PatternCache.compile("foo[0-9]+bar");
+    CacheStats stats = PatternCache.stats().minus(before);
+
+    assertThat(second).isSameInstanceAs(first);
+    assertThat(first.matcher("foo42bar").matches()).isTrue();
+    assertThat(stats.hitCount()).isAtLeast(1);
+    assertThat(stats.missCount()).isAtLeast(1);
+  }
+
+  @Test
+  public void testFlagsArePartOfTheKey() {
+    Pattern plain = PatternCache.compile("^foo$");
+    Pattern multiline = PatternCache.compile("^foo$", Pattern.MULTILINE);
+
+    assertThat(multiline).isNotSameInstanceAs(plain);
+    assertThat(plain.matcher("bar\nfoo").find()).isFalse();
+    assertThat(multiline.matcher("bar\nfoo").find()).isTrue();
+  }
+
+  @Test
+  public void testInvalidRegex() {
+    assertThrows(PatternSyntaxException.class, () -> PatternCache.compile("(unfinished group"));
+  }
+}
@@ -16,13 +16,17 @@
 
 package com.google.copybara.transform;
 
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
 import static com.google.copybara.testing.FileSubjects.assertThatPath;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertThrows;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Streams;
 import com.google.common.jimfs.Jimfs;
+import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.TransformationStatus;
 import com.google.copybara.exception.NonReversibleValidationException;
@@ -30,6 +34,8 @@ import com.google.copybara.exception.ValidationException;
 import com.google.copybara.testing.OptionsBuilder;
 import com.google.copybara.testing.SkylarkTestExecutor;
 import com.google.copybara.testing.TransformWorks;
+import com.google.copybara.treestate.TreeState.FileState;
+import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Message.MessageType;
 import com.google.copybara.util.console.testing.TestingConsole;
 import java.io.IOException;
@@ -136,6 +142,37 @@ public class CopyOrMoveTest {
         .containsNoMoreFiles();
   }
 
+  @Test
+  public void testTreeStateIsUpdated() throws Exception {
+    touch("one/file1");
+    touch("one/sub/file2");
+    touch("two/file3");
+    touch("other.txt");
+    TransformWork work = TransformWorks.of(checkoutDir, "testmsg", console);
+    work.getTreeState().find(Glob.ALL_FILES.relativeTo(checkoutDir));
+
+    for (String config : ImmutableList.of(
+        "core.move('one', 'moved')",
+        "core.copy('two', 'copied/two')",
+        "core.move('other.txt', 'moved/other.txt')",
+        "core.copy('${x}/file1', 'copied/${x}', regex_groups = {'x': 'moved'})",
+        "core.move('${x}/file3', '${x}/renamed', regex_groups = {'x': 'two'})")) {
+      Transformation transformation = skylark.eval("m", "m = " + config);
+      transformation.transform(work);
+      work.validateTreeStateCache();
+
+      assertWithMessage(config).that(work.getTreeState().isCached()).isTrue();
+      try (Stream<Path> files = Files.walk(checkoutDir)) {
+        assertWithMessage(config)
+            .that(Streams.stream(work.getTreeState().find(Glob.ALL_FILES.relativeTo(checkoutDir)))
+                .map(FileState::getPath)
+                .collect(toImmutableSet()))
+            .containsExactlyElementsIn(
+                files.filter(Files::isRegularFile).collect(toImmutableSet()));
+      }
+    }
+  }
+
   private void touch(String strPath) throws IOException {
     Path path = checkoutDir.resolve(strPath);
     Files.createDirectories(path.getParent());
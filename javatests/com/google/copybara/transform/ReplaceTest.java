@@ -34,6 +34,7 @@ import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -489,6 +490,21 @@ public final class ReplaceTest {
     assertThat(status.isNoop()).isTrue();
   }
 
+  @Test
+  public void replaceWithTheSameTextIsNoop() throws Exception {
+    writeFile(checkoutDir.resolve("file.txt"), "foo bar\nbaz");
+    TransformationStatus status = transform(eval("core.replace(\n"
+        + "  before = '${x} bar',\n"
+        + "  after = '${x} bar',\n"
+        + "  regex_groups = {'x': '[a-z]+'},\n"
+        + ")"));
+    assertThat(status.isNoop()).isTrue();
+
+    status = transform(eval("core.replace(before = 'foo', after = 'foo')"));
+    assertThat(status.isNoop()).isTrue();
+    assertThatPath(checkoutDir).containsFile("file.txt", "foo bar\nbaz");
+  }
+
   @Test
   public void replaceErrorEscapesNewLine() throws Exception {
     Replace replace = eval("core.replace(\n"
@@ -721,6 +737,49 @@ public final class ReplaceTest {
             + "foo\n");
   }
 
+  @Test
+  public void literalReplaceDoesNotOverlapMatches() throws Exception {
+    Replace replace = eval("core.replace(\n"
+        + "  before = 'aa',\n"
+        + "  after = 'b',\n"
+        + ")");
+
+    writeFile(checkoutDir.resolve("file"), "aaaaa\na.a\n");
+    transform(replace);
+
+    assertThatPath(checkoutDir)
+        .containsFile("file", "bba\na.a\n");
+  }
+
+  @Test
+  public void literalReplaceWithRegexCharacters() throws Exception {
+    Replace replace = eval("core.replace(\n"
+        + "  before = '.*(foo)',\n"
+        + "  after = '$$1',\n"
+        + ")");
+
+    writeFile(checkoutDir.resolve("file"), "foo .*(foo) xfoo\n");
+    transform(replace);
+
+    assertThatPath(checkoutDir)
+        .containsFile("file", "foo $1 xfoo\n");
+  }
+
+  @Test
+  public void requiredLiteralWithRegexGroups() throws Exception {
+    Replace replace = eval("core.replace(\n"
+        + "  before = 'foo${x}bar',\n"
+        + "  after = 'baz${x}',\n"
+        + "  regex_groups = {'x': '[0-9]+'},\n"
+        + ")");
+
+    writeFile(checkoutDir.resolve("file"), "foo1bar\nfoo2baz\nfoobar\nxfoo33bar\n");
+    transform(replace);
+
+    assertThatPath(checkoutDir)
+        .containsFile("file", "baz1\nfoo2baz\nfoobar\nxbaz33\n");
+  }
+
   @Test
   public void emptyInterpolatedName() throws ValidationException {
     skylark.evalFails(""
@@ -809,6 +868,103 @@ public final class ReplaceTest {
         .containsFile("i-exist", "abc");
   }
 
+  @Test
+  public void testJoinedReplacesAreAppliedInOrder() throws Exception {
+    Sequence sequence = eval("core.transform([\n"
+        + "    core.replace(before = 'foo', after = 'bar'),\n"
+        + "    core.replace(before = 'bar', after = 'baz'),\n"
+        + "    core.replace(before = '${x}', after = '${x}!', multiline = True,"
+        + "                 regex_groups = {'x': r'\\z'}),\n"
+        + "    core.replace(before = 'other', after = 'foo', paths = glob(['*.java'])),\n"
+        + "], noop_behavior = 'IGNORE_NOOP')");
+    assertThat(sequence.getSequence().get(0).canJoin(sequence.getSequence().get(1))).isTrue();
+    assertThat(sequence.getSequence().get(2).canJoin(sequence.getSequence().get(3))).isFalse();
+
+    writeFile(checkoutDir.resolve("file1.txt"), "foo\nbar\nqux");
+    writeFile(checkoutDir.resolve("file2.java"), "other");
+    writeFile(checkoutDir.resolve("file3.txt"), "");
+
+    assertThat(transform(sequence).isSuccess()).isTrue();
+
+    assertThatPath(checkoutDir)
+        .containsFile("file1.txt", "baz\nbaz\nqux!")
+        .containsFile("file2.java", "foo!")
+        .containsFile("file3.txt", "!");
+  }
+
+  @Test
+  public void testJoinedReplacesSkipNonMatchingFiles() throws Exception {
+    Sequence sequence = eval("core.transform([\n"
+        + "    core.replace(before = 'foo', after = 'bar'),\n"
+        + "    core.replace(before = '${start}bar', after = '${start}baz',"
+        + "                 regex_groups = {'start': '^'}),\n"
+        + "], noop_behavior = 'IGNORE_NOOP')");
+    writeFile(checkoutDir.resolve("file1.txt"), "a foo\nfoo");
+    Path unchanged = writeFile(checkoutDir.resolve("file2.txt"), "a bar\nqux");
+    Files.setLastModifiedTime(unchanged, FileTime.fromMillis(0));
+
+    assertThat(transform(sequence).isSuccess()).isTrue();
+
+    assertThatPath(checkoutDir)
+        .containsFile("file1.txt", "a bar\nbaz")
+        .containsFile("file2.txt", "a bar\nqux");
+    assertThat(Files.getLastModifiedTime(unchanged)).isEqualTo(FileTime.fromMillis(0));
+  }
+
+  @Test
+  public void testJoinedReplacesNoop() throws Exception {
+    writeFile(checkoutDir.resolve("file1.txt"), "foo");
+    TransformationStatus status = transform(eval("core.transform([\n"
+        + "    core.replace(before = 'foo', after = 'bar'),\n"
+        + "    core.replace(before = 'not_found', after = 'baz'),\n"
+        + "    core.replace(before = 'bar', after = 'baz'),\n"
+        + "])"));
+
+    assertThat(status.isNoop()).isTrue();
+    assertThat(status.getMessage()).contains("before=not_found");
+    assertThat(status.getMessage()).contains("didn't change any of the matching files");
+
+    writeFile(checkoutDir.resolve("file1.txt"), "foo");
+    status = transform(eval("core.transform([\n"
+        + "    core.replace(before = 'foo', after = 'bar'),\n"
+        + "    core.replace(before = 'not_found', after = 'baz'),\n"
+        + "], noop_behavior = 'NOOP_IF_ALL_NOOP')"));
+
+    assertThat(status.isSuccess()).isTrue();
+    assertThatPath(checkoutDir).containsFile("file1.txt", "bar");
+
+    status = transform(eval("core.transform([\n"
+        + "    core.replace(before = 'foo', after = 'bar'),\n"
+        + "    core.replace(before = 'not_found', after = 'baz'),\n"
+        + "], noop_behavior = 'NOOP_IF_ALL_NOOP')"));
+
+    assertThat(status.isNoop()).isTrue();
+  }
+
+  @Test
+  public void testReplacesAreNotJoinedIfTheSequenceStopsAtANoop() throws Exception {
+    writeFile(checkoutDir.resolve("file1.txt"), "foo");
+    Sequence sequence = eval("core.transform([\n"
+        + "    core.replace(before = 'not_found', after = 'bar'),\n"
+        + "    core.replace(before = 'foo', after = 'baz'),\n"
+        + "])");
+    TransformationStatus status = transform(sequence);
+
+    assertThat(status.isNoop()).isTrue();
+    assertThat(status.getMessage()).contains("before=not_found");
+    // The second replace didn't run
+    assertThatPath(checkoutDir).containsFile("file1.txt", "foo");
+    assertThat(sequence.pipelined().toString()).doesNotContain("before=foo");
+
+    options.workflowOptions.ignoreNoop = true;
+    sequence = eval("core.transform([\n"
+        + "    core.replace(before = 'not_found', after = 'bar'),\n"
+        + "    core.replace(before = 'foo', after = 'baz'),\n"
+        + "])");
+    assertThat(transform(sequence).isSuccess()).isTrue();
+    assertThatPath(checkoutDir).containsFile("file1.txt", "baz");
+  }
+
   private <T extends Transformation> T eval(String replace) throws ValidationException {
     return skylark.eval("r", "r = " + replace);
   }
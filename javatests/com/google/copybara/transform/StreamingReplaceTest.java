@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.jimfs.Jimfs;
+import com.google.copybara.LocalParallelizer;
+import com.google.copybara.templatetoken.RegexTemplateTokens.Replacer;
+import com.google.copybara.util.Glob;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import net.starlark.java.syntax.Location;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class StreamingReplaceTest {
+
+  private Path root;
+  private Path tempDir;
+  private Path file;
+
+  @Before
+  public void setup() throws IOException {
+    FileSystem fs = Jimfs.newFileSystem();
+    root = fs.getPath("/work/checkout");
+    tempDir = fs.getPath("/work/temp");
+    Files.createDirectories(root);
+    file = root.resolve("file.txt");
+  }
+
+  @Test
+  public void testReplacesLines() throws Exception {
+    Files.write(file, "foo\nbar\r\nfoo bar\nbaz".getBytes(UTF_8));
+    StreamingReplace streamingReplace = streamingReplace(
+        replace("foo", "bar", ImmutableMap.of()),
+        replace("bar ${x}", "${x}", ImmutableMap.of("x", "[a-z]+")),
+        replace("qux", "quux", ImmutableMap.of()));
+
+    assertThat(streamingReplace.replace(file)).isTrue();
+
+    assertThat(new String(Files.readAllBytes(file), UTF_8)).isEqualTo("bar\nbar\r\nbar\nbaz");
+    assertThat(streamingReplace.isChanged(0)).isTrue();
+    assertThat(streamingReplace.isChanged(1)).isTrue();
+    assertThat(streamingReplace.isChanged(2)).isFalse();
+    assertThat(Files.list(root).count()).isEqualTo(1);
+  }
+
+  @Test
+  public void testTempFilesAreOutsideTheCheckout() throws Exception {
+    Files.write(file, "foo\n".getBytes(UTF_8));
+    StreamingReplace streamingReplace = streamingReplace(replace("foo", "bar", ImmutableMap.of()));
+
+    assertThat(streamingReplace.replace(file)).isTrue();
+
+    assertThat(new String(Files.readAllBytes(file), UTF_8)).isEqualTo("bar\n");
+    // The temporary file was created in tempDir and deleted
+    assertThat(Files.isDirectory(tempDir)).isTrue();
+    try (Stream<Path> files = Files.list(tempDir)) {
+      assertThat(files.count()).isEqualTo(0);
+    }
+    try (Stream<Path> files = Files.list(root)) {
+      assertThat(files.collect(Collectors.toList())).containsExactly(file);
+    }
+  }
+
+  @Test
+  public void testReplacesLastLine() throws Exception {
+    Files.write(file, "aaa\nbbb\nfoo".getBytes(UTF_8));
+    StreamingReplace streamingReplace = streamingReplace(replace("foo", "bar", ImmutableMap.of()));
+
+    assertThat(streamingReplace.replace(file)).isTrue();
+
+    assertThat(new String(Files.readAllBytes(file), UTF_8)).isEqualTo("aaa\nbbb\nbar");
+  }
+
+  @Test
+  public void testUnchangedFileIsNotWritten() throws Exception {
+    Files.write(file, "aaa\nbbb\n".getBytes(UTF_8));
+    FileTime time = FileTime.fromMillis(0);
+    Files.setLastModifiedTime(file, time);
+    StreamingReplace streamingReplace = streamingReplace(
+        replace("foo", "bar", ImmutableMap.of()),
+        replace("${x}x", "${x}", ImmutableMap.of("x", "[a-z]")));
+
+    assertThat(streamingReplace.replace(file)).isFalse();
+
+    assertThat(Files.getLastModifiedTime(file)).isEqualTo(time);
+    assertThat(streamingReplace.isChanged(0)).isFalse();
+    assertThat(streamingReplace.isChanged(1)).isFalse();
+  }
+
+  @Test
+  public void testUnchangedLinesAreCopiedAsIs() throws Exception {
+    // Invalid UTF-8 in lines that are not modified is kept.
+    byte[] invalid = {(byte) 0xff, (byte) 0xfe, '\n'};
+    byte[] content = new byte[invalid.length + 4];
+    System.arraycopy(invalid, 0, content, 0, invalid.length);
+    System.arraycopy("foo\n".getBytes(UTF_8), 0, content, invalid.length, 4);
+    Files.write(file, content);
+
+    assertThat(streamingReplace(replace("foo", "bar", ImmutableMap.of())).replace(file))
+        .isTrue();
+
+    byte[] expected = new byte[invalid.length + 4];
+    System.arraycopy(invalid, 0, expected, 0, invalid.length);
+    System.arraycopy("bar\n".getBytes(UTF_8), 0, expected, invalid.length, 4);
+    assertThat(Files.readAllBytes(file)).isEqualTo(expected);
+  }
+
+  @Test
+  public void testLinesLongerThanTheBuffer() throws Exception {
+    StringBuilder longLine = new StringBuilder();
+    for (int i = 0; i < 100_000; i++) {
+      longLine.append("abc");
+    }
+    Files.write(file, (longLine + "foo\n" + longLine + "\nfoo").getBytes(UTF_8));
+
+    assertThat(streamingReplace(replace("foo", "bar", ImmutableMap.of())).replace(file))
+        .isTrue();
+
+    assertThat(new String(Files.readAllBytes(file), UTF_8))
+        .isEqualTo(longLine + "bar\n" + longLine + "\nbar");
+  }
+
+  private Replace replace(String before, String after, ImmutableMap<String, String> groups)
+      throws Exception {
+    return Replace.create(Location.BUILTIN, before, after, groups, Glob.ALL_FILES,
+        /*firstOnly=*/ false, /*multiline=*/ false, /*repeatedGroups=*/ false, ImmutableList.of(),
+        new LocalParallelizer(1, 1), tempDir);
+  }
+
+  private StreamingReplace streamingReplace(Replace... replaces) {
+    List<Replacer> replacers = new ArrayList<>();
+    List<byte[]> literals = new ArrayList<>();
+    for (Replace replace : replaces) {
+      replacers.add(replace.createReplacer());
+      literals.add(replace.getLiteralBefore());
+    }
+    return new StreamingReplace(replacers, literals, tempDir);
+  }
+}
@@ -16,9 +16,16 @@
 
 package com.google.copybara.treestate;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Streams;
 import com.google.common.jimfs.Jimfs;
+import com.google.copybara.treestate.TreeState.FileState;
+import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.Glob;
 import java.io.IOException;
 import java.nio.file.FileSystem;
@@ -104,4 +111,80 @@ public class TreeStateTest {
     treeState.maybeClearCache();
     assertThat(treeState.isCached()).isFalse();
   }
+
+  @Test
+  public void testNotifyAdd() throws IOException {
+    Files.write(checkoutDir.resolve("foo.txt"), new byte[0]);
+    TreeState treeState = new TreeState(checkoutDir);
+    treeState.find(Glob.ALL_FILES.relativeTo(checkoutDir));
+
+    Files.write(checkoutDir.resolve("bar.txt"), new byte[0]);
+    Files.createDirectories(checkoutDir.resolve("dir/sub"));
+    Files.write(checkoutDir.resolve("dir/one.txt"), new byte[0]);
+    Files.write(checkoutDir.resolve("dir/sub/two.txt"), new byte[0]);
+    treeState.notifyAdd(
+        ImmutableList.of(checkoutDir.resolve("bar.txt"), checkoutDir.resolve("dir")));
+    treeState.maybeClearCache();
+
+    assertThat(treeState.isCached()).isTrue();
+    assertThat(paths(treeState.find(Glob.ALL_FILES.relativeTo(checkoutDir))))
+        .containsExactly("foo.txt", "bar.txt", "dir/one.txt", "dir/sub/two.txt");
+    assertThat(paths(treeState.find(
+        Glob.createGlob(ImmutableList.of("dir/**")).relativeTo(checkoutDir))))
+        .containsExactly("dir/one.txt", "dir/sub/two.txt");
+  }
+
+  @Test
+  public void testNotifyDelete() throws IOException {
+    Files.createDirectories(checkoutDir.resolve("dir/sub"));
+    Files.write(checkoutDir.resolve("foo.txt"), new byte[0]);
+    Files.write(checkoutDir.resolve("bar.txt"), new byte[0]);
+    Files.write(checkoutDir.resolve("dir/one.txt"), new byte[0]);
+    Files.write(checkoutDir.resolve("dir/sub/two.txt"), new byte[0]);
+    TreeState treeState = new TreeState(checkoutDir);
+    assertThat(paths(treeState.find(Glob.ALL_FILES.relativeTo(checkoutDir)))).hasSize(4);
+
+    Files.delete(checkoutDir.resolve("bar.txt"));
+    FileUtil.deleteRecursively(checkoutDir.resolve("dir"));
+    treeState.notifyDelete(
+        ImmutableList.of(checkoutDir.resolve("bar.txt"), checkoutDir.resolve("dir")));
+    treeState.maybeClearCache();
+
+    assertThat(treeState.isCached()).isTrue();
+    assertThat(paths(treeState.find(Glob.ALL_FILES.relativeTo(checkoutDir))))
+        .containsExactly("foo.txt");
+  }
+
+  @Test
+  public void testFileState() throws IOException {
+    Files.write(checkoutDir.resolve("foo.txt"), "foo".getBytes(UTF_8));
+    Files.write(checkoutDir.resolve("bar.txt"), "foo".getBytes(UTF_8));
+    TreeState treeState = new TreeState(checkoutDir);
+    FileState foo = find(treeState, "foo.txt");
+    FileState bar = find(treeState, "bar.txt");
+
+    assertThat(foo.getSize()).isEqualTo(3);
+    assertThat(foo.getLastModifiedTime())
+        .isEqualTo(Files.getLastModifiedTime(checkoutDir.resolve("foo.txt")));
+    assertThat(foo.getHash()).isEqualTo(bar.getHash());
+
+    Files.write(checkoutDir.resolve("foo.txt"), "modified".getBytes(UTF_8));
+    treeState.notifyModify(ImmutableList.of(foo));
+    treeState.maybeClearCache();
+
+    FileState modified = find(treeState, "foo.txt");
+    assertThat(modified.getSize()).isEqualTo(8);
+    assertThat(modified.getHash()).isNotEqualTo(bar.getHash());
+  }
+
+  private FileState find(TreeState treeState, String path) throws IOException {
+    return Iterables.getOnlyElement(treeState.find(
+        Glob.createGlob(ImmutableList.of(path)).relativeTo(checkoutDir)));
+  }
+
+  private ImmutableList<String> paths(Iterable<FileState> files) {
+    return Streams.stream(files)
+        .map(f -> checkoutDir.relativize(f.getPath()).toString())
+        .collect(toImmutableList());
+  }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Strings;
+import javax.annotation.Nullable;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class Diff3Test {
+
+  @Test
+  public void testMergesChangesFromBothSides() {
+    assertThat(merge("foo\na\nb\nc\n", "a\nb\nc\n", "a\nb\nc\nbar\n"))
+        .isEqualTo("foo\na\nb\nc\nbar\n");
+    assertThat(merge("a\nX\nc\nd\ne\n", "a\nb\nc\nd\ne\n", "a\nb\nc\nY\ne\n"))
+        .isEqualTo("a\nX\nc\nY\ne\n");
+  }
+
+  @Test
+  public void testDeletions() {
+    assertThat(merge("b\nc\nd\ne\n", "a\nb\nc\nd\ne\n", "a\nb\nc\nd\n"))
+        .isEqualTo("b\nc\nd\n");
+  }
+
+  @Test
+  public void testMissingNewLineAtEndOfFile() {
+    assertThat(merge("X\nb\nc", "a\nb\nc", "a\nb\nc\nd"))
+        .isEqualTo("X\nb\nc\nd");
+  }
+
+  @Test
+  public void testOverlappingChangesAreNotMerged() {
+    assertThat(merge("a\nX\nc\n", "a\nb\nc\n", "a\nY\nc\n")).isNull();
+  }
+
+  @Test
+  public void testAdjacentChangesAreNotMerged() {
+    // diff3 reports changes to consecutive lines as a conflict
+    assertThat(merge("a\nX\nc\nd\n", "a\nb\nc\nd\n", "a\nb\nY\nd\n")).isNull();
+  }
+
+  @Test
+  public void testIdenticalChangesAreNotMerged() {
+    // diff3 reports identical changes as a conflict too
+    assertThat(merge("a\nX\nc\n", "a\nb\nc\n", "a\nX\nc\n")).isNull();
+  }
+
+  @Test
+  public void testAmbiguousPositionIsNotMerged() {
+    // Deleting a 'b' could be any of the three, and the last one is next to the other change.
+    assertThat(merge("a\nb\nb\nc\n", "a\nb\nb\nb\nc\n", "a\nb\nb\nb\nX\n")).isNull();
+  }
+
+  @Test
+  public void testBinaryFilesAreNotMerged() {
+    assertThat(merge("a\0\nX\n", "a\0\nb\n", "Y\0\nb\n")).isNull();
+  }
+
+  @Test
+  public void testTooManyChanges() {
+    String base = Strings.repeat("a\n", Diff3.MAX_EDIT_DISTANCE + 1);
+    String lhs = "b\n" + base;
+    String rhs = base + Strings.repeat("c\nd\n", Diff3.MAX_EDIT_DISTANCE);
+    assertThat(merge(lhs, base, rhs)).isNull();
+  }
+
+  @Nullable
+  private static String merge(String lhs, String baseline, String rhs) {
+    byte[] merged = Diff3.merge(lhs.getBytes(UTF_8), baseline.getBytes(UTF_8),
+        rhs.getBytes(UTF_8));
+    return merged == null ? null : new String(merged, UTF_8);
+  }
+}
@@ -27,8 +27,11 @@ import static org.mockito.Mockito.verifyNoMoreInteractions;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.copybara.util.FileUtil.CopyMode;
+import com.google.copybara.util.FileUtil.CopyStats;
 import com.google.copybara.util.FileUtil.CopySymlinkStrategy;
 import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -323,4 +326,75 @@ public class FileUtilTest {
     verify(validator).validate(ArgumentMatchers.eq(one.resolve("foo/include.txt")));
     verifyNoMoreInteractions(validator);
    }
+
+  @Test
+  public void testCopyModeLink() throws Exception {
+    Path one = Files.createDirectory(temp.resolve("one"));
+    Path two = Files.createDirectory(temp.resolve("two"));
+    touch(one.resolve("foo/bar.txt"));
+    touch(one.resolve("baz.txt"));
+    Files.createSymbolicLink(one.resolve("link"), one.getFileSystem().getPath("baz.txt"));
+
+    CopyStats stats = FileUtil.copyFilesRecursively(one, two, FAIL_OUTSIDE_SYMLINKS,
+        Glob.ALL_FILES, CopyMode.LINK, /*threads=*/ 2);
+
+    assertThatPath(two)
+        .containsFile("foo/bar.txt", "abc")
+        .containsFile("baz.txt", "abc")
+        .containsSymlink("link", "baz.txt")
+        .containsNoMoreFiles();
+    assertThat(Files.isSameFile(one.resolve("baz.txt"), two.resolve("baz.txt"))).isTrue();
+    assertThat(stats.getLinkedFiles()).isEqualTo(2);
+    assertThat(stats.getLinkedBytes()).isEqualTo(6);
+    assertThat(stats.getCopiedFiles()).isEqualTo(0);
+  }
+
+  @Test
+  public void testCopyModeLink_materializedSymlinksAreCopied() throws Exception {
+    Path one = Files.createDirectory(temp.resolve("one"));
+    Path two = Files.createDirectory(temp.resolve("two"));
+    Path outside = touch(temp.resolve("outside/file.txt"));
+    Files.createSymbolicLink(one.resolve("link"), one.relativize(outside));
+
+    CopyStats stats = FileUtil.copyFilesRecursively(one, two,
+        CopySymlinkStrategy.MATERIALIZE_OUTSIDE_SYMLINKS, Glob.ALL_FILES, CopyMode.LINK,
+        /*threads=*/ 1);
+
+    assertThat(Files.isSymbolicLink(two.resolve("link"))).isFalse();
+    assertThat(Files.isSameFile(outside, two.resolve("link"))).isFalse();
+    assertThat(stats.getCopiedFiles()).isEqualTo(1);
+    assertThat(stats.getLinkedFiles()).isEqualTo(0);
+  }
+
+  @Test
+  public void testCopyModeClone() throws Exception {
+    Path one = Files.createDirectory(temp.resolve("one"));
+    Path two = Files.createDirectory(temp.resolve("two"));
+    for (int i = 0; i < 1000; i++) {
+      touch(one.resolve("dir" + i % 10 + "/file" + i + ".txt"));
+    }
+
+    CopyStats stats = FileUtil.copyFilesRecursively(one, two, FAIL_OUTSIDE_SYMLINKS,
+        Glob.ALL_FILES, CopyMode.CLONE, /*threads=*/ 4);
+
+    // Depending on the filesystem, the files are cloned or copied.
+    assertThat(stats.getCopiedFiles() + stats.getLinkedFiles()).isEqualTo(1000);
+    assertThat(stats.getCopiedBytes() + stats.getLinkedBytes()).isEqualTo(3000);
+    assertThatPath(two).containsFile("dir3/file123.txt", "abc");
+    // Clones are copy-on-write
+    Files.write(two.resolve("dir3/file123.txt"), "other".getBytes(UTF_8));
+    assertThatPath(one).containsFile("dir3/file123.txt", "abc");
+  }
+
+  @Test
+  public void testCopyModeClone_failsIfFileExists() throws Exception {
+    Path one = Files.createDirectory(temp.resolve("one"));
+    Path two = Files.createDirectory(temp.resolve("two"));
+    touch(one.resolve("foo.txt"));
+    touch(two.resolve("foo.txt"));
+
+    assertThrows(FileAlreadyExistsException.class,
+        () -> FileUtil.copyFilesRecursively(one, two, FAIL_OUTSIDE_SYMLINKS, Glob.ALL_FILES,
+            CopyMode.CLONE, /*threads=*/ 1));
+  }
 }
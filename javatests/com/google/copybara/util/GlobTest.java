@@ -17,6 +17,7 @@
 package com.google.copybara.util;
 
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
 import static com.google.copybara.util.Glob.createGlob;
 
 import com.google.common.collect.ImmutableList;
@@ -29,6 +30,7 @@ import com.google.copybara.testing.SkylarkTestExecutor;
 import com.google.copybara.util.console.testing.TestingConsole;
 import java.io.IOException;
 import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
@@ -358,6 +360,73 @@ public class GlobTest {
         .isEqualTo(createPathMatcher("glob(['foo/**'], exclude=['bar/**'])"));
   }
 
+  @Test
+  public void matchesLikeJdkGlobs() throws Exception {
+    ImmutableList<String> globs = ImmutableList.of("**/*.java", "*.java", "foo/**", "foo/*",
+        "f?o/bar", "{foo,bar/baz}/*.txt", "[a-c]*/[!x]", "foo\\*", "a{,b}c", "[-a]/[^]");
+    ImmutableList<String> paths = ImmutableList.of("Foo.java", "foo/Foo.java", "foo/bar/A.java",
+        "foo", "foo/bar", "fao/bar", "foo/a.txt", "bar/baz/a.txt", "bar/a.txt", "a/y", "b/x",
+        "foo*", "fooo", "ac", "abc", "-/^", "a/^");
+    for (String glob : globs) {
+      PathMatcher jdk = FileSystems.getDefault().getPathMatcher("glob:" + workdir + "/" + glob);
+      PathMatcher matcher = createGlob(ImmutableList.of(glob)).relativeTo(workdir);
+      for (String path : paths) {
+        assertWithMessage(glob + " " + path)
+            .that(matcher.matches(workdir.resolve(path)))
+            .isEqualTo(jdk.matches(workdir.resolve(path)));
+      }
+    }
+  }
+
+  @Test
+  public void mayMatchUnder() throws Exception {
+    GlobPathMatcher matcher = parseGlob(
+        "glob(['foo/**', 'bar/*.java', '**/BUILD'], exclude = ['foo/excluded/**'])")
+        .relativeTo(workdir);
+
+    assertThat(matcher.mayMatchUnder(workdir)).isTrue();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("foo"))).isTrue();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("foo/other"))).isTrue();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("bar"))).isTrue();
+    // Only BUILD files
+    assertThat(matcher.mayMatchUnder(workdir.resolve("baz"))).isTrue();
+
+    matcher = parseGlob("glob(['foo/**', 'bar/*.java'], exclude = ['foo/excluded/**'])")
+        .relativeTo(workdir);
+    assertThat(matcher.mayMatchUnder(workdir.resolve("baz"))).isFalse();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("bar/baz"))).isFalse();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("foo/excluded"))).isFalse();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("foo/excluded/baz"))).isFalse();
+  }
+
+  @Test
+  public void matchesAllUnder() throws Exception {
+    GlobPathMatcher matcher = parseGlob(
+        "glob(['foo/**', 'bar/*'], exclude = ['foo/excluded/**', '**/BUILD'])")
+        .relativeTo(workdir);
+
+    assertThat(matcher.matchesAllUnder(workdir)).isFalse();
+    assertThat(matcher.matchesAllUnder(workdir.resolve("foo"))).isFalse();
+    assertThat(matcher.matchesAllUnder(workdir.resolve("bar"))).isFalse();
+
+    matcher = parseGlob("glob(['foo/**'], exclude = ['foo/excluded/**'])").relativeTo(workdir);
+    assertThat(matcher.matchesAllUnder(workdir.resolve("foo"))).isFalse();
+    assertThat(matcher.matchesAllUnder(workdir.resolve("foo/other"))).isTrue();
+    assertThat(matcher.matchesAllUnder(workdir.resolve("foo/excluded"))).isFalse();
+    assertThat(matcher.matchesAllUnder(workdir.resolve("baz"))).isFalse();
+  }
+
+  @Test
+  public void subtreeQueriesInOtherFileSystemsAreConservative() throws Exception {
+    workdir = Jimfs.newFileSystem(Configuration.unix()).getPath("/tmp");
+    GlobPathMatcher matcher = parseGlob("glob(['foo/**'])").relativeTo(workdir);
+
+    assertThat(matcher.matches(workdir.resolve("foo/bar"))).isTrue();
+    assertThat(matcher.matches(workdir.resolve("bar"))).isFalse();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("bar"))).isTrue();
+    assertThat(matcher.matchesAllUnder(workdir.resolve("foo"))).isFalse();
+  }
+
   private PathMatcher createPathMatcher(String expression)
       throws ValidationException {
     return parseGlob(expression).relativeTo(workdir);
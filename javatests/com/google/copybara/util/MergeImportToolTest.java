@@ -129,6 +129,74 @@ public final class MergeImportToolTest {
                 originWorkdir, baselineWorkdir, destinationWorkdir));
   }
 
+  @Test
+  public void testInProcessMergeDoesNotUseDiffTool() throws Exception {
+    // Any file merged with the tool would fail
+    underTest =
+        new MergeImportTool(
+            console,
+            new CommandLineDiffUtil("/does/not/exist/diff3", null, false),
+            /*inProcessMerge=*/ true,
+            /*threads=*/ 4);
+    String commonFileContents = "a\nb\nc\n";
+    for (int i = 0; i < 20; i++) {
+      writeFile(baselineWorkdir, "merged" + i + ".txt", commonFileContents);
+      writeFile(originWorkdir, "merged" + i + ".txt", "foo\n".concat(commonFileContents));
+      writeFile(destinationWorkdir, "merged" + i + ".txt", commonFileContents.concat("bar\n"));
+    }
+    writeFile(baselineWorkdir, "same.txt", commonFileContents);
+    writeFile(originWorkdir, "same.txt", commonFileContents);
+    writeFile(destinationWorkdir, "same.txt", commonFileContents);
+    writeFile(baselineWorkdir, "destination_changed.bin", "a\0b");
+    writeFile(originWorkdir, "destination_changed.bin", "a\0b");
+    writeFile(destinationWorkdir, "destination_changed.bin", "a\0c");
+    writeFile(baselineWorkdir, "origin_changed.txt", commonFileContents);
+    writeFile(originWorkdir, "origin_changed.txt", "foo\n");
+    writeFile(destinationWorkdir, "origin_changed.txt", commonFileContents);
+
+    underTest.mergeImport(originWorkdir, destinationWorkdir, baselineWorkdir, diffToolWorkdir);
+
+    for (int i = 0; i < 20; i++) {
+      assertThat(Files.readString(originWorkdir.resolve("merged" + i + ".txt")))
+          .isEqualTo("foo\n".concat(commonFileContents).concat("bar\n"));
+    }
+    assertThat(Files.readString(originWorkdir.resolve("same.txt")))
+        .isEqualTo(commonFileContents);
+    assertThat(Files.readString(originWorkdir.resolve("destination_changed.bin")))
+        .isEqualTo("a\0c");
+    assertThat(Files.readString(originWorkdir.resolve("origin_changed.txt")))
+        .isEqualTo("foo\n");
+  }
+
+  @Test
+  public void testInProcessMergeUsesDiffToolForConflicts() throws Exception {
+    underTest =
+        new MergeImportTool(
+            console, commandLineDiffUtil, /*inProcessMerge=*/ true, /*threads=*/ 4);
+    String fileName = "foo.txt";
+    writeFile(baselineWorkdir, fileName, "a\nb\nc\n");
+    writeFile(originWorkdir, fileName, "a\nX\nc\n");
+    writeFile(destinationWorkdir, fileName, "a\nY\nc\n");
+
+    underTest.mergeImport(originWorkdir, destinationWorkdir, baselineWorkdir, diffToolWorkdir);
+
+    assertThat(console.getMessages().stream().map(Message::getText).collect(Collectors.toList()))
+        .contains(String.format("Merge error for path %s", originWorkdir.resolve(fileName)));
+    assertThat(Files.readString(originWorkdir.resolve(fileName)))
+        .isEqualTo(
+            String.format(
+                "a\n"
+                    + "<<<<<<< %s/foo.txt\n"
+                    + "X\n"
+                    + "||||||| %s/foo.txt\n"
+                    + "b\n"
+                    + "=======\n"
+                    + "Y\n"
+                    + ">>>>>>> %s/foo.txt\n"
+                    + "c\n",
+                originWorkdir, baselineWorkdir, destinationWorkdir));
+  }
+
   private Path createDir(Path parent, String name) throws IOException {
     Path path = parent.resolve(name);
     Files.createDirectories(path);
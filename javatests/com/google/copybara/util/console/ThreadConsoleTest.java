@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2022 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util.console;
+
+import com.google.copybara.util.console.Message.MessageType;
+import com.google.copybara.util.console.testing.TestingConsole;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ThreadConsoleTest {
+
+  @Test
+  public void testConsole() throws Exception {
+    TestingConsole defaultConsole = new TestingConsole();
+    TestingConsole taskConsole = new TestingConsole();
+    ThreadConsole underTest = new ThreadConsole(defaultConsole);
+
+    underTest.setForCurrentThread(taskConsole);
+    underTest.info("From the task");
+    // Threads started by the task don't inherit its console
+    Thread thread = new Thread(() -> underTest.info("From another thread"));
+    thread.start();
+    thread.join();
+    underTest.resetForCurrentThread();
+    underTest.info("After the task");
+
+    taskConsole
+        .assertThat()
+        .matchesNext(MessageType.INFO, "From the task")
+        .containsNoMoreMessages();
+    defaultConsole
+        .assertThat()
+        .matchesNext(MessageType.INFO, "From another thread")
+        .matchesNext(MessageType.INFO, "After the task")
+        .containsNoMoreMessages();
+  }
+}